@@ -0,0 +1,131 @@
+package net.nelz.simplesm.aop;
+
+import java.lang.reflect.Method;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Everything an advice needs to know about one annotated method, resolved
+ * once on the first invocation and reused for every call after that.
+ * Instances are never modified after construction (including the wrapped
+ * <code>AnnotationData</code>), so they are safe to share between threads.
+ */
+class AdvicePlan {
+
+    /**
+     * Where the cache key for an invocation comes from.
+     */
+    enum KeySource {
+        /** The argument at <code>keyIndex</code>. */
+        PARAMETER,
+        /** The value returned by the target method. */
+        RETURN_VALUE,
+        /** The fixed <code>assignedKey</code> of an *AssignCache annotation. */
+        ASSIGNED
+    }
+
+    private final Method method;
+    private final Class annotationClass;
+    private final AnnotationData annotationData;
+    private final KeySource keySource;
+    private final String assignedCacheKey;
+    private final Throwable bypassReason;
+
+    AdvicePlan(final Method method,
+               final Class annotationClass,
+               final AnnotationData annotationData,
+               final String assignedCacheKey) {
+        this.method = method;
+        this.annotationClass = annotationClass;
+        this.annotationData = annotationData;
+        this.assignedCacheKey = assignedCacheKey;
+        this.bypassReason = null;
+        if (AnnotationDataBuilder.ASSIGNS.contains(annotationClass)) {
+            this.keySource = KeySource.ASSIGNED;
+        } else if (annotationData.getKeyIndex() == -1) {
+            this.keySource = KeySource.RETURN_VALUE;
+        } else {
+            this.keySource = KeySource.PARAMETER;
+        }
+    }
+
+    private AdvicePlan(final Method method, final Class annotationClass, final Throwable bypassReason) {
+        this.method = method;
+        this.annotationClass = annotationClass;
+        this.annotationData = null;
+        this.keySource = null;
+        this.assignedCacheKey = null;
+        this.bypassReason = bypassReason;
+    }
+
+    /**
+     * @return a plan telling the advice to leave the method alone: its annotation
+     * could not be validated, so every call goes straight to the target.
+     */
+    static AdvicePlan bypass(final Method method, final Class annotationClass, final Throwable reason) {
+        return new AdvicePlan(method, annotationClass, reason);
+    }
+
+    public boolean isBypassed() {
+        return bypassReason != null;
+    }
+
+    public Throwable getBypassReason() {
+        return bypassReason;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public Class getAnnotationClass() {
+        return annotationClass;
+    }
+
+    public AnnotationData getAnnotationData() {
+        return annotationData;
+    }
+
+    public KeySource getKeySource() {
+        return keySource;
+    }
+
+    public int getKeyIndex() {
+        return annotationData.getKeyIndex();
+    }
+
+    public int getDataIndex() {
+        return annotationData.getDataIndex();
+    }
+
+    public int getExpiration() {
+        return annotationData.getExpiration();
+    }
+
+    /**
+     * @return the full (namespace-qualified) cache key for *AssignCache annotations,
+     * or <code>null</code> for every other annotation type.
+     */
+    public String getAssignedCacheKey() {
+        return assignedCacheKey;
+    }
+}
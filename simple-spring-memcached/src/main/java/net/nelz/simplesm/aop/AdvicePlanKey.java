@@ -0,0 +1,68 @@
+package net.nelz.simplesm.aop;
+
+import java.util.Arrays;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Identifies an advised method by what is cheaply available from the join point
+ * (target class, method name and parameter types), so that finding an
+ * <code>AdvicePlan</code> never requires a reflective method lookup.
+ */
+class AdvicePlanKey {
+    private final Class targetClass;
+    private final String methodName;
+    private final Class[] parameterTypes;
+    private final Class annotationClass;
+    private final int hashCode;
+
+    AdvicePlanKey(final Class targetClass,
+                  final String methodName,
+                  final Class[] parameterTypes,
+                  final Class annotationClass) {
+        this.targetClass = targetClass;
+        this.methodName = methodName;
+        this.parameterTypes = parameterTypes == null ? new Class[0] : parameterTypes;
+        this.annotationClass = annotationClass;
+
+        int result = targetClass.hashCode();
+        result = 31 * result + methodName.hashCode();
+        result = 31 * result + Arrays.hashCode(this.parameterTypes);
+        result = 31 * result + (annotationClass == null ? 0 : annotationClass.hashCode());
+        this.hashCode = result;
+    }
+
+    public int hashCode() {
+        return hashCode;
+    }
+
+    public boolean equals(final Object obj) {
+        if (this == obj) { return true; }
+        if (!(obj instanceof AdvicePlanKey)) { return false; }
+        final AdvicePlanKey other = (AdvicePlanKey) obj;
+        return hashCode == other.hashCode
+                && targetClass.equals(other.targetClass)
+                && methodName.equals(other.methodName)
+                && (annotationClass == null ? other.annotationClass == null : annotationClass.equals(other.annotationClass))
+                && Arrays.equals(parameterTypes, other.parameterTypes);
+    }
+}
@@ -30,6 +30,20 @@ class AnnotationData {
     private int expiration = 0;
     private String className = "";
     private String assignedKey = "";
+    private int softExpiration = 0;
+    private double earlyRecomputeBeta = 0;
+    private int leaseExpiration = 0;
+    private int leaseWaitMillis = 0;
+    private boolean writeBehind = false;
+    private int casRetries = 0;
+    private int tombstoneExpiration = 0;
+    private int counterDelta = 0;
+    private long counterInitialValue = 0;
+    private boolean counterBatched = false;
+    private boolean slidingExpiration = false;
+    private int negativeExpiration = 0;
+    private boolean lazyResults = false;
+    private boolean chunked = false;
 
     public String getNamespace() {
         return namespace;
@@ -86,4 +100,116 @@ class AnnotationData {
     public void setAssignedKey(String assignedKey) {
         this.assignedKey = assignedKey;
     }
+
+    public int getLeaseExpiration() {
+        return leaseExpiration;
+    }
+
+    public void setLeaseExpiration(int leaseExpiration) {
+        this.leaseExpiration = leaseExpiration;
+    }
+
+    public int getLeaseWaitMillis() {
+        return leaseWaitMillis;
+    }
+
+    public void setLeaseWaitMillis(int leaseWaitMillis) {
+        this.leaseWaitMillis = leaseWaitMillis;
+    }
+
+    public int getSoftExpiration() {
+        return softExpiration;
+    }
+
+    public void setSoftExpiration(int softExpiration) {
+        this.softExpiration = softExpiration;
+    }
+
+    public double getEarlyRecomputeBeta() {
+        return earlyRecomputeBeta;
+    }
+
+    public void setEarlyRecomputeBeta(double earlyRecomputeBeta) {
+        this.earlyRecomputeBeta = earlyRecomputeBeta;
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public int getCasRetries() {
+        return casRetries;
+    }
+
+    public void setCasRetries(int casRetries) {
+        this.casRetries = casRetries;
+    }
+
+    public int getTombstoneExpiration() {
+        return tombstoneExpiration;
+    }
+
+    public void setTombstoneExpiration(int tombstoneExpiration) {
+        this.tombstoneExpiration = tombstoneExpiration;
+    }
+
+    public int getCounterDelta() {
+        return counterDelta;
+    }
+
+    public void setCounterDelta(int counterDelta) {
+        this.counterDelta = counterDelta;
+    }
+
+    public long getCounterInitialValue() {
+        return counterInitialValue;
+    }
+
+    public void setCounterInitialValue(long counterInitialValue) {
+        this.counterInitialValue = counterInitialValue;
+    }
+
+    public boolean isCounterBatched() {
+        return counterBatched;
+    }
+
+    public void setCounterBatched(boolean counterBatched) {
+        this.counterBatched = counterBatched;
+    }
+
+    public boolean isSlidingExpiration() {
+        return slidingExpiration;
+    }
+
+    public void setSlidingExpiration(boolean slidingExpiration) {
+        this.slidingExpiration = slidingExpiration;
+    }
+
+    public int getNegativeExpiration() {
+        return negativeExpiration;
+    }
+
+    public void setNegativeExpiration(int negativeExpiration) {
+        this.negativeExpiration = negativeExpiration;
+    }
+
+    public boolean isLazyResults() {
+        return lazyResults;
+    }
+
+    public void setLazyResults(boolean lazyResults) {
+        this.lazyResults = lazyResults;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
 }
@@ -38,6 +38,12 @@ class AnnotationDataBuilder {
     static final Set<Class> MULTIS = new HashSet<Class>();
     static final Set<Class> INVALIDATES = new HashSet<Class>();
     static final Set<Class> UPDATES = new HashSet<Class>();
+    static final Set<Class> READS = new HashSet<Class>();
+    static final Set<Class> EARLY_RECOMPUTES = new HashSet<Class>();
+    static final Set<Class> CAS_UPDATES = new HashSet<Class>();
+    static final Set<Class> COUNTERS = new HashSet<Class>();
+    static final Set<Class> COUNTER_UPDATES = new HashSet<Class>();
+    static final Set<Class> CHUNKABLES = new HashSet<Class>();
 
     static {
         Collections.addAll(ASSIGNS,
@@ -48,7 +54,10 @@ class AnnotationDataBuilder {
         Collections.addAll(SINGLES,
                 ReadThroughSingleCache.class,
                 UpdateSingleCache.class,
-                InvalidateSingleCache.class);
+                InvalidateSingleCache.class,
+                IncrementCache.class,
+                DecrementCache.class,
+                ReadCounterCache.class);
 
         Collections.addAll(MULTIS,
                 ReadThroughMultiCache.class,
@@ -60,6 +69,34 @@ class AnnotationDataBuilder {
                 UpdateMultiCache.class,
                 UpdateAssignCache.class);
 
+        Collections.addAll(READS,
+                ReadThroughSingleCache.class,
+                ReadThroughMultiCache.class,
+                ReadThroughAssignCache.class);
+
+        Collections.addAll(EARLY_RECOMPUTES,
+                ReadThroughSingleCache.class,
+                ReadThroughAssignCache.class);
+
+        Collections.addAll(CAS_UPDATES,
+                UpdateSingleCache.class,
+                UpdateAssignCache.class);
+
+        Collections.addAll(COUNTERS,
+                IncrementCache.class,
+                DecrementCache.class,
+                ReadCounterCache.class);
+
+        Collections.addAll(COUNTER_UPDATES,
+                IncrementCache.class,
+                DecrementCache.class);
+
+        Collections.addAll(CHUNKABLES,
+                ReadThroughSingleCache.class,
+                ReadThroughAssignCache.class,
+                UpdateSingleCache.class,
+                UpdateAssignCache.class);
+
         Collections.addAll(INVALIDATES,
                 InvalidateAssignCache.class,
                 InvalidateSingleCache.class,
@@ -83,6 +120,28 @@ class AnnotationDataBuilder {
 
             populateAssignedKey(data, annotation, expectedAnnotationClass, targetMethod.getName());
 
+            populateLease(data, annotation, expectedAnnotationClass, targetMethod.getName());
+
+            populateSoftExpiration(data, annotation, expectedAnnotationClass, targetMethod.getName());
+
+            populateEarlyRecomputeBeta(data, annotation, expectedAnnotationClass, targetMethod.getName());
+
+            populateSlidingExpiration(data, annotation, expectedAnnotationClass, targetMethod.getName());
+
+            populateNegativeExpiration(data, annotation, expectedAnnotationClass, targetMethod.getName());
+
+            populateLazyResults(data, annotation, expectedAnnotationClass, targetMethod.getName());
+
+            populateWriteBehind(data, annotation, expectedAnnotationClass);
+
+            populateCasRetries(data, annotation, expectedAnnotationClass, targetMethod.getName());
+
+            populateChunked(data, annotation, expectedAnnotationClass, targetMethod.getName());
+
+            populateTombstoneExpiration(data, annotation, expectedAnnotationClass, targetMethod.getName());
+
+            populateCounter(data, annotation, expectedAnnotationClass, targetMethod.getName());
+
         } catch (NoSuchMethodException ex) {
             throw new RuntimeException("Problem assembling Annotation information.", ex);
         } catch (IllegalAccessException ex) {
@@ -94,6 +153,220 @@ class AnnotationDataBuilder {
         return data;
     }
 
+    static void populateCounter(final AnnotationData data,
+                                final Annotation annotation,
+                                final Class expectedAnnotationClass,
+                                final String targetMethodName)
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (!COUNTER_UPDATES.contains(expectedAnnotationClass)) { return; }
+
+        final Method byMethod = expectedAnnotationClass.getDeclaredMethod("by", null);
+        final int by = (Integer) byMethod.invoke(annotation, null);
+        final Method initialValueMethod = expectedAnnotationClass.getDeclaredMethod("initialValue", null);
+        final long initialValue = (Long) initialValueMethod.invoke(annotation, null);
+        if (by < 1 || initialValue < 0) {
+            throw new InvalidParameterException(String.format(
+                    "By for annotation [%s] must be 1 or greater, and initialValue 0 or greater on [%s]",
+                    expectedAnnotationClass.getName(),
+                    targetMethodName
+            ));
+        }
+        final Method batchedMethod = expectedAnnotationClass.getDeclaredMethod("batched", null);
+        data.setCounterDelta(by);
+        data.setCounterInitialValue(initialValue);
+        data.setCounterBatched((Boolean) batchedMethod.invoke(annotation, null));
+    }
+
+    static void populateTombstoneExpiration(final AnnotationData data,
+                                            final Annotation annotation,
+                                            final Class expectedAnnotationClass,
+                                            final String targetMethodName)
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (!INVALIDATES.contains(expectedAnnotationClass)) { return; }
+
+        final Method tombstoneMethod = expectedAnnotationClass.getDeclaredMethod("tombstoneExpiration", null);
+        final int tombstoneExpiration = (Integer) tombstoneMethod.invoke(annotation, null);
+        if (tombstoneExpiration < 0 || tombstoneExpiration > CacheBase.MAX_RELATIVE_EXPIRATION) {
+            throw new InvalidParameterException(String.format(
+                    "TombstoneExpiration for annotation [%s] must be between 0 and 30 days on [%s]",
+                    expectedAnnotationClass.getName(),
+                    targetMethodName
+            ));
+        }
+        data.setTombstoneExpiration(tombstoneExpiration);
+    }
+
+    static void populateChunked(final AnnotationData data,
+                                final Annotation annotation,
+                                final Class expectedAnnotationClass,
+                                final String targetMethodName)
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (!CHUNKABLES.contains(expectedAnnotationClass)) { return; }
+
+        final Method chunkedMethod = expectedAnnotationClass.getDeclaredMethod("chunked", null);
+        final boolean chunked = (Boolean) chunkedMethod.invoke(annotation, null);
+        if (chunked && (data.isSlidingExpiration() || data.isWriteBehind() || data.getCasRetries() > 0)) {
+            throw new InvalidParameterException(String.format(
+                    "Chunked for annotation [%s] cannot be combined with slidingExpiration, writeBehind " +
+                    "or casRetries on [%s]",
+                    expectedAnnotationClass.getName(),
+                    targetMethodName
+            ));
+        }
+        data.setChunked(chunked);
+    }
+
+    static void populateCasRetries(final AnnotationData data,
+                                   final Annotation annotation,
+                                   final Class expectedAnnotationClass,
+                                   final String targetMethodName)
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (!CAS_UPDATES.contains(expectedAnnotationClass)) { return; }
+
+        final Method casRetriesMethod = expectedAnnotationClass.getDeclaredMethod("casRetries", null);
+        final int casRetries = (Integer) casRetriesMethod.invoke(annotation, null);
+        if (casRetries < 0 || (casRetries > 0 && (data.getExpiration() != 0 || data.isWriteBehind()))) {
+            throw new InvalidParameterException(String.format(
+                    "CasRetries for annotation [%s] must be 0 or greater, and requires an expiration of 0 " +
+                    "without writeBehind on [%s]",
+                    expectedAnnotationClass.getName(),
+                    targetMethodName
+            ));
+        }
+        data.setCasRetries(casRetries);
+    }
+
+    static void populateWriteBehind(final AnnotationData data,
+                                    final Annotation annotation,
+                                    final Class expectedAnnotationClass)
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (!UPDATES.contains(expectedAnnotationClass)) { return; }
+
+        final Method writeBehindMethod = expectedAnnotationClass.getDeclaredMethod("writeBehind", null);
+        data.setWriteBehind((Boolean) writeBehindMethod.invoke(annotation, null));
+    }
+
+    static void populateSlidingExpiration(final AnnotationData data,
+                                          final Annotation annotation,
+                                          final Class expectedAnnotationClass,
+                                          final String targetMethodName)
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (!READS.contains(expectedAnnotationClass)) { return; }
+
+        final Method slidingMethod = expectedAnnotationClass.getDeclaredMethod("slidingExpiration", null);
+        final boolean sliding = (Boolean) slidingMethod.invoke(annotation, null);
+        if (sliding && (data.getExpiration() <= 0
+                || data.getExpiration() > CacheBase.MAX_RELATIVE_EXPIRATION
+                || data.getEarlyRecomputeBeta() > 0)) {
+            throw new InvalidParameterException(String.format(
+                    "SlidingExpiration for annotation [%s] requires an expiration of at most 30 days, "
+                            + "and no earlyRecomputeBeta on [%s]",
+                    expectedAnnotationClass.getName(),
+                    targetMethodName
+            ));
+        }
+        data.setSlidingExpiration(sliding);
+    }
+
+    static void populateNegativeExpiration(final AnnotationData data,
+                                           final Annotation annotation,
+                                           final Class expectedAnnotationClass,
+                                           final String targetMethodName)
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (!READS.contains(expectedAnnotationClass)) { return; }
+
+        final Method negativeMethod = expectedAnnotationClass.getDeclaredMethod("negativeExpiration", null);
+        final int negativeExpiration = (Integer) negativeMethod.invoke(annotation, null);
+        if (negativeExpiration < 0 || negativeExpiration > CacheBase.MAX_RELATIVE_EXPIRATION) {
+            throw new InvalidParameterException(String.format(
+                    "NegativeExpiration for annotation [%s] must be between 0 and 30 days on [%s]",
+                    expectedAnnotationClass.getName(),
+                    targetMethodName
+            ));
+        }
+        data.setNegativeExpiration(negativeExpiration);
+    }
+
+    static void populateLazyResults(final AnnotationData data,
+                                    final Annotation annotation,
+                                    final Class expectedAnnotationClass,
+                                    final String targetMethodName)
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (expectedAnnotationClass != ReadThroughMultiCache.class) { return; }
+
+        final Method lazyMethod = expectedAnnotationClass.getDeclaredMethod("lazyResults", null);
+        final boolean lazy = (Boolean) lazyMethod.invoke(annotation, null);
+        if (lazy && data.getSoftExpiration() > 0) {
+            throw new InvalidParameterException(String.format(
+                    "LazyResults for annotation [%s] cannot be combined with a softExpiration on [%s]",
+                    expectedAnnotationClass.getName(),
+                    targetMethodName
+            ));
+        }
+        data.setLazyResults(lazy);
+    }
+
+    static void populateEarlyRecomputeBeta(final AnnotationData data,
+                                           final Annotation annotation,
+                                           final Class expectedAnnotationClass,
+                                           final String targetMethodName)
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (!EARLY_RECOMPUTES.contains(expectedAnnotationClass)) { return; }
+
+        final Method betaMethod = expectedAnnotationClass.getDeclaredMethod("earlyRecomputeBeta", null);
+        final double beta = (Double) betaMethod.invoke(annotation, null);
+        if (beta < 0 || Double.isNaN(beta) || Double.isInfinite(beta) || (beta > 0 && data.getExpiration() == 0)) {
+            throw new InvalidParameterException(String.format(
+                    "EarlyRecomputeBeta for annotation [%s] must be 0 or greater, and requires an expiration on [%s]",
+                    expectedAnnotationClass.getName(),
+                    targetMethodName
+            ));
+        }
+        data.setEarlyRecomputeBeta(beta);
+    }
+
+    static void populateSoftExpiration(final AnnotationData data,
+                                       final Annotation annotation,
+                                       final Class expectedAnnotationClass,
+                                       final String targetMethodName)
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (!READS.contains(expectedAnnotationClass)) { return; }
+
+        final Method softExpirationMethod = expectedAnnotationClass.getDeclaredMethod("softExpiration", null);
+        final int softExpiration = (Integer) softExpirationMethod.invoke(annotation, null);
+        if (softExpiration < 0
+                || (softExpiration > 0 && data.getExpiration() > 0 && softExpiration >= data.getExpiration())) {
+            throw new InvalidParameterException(String.format(
+                    "SoftExpiration for annotation [%s] must be 0 or greater, and smaller than the expiration on [%s]",
+                    expectedAnnotationClass.getName(),
+                    targetMethodName
+            ));
+        }
+        data.setSoftExpiration(softExpiration);
+    }
+
+    static void populateLease(final AnnotationData data,
+                              final Annotation annotation,
+                              final Class expectedAnnotationClass,
+                              final String targetMethodName)
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        if (!READS.contains(expectedAnnotationClass)) { return; }
+
+        final Method expirationMethod = expectedAnnotationClass.getDeclaredMethod("leaseExpiration", null);
+        final int leaseExpiration = (Integer) expirationMethod.invoke(annotation, null);
+        final Method waitMethod = expectedAnnotationClass.getDeclaredMethod("leaseWaitMillis", null);
+        final int leaseWaitMillis = (Integer) waitMethod.invoke(annotation, null);
+        if (leaseExpiration < 0 || leaseWaitMillis < 0) {
+            throw new InvalidParameterException(String.format(
+                    "LeaseExpiration and leaseWaitMillis for annotation [%s] must be 0 or greater on [%s]",
+                    expectedAnnotationClass.getName(),
+                    targetMethodName
+            ));
+        }
+        data.setLeaseExpiration(leaseExpiration);
+        data.setLeaseWaitMillis(leaseWaitMillis);
+    }
+
     static void populateAssignedKey(final AnnotationData data,
                                             final Annotation annotation,
                                             final Class expectedAnnotationClass,
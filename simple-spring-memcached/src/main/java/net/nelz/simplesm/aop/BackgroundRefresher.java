@@ -0,0 +1,175 @@
+package net.nelz.simplesm.aop;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Runs the refreshes of entries that are past their soft expiration on a small, bounded
+ * pool of daemon threads. At most one refresh per cache key is queued or running at any
+ * time; when the queue is full, further refreshes are dropped (the stale entry is simply
+ * served a little longer) instead of blocking the caller.
+ */
+public class BackgroundRefresher {
+    private static final Log LOG = LogFactory.getLog(BackgroundRefresher.class);
+
+    private int threads = 2;
+    private int queueCapacity = 100;
+
+    private final ConcurrentMap<String, Boolean> inProgress = new ConcurrentHashMap<String, Boolean>();
+    private ThreadPoolExecutor executor;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public void setThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1.");
+        }
+        this.threads = threads;
+    }
+
+    public void setQueueCapacity(final int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1.");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Schedules a refresh of the given key, unless one is already queued or running.
+     * @return true if the task was scheduled.
+     */
+    public boolean refresh(final String cacheKey, final Runnable task) {
+        final List<String> claimed = claim(Collections.singleton(cacheKey));
+        return !claimed.isEmpty() && submit(claimed, task);
+    }
+
+    /**
+     * Claims the given keys for a refresh. Keys that are already being refreshed are left out.
+     * The claimed keys must be handed to <code>submit</code>, which releases them again.
+     * @return the keys that were claimed.
+     */
+    public List<String> claim(final Collection<String> cacheKeys) {
+        final List<String> claimed = new ArrayList<String>(cacheKeys.size());
+        for (final String cacheKey : cacheKeys) {
+            if (inProgress.putIfAbsent(cacheKey, Boolean.TRUE) == null) {
+                claimed.add(cacheKey);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Schedules a task refreshing the given, previously claimed, keys.
+     * @return true if the task was scheduled; false if the queue was full.
+     */
+    public boolean submit(final Collection<String> claimedKeys, final Runnable task) {
+        try {
+            getExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                        completed.incrementAndGet();
+                    } catch (Throwable ex) {
+                        failed.incrementAndGet();
+                        LOG.warn("Refreshing " + claimedKeys + " failed.", ex);
+                    } finally {
+                        release(claimedKeys);
+                    }
+                }
+            });
+            submitted.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException ex) {
+            rejected.incrementAndGet();
+            release(claimedKeys);
+            return false;
+        }
+    }
+
+    private void release(final Collection<String> claimedKeys) {
+        for (final String cacheKey : claimedKeys) {
+            inProgress.remove(cacheKey);
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity),
+                    new ThreadFactory() {
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread = new Thread(runnable, "simplesm-refresh-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    },
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+        return executor;
+    }
+
+    /**
+     * Stops accepting refreshes; the ones already queued still run.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of refreshes that were dropped because the queue was full.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of refreshes that are queued or running.
+     */
+    public int getInProgress() {
+        return inProgress.size();
+    }
+}
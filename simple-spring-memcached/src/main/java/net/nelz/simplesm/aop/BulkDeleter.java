@@ -0,0 +1,250 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Deletes a large number of keys from memcached at once. The deletes are issued grouped by
+ * the node their keys map to, so that they are pipelined on each node's connection, but no
+ * more than <code>maxInFlight</code> of them are outstanding at any time: once that many
+ * are waiting for an acknowledgement, the oldest one is awaited before the next is issued.
+ * This keeps a bulk invalidation from flooding the client's queues.
+ *
+ * All of the deletes of one call share a deadline of <code>deadlineMillis</code>. Keys that
+ * could not be deleted, or whose delete was not acknowledged in time, are reported in the
+ * result and handed to the <code>FailedKeysHandler</code>, if there is one, to be retried.
+ */
+public class BulkDeleter {
+    private static final Log LOG = LogFactory.getLog(BulkDeleter.class);
+
+    private int maxInFlight = 1000;
+    private long deadlineMillis = 5000;
+    private FailedKeysHandler failedKeysHandler;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * Gets told about the keys a bulk delete did not manage to delete.
+     */
+    public interface FailedKeysHandler {
+        void deletesFailed(List<String> cacheKeys);
+    }
+
+    public void setMaxInFlight(final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1.");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    public void setDeadlineMillis(final long deadlineMillis) {
+        if (deadlineMillis < 1) {
+            throw new IllegalArgumentException("deadlineMillis must be at least 1.");
+        }
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    public void setFailedKeysHandler(final FailedKeysHandler failedKeysHandler) {
+        this.failedKeysHandler = failedKeysHandler;
+    }
+
+    /**
+     * Deletes all of the given keys. A key that was not in the cache counts as deleted.
+     * Never throws: problems with individual deletes are reported in the result instead.
+     */
+    public Result delete(final MemcachedClientIF cache, final Collection<String> cacheKeys) {
+        return delete(cache, cacheKeys, 0);
+    }
+
+    /**
+     * Like <code>delete(cache, cacheKeys)</code>, but when <code>tombstoneExpiration</code> is
+     * greater than 0 the keys are overwritten with a <code>Tombstone</code> living that many
+     * seconds instead of being deleted.
+     */
+    public Result delete(final MemcachedClientIF cache, final Collection<String> cacheKeys, final int tombstoneExpiration) {
+        return delete(cache, cacheKeys, tombstoneExpiration, null);
+    }
+
+    /**
+     * Like <code>delete(cache, cacheKeys, tombstoneExpiration)</code>, encoding the tombstones
+     * with the given transcoder, or the client's own if it is null.
+     */
+    public Result delete(final MemcachedClientIF cache,
+                         final Collection<String> cacheKeys,
+                         final int tombstoneExpiration,
+                         final Transcoder<Object> transcoder) {
+        final Result result = new Result();
+        if (cacheKeys.isEmpty()) { return result; }
+
+        final long deadline = System.currentTimeMillis() + deadlineMillis;
+        final LinkedList<Pending> window = new LinkedList<Pending>();
+        for (final List<String> group : MultiSetWriter.groupByNode(cache, new LinkedHashSet<String>(cacheKeys))) {
+            for (final String key : group) {
+                while (window.size() >= maxInFlight) {
+                    await(window.removeFirst(), deadline, result);
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    // Out of time: do not even issue the rest.
+                    result.timedOut.add(key);
+                    continue;
+                }
+                try {
+                    final Future<Boolean> future;
+                    if (tombstoneExpiration <= 0) {
+                        future = cache.delete(key);
+                    } else if (transcoder == null) {
+                        future = cache.set(key, tombstoneExpiration, new Tombstone());
+                    } else {
+                        future = cache.set(key, tombstoneExpiration, new Tombstone(), transcoder);
+                    }
+                    window.add(new Pending(key, future));
+                } catch (RuntimeException ex) {
+                    // e.g. the client's input queue is full.
+                    LOG.debug("Unable to delete [" + key + "].", ex);
+                    result.failed.add(key);
+                }
+            }
+        }
+        while (!window.isEmpty()) {
+            await(window.removeFirst(), deadline, result);
+        }
+
+        batches.incrementAndGet();
+        deleted.addAndGet(result.deleted);
+        failed.addAndGet(result.failed.size());
+        timedOut.addAndGet(result.timedOut.size());
+        if (!result.isComplete() && failedKeysHandler != null) {
+            try {
+                failedKeysHandler.deletesFailed(result.getFailedKeys());
+            } catch (RuntimeException ex) {
+                LOG.warn("The handler of failed deletes failed.", ex);
+            }
+        }
+        return result;
+    }
+
+    private void await(final Pending pending, final long deadline, final Result result) {
+        if (pending.future == null) {
+            result.deleted++;
+            return;
+        }
+        try {
+            final long left = Math.max(0, deadline - System.currentTimeMillis());
+            // False only means that the key was not there to begin with.
+            pending.future.get(left, TimeUnit.MILLISECONDS);
+            result.deleted++;
+        } catch (TimeoutException ex) {
+            result.timedOut.add(pending.key);
+        } catch (ExecutionException ex) {
+            LOG.debug("Unable to delete [" + pending.key + "].", ex);
+            result.failed.add(pending.key);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            result.timedOut.add(pending.key);
+        }
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    private static class Pending {
+        final String key;
+        final Future<Boolean> future;
+
+        Pending(final String key, final Future<Boolean> future) {
+            this.key = key;
+            this.future = future;
+        }
+    }
+
+    /**
+     * The outcome of one bulk delete.
+     */
+    public static class Result {
+        private int deleted;
+        private final List<String> failed = new ArrayList<String>();
+        private final List<String> timedOut = new ArrayList<String>();
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * @return the keys whose delete was rejected or failed.
+         */
+        public List<String> getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return the keys whose delete was not acknowledged, or not even issued, before the deadline.
+         */
+        public List<String> getTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * @return all of the keys that may still be in the cache.
+         */
+        public List<String> getFailedKeys() {
+            final List<String> keys = new ArrayList<String>(failed.size() + timedOut.size());
+            keys.addAll(failed);
+            keys.addAll(timedOut);
+            return keys;
+        }
+
+        public boolean isComplete() {
+            return failed.isEmpty() && timedOut.isEmpty();
+        }
+
+        public String toString() {
+            return String.format("%s deleted, %s failed, %s timed out", deleted, failed.size(), timedOut.size());
+        }
+    }
+}
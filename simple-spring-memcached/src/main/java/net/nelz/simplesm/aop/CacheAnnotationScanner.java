@@ -0,0 +1,168 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.exceptions.InvalidAnnotationException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Finds every bean method carrying one of the caching annotations and builds its
+ * <code>AdvicePlan</code> when the context starts, instead of on the first call.
+ * Methods with invalid annotations are either reported by failing the startup
+ * (<code>failOnInvalidAnnotation</code>), or logged once and left uncached for good.
+ */
+public class CacheAnnotationScanner implements BeanPostProcessor, ApplicationContextAware, ApplicationListener {
+    private static final Log LOG = LogFactory.getLog(CacheAnnotationScanner.class);
+    private static final String API_PACKAGE = "net.nelz.simplesm.api.";
+
+    private ApplicationContext applicationContext;
+    private boolean failOnInvalidAnnotation = false;
+    private final List<AnnotatedMethod> pending = new ArrayList<AnnotatedMethod>();
+    private Map<Class, CacheBase> advices;
+
+    public void setApplicationContext(final ApplicationContext applicationContext) {
+        this.applicationContext = applicationContext;
+    }
+
+    public void setFailOnInvalidAnnotation(final boolean failOnInvalidAnnotation) {
+        this.failOnInvalidAnnotation = failOnInvalidAnnotation;
+    }
+
+    public Object postProcessBeforeInitialization(final Object bean, final String beanName) throws BeansException {
+        if (bean instanceof CacheBase) { return bean; }
+        final List<AnnotatedMethod> found = findAnnotatedMethods(bean.getClass());
+        if (found.isEmpty()) { return bean; }
+
+        // Until the context is refreshed, not all of the advices may exist yet.
+        synchronized (pending) {
+            if (advices == null) {
+                pending.addAll(found);
+                return bean;
+            }
+        }
+        prepare(found);
+        return bean;
+    }
+
+    public Object postProcessAfterInitialization(final Object bean, final String beanName) throws BeansException {
+        return bean;
+    }
+
+    public void onApplicationEvent(final ApplicationEvent event) {
+        if (!(event instanceof ContextRefreshedEvent)
+                || ((ContextRefreshedEvent) event).getApplicationContext() != applicationContext) {
+            return;
+        }
+        final List<AnnotatedMethod> found;
+        synchronized (pending) {
+            advices = findAdvices();
+            found = new ArrayList<AnnotatedMethod>(pending);
+            pending.clear();
+        }
+        prepare(found);
+    }
+
+    void prepare(final List<AnnotatedMethod> methods) {
+        // The writes first: a read-through whose namespace they write to may be invalid.
+        final List<AnnotatedMethod> ordered = new ArrayList<AnnotatedMethod>();
+        final List<AnnotatedMethod> reads = new ArrayList<AnnotatedMethod>();
+        for (final AnnotatedMethod annotated : methods) {
+            if (AnnotationDataBuilder.READS.contains(annotated.annotationClass)) {
+                reads.add(annotated);
+            } else {
+                ordered.add(annotated);
+            }
+        }
+        ordered.addAll(reads);
+
+        final List<String> failures = new ArrayList<String>();
+        for (final AnnotatedMethod annotated : ordered) {
+            final CacheBase advice = advices.get(annotated.annotationClass);
+            if (advice == null) { continue; }
+            final AdvicePlan plan = advice.prepareAdvicePlan(annotated.targetClass,
+                    annotated.method,
+                    annotated.annotationClass);
+            if (plan.isBypassed()) {
+                failures.add(String.format("[%s] on [%s]: %s",
+                        annotated.annotationClass.getName(),
+                        annotated.method.toString(),
+                        plan.getBypassReason().getMessage()));
+            }
+        }
+        if (failures.isEmpty()) { return; }
+        if (failOnInvalidAnnotation) {
+            throw new InvalidAnnotationException("Invalid caching annotations found: " + failures);
+        }
+        LOG.warn(String.format("Caching is disabled for %s method(s) with invalid annotations.", failures.size()));
+    }
+
+    Map<Class, CacheBase> findAdvices() {
+        final Map<Class, CacheBase> results = new HashMap<Class, CacheBase>();
+        if (applicationContext == null) { return results; }
+        final Map beans = applicationContext.getBeansOfType(CacheBase.class);
+        for (final Object bean : beans.values()) {
+            final CacheBase advice = (CacheBase) bean;
+            if (advice.getAnnotationClass() != null) {
+                results.put(advice.getAnnotationClass(), advice);
+            }
+        }
+        return results;
+    }
+
+    static List<AnnotatedMethod> findAnnotatedMethods(final Class beanClass) {
+        final List<AnnotatedMethod> results = new ArrayList<AnnotatedMethod>();
+        for (final Method method : beanClass.getMethods()) {
+            if (method.isBridge() || method.isSynthetic()) { continue; }
+            for (final Annotation annotation : method.getAnnotations()) {
+                final Class annotationClass = annotation.annotationType();
+                if (annotationClass.getName().startsWith(API_PACKAGE)) {
+                    results.add(new AnnotatedMethod(beanClass, method, annotationClass));
+                }
+            }
+        }
+        return results;
+    }
+
+    static class AnnotatedMethod {
+        final Class targetClass;
+        final Method method;
+        final Class annotationClass;
+
+        AnnotatedMethod(final Class targetClass, final Method method, final Class annotationClass) {
+            this.targetClass = targetClass;
+            this.method = method;
+            this.annotationClass = annotationClass;
+        }
+    }
+}
@@ -2,7 +2,11 @@ package net.nelz.simplesm.aop;
 
 import net.nelz.simplesm.exceptions.*;
 import net.nelz.simplesm.api.*;
+import net.nelz.simplesm.nearcache.*;
+import net.nelz.simplesm.transcoders.*;
 import net.spy.memcached.*;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.*;
 import org.aspectj.lang.*;
 import org.aspectj.lang.Signature;
 import org.aspectj.lang.reflect.*;
@@ -10,9 +14,11 @@ import org.springframework.context.ApplicationContextAware;
 import org.springframework.context.ApplicationContext;
 import org.springframework.beans.BeansException;
 
+import java.io.*;
 import java.lang.reflect.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
 Copyright (c) 2008, 2009  Nelson Carpentier
@@ -36,13 +42,45 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
 THE SOFTWARE.
  */
 public class CacheBase implements ApplicationContextAware {
+	private static final Log LOG = LogFactory.getLog(CacheBase.class);
 
 	static final String SEPARATOR = ":";
+	static final String LEASE_SUFFIX = "lease";
+	static final int MAX_RELATIVE_EXPIRATION = 60 * 60 * 24 * 30;
+	static final long LEASE_MIN_BACKOFF_MILLIS = 5;
+	static final long LEASE_MAX_BACKOFF_MILLIS = 100;
+	static final long CAS_ADD_WAIT_MILLIS = 1000;
+	// Smaller values are decoded right away, even when the caller asks for raw ones.
+	static final int LAZY_DECODE_MIN_BYTES = 256;
+	private static final Method GET_CLASS;
+
+	static {
+		try {
+			GET_CLASS = Object.class.getMethod("getClass", null);
+		} catch (NoSuchMethodException ex) {
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
 
 	protected MemcachedClientIF cache;
 	CacheKeyMethodStore methodStore;
     protected KeyProvider defaultKeyProvider;
     protected ApplicationContext applicationContext;
+    protected NearCacheManager nearCacheManager;
+    protected TranscoderManager transcoderManager;
+    protected SingleFlight singleFlight = new SingleFlight();
+    protected BackgroundRefresher backgroundRefresher;
+    protected CacheGetBatcher cacheGetBatcher;
+    protected MultiSetWriter multiSetWriter = new MultiSetWriter();
+    protected BulkDeleter bulkDeleter = new BulkDeleter();
+    protected WriteBehindQueue writeBehindQueue;
+    protected CounterBatcher counterBatcher;
+    protected CacheToucher cacheToucher = new CacheToucher();
+    protected ValueChunker valueChunker = new ValueChunker();
+    protected NamespaceRegistry namespaceRegistry = new NamespaceRegistry();
+    final Map<AdvicePlanKey, AdvicePlan> plans = new ConcurrentHashMap<AdvicePlanKey, AdvicePlan>();
+    // The version method of each value class; GET_CLASS for classes without one.
+    final Map<Class, Method> versionMethods = new ConcurrentHashMap<Class, Method>();
 
     public void setApplicationContext(ApplicationContext applicationContext) {
         this.applicationContext = applicationContext;
@@ -60,6 +98,729 @@ public class CacheBase implements ApplicationContextAware {
         this.defaultKeyProvider = defaultKeyProvider;
     }
 
+    public void setNearCacheManager(NearCacheManager nearCacheManager) {
+        this.nearCacheManager = nearCacheManager;
+    }
+
+    public void setTranscoderManager(TranscoderManager transcoderManager) {
+        this.transcoderManager = transcoderManager;
+    }
+
+    public void setSingleFlight(SingleFlight singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    public void setBackgroundRefresher(BackgroundRefresher backgroundRefresher) {
+        this.backgroundRefresher = backgroundRefresher;
+    }
+
+    public void setCacheGetBatcher(CacheGetBatcher cacheGetBatcher) {
+        this.cacheGetBatcher = cacheGetBatcher;
+    }
+
+    public void setMultiSetWriter(MultiSetWriter multiSetWriter) {
+        this.multiSetWriter = multiSetWriter;
+    }
+
+    public void setBulkDeleter(BulkDeleter bulkDeleter) {
+        this.bulkDeleter = bulkDeleter;
+    }
+
+    public void setWriteBehindQueue(WriteBehindQueue writeBehindQueue) {
+        this.writeBehindQueue = writeBehindQueue;
+    }
+
+    public void setCounterBatcher(CounterBatcher counterBatcher) {
+        this.counterBatcher = counterBatcher;
+    }
+
+    public void setCacheToucher(CacheToucher cacheToucher) {
+        this.cacheToucher = cacheToucher;
+    }
+
+    public void setValueChunker(ValueChunker valueChunker) {
+        this.valueChunker = valueChunker;
+    }
+
+    public void setNamespaceRegistry(NamespaceRegistry namespaceRegistry) {
+        this.namespaceRegistry = namespaceRegistry;
+    }
+
+    protected NearCache getNearCache(final AnnotationData data) {
+        return nearCacheManager == null ? null : nearCacheManager.getCache(data.getNamespace());
+    }
+
+    /**
+     * @return the transcoder of the namespace, or null if its values go through the
+     * memcached client's own.
+     */
+    protected Transcoder<Object> getTranscoder(final AnnotationData data) {
+        return transcoderManager == null ? null : transcoderManager.getTranscoder(data.getNamespace());
+    }
+
+    /**
+     * Reads a value, trying the near cache of the namespace (if any) before memcached.
+     * Values found in memcached are copied into the near cache. When the get batcher is
+     * enabled (and the namespace has no transcoder of its own), the memcached read is merged
+     * with the concurrent ones of other threads.
+     * A <code>Tombstone</code> reads as a miss, and a <code>ChunkManifest</code> as the value
+     * it describes. A value the namespace's transcoder cannot decode reads as a miss too, and
+     * is deleted. Hits in memcached extend the expiration of annotations with a
+     * <code>slidingExpiration</code>.
+     */
+    protected Object getFromCache(final String cacheKey, final AnnotationData data) {
+        final NearCache nearCache = getNearCache(data);
+        if (nearCache != null) {
+            final Object nearResult = nearCache.get(cacheKey);
+            if (nearResult != null) { return nearResult; }
+        }
+        final Transcoder<Object> transcoder = getTranscoder(data);
+        Object result;
+        if (transcoder != null) {
+            result = decode(cacheKey, cache.get(cacheKey, RawTranscoder.INSTANCE), transcoder);
+        } else if (cacheGetBatcher != null && cacheGetBatcher.isEnabled()) {
+            result = cacheGetBatcher.get(cacheKey);
+        } else {
+            result = cache.get(cacheKey);
+        }
+        if (result instanceof ChunkManifest) {
+            result = valueChunker.read(cache, cacheKey, (ChunkManifest) result, transcoder);
+        }
+        if (result instanceof Tombstone) { return null; }
+        if (result != null && nearCache != null) {
+            nearCache.put(cacheKey, result);
+        }
+        if (result != null && isTouched(data)) {
+            touch(cacheKey, data, result);
+        }
+        return result;
+    }
+
+    /**
+     * Reads several values of the same annotation from memcached at once, leaving out the
+     * keys holding a <code>Tombstone</code>, and deleting those that cannot be decoded.
+     */
+    protected Map<String, Object> getAllFromCache(final Collection<String> cacheKeys, final AnnotationData data) {
+        final Map<String, Object> results = new HashMap<String, Object>();
+        for (final Map.Entry<String, Object> entry : getBulk(cacheKeys, data).entrySet()) {
+            if (!(entry.getValue() instanceof Tombstone)) {
+                results.put(entry.getKey(), entry.getValue());
+                if (isTouched(data)) {
+                    touch(entry.getKey(), data, entry.getValue());
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Like <code>getAllFromCache</code>, but leaves the values of at least
+     * <code>LAZY_DECODE_MIN_BYTES</code> as the <code>CachedData</code> memcached returned, for
+     * the caller to decode with <code>getDecoder</code> when it needs them. Smaller values are
+     * decoded right away: they are cheap, and tombstones and null results are among them.
+     * Large values a <code>VersionedTranscoder</code> would not decode are deleted, and read
+     * as misses, from their header alone.
+     */
+    protected Map<String, Object> getAllRawFromCache(final Collection<String> cacheKeys, final AnnotationData data) {
+        final Transcoder<Object> decoder = getDecoder(data);
+        final Map<String, Object> results = new HashMap<String, Object>();
+        for (final Map.Entry<String, Object> entry : cache.getBulk(cacheKeys, RawTranscoder.INSTANCE).entrySet()) {
+            Object value = entry.getValue();
+            final boolean raw = value instanceof CachedData
+                    && ((CachedData) value).getData().length >= LAZY_DECODE_MIN_BYTES;
+            if (!raw) {
+                value = decode(entry.getKey(), value, decoder);
+            } else if (decoder instanceof VersionedTranscoder
+                    && !((VersionedTranscoder) decoder).isCurrent((CachedData) value)) {
+                // Loaded with the other misses now, rather than one by one when accessed.
+                LOG.debug("Deleting [" + entry.getKey() + "], it was written with another version.");
+                cache.delete(entry.getKey());
+                continue;
+            }
+            if (value == null || value instanceof Tombstone) { continue; }
+            results.put(entry.getKey(), value);
+            if (isTouched(data) && raw && cacheToucher != null) {
+                // Written back as it is, without encoding it again.
+                cacheToucher.touch(cache, entry.getKey(), value, data.getExpiration(), RawTranscoder.INSTANCE);
+            } else if (isTouched(data)) {
+                touch(entry.getKey(), data, value);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the transcoder the values of the annotation's namespace are decoded with: its
+     * own, or the memcached client's.
+     */
+    protected Transcoder<Object> getDecoder(final AnnotationData data) {
+        final Transcoder<Object> transcoder = getTranscoder(data);
+        return transcoder != null ? transcoder : cache.getTranscoder();
+    }
+
+    /**
+     * @return whether hits of the annotation are touched. A touch writes back the value that was
+     * read, so it would undo an update or invalidation made in between. Plans with a
+     * <code>slidingExpiration</code> in namespaces written to are rejected, but without the
+     * <code>CacheAnnotationScanner</code> a write may only be registered after them.
+     */
+    private boolean isTouched(final AnnotationData data) {
+        return data.isSlidingExpiration() && !namespaceRegistry.isWritten(data.getNamespace());
+    }
+
+    private void touch(final String cacheKey, final AnnotationData data, final Object value) {
+        if (cacheToucher != null) {
+            cacheToucher.touch(cache, cacheKey, value, getExpiration(data, value), getTranscoder(data));
+        }
+    }
+
+    private Map<String, Object> getBulk(final Collection<String> cacheKeys, final AnnotationData data) {
+        final Transcoder<Object> transcoder = getTranscoder(data);
+        if (transcoder == null) { return cache.getBulk(cacheKeys); }
+        final Map<String, Object> results = new HashMap<String, Object>();
+        for (final Map.Entry<String, Object> entry : cache.getBulk(cacheKeys, RawTranscoder.INSTANCE).entrySet()) {
+            final Object value = decode(entry.getKey(), entry.getValue(), transcoder);
+            if (value != null) {
+                results.put(entry.getKey(), value);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Decodes a value read with the <code>RawTranscoder</code>. A value that is there but
+     * cannot be decoded (because it is corrupt, or was written for another schema version)
+     * would otherwise stay in the way of the value loaded to replace it, until it expires:
+     * it is deleted, and reads as a miss.
+     */
+    protected Object decode(final String cacheKey, final Object raw, final Transcoder<Object> transcoder) {
+        if (!(raw instanceof CachedData)) { return raw; }
+        Object value;
+        try {
+            value = transcoder.decode((CachedData) raw);
+        } catch (RuntimeException ex) {
+            LOG.warn("Unable to decode the value of [" + cacheKey + "].", ex);
+            value = null;
+        }
+        if (value == null) {
+            LOG.debug("Deleting [" + cacheKey + "], its value could not be decoded.");
+            cache.delete(cacheKey);
+        }
+        return value;
+    }
+
+    private Future<Boolean> set(final String cacheKey, final int expiration, final Object value, final AnnotationData data) {
+        final Transcoder<Object> transcoder = getTranscoder(data);
+        if (data.isChunked()) {
+            return valueChunker.write(cache, cacheKey, expiration, value, transcoder, false);
+        }
+        return transcoder == null
+                ? cache.set(cacheKey, expiration, value)
+                : cache.set(cacheKey, expiration, value, transcoder);
+    }
+
+    private Future<Boolean> add(final String cacheKey, final Object value, final AnnotationData data) {
+        final Transcoder<Object> transcoder = getTranscoder(data);
+        if (data.isChunked()) {
+            return valueChunker.write(cache, cacheKey, getExpiration(data, value), value, transcoder, true);
+        }
+        return transcoder == null
+                ? cache.add(cacheKey, getExpiration(data, value), value)
+                : cache.add(cacheKey, getExpiration(data, value), value, transcoder);
+    }
+
+    /**
+     * Stores a value that was loaded after a miss. In namespaces invalidated with a
+     * <code>Tombstone</code>, it is only added, so that it is not stored if the key has been
+     * written in the meantime: by an update, or by an invalidation. Elsewhere it is set, which
+     * also replaces whatever was in the key without reading as a value. Either way, the value
+     * is not put into the near cache; the next read takes it from memcached.
+     */
+    protected void addToCache(final String cacheKey, final AnnotationData data, final Object value) {
+        if (namespaceRegistry.isTombstoned(data.getNamespace())) {
+            add(cacheKey, value, data);
+        } else {
+            set(cacheKey, getExpiration(data, value), value, data);
+        }
+    }
+
+    /**
+     * Like <code>addToCache</code>, for several values of the same annotation at once.
+     */
+    protected MultiSetWriter.Result addAllToCache(final Map<String, Object> values, final AnnotationData data) {
+        if (namespaceRegistry.isTombstoned(data.getNamespace())) {
+            return multiSetWriter.add(cache, values, data.getExpiration(), data.getNegativeExpiration(), getTranscoder(data));
+        }
+        return multiSetWriter.write(cache, values, data.getExpiration(), data.getNegativeExpiration(), getTranscoder(data));
+    }
+
+    /**
+     * Overwrites a value that was reloaded while still cached (because it was stale, or due
+     * for an early recompute), unless the key was invalidated with a <code>Tombstone</code>
+     * while it was reloading.
+     * @return true if the value was written.
+     */
+    protected boolean replaceInCache(final String cacheKey, final AnnotationData data, final Object value) {
+        final Transcoder<Object> transcoder = getTranscoder(data);
+        final Object current = transcoder == null ? cache.get(cacheKey) : cache.get(cacheKey, transcoder);
+        if (current instanceof Tombstone) {
+            LOG.debug("Not refreshing [" + cacheKey + "], it was invalidated in the meantime.");
+            removeFromNearCache(cacheKey, data);
+            return false;
+        }
+        setInCache(cacheKey, data, value);
+        return true;
+    }
+
+    /**
+     * Like <code>replaceInCache</code>, for several values of the same annotation at once.
+     */
+    protected MultiSetWriter.Result replaceAllInCache(final Map<String, Object> values, final AnnotationData data) {
+        final Map<String, Object> current = getBulk(values.keySet(), data);
+        final Map<String, Object> replacements = new LinkedHashMap<String, Object>(values);
+        for (final Map.Entry<String, Object> entry : current.entrySet()) {
+            if (entry.getValue() instanceof Tombstone) {
+                LOG.debug("Not refreshing [" + entry.getKey() + "], it was invalidated in the meantime.");
+                replacements.remove(entry.getKey());
+                removeFromNearCache(entry.getKey(), data);
+            }
+        }
+        return setAllInCache(replacements, data);
+    }
+
+    protected void setInCache(final String cacheKey, final AnnotationData data, final Object value) {
+        if (data.getCasRetries() > 0) {
+            casInCache(cacheKey, data, value);
+            return;
+        }
+        if (data.isWriteBehind() && writeBehindQueue != null) {
+            writeBehindQueue.set(cacheKey, getExpiration(data, value), value, getTranscoder(data));
+        } else {
+            set(cacheKey, getExpiration(data, value), value, data);
+        }
+        putInNearCache(cacheKey, data, value);
+    }
+
+    /**
+     * Writes the value only if it is newer than the one in the cache, comparing the versions
+     * of the two within a <code>gets</code>/<code>cas</code> round trip. When another node
+     * keeps writing the key in between for more than <code>casRetries</code> attempts, the
+     * key is deleted rather than risking to leave an older value behind.
+     * @return true if the value was written.
+     */
+    protected boolean casInCache(final String cacheKey, final AnnotationData data, final Object value) {
+        final Comparable version = getVersion(value);
+        if (version == null) {
+            // Nothing to compare, e.g. a null result.
+            set(cacheKey, getExpiration(data, value), value, data);
+            putInNearCache(cacheKey, data, value);
+            return true;
+        }
+
+        final Transcoder<Object> transcoder = getTranscoder(data);
+        for (int attempt = 0; attempt <= data.getCasRetries(); attempt++) {
+            final CASValue<Object> current = transcoder == null ? cache.gets(cacheKey) : cache.gets(cacheKey, transcoder);
+            if (current == null) {
+                final Future<Boolean> added = add(cacheKey, value, data);
+                try {
+                    if (added == null || added.get(CAS_ADD_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        putInNearCache(cacheKey, data, value);
+                        return true;
+                    }
+                } catch (Exception ex) {
+                    throw new RuntimeException("Unable to add [" + cacheKey + "].", ex);
+                }
+                // Somebody else added it first; compare with theirs.
+                continue;
+            }
+
+            final Comparable currentVersion = getVersion(fromCacheValue(current.getValue()));
+            if (currentVersion != null && version.compareTo(currentVersion) <= 0) {
+                LOG.debug("Not writing version " + version + " of [" + cacheKey + "] over version " + currentVersion + ".");
+                removeFromNearCache(cacheKey, data);
+                return false;
+            }
+            final CASResponse response = transcoder == null
+                    ? cache.cas(cacheKey, current.getCas(), value)
+                    : cache.cas(cacheKey, current.getCas(), value, transcoder);
+            if (response == CASResponse.OK) {
+                putInNearCache(cacheKey, data, value);
+                return true;
+            }
+        }
+
+        LOG.warn("Gave up writing [" + cacheKey + "] after " + (data.getCasRetries() + 1) + " attempts, deleting it.");
+        deleteFromCache(cacheKey, data);
+        return false;
+    }
+
+    /**
+     * @return the version of the given value, as returned by the method annotated with
+     * <code>CacheVersionMethod</code>; or null if its class has no such method.
+     */
+    protected Comparable getVersion(final Object value) {
+        if (value == null || value instanceof PertinentNegativeNull) { return null; }
+        final Class type = value.getClass();
+        Method method = versionMethods.get(type);
+        if (method == null) {
+            method = findVersionMethod(type);
+            versionMethods.put(type, method);
+        }
+        if (method == GET_CLASS) { return null; }
+        try {
+            return (Comparable) method.invoke(value, null);
+        } catch (Exception ex) {
+            throw new RuntimeException("Unable to get the version of [" + value + "].", ex);
+        }
+    }
+
+    private static Method findVersionMethod(final Class type) {
+        Method found = null;
+        for (Class current = type; current != null; current = current.getSuperclass()) {
+            for (final Method method : current.getDeclaredMethods()) {
+                if (method.getAnnotation(CacheVersionMethod.class) == null) { continue; }
+                final Class returnType = method.getReturnType();
+                if (method.getParameterTypes().length > 0
+                        || !(Comparable.class.isAssignableFrom(returnType)
+                            || (returnType.isPrimitive() && !void.class.equals(returnType)))) {
+                    throw new InvalidAnnotationException(String.format(
+                            "Method [%s] must have 0 arguments and return a Comparable to be annotated with [%s]",
+                            method.toString(),
+                            CacheVersionMethod.class.getName()));
+                }
+                if (found != null) {
+                    throw new InvalidAnnotationException(String.format(
+                            "Class [%s] should have only one method annotated with [%s]. See [%s] and [%s]",
+                            type.getName(),
+                            CacheVersionMethod.class.getName(),
+                            found.getName(),
+                            method.getName()));
+                }
+                method.setAccessible(true);
+                found = method;
+            }
+            if (found != null) { return found; }
+        }
+        return GET_CLASS;
+    }
+
+    private void putInNearCache(final String cacheKey, final AnnotationData data, final Object value) {
+        final NearCache nearCache = getNearCache(data);
+        if (nearCache != null) {
+            nearCache.put(cacheKey, value);
+        }
+    }
+
+    private void removeFromNearCache(final String cacheKey, final AnnotationData data) {
+        final NearCache nearCache = getNearCache(data);
+        if (nearCache != null) {
+            nearCache.remove(cacheKey);
+        }
+    }
+
+    /**
+     * Stores several values of the same annotation at once, through the <code>MultiSetWriter</code>.
+     * @return how many of the writes succeeded, failed, or timed out.
+     */
+    protected MultiSetWriter.Result setAllInCache(final Map<String, Object> values, final AnnotationData data) {
+        final MultiSetWriter.Result result = multiSetWriter.write(
+                cache, values, data.getExpiration(), data.getNegativeExpiration(), getTranscoder(data));
+        final NearCache nearCache = getNearCache(data);
+        if (nearCache != null) {
+            for (final Map.Entry<String, Object> entry : values.entrySet()) {
+                nearCache.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes a key, or, if the annotation asks for a <code>tombstoneExpiration</code>,
+     * overwrites it with a <code>Tombstone</code> that keeps loads started before the
+     * invalidation from putting their older values back. A write of the key still queued
+     * behind is cancelled first.
+     */
+    protected void deleteFromCache(final String cacheKey, final AnnotationData data) {
+        removeFromNearCache(cacheKey, data);
+        if (writeBehindQueue != null) {
+            writeBehindQueue.cancel(cacheKey);
+        }
+        if (data.getTombstoneExpiration() > 0) {
+            set(cacheKey, data.getTombstoneExpiration(), new Tombstone(), data);
+        } else {
+            cache.delete(cacheKey);
+        }
+    }
+
+    /**
+     * Deletes several keys of the same annotation at once, through the <code>BulkDeleter</code>,
+     * cancelling their writes still queued behind.
+     * @return how many of the keys were deleted, and which ones may still be in the cache.
+     */
+    protected BulkDeleter.Result deleteAllFromCache(final Collection<String> cacheKeys, final AnnotationData data) {
+        final NearCache nearCache = getNearCache(data);
+        if (nearCache != null) {
+            for (final String cacheKey : cacheKeys) {
+                nearCache.remove(cacheKey);
+            }
+        }
+        if (writeBehindQueue != null) {
+            for (final String cacheKey : cacheKeys) {
+                writeBehindQueue.cancel(cacheKey);
+            }
+        }
+        return bulkDeleter.delete(cache, cacheKeys, data.getTombstoneExpiration(), getTranscoder(data));
+    }
+
+    /**
+     * Changes a counter by the given amount, right away or through the <code>CounterBatcher</code>.
+     * Counters bypass the near cache, and are stored as plain numbers whatever the transcoder
+     * of their namespace.
+     */
+    protected void changeCounter(final String cacheKey, final AnnotationData data, final long delta) {
+        if (data.isCounterBatched() && counterBatcher != null) {
+            counterBatcher.add(cacheKey, delta, data.getCounterInitialValue(), data.getExpiration());
+        } else {
+            CounterBatcher.mutate(cache, cacheKey, delta, data.getCounterInitialValue(), data.getExpiration());
+        }
+    }
+
+    /**
+     * @return the object to store in the cache for the given value: the value itself, or
+     * for annotations with a soft expiration or an early recompute, the value wrapped with
+     * its load time (and the time it took to load).
+     */
+    protected Object toCacheValue(final Object submission, final AnnotationData data) {
+        return toCacheValue(submission, data, 0);
+    }
+
+    protected Object toCacheValue(final Object submission, final AnnotationData data, final long loadMillis) {
+        if (data.getSoftExpiration() <= 0 && data.getEarlyRecomputeBeta() <= 0) { return submission; }
+        final long now = System.currentTimeMillis();
+        return new TimestampedValue(now, loadMillis, getExpiresAt(getExpiration(data, submission), now), submission);
+    }
+
+    /**
+     * @return the expiration to store the given cached object with: the annotation's
+     * <code>negativeExpiration</code> if it is a null result and the annotation has one,
+     * else its <code>expiration</code>.
+     */
+    protected int getExpiration(final AnnotationData data, final Object cached) {
+        return data.getNegativeExpiration() > 0 && isNegativeResult(cached)
+                ? data.getNegativeExpiration()
+                : data.getExpiration();
+    }
+
+    /**
+     * @return true if the given cached object stands for a null result, wrapped or not.
+     */
+    static boolean isNegativeResult(final Object cached) {
+        final Object value = (cached instanceof TimestampedValue) ? ((TimestampedValue) cached).getValue() : cached;
+        return value instanceof PertinentNegativeNull;
+    }
+
+    /**
+     * @return when an entry stored now with the annotation's expiration will expire,
+     * in milliseconds since the epoch; or 0 if it never does.
+     */
+    protected long getExpiresAt(final AnnotationData data, final long now) {
+        return getExpiresAt(data.getExpiration(), now);
+    }
+
+    private static long getExpiresAt(final int expiration, final long now) {
+        if (expiration <= 0) { return 0; }
+        // Just like memcached, take anything over 30 days as an absolute Unix time.
+        return expiration > MAX_RELATIVE_EXPIRATION ? expiration * 1000L : now + expiration * 1000L;
+    }
+
+    /**
+     * @return the value the target method returned, given what was read from the cache
+     * (or handed over by a concurrent load).
+     */
+    protected Object fromCacheValue(final Object cached) {
+        final Object value = (cached instanceof TimestampedValue) ? ((TimestampedValue) cached).getValue() : cached;
+        return (value instanceof PertinentNegativeNull) ? null : value;
+    }
+
+    /**
+     * @return true if the given cached object is past the soft expiration of the annotation.
+     */
+    protected boolean isStale(final Object cached, final AnnotationData data) {
+        return data.getSoftExpiration() > 0
+                && cached instanceof TimestampedValue
+                && System.currentTimeMillis() - ((TimestampedValue) cached).getLoadedAt()
+                        >= data.getSoftExpiration() * 1000L;
+    }
+
+    /**
+     * Decides at random whether the given entry should be recomputed ahead of its expiration,
+     * using the "XFetch" rule: recompute when <code>now - loadMillis * beta * ln(random)</code>
+     * reaches the expiration time. The chance grows as the expiration approaches, and entries
+     * that are expensive to load get recomputed earlier.
+     */
+    protected boolean isDueForEarlyRecompute(final Object cached, final AnnotationData data) {
+        if (data.getEarlyRecomputeBeta() <= 0 || !(cached instanceof TimestampedValue)) { return false; }
+        final TimestampedValue entry = (TimestampedValue) cached;
+        if (entry.getExpiresAt() <= 0) { return false; }
+        // 1 - random() lies in (0, 1], so the logarithm is finite and never positive.
+        final double gap = -entry.getLoadMillis() * data.getEarlyRecomputeBeta() * Math.log(1.0 - Math.random());
+        return System.currentTimeMillis() + gap >= entry.getExpiresAt();
+    }
+
+    /**
+     * Reloads a stale entry in the background, unless a refresh of it is already under way
+     * (on this node, or, if the annotation takes leases, on any node).
+     */
+    protected void refreshInBackground(final String cacheKey,
+                                       final AnnotationData data,
+                                       final SingleFlight.Loader loader) {
+        if (backgroundRefresher == null) { return; }
+        backgroundRefresher.refresh(cacheKey, new Runnable() {
+            public void run() {
+                refreshWithLease(Collections.singletonList(cacheKey), data, loader);
+            }
+        });
+    }
+
+    /**
+     * Runs the loader if the given keys need no lease, or a lease could be taken for all of them.
+     */
+    protected void refreshWithLease(final List<String> cacheKeys,
+                                    final AnnotationData data,
+                                    final SingleFlight.Loader loader) {
+        final Map<String, String> leases = new HashMap<String, String>();
+        try {
+            if (data.getLeaseExpiration() > 0) {
+                for (final String cacheKey : cacheKeys) {
+                    final String token = acquireLease(cacheKey, data);
+                    if (token == null) { return; }
+                    leases.put(cacheKey, token);
+                }
+            }
+            loader.load();
+        } catch (Throwable ex) {
+            throw new RuntimeException("Refreshing " + cacheKeys + " failed.", ex);
+        } finally {
+            for (final Map.Entry<String, String> lease : leases.entrySet()) {
+                releaseLease(lease.getKey(), lease.getValue());
+            }
+        }
+    }
+
+    /**
+     * Loads a value that was not found in the cache, making sure that concurrent misses
+     * on the same key in this JVM share one load, and (if the annotation asks for it)
+     * that only one node at a time loads it.
+     */
+    protected Object loadMissing(final String cacheKey,
+                                 final AnnotationData data,
+                                 final SingleFlight.Loader loader) throws Throwable {
+        return singleFlight.load(cacheKey, new SingleFlight.Loader() {
+            public Object load() throws Throwable {
+                return loadWithLease(cacheKey, data, loader);
+            }
+        });
+    }
+
+    /**
+     * Loads a missing value through the given loader, unless the annotation asks for a
+     * distributed lease: then only the node that wins the lease for this key loads it,
+     * while the others poll the cache for its result within the lease wait budget. Nodes
+     * that are still empty-handed after that load the value themselves.
+     */
+    protected Object loadWithLease(final String cacheKey,
+                                   final AnnotationData data,
+                                   final SingleFlight.Loader loader) throws Throwable {
+        if (data.getLeaseExpiration() <= 0) { return loader.load(); }
+
+        final String token = acquireLease(cacheKey, data);
+        if (token != null) {
+            try {
+                return loader.load();
+            } finally {
+                releaseLease(cacheKey, token);
+            }
+        }
+        final Object result = awaitLeasedValues(Collections.singleton(cacheKey), data).get(cacheKey);
+        return result != null ? result : loader.load();
+    }
+
+    /**
+     * @return a token identifying the lease taken on the given key, to be handed back to
+     * <code>releaseLease</code>; or null if another node already holds the lease.
+     */
+    protected String acquireLease(final String cacheKey, final AnnotationData data) {
+        final String token = UUID.randomUUID().toString();
+        try {
+            final Future<Boolean> added = cache.add(getLeaseKey(cacheKey), data.getLeaseExpiration(), token);
+            if (added == null || added.get(data.getLeaseWaitMillis(), TimeUnit.MILLISECONDS)) {
+                return token;
+            }
+            return null;
+        } catch (Exception ex) {
+            // Without a working cache there is nothing to coordinate through; just load.
+            LOG.debug("Unable to take the lease for [" + cacheKey + "].", ex);
+            return token;
+        }
+    }
+
+    protected void releaseLease(final String cacheKey, final String token) {
+        final String leaseKey = getLeaseKey(cacheKey);
+        try {
+            // Our lease may have expired and been taken by another node in the meantime.
+            if (token.equals(cache.get(leaseKey))) {
+                cache.delete(leaseKey);
+            }
+        } catch (Exception ex) {
+            LOG.debug("Unable to release the lease for [" + cacheKey + "].", ex);
+        }
+    }
+
+    /**
+     * Polls the cache, backing off between the reads, until either all of the given keys
+     * have a value or the lease wait budget is used up.
+     * @return the values that were found.
+     */
+    protected Map<String, Object> awaitLeasedValues(final Collection<String> cacheKeys, final AnnotationData data) {
+        final Map<String, Object> results = new HashMap<String, Object>();
+        final Set<String> remaining = new HashSet<String>(cacheKeys);
+        final long deadline = System.currentTimeMillis() + data.getLeaseWaitMillis();
+        long backoff = LEASE_MIN_BACKOFF_MILLIS;
+        while (!remaining.isEmpty()) {
+            final long left = deadline - System.currentTimeMillis();
+            if (left <= 0) { break; }
+            try {
+                Thread.sleep(Math.min(backoff, left));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff = Math.min(backoff * 2, LEASE_MAX_BACKOFF_MILLIS);
+
+            final Map<String, Object> found;
+            try {
+                found = remaining.size() == 1
+                        ? Collections.singletonMap(remaining.iterator().next(), getFromCache(remaining.iterator().next(), data))
+                        : getAllFromCache(remaining, data);
+            } catch (RuntimeException ex) {
+                // The cache is in trouble; stop waiting and let the caller load the rest.
+                LOG.debug("Unable to read the leased values of " + remaining + ".", ex);
+                break;
+            }
+            for (final Map.Entry<String, Object> entry : found.entrySet()) {
+                if (entry.getValue() != null) {
+                    results.put(entry.getKey(), entry.getValue());
+                    remaining.remove(entry.getKey());
+                }
+            }
+        }
+        return results;
+    }
+
+    protected String getLeaseKey(final String cacheKey) {
+        return cacheKey + SEPARATOR + LEASE_SUFFIX;
+    }
+
     protected Method getMethodToCache(final JoinPoint jp) throws NoSuchMethodException {
 		final Signature sig = jp.getSignature();
 		if (!(sig instanceof MethodSignature)) {
@@ -70,12 +831,104 @@ public class CacheBase implements ApplicationContextAware {
 		return target.getClass().getMethod(msig.getName(), msig.getParameterTypes());
 	}
 
-	protected String generateObjectId(final Method keyMethod, final Object keyObject) throws Exception {
-		final String objectId = (String) keyMethod.invoke(keyObject, null);
-		if (objectId == null || objectId.length() < 1) {
-			throw new RuntimeException("Got an empty key value from " + keyMethod.getName());
+	/**
+	 * @return the annotation type handled by this advice, or null if it does not handle one.
+	 */
+	protected Class getAnnotationClass() {
+		return null;
+	}
+
+	/**
+	 * Like <code>getAdvicePlan</code>, but never throws: returns null when caching should be
+	 * skipped for this call, either because the annotation is known to be invalid (which
+	 * has already been logged once) or because the plan could not be found at all.
+	 */
+	protected AdvicePlan getActiveAdvicePlan(final JoinPoint jp, final Class annotationClass) {
+		try {
+			final AdvicePlan plan = getAdvicePlan(jp, annotationClass);
+			return plan.isBypassed() ? null : plan;
+		} catch (Throwable ex) {
+			LOG.warn("Caching on " + jp.toShortString() + " aborted due to an error.", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Finds the <code>AdvicePlan</code> for the advised method, building and storing it
+	 * on the first invocation. Once stored, no reflection or annotation parsing happens here.
+	 */
+	protected AdvicePlan getAdvicePlan(final JoinPoint jp, final Class annotationClass) throws NoSuchMethodException {
+		final Signature sig = jp.getSignature();
+		if (!(sig instanceof MethodSignature)) {
+			throw new InvalidAnnotationException("This annotation is only valid on a method.");
+		}
+		final MethodSignature msig = (MethodSignature) sig;
+		final AdvicePlanKey key = new AdvicePlanKey(jp.getTarget().getClass(),
+				msig.getName(),
+				msig.getParameterTypes(),
+				annotationClass);
+		final AdvicePlan storedPlan = plans.get(key);
+		if (storedPlan != null) { return storedPlan; }
+
+		final AdvicePlan plan = createAdvicePlan(getMethodToCache(jp), annotationClass);
+		plans.put(key, plan);
+		return plan;
+	}
+
+	/**
+	 * Builds and stores the plan for a method ahead of its first invocation,
+	 * as done by the <code>CacheAnnotationScanner</code> at startup.
+	 */
+	AdvicePlan prepareAdvicePlan(final Class targetClass, final Method method, final Class annotationClass) {
+		final AdvicePlanKey key = new AdvicePlanKey(targetClass,
+				method.getName(),
+				method.getParameterTypes(),
+				annotationClass);
+		final AdvicePlan storedPlan = plans.get(key);
+		if (storedPlan != null) { return storedPlan; }
+
+		final AdvicePlan plan = createAdvicePlan(method, annotationClass);
+		plans.put(key, plan);
+		return plan;
+	}
+
+	AdvicePlan createAdvicePlan(final Method methodToCache, final Class annotationClass) {
+		try {
+			return buildAdvicePlan(methodToCache, annotationClass);
+		} catch (RuntimeException ex) {
+			LOG.warn(String.format(
+					"Caching with [%s] is disabled for [%s], because its annotations are invalid.",
+					annotationClass.getName(),
+					methodToCache.toString()), ex);
+			return AdvicePlan.bypass(methodToCache, annotationClass, ex);
 		}
-		return objectId;
+	}
+
+	protected AdvicePlan buildAdvicePlan(final Method methodToCache, final Class annotationClass) {
+		final AnnotationData annotationData = AnnotationDataBuilder.buildAnnotationData(
+				methodToCache.getAnnotation(annotationClass),
+				annotationClass,
+				methodToCache);
+		if (!AnnotationDataBuilder.MULTIS.contains(annotationClass)
+				&& !AnnotationDataBuilder.INVALIDATES.contains(annotationClass)
+				&& !AnnotationDataBuilder.COUNTERS.contains(annotationClass)) {
+			final Class cachedType = annotationData.getDataIndex() >= 0
+					? methodToCache.getParameterTypes()[annotationData.getDataIndex()]
+					: methodToCache.getReturnType();
+			// A transcoder of the namespace may store classes that are not Serializable.
+			if (getTranscoder(annotationData) == null || void.class.equals(cachedType)) {
+				verifyTypeIsCacheable(cachedType, methodToCache);
+			}
+		}
+		final String assignedCacheKey = AnnotationDataBuilder.ASSIGNS.contains(annotationClass)
+				? buildCacheKey(annotationData.getAssignedKey(), annotationData)
+				: null;
+		namespaceRegistry.register(annotationClass, annotationData);
+		return new AdvicePlan(methodToCache, annotationClass, annotationData, assignedCacheKey);
+	}
+
+	protected String generateObjectId(final Object keyObject) throws Exception {
+		return getKeyAccessor(keyObject).getObjectId(keyObject);
 	}
 
     protected String buildCacheKey(final String objectId, final AnnotationData data) {
@@ -121,43 +974,36 @@ public class CacheBase implements ApplicationContextAware {
 	}
 
 	protected Method getKeyMethod(final Object keyObject) throws NoSuchMethodException {
-		final Method storedMethod = methodStore.find(keyObject.getClass());
-		if (storedMethod != null) { return storedMethod; }
-		final Method[] methods = keyObject.getClass().getDeclaredMethods();
-		Method targetMethod = null;
-		for (final Method method : methods) {
-			if (method != null && method.getAnnotation(CacheKeyMethod.class) != null) {
-				if (method.getParameterTypes().length > 0) {
-					throw new InvalidAnnotationException(String.format(
-							"Method [%s] must have 0 arguments to be annotated with [%s]",
-							method.toString(),
-							CacheKeyMethod.class.getName()));
-				}
-				if (!String.class.equals(method.getReturnType())) {
-					throw new InvalidAnnotationException(String.format(
-							"Method [%s] must return a String to be annotated with [%s]",
-							method.toString(),
-							CacheKeyMethod.class.getName()));
-				}
-				if (targetMethod != null) {
-					throw new InvalidAnnotationException(String.format(
-							"Class [%s] should have only one method annotated with [%s]. See [%s] and [%s]",
-							keyObject.getClass().getName(),
-							CacheKeyMethod.class.getName(),
-							targetMethod.getName(),
-							method.getName()));
-				}
-				targetMethod = method;
-			}
-		}
-
-		if (targetMethod == null) {
-			targetMethod = keyObject.getClass().getMethod("toString", null);
-		}
+		return getKeyAccessor(keyObject).getMethod();
+	}
 
-		methodStore.add(keyObject.getClass(), targetMethod);
+	protected CacheKeyAccessor getKeyAccessor(final Object keyObject) throws NoSuchMethodException {
+		return CacheKeyAccessor.forObject(methodStore, keyObject);
+	}
 
-		return targetMethod;
+	/**
+	 * Rejects value types that can never be stored: <code>void</code>, and concrete classes
+	 * that are not <code>Serializable</code>. Interfaces, abstract classes and
+	 * <code>Object</code> are let through, since their runtime values may still be serializable.
+	 */
+	protected void verifyTypeIsCacheable(final Class type, final Method method) {
+		if (void.class.equals(type)) {
+			throw new InvalidAnnotationException(String.format(
+					"Method [%s] does not return a value, so there is nothing to cache.",
+					method.toString()));
+		}
+		if (type.isPrimitive()
+				|| type.isInterface()
+				|| Object.class.equals(type)
+				|| Modifier.isAbstract(type.getModifiers())
+				|| Serializable.class.isAssignableFrom(type)) {
+			return;
+		}
+		throw new InvalidAnnotationException(String.format(
+				"Method [%s] caches values of type [%s], which does not implement [%s].",
+				method.toString(),
+				type.getName(),
+				Serializable.class.getName()));
 	}
 
 	// TODO: Replace by List.class.isInstance(Object obj)
@@ -196,8 +1042,7 @@ public class CacheBase implements ApplicationContextAware {
                                         final AnnotationData annotationData) throws Exception {
         final List<String> results = new ArrayList<String>();
         for (final Object object : keyObjects) {
-            final Method keyMethod = getKeyMethod(object);
-            final String objectId = generateObjectId(keyMethod, object);
+            final String objectId = generateObjectId(object);
             results.add(buildCacheKey(objectId, annotationData));
         }
 
@@ -0,0 +1,228 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.MemcachedClientIF;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Merges single-key gets issued concurrently by different threads into one <code>getBulk</code>.
+ *
+ * The first get to arrive opens a batch and becomes its leader: it waits for up to
+ * <code>windowMicros</code> (or until <code>maxBatchSize</code> keys have joined), then issues
+ * the bulk get on behalf of everybody in the batch. No extra thread is involved. The price
+ * is that every get may wait up to one window longer; <code>getAverageWaitMicros()</code>
+ * versus <code>getAverageBulkMicros()</code> shows what that buys.
+ */
+public class CacheGetBatcher {
+    private static final Log LOG = LogFactory.getLog(CacheGetBatcher.class);
+
+    private MemcachedClientIF cache;
+    private boolean enabled = false;
+    private long windowMicros = 200;
+    private int maxBatchSize = 64;
+    private long maxWaitMillis = 5000;
+
+    private final Object lock = new Object();
+    private Batch open;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong fullBatches = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong bulkNanos = new AtomicLong();
+
+    public void setCache(final MemcachedClientIF cache) {
+        this.cache = cache;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setWindowMicros(final long windowMicros) {
+        if (windowMicros < 0) {
+            throw new IllegalArgumentException("windowMicros must be 0 or greater.");
+        }
+        this.windowMicros = windowMicros;
+    }
+
+    public void setMaxBatchSize(final int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1.");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @param maxWaitMillis how long a get waits for the batch it joined before giving
+     * up on it and reading its key on its own.
+     */
+    public void setMaxWaitMillis(final long maxWaitMillis) {
+        if (maxWaitMillis < 1) {
+            throw new IllegalArgumentException("maxWaitMillis must be at least 1.");
+        }
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public Object get(final String key) {
+        if (windowMicros == 0 || maxBatchSize == 1) {
+            return cache.get(key);
+        }
+        final long start = System.nanoTime();
+        requests.incrementAndGet();
+
+        final Batch batch;
+        synchronized (lock) {
+            if (open == null) {
+                open = new Batch(Thread.currentThread());
+            }
+            batch = open;
+            batch.keys.add(key);
+            if (batch.keys.size() >= maxBatchSize) {
+                open = null;
+                batch.closed = true;
+                fullBatches.incrementAndGet();
+                LockSupport.unpark(batch.leader);
+            }
+        }
+
+        if (batch.leader == Thread.currentThread()) {
+            lead(batch);
+        } else {
+            try {
+                if (!batch.done.await(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                    LOG.warn("Batched get of [" + key + "] timed out, reading it on its own.");
+                    return cache.get(key);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return cache.get(key);
+            }
+        }
+
+        waitNanos.addAndGet(System.nanoTime() - start);
+        if (batch.failure != null) {
+            throw new RuntimeException("Batched get of [" + key + "] failed.", batch.failure);
+        }
+        return batch.results.get(key);
+    }
+
+    private void lead(final Batch batch) {
+        final long deadline = System.nanoTime() + windowMicros * 1000;
+        long left;
+        while (!batch.closed && (left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+        }
+        final Set<String> keys;
+        synchronized (lock) {
+            if (open == batch) {
+                open = null;
+            }
+            batch.closed = true;
+            keys = new HashSet<String>(batch.keys);
+        }
+
+        batches.incrementAndGet();
+        final long start = System.nanoTime();
+        try {
+            final Map<String, Object> results = cache.getBulk(keys);
+            if (results != null) {
+                batch.results = results;
+            }
+        } catch (RuntimeException ex) {
+            batch.failure = ex;
+        } finally {
+            bulkNanos.addAndGet(System.nanoTime() - start);
+            batch.done.countDown();
+        }
+    }
+
+    /**
+     * @return the number of single-key gets that went through a batch.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of bulk gets issued.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * @return the number of batches that were sent early because they reached <code>maxBatchSize</code>.
+     */
+    public long getFullBatches() {
+        return fullBatches.get();
+    }
+
+    public double getAverageBatchSize() {
+        final long count = batches.get();
+        return count == 0 ? 0.0 : (double) requests.get() / count;
+    }
+
+    /**
+     * @return the average time a get took from being issued until its value was available,
+     * in microseconds, including the time waiting for its batch to be sent.
+     */
+    public double getAverageWaitMicros() {
+        final long count = requests.get();
+        return count == 0 ? 0.0 : waitNanos.get() / 1000.0 / count;
+    }
+
+    /**
+     * @return the average duration of the bulk gets themselves, in microseconds.
+     */
+    public double getAverageBulkMicros() {
+        final long count = batches.get();
+        return count == 0 ? 0.0 : bulkNanos.get() / 1000.0 / count;
+    }
+
+    private static class Batch {
+        final Thread leader;
+        // Guarded by the batcher's lock.
+        final List<String> keys = new ArrayList<String>();
+        volatile boolean closed;
+        final CountDownLatch done = new CountDownLatch(1);
+        // Written by the leader before counting down done.
+        volatile Map<String, Object> results = Collections.emptyMap();
+        volatile Throwable failure;
+
+        Batch(final Thread leader) {
+            this.leader = leader;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.CacheKeyMethod;
+import net.nelz.simplesm.exceptions.InvalidAnnotationException;
+
+import java.lang.reflect.Method;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * A key method (either the one annotated with <code>@CacheKeyMethod</code> or the
+ * <code>toString()</code> fallback) looked up and validated once per key class. The
+ * fallback is called directly; annotated methods are still invoked through reflection,
+ * but with the access checks disabled, as Java 1.5 offers no faster way to call them
+ * without generating classes.
+ */
+public abstract class CacheKeyAccessor {
+    private final Method method;
+
+    protected CacheKeyAccessor(final Method method) {
+        this.method = method;
+    }
+
+    public static CacheKeyAccessor forMethod(final Method method) {
+        if ("toString".equals(method.getName()) && method.getParameterTypes().length == 0) {
+            return new ToStringAccessor(method);
+        }
+        return new MethodAccessor(method);
+    }
+
+    /**
+     * Finds the accessor of the class of the given object in the store, or finds, validates
+     * and stores its key method first.
+     * @throws InvalidAnnotationException if the class has an invalid <code>@CacheKeyMethod</code>.
+     */
+    public static CacheKeyAccessor forObject(final CacheKeyMethodStore methodStore, final Object keyObject)
+            throws NoSuchMethodException {
+        final Class keyClass = keyObject.getClass();
+        final CacheKeyAccessor storedAccessor = find(methodStore, keyClass);
+        if (storedAccessor != null) { return storedAccessor; }
+
+        final Method keyMethod = findKeyMethod(keyClass);
+        methodStore.add(keyClass, keyMethod);
+        final CacheKeyAccessor addedAccessor = find(methodStore, keyClass);
+        return addedAccessor == null ? forMethod(keyMethod) : addedAccessor;
+    }
+
+    /**
+     * Other implementations of the store only keep the method, so its accessor is prepared
+     * again on every lookup.
+     */
+    private static CacheKeyAccessor find(final CacheKeyMethodStore methodStore, final Class keyClass) {
+        if (methodStore instanceof CacheKeyMethodStoreImpl) {
+            return ((CacheKeyMethodStoreImpl) methodStore).findAccessor(keyClass);
+        }
+        final Method storedMethod = methodStore.find(keyClass);
+        return storedMethod == null ? null : forMethod(storedMethod);
+    }
+
+    private static Method findKeyMethod(final Class keyClass) throws NoSuchMethodException {
+        Method targetMethod = null;
+        for (final Method method : keyClass.getDeclaredMethods()) {
+            if (method != null && method.getAnnotation(CacheKeyMethod.class) != null) {
+                if (method.getParameterTypes().length > 0) {
+                    throw new InvalidAnnotationException(String.format(
+                            "Method [%s] must have 0 arguments to be annotated with [%s]",
+                            method.toString(),
+                            CacheKeyMethod.class.getName()));
+                }
+                if (!String.class.equals(method.getReturnType())) {
+                    throw new InvalidAnnotationException(String.format(
+                            "Method [%s] must return a String to be annotated with [%s]",
+                            method.toString(),
+                            CacheKeyMethod.class.getName()));
+                }
+                if (targetMethod != null) {
+                    throw new InvalidAnnotationException(String.format(
+                            "Class [%s] should have only one method annotated with [%s]. See [%s] and [%s]",
+                            keyClass.getName(),
+                            CacheKeyMethod.class.getName(),
+                            targetMethod.getName(),
+                            method.getName()));
+                }
+                targetMethod = method;
+            }
+        }
+
+        if (targetMethod == null) {
+            targetMethod = keyClass.getMethod("toString", null);
+        }
+        return targetMethod;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the raw key of the given object, which may still be null or empty.
+     */
+    public abstract String getKey(Object keyObject) throws Exception;
+
+    /**
+     * @return the key of the given object.
+     * @throws RuntimeException if the key is null or empty.
+     */
+    public String getObjectId(final Object keyObject) throws Exception {
+        final String objectId = getKey(keyObject);
+        if (objectId == null || objectId.length() < 1) {
+            throw new RuntimeException("Got an empty key value from " + method.getName());
+        }
+        return objectId;
+    }
+
+    static class ToStringAccessor extends CacheKeyAccessor {
+        ToStringAccessor(final Method method) {
+            super(method);
+        }
+
+        public String getKey(final Object keyObject) {
+            return keyObject.toString();
+        }
+    }
+
+    static class MethodAccessor extends CacheKeyAccessor {
+        MethodAccessor(final Method method) {
+            super(method);
+            try {
+                method.setAccessible(true);
+            } catch (SecurityException ex) {
+                // Not allowed to skip the access checks; invoking still works, just slower.
+            }
+        }
+
+        public String getKey(final Object keyObject) throws Exception {
+            return (String) getMethod().invoke(keyObject, null);
+        }
+    }
+}
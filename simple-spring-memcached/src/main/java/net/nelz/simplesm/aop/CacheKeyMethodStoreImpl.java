@@ -26,13 +26,21 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
 THE SOFTWARE.
  */
 public class CacheKeyMethodStoreImpl implements CacheKeyMethodStore {
-	final Map<Class, Method> map = new ConcurrentHashMap<Class, Method>();
+	final Map<Class, CacheKeyAccessor> map = new ConcurrentHashMap<Class, CacheKeyAccessor>();
 
 	public void add(final Class key, final Method value) {
-		map.put(key, value);
+		map.put(key, CacheKeyAccessor.forMethod(value));
 	}
 
 	public Method find(final Class key) {
+		final CacheKeyAccessor accessor = map.get(key);
+		return accessor == null ? null : accessor.getMethod();
+	}
+
+	/**
+	 * @return the accessor prepared for the key method stored for this class, or null.
+	 */
+	public CacheKeyAccessor findAccessor(final Class key) {
 		return map.get(key);
 	}
 }
@@ -0,0 +1,121 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Extends the expiration of entries read through annotations with a
+ * <code>slidingExpiration</code>. This memcached client has no <code>touch</code>, so an
+ * entry is touched by writing the value that was just read back with <code>replace</code>,
+ * which does not recreate it if it was deleted in the meantime. The write is not waited for.
+ * It does overwrite a value written in the meantime, so sliding expiration is only valid in
+ * namespaces the advices do not otherwise write to (see <code>NamespaceRegistry</code>).
+ *
+ * Each key is touched at most once per quarter of its expiration. The time of the last
+ * touch is remembered for up to <code>maxKeys</code> keys; when more are tracked, the
+ * memory is cleared, which at worst lets a few keys be touched early.
+ */
+public class CacheToucher {
+    private static final Log LOG = LogFactory.getLog(CacheToucher.class);
+
+    private int maxKeys = 100000;
+
+    private final ConcurrentMap<String, Long> touchedAt = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong touches = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    public void setMaxKeys(final int maxKeys) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("maxKeys must be at least 1.");
+        }
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Pushes the expiration of the given entry back to <code>expiration</code> seconds from
+     * now, unless this key was touched less than a quarter of that ago.
+     * @return true if the entry was touched.
+     */
+    public boolean touch(final MemcachedClientIF cache, final String cacheKey, final Object value, final int expiration) {
+        return touch(cache, cacheKey, value, expiration, null);
+    }
+
+    /**
+     * Like <code>touch(cache, cacheKey, value, expiration)</code>, writing the value back with
+     * the given transcoder, or the client's own if it is null.
+     */
+    public boolean touch(final MemcachedClientIF cache,
+                         final String cacheKey,
+                         final Object value,
+                         final int expiration,
+                         final Transcoder<Object> transcoder) {
+        final long now = System.currentTimeMillis();
+        final Long last = touchedAt.get(cacheKey);
+        if (last != null && now - last < expiration * 1000L / 4) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        // Only one of the concurrent readers of this key touches it.
+        if (last == null ? touchedAt.putIfAbsent(cacheKey, now) != null : !touchedAt.replace(cacheKey, last, now)) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        if (touchedAt.size() > maxKeys) {
+            touchedAt.clear();
+        }
+
+        try {
+            if (transcoder == null) {
+                cache.replace(cacheKey, expiration, value);
+            } else {
+                cache.replace(cacheKey, expiration, value, transcoder);
+            }
+            touches.incrementAndGet();
+            return true;
+        } catch (RuntimeException ex) {
+            // e.g. the client's input queue is full; the next hit tries again.
+            LOG.debug("Unable to touch [" + cacheKey + "].", ex);
+            touchedAt.remove(cacheKey, now);
+            return false;
+        }
+    }
+
+    public long getTouches() {
+        return touches.get();
+    }
+
+    /**
+     * @return the number of hits that did not touch their entry, because it was touched recently.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+}
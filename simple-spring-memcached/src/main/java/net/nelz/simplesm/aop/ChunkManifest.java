@@ -0,0 +1,113 @@
+package net.nelz.simplesm.aop;
+
+import java.io.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Stored in place of a value that was too large for a single memcached item, and split
+ * by the <code>ValueChunker</code> into chunks under keys of their own. It tells readers
+ * where the chunks are, and how to check that they got all of them, from the same write.
+ */
+public class ChunkManifest implements Externalizable {
+	private static final long serialVersionUID = 1L;
+
+	private long generation;
+	private int chunks;
+	private int length;
+	private int flags;
+	private long checksum;
+
+	public ChunkManifest() {
+	}
+
+	public ChunkManifest(final long generation, final int chunks, final int length, final int flags, final long checksum) {
+		this.generation = generation;
+		this.chunks = chunks;
+		this.length = length;
+		this.flags = flags;
+		this.checksum = checksum;
+	}
+
+	/**
+	 * @return the random id of the write, part of the keys of its chunks, so that the
+	 * chunks of concurrent writes of the same key never mix.
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	public int getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * @return the length of the encoded value, all chunks together.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the flags the transcoder encoded the value with.
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * @return the CRC32 of the encoded value.
+	 */
+	public long getChecksum() {
+		return checksum;
+	}
+
+	public int hashCode() {
+		return (int) (generation ^ (generation >>> 32));
+	}
+
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof ChunkManifest)) { return false; }
+		final ChunkManifest other = (ChunkManifest) obj;
+		return generation == other.generation
+				&& chunks == other.chunks
+				&& length == other.length
+				&& flags == other.flags
+				&& checksum == other.checksum;
+	}
+
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeLong(generation);
+		out.writeInt(chunks);
+		out.writeInt(length);
+		out.writeInt(flags);
+		out.writeLong(checksum);
+	}
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		generation = in.readLong();
+		chunks = in.readInt();
+		length = in.readInt();
+		flags = in.readInt();
+		checksum = in.readLong();
+	}
+}
@@ -0,0 +1,245 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.MemcachedClientIF;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Adds up the changes of <code>IncrementCache</code> and <code>DecrementCache</code>
+ * annotations with <code>batched</code> set in memory, and sends the net change of each
+ * counter to memcached every <code>flushMillis</code>, as a single <code>incr</code> or
+ * <code>decr</code>. A counter changed a thousand times between two flushes costs one
+ * write instead of a thousand.
+ *
+ * The flushes run on one daemon thread, started with the first change. <code>shutdown()</code>
+ * sends the changes that are still pending; after that, changes are sent right away.
+ */
+public class CounterBatcher {
+    private static final Log LOG = LogFactory.getLog(CounterBatcher.class);
+    private static final long ADD_WAIT_MILLIS = 1000;
+
+    private MemcachedClientIF cache;
+    private long flushMillis = 1000;
+
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+    private volatile ScheduledExecutorService flusher;
+    private volatile boolean stopped;
+
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public void setCache(final MemcachedClientIF cache) {
+        this.cache = cache;
+    }
+
+    public void setFlushMillis(final long flushMillis) {
+        if (flushMillis < 1) {
+            throw new IllegalArgumentException("flushMillis must be at least 1.");
+        }
+        this.flushMillis = flushMillis;
+    }
+
+    /**
+     * Changes a counter in memcached, creating it with <code>initialValue + delta</code>
+     * (but no less than 0) and the given expiration if it does not exist yet.
+     * Shared with the counter advices.
+     * @return the new value of the counter.
+     */
+    static long mutate(final MemcachedClientIF cache,
+                       final String cacheKey,
+                       final long delta,
+                       final long initialValue,
+                       final int expiration) {
+        long remaining = delta;
+        while (true) {
+            // The client takes an int; send larger changes in several steps.
+            final int step = (int) Math.max(-Integer.MAX_VALUE, Math.min(Integer.MAX_VALUE, remaining));
+            final long value = step >= 0 ? cache.incr(cacheKey, step) : cache.decr(cacheKey, -step);
+            if (value == -1) {
+                final long created = Math.max(0, initialValue + remaining);
+                final Future<Boolean> added = cache.add(cacheKey, expiration, String.valueOf(created));
+                try {
+                    if (added == null || added.get(ADD_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return created;
+                    }
+                } catch (Exception ex) {
+                    throw new RuntimeException("Unable to create the counter [" + cacheKey + "].", ex);
+                }
+                // Somebody else created it first; change theirs.
+                continue;
+            }
+            remaining -= step;
+            if (remaining == 0) { return value; }
+        }
+    }
+
+    /**
+     * Adds the given change to the pending change of the counter, to be sent with the next flush.
+     */
+    public void add(final String cacheKey, final long delta, final long initialValue, final int expiration) {
+        if (!start()) {
+            send(cacheKey, delta, initialValue, expiration);
+            return;
+        }
+        changes.incrementAndGet();
+        while (true) {
+            Pending current = pending.get(cacheKey);
+            if (current == null) {
+                final Pending created = new Pending(initialValue, expiration);
+                current = pending.putIfAbsent(cacheKey, created);
+                if (current == null) { current = created; }
+            }
+            synchronized (current) {
+                // A flush took this one in the meantime; start a new one.
+                if (current.flushed) { continue; }
+                current.delta += delta;
+            }
+            if (stopped) {
+                // Shut down while this was being added; do not leave it behind.
+                flush();
+            }
+            return;
+        }
+    }
+
+    /**
+     * Sends the pending change of every counter.
+     */
+    public void flush() {
+        for (final String cacheKey : pending.keySet()) {
+            final Pending current = pending.get(cacheKey);
+            if (current == null) { continue; }
+            final long delta;
+            synchronized (current) {
+                // Another flush got to it first.
+                if (current.flushed) { continue; }
+                current.flushed = true;
+                delta = current.delta;
+            }
+            pending.remove(cacheKey, current);
+            if (delta != 0) {
+                send(cacheKey, delta, current.initialValue, current.expiration);
+            }
+        }
+    }
+
+    private void send(final String cacheKey, final long delta, final long initialValue, final int expiration) {
+        try {
+            mutate(cache, cacheKey, delta, initialValue, expiration);
+            writes.incrementAndGet();
+        } catch (RuntimeException ex) {
+            failed.incrementAndGet();
+            LOG.warn("Changing the counter [" + cacheKey + "] by " + delta + " failed.", ex);
+        }
+    }
+
+    /**
+     * Starts the flusher thread, unless it is running already.
+     * @return false if the batcher was shut down.
+     */
+    private boolean start() {
+        if (flusher != null && !stopped) { return true; }
+        synchronized (this) {
+            if (stopped) { return false; }
+            if (flusher != null) { return true; }
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "simplesm-counter-flush-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+    }
+
+    /**
+     * Stops the flusher thread, and sends the changes that are still pending.
+     */
+    public void shutdown() {
+        final ScheduledExecutorService running;
+        synchronized (this) {
+            stopped = true;
+            running = flusher;
+        }
+        if (running != null) {
+            running.shutdown();
+            try {
+                running.awaitTermination(flushMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * @return the number of counters with a pending change.
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of changes handed to the batcher.
+     */
+    public long getChanges() {
+        return changes.get();
+    }
+
+    /**
+     * @return the number of changes sent to memcached.
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private static class Pending {
+        final long initialValue;
+        final int expiration;
+        long delta;
+        boolean flushed;
+
+        Pending(final long initialValue, final int expiration) {
+            this.initialValue = initialValue;
+            this.expiration = expiration;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import org.apache.commons.logging.*;
+import org.aspectj.lang.*;
+import org.aspectj.lang.annotation.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+@Aspect
+public class DecrementCacheAdvice extends CacheBase {
+	private static final Log LOG = LogFactory.getLog(DecrementCacheAdvice.class);
+
+	protected Class getAnnotationClass() {
+		return DecrementCache.class;
+	}
+
+	@Pointcut("@annotation(net.nelz.simplesm.api.DecrementCache)")
+	public void decrementCounter() {}
+
+	@AfterReturning(pointcut="decrementCounter()", returning="retVal")
+	public Object cacheDecrement(final JoinPoint jp, final Object retVal) throws Throwable {
+		// Like Update*Cache, the counter is only changed after the underlying method completed successfully.
+		final AdvicePlan plan = getActiveAdvicePlan(jp, DecrementCache.class);
+		if (plan == null) { return retVal; }
+
+		try {
+			final Object keyObject = plan.getKeySource() == AdvicePlan.KeySource.RETURN_VALUE
+					? validateReturnValueAsKeyObject(retVal, plan.getMethod())
+					: getIndexObject(plan.getKeyIndex(), jp, plan.getMethod());
+			final String cacheKey = buildCacheKey(generateObjectId(keyObject), plan.getAnnotationData());
+			changeCounter(cacheKey, plan.getAnnotationData(), -plan.getAnnotationData().getCounterDelta());
+		} catch (Exception ex) {
+			LOG.warn("Updating caching via " + jp.toShortString() + " aborted due to an error.", ex);
+		}
+		return retVal;
+	}
+}
@@ -7,7 +7,6 @@ import org.aspectj.lang.ProceedingJoinPoint;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.lang.reflect.Method;
 import java.security.InvalidParameterException;
 
 import net.nelz.simplesm.api.InvalidateAssignCache;
@@ -37,6 +36,10 @@ THE SOFTWARE.
 public class InvalidateAssignCacheAdvice extends CacheBase {
     private static final Log LOG = LogFactory.getLog(InvalidateAssignCacheAdvice.class);
 
+    protected Class getAnnotationClass() {
+        return InvalidateAssignCache.class;
+    }
+
     @Pointcut("@annotation(net.nelz.simplesm.api.InvalidateAssignCache)")
     public void invalidateAssign() {}
 
@@ -46,19 +49,15 @@ public class InvalidateAssignCacheAdvice extends CacheBase {
 
         // This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
         // but do not let it surface up past the AOP injection itself.
+        final AdvicePlan plan = getActiveAdvicePlan(pjp, InvalidateAssignCache.class);
+        if (plan == null) { return result; }
+
         try {
-            final Method methodToCache = getMethodToCache(pjp);
-            final InvalidateAssignCache annotation = methodToCache.getAnnotation(InvalidateAssignCache.class);
-            final AnnotationData annotationData =
-                    AnnotationDataBuilder.buildAnnotationData(annotation,
-                            InvalidateAssignCache.class,
-                            methodToCache);
-            
-            final String cacheKey = buildCacheKey(annotationData.getAssignedKey(), annotationData);
+            final String cacheKey = plan.getAssignedCacheKey();
             if (cacheKey == null || cacheKey.trim().length() == 0) {
                 throw new InvalidParameterException("Unable to find a cache key");
             }
-            cache.delete(cacheKey);
+            deleteFromCache(cacheKey, plan.getAnnotationData());
         } catch (Throwable ex) {
             LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
         }
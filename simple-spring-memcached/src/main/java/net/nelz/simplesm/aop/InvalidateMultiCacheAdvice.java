@@ -7,7 +7,7 @@ import org.aspectj.lang.ProceedingJoinPoint;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.List;
 
 import net.nelz.simplesm.api.InvalidateMultiCache;
@@ -38,6 +38,10 @@ THE SOFTWARE.
 public class InvalidateMultiCacheAdvice extends CacheBase {
     private static final Log LOG = LogFactory.getLog(InvalidateMultiCacheAdvice.class);
 
+    protected Class getAnnotationClass() {
+        return InvalidateMultiCache.class;
+    }
+
     @Pointcut("@annotation(net.nelz.simplesm.api.InvalidateMultiCache)")
     public void invalidateMulti() {}
 
@@ -45,21 +49,15 @@ public class InvalidateMultiCacheAdvice extends CacheBase {
     public Object cacheInvalidateMulti(final ProceedingJoinPoint pjp) throws Throwable {
         // This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
         // but do not let it surface up past the AOP injection itself.
+        final AdvicePlan plan = getActiveAdvicePlan(pjp, InvalidateMultiCache.class);
+        if (plan == null) { return pjp.proceed(); }
+
         List<String> cacheKeys = null;
-        final AnnotationData annotationData;
-        final String methodDescription;
         try {
-            final Method methodToCache = getMethodToCache(pjp);
-            methodDescription = methodToCache.toString();
-            final InvalidateMultiCache annotation = methodToCache.getAnnotation(InvalidateMultiCache.class);
-            annotationData =
-                    AnnotationDataBuilder.buildAnnotationData(annotation,
-                            InvalidateMultiCache.class,
-                            methodToCache);
-            if (annotationData.getKeyIndex() > -1) {
-                final Object keyObject = getIndexObject(annotationData.getKeyIndex(), pjp, methodToCache);
-                final List<Object> keyObjects = convertToKeyObjects(keyObject, annotationData.getKeyIndex(), methodDescription);
-                cacheKeys = getCacheKeys(keyObjects, annotationData);
+            if (plan.getKeySource() == AdvicePlan.KeySource.PARAMETER) {
+                final Object keyObject = getIndexObject(plan.getKeyIndex(), pjp, plan.getMethod());
+                final List<Object> keyObjects = convertToKeyObjects(keyObject, plan.getKeyIndex(), plan.getMethod().toString());
+                cacheKeys = getCacheKeys(keyObjects, plan.getAnnotationData());
             }
         } catch (Throwable ex) {
             LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
@@ -72,16 +70,22 @@ public class InvalidateMultiCacheAdvice extends CacheBase {
         // but do not let it surface up past the AOP injection itself.
         try {
             // If we have a -1 key index, then build the cacheKeys now.
-            if (annotationData.getKeyIndex() == -1) {
-                final List<Object> keyObjects = convertToKeyObjects(result, annotationData.getKeyIndex(), methodDescription);
-                cacheKeys = getCacheKeys(keyObjects, annotationData);
+            if (plan.getKeySource() == AdvicePlan.KeySource.RETURN_VALUE) {
+                final List<Object> keyObjects = convertToKeyObjects(result, plan.getKeyIndex(), plan.getMethod().toString());
+                cacheKeys = getCacheKeys(keyObjects, plan.getAnnotationData());
             }
             if (cacheKeys != null && cacheKeys.size() > 0) {
+                final List<String> validKeys = new ArrayList<String>(cacheKeys.size());
                 for (final String key : cacheKeys) {
                     if (key != null && key.trim().length() > 0) {
-                        cache.delete(key);
+                        validKeys.add(key);
                     }
                 }
+                final BulkDeleter.Result deleted = deleteAllFromCache(validKeys, plan.getAnnotationData());
+                if (!deleted.isComplete()) {
+                    LOG.warn("Invalidating on " + pjp.toShortString() + " was incomplete (" + deleted
+                            + "), these keys may still be cached: " + deleted.getFailedKeys());
+                }
             }
         } catch (Throwable ex) {
             LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
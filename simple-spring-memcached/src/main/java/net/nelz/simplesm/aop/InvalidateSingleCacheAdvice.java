@@ -8,7 +8,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import net.nelz.simplesm.api.InvalidateSingleCache;
 
-import java.lang.reflect.Method;
 import java.security.InvalidParameterException;
 
 /**
@@ -36,6 +35,10 @@ THE SOFTWARE.
 public class InvalidateSingleCacheAdvice extends CacheBase {
     private static final Log LOG = LogFactory.getLog(InvalidateSingleCacheAdvice.class);
 
+    protected Class getAnnotationClass() {
+        return InvalidateSingleCache.class;
+    }
+
     @Pointcut("@annotation(net.nelz.simplesm.api.InvalidateSingleCache)")
     public void invalidateSingle() {}
 
@@ -43,20 +46,15 @@ public class InvalidateSingleCacheAdvice extends CacheBase {
     public Object cacheInvalidateSingle(final ProceedingJoinPoint pjp) throws Throwable {
         // This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
         // but do not let it surface up past the AOP injection itself.
+        final AdvicePlan plan = getActiveAdvicePlan(pjp, InvalidateSingleCache.class);
+        if (plan == null) { return pjp.proceed(); }
+
         String cacheKey = null;
-        final AnnotationData annotationData;
         try {
-            final Method methodToCache = getMethodToCache(pjp);
-            final InvalidateSingleCache annotation = methodToCache.getAnnotation(InvalidateSingleCache.class);
-            annotationData =
-                    AnnotationDataBuilder.buildAnnotationData(annotation,
-                            InvalidateSingleCache.class,
-                            methodToCache);
-            if (annotationData.getKeyIndex() > -1) {
-                final Object keyObject = getIndexObject(annotationData.getKeyIndex(), pjp, methodToCache);
-                final Method keyMethod = getKeyMethod(keyObject);
-                final String objectId = generateObjectId(keyMethod, keyObject);
-                cacheKey = buildCacheKey(objectId, annotationData);
+            if (plan.getKeySource() == AdvicePlan.KeySource.PARAMETER) {
+                final Object keyObject = getIndexObject(plan.getKeyIndex(), pjp, plan.getMethod());
+                final String objectId = generateObjectId(keyObject);
+                cacheKey = buildCacheKey(objectId, plan.getAnnotationData());
             }
         } catch (Throwable ex) {
             LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
@@ -69,15 +67,14 @@ public class InvalidateSingleCacheAdvice extends CacheBase {
         // but do not let it surface up past the AOP injection itself.
         try {
             // If we have a -1 key index, then build the cacheKey now.
-            if (annotationData.getKeyIndex() == -1) {
-                final Method keyMethod = getKeyMethod(result);
-                final String objectId = generateObjectId(keyMethod, result);
-                cacheKey = buildCacheKey(objectId, annotationData);
+            if (plan.getKeySource() == AdvicePlan.KeySource.RETURN_VALUE) {
+                final String objectId = generateObjectId(result);
+                cacheKey = buildCacheKey(objectId, plan.getAnnotationData());
             }
             if (cacheKey == null || cacheKey.trim().length() == 0) {
                 throw new InvalidParameterException("Unable to find a cache key");
             }
-            cache.delete(cacheKey);
+            deleteFromCache(cacheKey, plan.getAnnotationData());
         } catch (Throwable ex) {
             LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
         }
@@ -0,0 +1,113 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * The result of a <code>ReadThroughMultiCache</code> with <code>lazyResults</code>: a
+ * read-only list whose elements are decoded from the bytes memcached returned when they are
+ * first accessed, and kept from then on. Callers that only look at some of the elements do
+ * not pay for decoding the others.
+ *
+ * Values written with another schema version are found out before the list is built, and
+ * loaded with the other misses. An element that still cannot be decoded (because its bytes are
+ * corrupt) is deleted from the cache, so that the next call loads it again, and its access
+ * throws. The list may be shared between threads; an element accessed by several of them at
+ * once may be decoded more than once. It serializes as an
+ * <code>ArrayList</code>.
+ */
+final class LazyResultList extends AbstractList<Object> implements RandomAccess, Serializable {
+    private static final Log LOG = LogFactory.getLog(LazyResultList.class);
+
+    // The results, or the CachedData they have yet to be decoded from.
+    private final AtomicReferenceArray<Object> slots;
+    private final String[] cacheKeys;
+    private final transient Transcoder<Object> transcoder;
+    private final transient MemcachedClientIF cache;
+
+    LazyResultList(final Object[] slots,
+                   final String[] cacheKeys,
+                   final Transcoder<Object> transcoder,
+                   final MemcachedClientIF cache) {
+        this.slots = new AtomicReferenceArray<Object>(slots);
+        this.cacheKeys = cacheKeys;
+        this.transcoder = transcoder;
+        this.cache = cache;
+    }
+
+    public Object get(final int index) {
+        final Object slot = slots.get(index);
+        if (!(slot instanceof CachedData)) { return slot; }
+
+        Object decoded = null;
+        RuntimeException failure = null;
+        try {
+            decoded = transcoder.decode((CachedData) slot);
+        } catch (RuntimeException ex) {
+            failure = ex;
+        }
+        if (decoded == null) {
+            // Out of the way of the value the next call loads.
+            try {
+                cache.delete(cacheKeys[index]);
+            } catch (RuntimeException ex) {
+                LOG.debug("Unable to delete [" + cacheKeys[index] + "].", ex);
+            }
+            throw new IllegalStateException("Unable to decode the value of [" + cacheKeys[index] + "].", failure);
+        }
+        final Object result = ReadThroughMultiCacheAdvice.MultiCacheCoordinator.toResult(decoded);
+        slots.set(index, result);
+        return result;
+    }
+
+    public int size() {
+        return slots.length();
+    }
+
+    /**
+     * @return the number of elements that have not been decoded yet.
+     */
+    int getUndecoded() {
+        int undecoded = 0;
+        for (int ix = 0; ix < slots.length(); ix++) {
+            if (slots.get(ix) instanceof CachedData) {
+                undecoded++;
+            }
+        }
+        return undecoded;
+    }
+
+    private Object writeReplace() {
+        return new ArrayList<Object>(this);
+    }
+}
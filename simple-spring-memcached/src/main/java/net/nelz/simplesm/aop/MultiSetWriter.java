@@ -0,0 +1,271 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Writes a batch of values to memcached at once. The sets are grouped by the node their keys
+ * map to, so that each node's operations are queued back to back and pipelined on its
+ * connection, and all of them are issued before waiting for any. The writer then waits for
+ * the results until <code>deadlineMillis</code> after the batch was issued, and reports how
+ * many of the writes succeeded, failed, or did not complete in time.
+ */
+public class MultiSetWriter {
+    private static final Log LOG = LogFactory.getLog(MultiSetWriter.class);
+
+    private long deadlineMillis = 1000;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    public void setDeadlineMillis(final long deadlineMillis) {
+        if (deadlineMillis < 1) {
+            throw new IllegalArgumentException("deadlineMillis must be at least 1.");
+        }
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Stores all of the given values with the same expiration. Never throws: problems
+     * with individual writes are counted in the result instead.
+     */
+    public Result write(final MemcachedClientIF cache, final Map<String, Object> values, final int expiration) {
+        return write(cache, values, expiration, null);
+    }
+
+    /**
+     * Like <code>write(cache, values, expiration)</code>, encoding the values with the given
+     * transcoder, or the client's own if it is null.
+     */
+    public Result write(final MemcachedClientIF cache,
+                        final Map<String, Object> values,
+                        final int expiration,
+                        final Transcoder<Object> transcoder) {
+        return store(cache, values, expiration, 0, transcoder, false);
+    }
+
+    /**
+     * Like <code>write(cache, values, expiration, transcoder)</code>, storing the null results
+     * (<code>PertinentNegativeNull</code>s) with <code>negativeExpiration</code> instead, if
+     * it is greater than 0.
+     */
+    public Result write(final MemcachedClientIF cache,
+                        final Map<String, Object> values,
+                        final int expiration,
+                        final int negativeExpiration,
+                        final Transcoder<Object> transcoder) {
+        return store(cache, values, expiration, negativeExpiration, transcoder, false);
+    }
+
+    /**
+     * Like <code>write</code>, but only stores the values of keys that are not in the cache
+     * yet, using <code>add</code>. Values that were not stored because their key already
+     * existed are counted as skipped.
+     */
+    public Result add(final MemcachedClientIF cache, final Map<String, Object> values, final int expiration) {
+        return add(cache, values, expiration, null);
+    }
+
+    public Result add(final MemcachedClientIF cache,
+                      final Map<String, Object> values,
+                      final int expiration,
+                      final Transcoder<Object> transcoder) {
+        return store(cache, values, expiration, 0, transcoder, true);
+    }
+
+    public Result add(final MemcachedClientIF cache,
+                      final Map<String, Object> values,
+                      final int expiration,
+                      final int negativeExpiration,
+                      final Transcoder<Object> transcoder) {
+        return store(cache, values, expiration, negativeExpiration, transcoder, true);
+    }
+
+    private Result store(final MemcachedClientIF cache,
+                         final Map<String, Object> values,
+                         final int expiration,
+                         final int negativeExpiration,
+                         final Transcoder<Object> transcoder,
+                         final boolean onlyIfAbsent) {
+        final Result result = new Result();
+        if (values.isEmpty()) { return result; }
+
+        final long deadline = System.currentTimeMillis() + deadlineMillis;
+        final Map<String, Future<Boolean>> futures = new LinkedHashMap<String, Future<Boolean>>();
+        for (final List<String> group : groupByNode(cache, values.keySet())) {
+            for (final String key : group) {
+                try {
+                    final Object value = values.get(key);
+                    final int exp = negativeExpiration > 0 && CacheBase.isNegativeResult(value) ? negativeExpiration : expiration;
+                    futures.put(key, send(cache, key, exp, value, transcoder, onlyIfAbsent));
+                } catch (RuntimeException ex) {
+                    // e.g. the client's input queue is full.
+                    LOG.debug("Unable to set [" + key + "].", ex);
+                    result.failed++;
+                }
+            }
+        }
+
+        for (final Map.Entry<String, Future<Boolean>> entry : futures.entrySet()) {
+            final Future<Boolean> future = entry.getValue();
+            if (future == null) {
+                result.succeeded++;
+                continue;
+            }
+            try {
+                final long left = Math.max(0, deadline - System.currentTimeMillis());
+                final Boolean stored = future.get(left, TimeUnit.MILLISECONDS);
+                if (stored == null || stored) {
+                    result.succeeded++;
+                } else if (onlyIfAbsent) {
+                    result.skipped++;
+                } else {
+                    result.failed++;
+                }
+            } catch (TimeoutException ex) {
+                result.timedOut++;
+            } catch (ExecutionException ex) {
+                LOG.debug("Unable to set [" + entry.getKey() + "].", ex);
+                result.failed++;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                result.timedOut++;
+            }
+        }
+
+        batches.incrementAndGet();
+        succeeded.addAndGet(result.succeeded);
+        skipped.addAndGet(result.skipped);
+        failed.addAndGet(result.failed);
+        timedOut.addAndGet(result.timedOut);
+        return result;
+    }
+
+    private static Future<Boolean> send(final MemcachedClientIF cache,
+                                        final String key,
+                                        final int expiration,
+                                        final Object value,
+                                        final Transcoder<Object> transcoder,
+                                        final boolean onlyIfAbsent) {
+        if (transcoder == null) {
+            return onlyIfAbsent ? cache.add(key, expiration, value) : cache.set(key, expiration, value);
+        }
+        return onlyIfAbsent
+                ? cache.add(key, expiration, value, transcoder)
+                : cache.set(key, expiration, value, transcoder);
+    }
+
+    /**
+     * @return the keys, grouped by the node they are stored on; a single group if the
+     * client does not tell. Shared with <code>BulkDeleter</code>.
+     */
+    static Collection<List<String>> groupByNode(final MemcachedClientIF cache, final Collection<String> keys) {
+        final NodeLocator locator = cache.getNodeLocator();
+        if (locator == null) {
+            return Collections.singletonList((List<String>) new ArrayList<String>(keys));
+        }
+        final Map<MemcachedNode, List<String>> groups = new LinkedHashMap<MemcachedNode, List<String>>();
+        for (final String key : keys) {
+            final MemcachedNode node = locator.getPrimary(key);
+            List<String> group = groups.get(node);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(node, group);
+            }
+            group.add(key);
+        }
+        return groups.values();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    /**
+     * @return the number of adds that were not stored because their key already existed.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * The outcome of one batch of writes.
+     */
+    public static class Result {
+        private int succeeded;
+        private int skipped;
+        private int failed;
+        private int timedOut;
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getTimedOut() {
+            return timedOut;
+        }
+
+        public boolean isComplete() {
+            return failed == 0 && timedOut == 0;
+        }
+
+        public String toString() {
+            return String.format("%s succeeded, %s skipped, %s failed, %s timed out", succeeded, skipped, failed, timedOut);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.exceptions.InvalidAnnotationException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Records how the advices write to each namespace, from their plans as they are built: which
+ * namespaces are invalidated with a <code>Tombstone</code>, and which are written by anything
+ * else than the loads of read-throughs. Read-throughs use it to decide how to store what they
+ * loaded, and whether their hits can be touched.
+ *
+ * A <code>slidingExpiration</code> cannot be combined with writes to its namespace, as a
+ * touch would undo them: the plan of a sliding read-through in a namespace already written
+ * to is rejected. The <code>CacheAnnotationScanner</code> builds the plans of the writes
+ * first, so that it is always the read-through that is rejected, at startup. Without it, a
+ * write built after the read-through only stops its touches, and logs an error.
+ *
+ * Share a single instance between all of the advices. A plan is always built before the
+ * first call of its method, so a namespace is registered before anything is written to it;
+ * with the <code>CacheAnnotationScanner</code>, all of them are registered at startup.
+ */
+public class NamespaceRegistry {
+    private static final Log LOG = LogFactory.getLog(NamespaceRegistry.class);
+
+    private final Map<String, Boolean> tombstoned = new ConcurrentHashMap<String, Boolean>();
+    private final Map<String, Boolean> written = new ConcurrentHashMap<String, Boolean>();
+    private final Map<String, Boolean> sliding = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Records how the plan of the given annotation uses its namespace.
+     * @throws InvalidAnnotationException if the annotation has a <code>slidingExpiration</code>,
+     * and its namespace is written to.
+     */
+    public synchronized void register(final Class annotationClass, final AnnotationData data) {
+        final String namespace = data.getNamespace();
+        final boolean writes = AnnotationDataBuilder.UPDATES.contains(annotationClass)
+                || AnnotationDataBuilder.INVALIDATES.contains(annotationClass)
+                || AnnotationDataBuilder.COUNTER_UPDATES.contains(annotationClass)
+                || data.getSoftExpiration() > 0;
+        if (data.isSlidingExpiration() && (writes || isWritten(namespace))) {
+            throw new InvalidAnnotationException(String.format(
+                    "SlidingExpiration for annotation [%s] cannot be used in namespace [%s], which is "
+                            + "updated, invalidated, counted in or refreshed in the background",
+                    annotationClass.getName(),
+                    namespace
+            ));
+        }
+        if (writes && sliding.containsKey(namespace)) {
+            LOG.error(String.format("Hits in namespace [%s] are no longer touched, because [%s] writes to it. "
+                    + "SlidingExpiration cannot be combined with writes to the namespace.",
+                    namespace,
+                    annotationClass.getName()));
+        }
+
+        if (data.getTombstoneExpiration() > 0) {
+            tombstoned.put(namespace, Boolean.TRUE);
+        }
+        if (writes) {
+            written.put(namespace, Boolean.TRUE);
+        }
+        if (data.isSlidingExpiration()) {
+            sliding.put(namespace, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @return whether an invalidation of the namespace leaves a <code>Tombstone</code>.
+     */
+    public boolean isTombstoned(final String namespace) {
+        return tombstoned.containsKey(namespace);
+    }
+
+    /**
+     * @return whether values of the namespace are updated, invalidated or refreshed in the
+     * background, i.e. written while they may be cached.
+     */
+    public boolean isWritten(final String namespace) {
+        return written.containsKey(namespace);
+    }
+}
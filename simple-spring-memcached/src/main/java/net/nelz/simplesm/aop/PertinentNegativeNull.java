@@ -23,7 +23,21 @@ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
 OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
 THE SOFTWARE.
  */
+/**
+ * Stands for a null result in the cache. Use the shared <code>INSTANCE</code>; instances
+ * read back through Java serialization resolve to it as well, so that cached nulls do not
+ * allocate. The <code>CompactTranscoder</code> and the <code>NegativeNullTranscoder</code>
+ * store it in a single byte or less, instead of a serialized class descriptor.
+ */
 public class PertinentNegativeNull implements Externalizable {
+	public static final PertinentNegativeNull INSTANCE = new PertinentNegativeNull();
+
+	/**
+	 * Public for <code>Externalizable</code> only; use <code>INSTANCE</code>.
+	 */
+	public PertinentNegativeNull() {
+	}
+
 	public int hashCode() {
 		return 1;
 	}
@@ -36,4 +50,8 @@ public class PertinentNegativeNull implements Externalizable {
 	public void writeExternal(ObjectOutput out) throws IOException { }
 
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException { }
+
+	protected Object readResolve() throws ObjectStreamException {
+		return INSTANCE;
+	}
 }
@@ -0,0 +1,55 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Hands values over as the <code>CachedData</code> memcached returned, without decoding
+ * them, and writes such values back as they are.
+ */
+final class RawTranscoder implements Transcoder<Object> {
+    static final RawTranscoder INSTANCE = new RawTranscoder();
+
+    private RawTranscoder() {
+    }
+
+    public boolean asyncDecode(final CachedData data) {
+        return false;
+    }
+
+    public CachedData encode(final Object value) {
+        if (!(value instanceof CachedData)) {
+            throw new IllegalArgumentException("Only raw values can be written, not [" + value + "].");
+        }
+        return (CachedData) value;
+    }
+
+    public Object decode(final CachedData data) {
+        return data;
+    }
+
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+}
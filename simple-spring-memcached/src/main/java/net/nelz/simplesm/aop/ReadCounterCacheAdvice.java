@@ -0,0 +1,108 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import net.nelz.simplesm.exceptions.*;
+import org.apache.commons.logging.*;
+import org.aspectj.lang.*;
+import org.aspectj.lang.annotation.*;
+
+import java.lang.reflect.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+@Aspect
+public class ReadCounterCacheAdvice extends CacheBase {
+	private static final Log LOG = LogFactory.getLog(ReadCounterCacheAdvice.class);
+
+	protected Class getAnnotationClass() {
+		return ReadCounterCache.class;
+	}
+
+	@Pointcut("@annotation(net.nelz.simplesm.api.ReadCounterCache)")
+	public void readCounter() {}
+
+	@Around("readCounter()")
+	public Object cacheReadCounter(final ProceedingJoinPoint pjp) throws Throwable {
+		// This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
+		// but do not let it surface up past the AOP injection itself.
+		final AdvicePlan plan = getActiveAdvicePlan(pjp, ReadCounterCache.class);
+		if (plan == null) { return pjp.proceed(); }
+
+		final String cacheKey;
+		final long cached;
+		try {
+			final Object keyObject = getIndexObject(plan.getKeyIndex(), pjp, plan.getMethod());
+			cacheKey = buildCacheKey(generateObjectId(keyObject), plan.getAnnotationData());
+			// Incrementing by 0 reads the counter as a number, without going through the transcoder.
+			cached = cache.incr(cacheKey, 0);
+		} catch (Throwable ex) {
+			LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
+			return pjp.proceed();
+		}
+		if (cached >= 0) {
+			LOG.debug("Cache hit.");
+			return toReturnType(cached, plan.getMethod());
+		}
+
+		final Object result = pjp.proceed();
+
+		// This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
+		// but do not let it surface up past the AOP injection itself.
+		if (result != null) {
+			try {
+				// Adding keeps a counter that was created while this was loading.
+				cache.add(cacheKey, plan.getAnnotationData().getExpiration(), String.valueOf(((Number) result).longValue()));
+			} catch (Throwable ex) {
+				LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
+			}
+		}
+		return result;
+	}
+
+	private static Object toReturnType(final long value, final Method method) {
+		final Class type = method.getReturnType();
+		if (int.class.equals(type) || Integer.class.equals(type)) {
+			return Integer.valueOf((int) value);
+		}
+		return Long.valueOf(value);
+	}
+
+	protected AdvicePlan buildAdvicePlan(final Method methodToCache, final Class annotationClass) {
+		final Class type = methodToCache.getReturnType();
+		if (!long.class.equals(type) && !Long.class.equals(type) && !int.class.equals(type) && !Integer.class.equals(type)) {
+			throw new InvalidAnnotationException(String.format(
+					"The annotation [%s] is only valid on a method that returns a long or an int. " +
+					"[%s] does not fulfill this requirement.",
+					ReadCounterCache.class.getName(),
+					methodToCache.toString()));
+		}
+		final AdvicePlan plan = super.buildAdvicePlan(methodToCache, annotationClass);
+		if (plan.getKeySource() != AdvicePlan.KeySource.PARAMETER) {
+			throw new InvalidAnnotationException(String.format(
+					"The annotation [%s] needs its key from a [%s] on [%s].",
+					ReadCounterCache.class.getName(),
+					ParameterValueKeyProvider.class.getName(),
+					methodToCache.toString()));
+		}
+		return plan;
+	}
+}
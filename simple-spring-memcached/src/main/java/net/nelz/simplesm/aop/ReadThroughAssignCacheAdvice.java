@@ -8,8 +8,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import net.nelz.simplesm.api.ReadThroughAssignCache;
 
-import java.lang.reflect.Method;
-
 /**
 Copyright (c) 2008, 2009  Nelson Carpentier
 
@@ -35,6 +33,10 @@ THE SOFTWARE.
 public class ReadThroughAssignCacheAdvice extends CacheBase {
     private static final Log LOG = LogFactory.getLog(ReadThroughAssignCacheAdvice.class);
 
+    protected Class getAnnotationClass() {
+        return ReadThroughAssignCache.class;
+    }
+
     @Pointcut("@annotation(net.nelz.simplesm.api.ReadThroughAssignCache)")
     public void getSingleAssign() {}
 
@@ -42,36 +44,57 @@ public class ReadThroughAssignCacheAdvice extends CacheBase {
     public Object cacheSingleAssign(final ProceedingJoinPoint pjp) throws Throwable {
         // This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
         // but do not let it surface up past the AOP injection itself.
-        final String cacheKey;
-        final AnnotationData annotationData;
+        final AdvicePlan plan = getActiveAdvicePlan(pjp, ReadThroughAssignCache.class);
+        if (plan == null) { return pjp.proceed(); }
+
+        final String cacheKey = plan.getAssignedCacheKey();
+        final Object cached;
         try {
-            final Method methodToCache = getMethodToCache(pjp);
-            final ReadThroughAssignCache annotation = methodToCache.getAnnotation(ReadThroughAssignCache.class);
-            annotationData =
-                    AnnotationDataBuilder.buildAnnotationData(annotation,
-                            ReadThroughAssignCache.class,
-                            methodToCache);
-            cacheKey = buildCacheKey(annotationData.getAssignedKey(), annotationData);
-            final Object result = cache.get(cacheKey);
-            if (result != null) {
-                LOG.debug("Cache hit.");
-                return (result instanceof PertinentNegativeNull) ? null : result;
-            }
+            cached = getFromCache(cacheKey, plan.getAnnotationData());
         } catch (Throwable ex) {
             LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
             return pjp.proceed();
         }
 
-        final Object result = pjp.proceed();
+        final boolean stale = cached != null && isStale(cached, plan.getAnnotationData());
+        final boolean early = cached != null && !stale && isDueForEarlyRecompute(cached, plan.getAnnotationData());
+        if (cached != null && !stale && !early) {
+            LOG.debug("Cache hit.");
+            return fromCacheValue(cached);
+        }
 
-        // This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
-        // but do not let it surface up past the AOP injection itself.
-        try {
-            final Object submission = (result == null) ? new PertinentNegativeNull() : result;
-            cache.set(cacheKey, annotationData.getExpiration(), submission);
-        } catch (Throwable ex) {
-            LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
+        final SingleFlight.Loader loader = new SingleFlight.Loader() {
+            public Object load() throws Throwable {
+                final long start = System.currentTimeMillis();
+                final Object result = pjp.proceed();
+                final long loadMillis = System.currentTimeMillis() - start;
+
+                // This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
+                // but do not let it surface up past the AOP injection itself.
+                final Object submission = (result == null) ? PertinentNegativeNull.INSTANCE : result;
+                try {
+                    final Object cacheValue = toCacheValue(submission, plan.getAnnotationData(), loadMillis);
+                    if (cached == null) {
+                        // Never overwrite what an update or invalidation wrote while this was loading.
+                        addToCache(cacheKey, plan.getAnnotationData(), cacheValue);
+                    } else {
+                        replaceInCache(cacheKey, plan.getAnnotationData(), cacheValue);
+                    }
+                } catch (Throwable ex) {
+                    LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
+                }
+                return submission;
+            }
+        };
+
+        if (stale || (early && backgroundRefresher != null)) {
+            // Serve the current entry, and have it reloaded in the background.
+            refreshInBackground(cacheKey, plan.getAnnotationData(), loader);
+            return fromCacheValue(cached);
         }
-        return result;
+
+        // A miss, or an early recompute without a background refresher. Concurrent
+        // loads of this key wait for a single one instead of all calling the target.
+        return fromCacheValue(loadMissing(cacheKey, plan.getAnnotationData(), loader));
     }
 }
@@ -2,6 +2,8 @@ package net.nelz.simplesm.aop;
 
 import net.nelz.simplesm.api.*;
 import net.nelz.simplesm.exceptions.*;
+import net.spy.memcached.*;
+import net.spy.memcached.transcoders.Transcoder;
 import org.apache.commons.logging.*;
 import org.aspectj.lang.*;
 import org.aspectj.lang.annotation.*;
@@ -35,6 +37,10 @@ THE SOFTWARE.
 public class ReadThroughMultiCacheAdvice extends CacheBase {
 	private static final Log LOG = LogFactory.getLog(ReadThroughMultiCacheAdvice.class);
 
+	protected Class getAnnotationClass() {
+		return ReadThroughMultiCache.class;
+	}
+
 	@Pointcut("@annotation(net.nelz.simplesm.api.ReadThroughMultiCache)")
 	public void getMulti() {}
 
@@ -42,18 +48,16 @@ public class ReadThroughMultiCacheAdvice extends CacheBase {
 	public Object cacheMulti(final ProceedingJoinPoint pjp) throws Throwable {
 		// This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
 		// but do not let it surface up past the AOP injection itself.
+		// Get the plan for the target method. Its return type and annotation values
+		// were already verified when the plan was built.
+		final AdvicePlan plan = getActiveAdvicePlan(pjp, ReadThroughMultiCache.class);
+		if (plan == null) { return pjp.proceed(); }
+
 		final MultiCacheCoordinator coord = new MultiCacheCoordinator();
 		Object [] args = pjp.getArgs();
 		try {
-			// Get the target method being invoked, and make sure it returns the correct info.
-			coord.setMethod(getMethodToCache(pjp));
-			verifyReturnTypeIsList(coord.getMethod(), ReadThroughMultiCache.class);
-
-			// Get the annotation associated with this method, and make sure the values are valid.
-            final ReadThroughMultiCache annotation = coord.getMethod().getAnnotation(ReadThroughMultiCache.class);
-
-            coord.setAnnotationData(AnnotationDataBuilder.buildAnnotationData(
-                    annotation, ReadThroughMultiCache.class, coord.getMethod()));
+			coord.setMethod(plan.getMethod());
+			coord.setAnnotationData(plan.getAnnotationData());
 
 			// Get the list of objects that will provide the keys to all the cache values.
 			coord.setKeyObjects(getKeyObjectList(coord.getAnnotationData().getKeyIndex(), pjp, coord.getMethod()));
@@ -62,52 +66,201 @@ public class ReadThroughMultiCacheAdvice extends CacheBase {
 			coord.setHolder(convertIdObjectsToKeyMap(coord.getKeyObjects(), coord.getAnnotationData()));
 
 			// Get the full list of cache keys and ask the cache for the corresponding values.
-			coord.setInitialKey2Result(cache.getBulk(coord.getKey2Obj().keySet()));
+			final Transcoder<Object> decoder = coord.getAnnotationData().isLazyResults()
+					? getDecoder(coord.getAnnotationData())
+					: null;
+			if (decoder != null) {
+				// Large values stay undecoded until the caller accesses them.
+				coord.setLazy(cache, decoder);
+				coord.setInitialKey2Result(getAllRawFromCache(coord.getKey2Obj().keySet(), coord.getAnnotationData()));
+			} else {
+				coord.setInitialKey2Result(getAllFromCache(coord.getKey2Obj().keySet(), coord.getAnnotationData()));
+			}
+
+			// Entries past their soft expiration are still used, but reloaded in the background.
+			refreshStaleInBackground(pjp, coord);
 
 			// We've gotten all positive cache results back, so build up a results list and return it.
 			if (coord.getMissObjects().size() < 1) {
 				return coord.generateResultList();
 			}
 
-			// Create the new list of arguments with a subset of the key objects that aren't in the cache.
-			args = coord.modifyArgumentList(args);
+			// Only load the misses no other thread is loading already; wait for the rest.
+			coord.joinFlights(singleFlight);
 		} catch (Throwable ex) {
 			LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
 			return pjp.proceed();
 		}
 
+		try {
+			if (coord.getLeadObjects().size() > 0) {
+				loadLeadMisses(pjp, coord, args);
+			}
+			final List<Object> remaining = coord.awaitFlights(singleFlight);
+			if (remaining.size() > 0) {
+				// The threads loading these failed, or took too long.
+				loadMisses(pjp, coord, remaining, args);
+			}
+		} finally {
+			coord.endFlights(singleFlight);
+		}
+
+		// Every miss was loaded (once) above, and loadMisses throws if the target method did
+		// not return one result per key, so there is a result for every key by now.
+		return coord.generateResultList();
+	}
+
+	private void refreshStaleInBackground(final ProceedingJoinPoint pjp,
+	                                      final MultiCacheCoordinator coord) {
+		final AnnotationData data = coord.getAnnotationData();
+		if (backgroundRefresher == null || data.getSoftExpiration() <= 0) { return; }
+
+		final List<String> staleKeys = new ArrayList<String>();
+		for (final Map.Entry<String, Object> entry : coord.getKey2Result().entrySet()) {
+			if (isStale(entry.getValue(), data)) {
+				staleKeys.add(entry.getKey());
+			}
+		}
+		if (staleKeys.isEmpty()) { return; }
+		final List<String> claimed = backgroundRefresher.claim(staleKeys);
+		if (claimed.isEmpty()) { return; }
+
+		final List<Object> staleObjects = new ArrayList<Object>();
+		for (final String cacheKey : claimed) {
+			staleObjects.add(coord.getKey2Obj().get(cacheKey));
+		}
+		// The arguments of this call get modified further on, so take a copy for the refresh.
+		final Object[] args = coord.modifyArgumentList(pjp.getArgs().clone(), staleObjects);
+		backgroundRefresher.submit(claimed, new Runnable() {
+			public void run() {
+				refreshWithLease(claimed, data, new SingleFlight.Loader() {
+					public Object load() throws Throwable {
+						final List results = (List) pjp.proceed(args);
+						if (results.size() != staleObjects.size()) {
+							throw new RuntimeException("Did not receive a correlated amount of data from the target method.");
+						}
+						final Map<String, Object> submissions = new LinkedHashMap<String, Object>();
+						for (int ix = 0; ix < results.size(); ix++) {
+							final Object resultObject = results.get(ix) == null ? PertinentNegativeNull.INSTANCE : results.get(ix);
+							submissions.put(claimed.get(ix), toCacheValue(resultObject, data));
+						}
+						// Leave out the keys that were invalidated while they were reloading.
+						final MultiSetWriter.Result written = replaceAllInCache(submissions, data);
+						if (!written.isComplete()) {
+							LOG.warn("Refreshing on " + pjp.toShortString() + " was incomplete: " + written);
+						}
+						return null;
+					}
+				});
+			}
+		});
+	}
+
+	private void loadLeadMisses(final ProceedingJoinPoint pjp,
+	                            final MultiCacheCoordinator coord,
+	                            final Object[] args) throws Throwable {
+		final AnnotationData data = coord.getAnnotationData();
+		if (data.getLeaseExpiration() <= 0) {
+			loadMisses(pjp, coord, coord.getLeadObjects(), args);
+			return;
+		}
+
+		// Only load the keys this node holds the lease for, and wait for other nodes to load the rest.
+		final Map<String, String> leases = new HashMap<String, String>();
+		final List<Object> leased = new ArrayList<Object>();
+		final List<Object> contested = new ArrayList<Object>();
+		for (final Object keyObject : coord.getLeadObjects()) {
+			final String cacheKey = coord.getObj2Key().get(keyObject);
+			final String token = acquireLease(cacheKey, data);
+			if (token != null) {
+				leases.put(cacheKey, token);
+				leased.add(keyObject);
+			} else {
+				contested.add(keyObject);
+			}
+		}
+
+		try {
+			if (leased.size() > 0) {
+				loadMisses(pjp, coord, leased, args);
+			}
+		} finally {
+			for (final Map.Entry<String, String> lease : leases.entrySet()) {
+				releaseLease(lease.getKey(), lease.getValue());
+			}
+		}
+
+		if (contested.size() > 0) {
+			final List<String> contestedKeys = new ArrayList<String>();
+			for (final Object keyObject : contested) {
+				contestedKeys.add(coord.getObj2Key().get(keyObject));
+			}
+			coord.getKey2Result().putAll(awaitLeasedValues(contestedKeys, data));
+
+			final List<Object> remaining = new ArrayList<Object>();
+			for (final Object keyObject : contested) {
+				if (coord.getKey2Result().get(coord.getObj2Key().get(keyObject)) == null) {
+					remaining.add(keyObject);
+				}
+			}
+			if (remaining.size() > 0) {
+				loadMisses(pjp, coord, remaining, args);
+			}
+		}
+	}
+
+	private void loadMisses(final ProceedingJoinPoint pjp,
+	                        final MultiCacheCoordinator coord,
+	                        final List<Object> missObjects,
+	                        final Object[] args) throws Throwable {
 		/*
 		Call the target method with the new subset of arguments.
 		We are calling this outside of the try/catch block in case there are some
 		'not our fault' problems with the target method. (Connection issues, etc...)
 		Though, this decision could go either way, really.
 		 */
-		final List results = (List) pjp.proceed(args);
+		final List results = (List) pjp.proceed(coord.modifyArgumentList(args, missObjects));
+		if (results.size() != missObjects.size()) {
+			// The results cannot be told apart, and calling the method again would load them twice.
+			throw new RuntimeException(String.format(
+					"%s must return one result per key, in the order of its keys, but returned %s results for %s keys: %s",
+					pjp.toShortString(),
+					results.size(),
+					missObjects.size(),
+					results));
+		}
 
-		try {
+		// Keep what was loaded first: whatever goes wrong while caching it, it is still returned.
+		final Map<String, Object> submissions = new LinkedHashMap<String, Object>();
+		for (int ix = 0; ix < results.size(); ix++) {
+			final Object resultObject = results.get(ix) == null ? PertinentNegativeNull.INSTANCE : results.get(ix);
+			final String cacheKey = coord.obj2Key.get(missObjects.get(ix));
+			coord.getKey2Result().put(cacheKey, resultObject);
+			submissions.put(cacheKey, resultObject);
+		}
 
-			if (results.size() != coord.getMissObjects().size()) {
-				throw new RuntimeException("Did not receive a correlated amount of data from the target method.");
+		// This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
+		// but do not let it surface up past the AOP injection itself.
+		try {
+			for (final Map.Entry<String, Object> submission : submissions.entrySet()) {
+				submission.setValue(toCacheValue(submission.getValue(), coord.getAnnotationData()));
 			}
-
-			for (int ix = 0; ix < results.size(); ix++) {
-				final Object keyObject = coord.getMissObjects().get(ix);
-				final Object resultObject = results.get(ix) == null ? new PertinentNegativeNull() : results.get(ix);
-				final String cacheKey = coord.obj2Key.get(keyObject);
-				cache.set(cacheKey,
-						coord.getAnnotationData().getExpiration(),
-						resultObject);
-				coord.getKey2Result().put(cacheKey, resultObject);
+			// Add all of the misses as one pipelined batch. Adding rather than setting them
+			// keeps a load from overwriting an invalidation that happened while it ran.
+			final MultiSetWriter.Result written = addAllToCache(submissions, coord.getAnnotationData());
+			if (!written.isComplete()) {
+				LOG.warn("Caching on " + pjp.toShortString() + " was incomplete: " + written);
 			}
-
-			return coord.generateResultList();
 		} catch (Throwable ex) {
-			LOG.warn("Caching on " + pjp.toShortString()
-					+ " aborted due to an error. The underlying method will be called twice.", ex);
-			return pjp.proceed();
+			LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
 		}
 	}
 
+	protected AdvicePlan buildAdvicePlan(final Method methodToCache, final Class annotationClass) {
+		verifyReturnTypeIsList(methodToCache, annotationClass);
+		return super.buildAdvicePlan(methodToCache, annotationClass);
+	}
+
 //	protected void validateAnnotation(final ReadThroughMultiCache annotation,
 //	                                  final Method method) {
 //		final Class annotationClass = ReadThroughMultiCache.class;
@@ -126,8 +279,7 @@ public class ReadThroughMultiCacheAdvice extends CacheBase {
 				throw new InvalidParameterException("One of the passed in key objects is null");
 			}
 
-			final Method method = getKeyMethod(obj);
-			final String cacheKey = buildCacheKey(generateObjectId(method, obj), data);
+			final String cacheKey = buildCacheKey(generateObjectId(obj), data);
 			if (holder.getObj2Key().get(obj) == null) {
 				holder.getObj2Key().put(obj, cacheKey);
 			}
@@ -175,6 +327,11 @@ public class ReadThroughMultiCacheAdvice extends CacheBase {
 		private Map<Object, String> obj2Key = new HashMap<Object, String>();
 		private Map<String, Object> key2Result = new HashMap<String, Object>();
 		private List<Object> missObjects = new ArrayList<Object>();
+		private List<Object> leadObjects = new ArrayList<Object>();
+		private Map<String, SingleFlight.Flight> leadFlights = new HashMap<String, SingleFlight.Flight>();
+		private Map<String, SingleFlight.Flight> followedFlights = new HashMap<String, SingleFlight.Flight>();
+		private MemcachedClientIF cache;
+		private Transcoder<Object> decoder;
 
 		public Method getMethod() {
 			return method;
@@ -240,22 +397,45 @@ public class ReadThroughMultiCacheAdvice extends CacheBase {
 			this.missObjects.addAll(missObjectSet);
 		}
 
+		/**
+		 * Has <code>generateResultList</code> leave the <code>CachedData</code> among the
+		 * results to be decoded with the given transcoder on access.
+		 */
+		public void setLazy(final MemcachedClientIF cache, final Transcoder<Object> decoder) {
+			this.cache = cache;
+			this.decoder = decoder;
+		}
+
 		public List<Object> generateResultList() {
-			final List<Object> results = new ArrayList<Object>();
+			final Object[] results = new Object[keyObjects.size()];
+			final String[] cacheKeys = new String[keyObjects.size()];
 			for (int ix = 0; ix < keyObjects.size(); ix++) {
 				final Object keyObject = keyObjects.get(ix);
 				final String cacheKey = obj2Key.get(keyObject);
 				final Object keyResult = key2Result.get(cacheKey);
-				if (keyResult == null) {
+				if (keyResult == null || (keyResult instanceof TimestampedValue
+						&& ((TimestampedValue) keyResult).getValue() == null)) {
 					throw new RuntimeException(String.format(
 							"Unable to fulfill data for the key item [%s] with key value of [%s].",
 							keyObject.toString(),
 							obj2Key.get(keyObject)));
 				}
-				results.add(keyResult instanceof PertinentNegativeNull ? null : keyResult);
+				results[ix] = keyResult instanceof CachedData ? keyResult : toResult(keyResult);
+				cacheKeys[ix] = cacheKey;
 			}
 
-			return results;
+			if (decoder != null) {
+				return new LazyResultList(results, cacheKeys, decoder, cache);
+			}
+			return new ArrayList<Object>(Arrays.asList(results));
+		}
+
+		/**
+		 * @return what the target method returned, given what was cached for a key.
+		 */
+		static Object toResult(final Object keyResult) {
+			final Object value = keyResult instanceof TimestampedValue ? ((TimestampedValue) keyResult).getValue() : keyResult;
+			return value instanceof PertinentNegativeNull ? null : value;
 		}
 
 		public List<Object> getMissObjects() {
@@ -263,8 +443,68 @@ public class ReadThroughMultiCacheAdvice extends CacheBase {
 		}
 
 		public Object[] modifyArgumentList(final Object[] args) {
-			args[annotationData.getKeyIndex()] = this.missObjects;
+			return modifyArgumentList(args, this.missObjects);
+		}
+
+		public Object[] modifyArgumentList(final Object[] args, final List<Object> objects) {
+			args[annotationData.getKeyIndex()] = objects;
 			return args;
 		}
+
+		public List<Object> getLeadObjects() {
+			return leadObjects;
+		}
+
+		/**
+		 * Starts (or joins) a flight for every miss: the ones this thread leads are to
+		 * be loaded here, the others are being loaded by another thread.
+		 */
+		public void joinFlights(final SingleFlight singleFlight) {
+			for (final Object keyObject : missObjects) {
+				final String cacheKey = obj2Key.get(keyObject);
+				final SingleFlight.Flight flight = singleFlight.begin(cacheKey);
+				if (flight.isLeader()) {
+					leadObjects.add(keyObject);
+					leadFlights.put(cacheKey, flight);
+				} else {
+					followedFlights.put(cacheKey, flight);
+				}
+			}
+		}
+
+		/**
+		 * Waits for the flights led by other threads, within the wait budget of
+		 * <code>singleFlight</code> as a whole.
+		 * @return the key objects whose flights did not complete successfully.
+		 */
+		public List<Object> awaitFlights(final SingleFlight singleFlight) {
+			final List<Object> remaining = new ArrayList<Object>();
+			final long deadline = System.currentTimeMillis() + singleFlight.getMaxWaitMillis();
+			for (final Map.Entry<String, SingleFlight.Flight> entry : followedFlights.entrySet()) {
+				final long wait = Math.max(1, deadline - System.currentTimeMillis());
+				if (entry.getValue().await(wait) && entry.getValue().getResult() != null) {
+					key2Result.put(entry.getKey(), entry.getValue().getResult());
+				} else {
+					remaining.add(key2Obj.get(entry.getKey()));
+				}
+			}
+			return remaining;
+		}
+
+		/**
+		 * Completes the flights this thread leads with whatever it loaded, failing the
+		 * ones it could not, so that no follower waits for a load that never happens.
+		 */
+		public void endFlights(final SingleFlight singleFlight) {
+			for (final Map.Entry<String, SingleFlight.Flight> entry : leadFlights.entrySet()) {
+				final Object result = key2Result.get(entry.getKey());
+				if (result == null) {
+					singleFlight.fail(entry.getKey(), entry.getValue());
+				} else {
+					singleFlight.complete(entry.getKey(), entry.getValue(), result);
+				}
+			}
+			leadFlights.clear();
+		}
 	}
 }
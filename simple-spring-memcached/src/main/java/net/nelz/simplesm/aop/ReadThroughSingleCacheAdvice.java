@@ -32,6 +32,10 @@ THE SOFTWARE.
 public class ReadThroughSingleCacheAdvice extends CacheBase {
 	private static final Log LOG = LogFactory.getLog(ReadThroughSingleCacheAdvice.class);
 
+	protected Class getAnnotationClass() {
+		return ReadThroughSingleCache.class;
+	}
+
 	@Pointcut("@annotation(net.nelz.simplesm.api.ReadThroughSingleCache)")
 	public void getSingle() {}
 
@@ -39,38 +43,60 @@ public class ReadThroughSingleCacheAdvice extends CacheBase {
 	public Object cacheGetSingle(final ProceedingJoinPoint pjp) throws Throwable {
 		// This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
 		// but do not let it surface up past the AOP injection itself.
+		final AdvicePlan plan = getActiveAdvicePlan(pjp, ReadThroughSingleCache.class);
+		if (plan == null) { return pjp.proceed(); }
+
 		final String cacheKey;
-		final ReadThroughSingleCache annotation;
+		final Object cached;
 		try {
-			final Method methodToCache = getMethodToCache(pjp);
-			annotation = methodToCache.getAnnotation(ReadThroughSingleCache.class);
-            final AnnotationData annotationData =
-                    AnnotationDataBuilder.buildAnnotationData(annotation,
-                            ReadThroughSingleCache.class,
-                            methodToCache);
-            final String objectId = getObjectId(annotationData.getKeyIndex(), pjp, methodToCache);
-			cacheKey = buildCacheKey(objectId, annotationData);
-			final Object result = cache.get(cacheKey);
-			if (result != null) {
-				LOG.debug("Cache hit.");
-				return (result instanceof PertinentNegativeNull) ? null : result;
-			}
+			final String objectId = getObjectId(plan.getKeyIndex(), pjp, plan.getMethod());
+			cacheKey = buildCacheKey(objectId, plan.getAnnotationData());
+			cached = getFromCache(cacheKey, plan.getAnnotationData());
 		} catch (Throwable ex) {
 			LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
 			return pjp.proceed();
 		}
 
-		final Object result = pjp.proceed();
+		final boolean stale = cached != null && isStale(cached, plan.getAnnotationData());
+		final boolean early = cached != null && !stale && isDueForEarlyRecompute(cached, plan.getAnnotationData());
+		if (cached != null && !stale && !early) {
+			LOG.debug("Cache hit.");
+			return fromCacheValue(cached);
+		}
 
-		// This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
-		// but do not let it surface up past the AOP injection itself.
-		try {
-			final Object submission = (result == null) ? new PertinentNegativeNull() : result;
-			cache.set(cacheKey, annotation.expiration(), submission);
-		} catch (Throwable ex) {
-			LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
+		final SingleFlight.Loader loader = new SingleFlight.Loader() {
+			public Object load() throws Throwable {
+				final long start = System.currentTimeMillis();
+				final Object result = pjp.proceed();
+				final long loadMillis = System.currentTimeMillis() - start;
+
+				// This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
+				// but do not let it surface up past the AOP injection itself.
+				final Object submission = (result == null) ? PertinentNegativeNull.INSTANCE : result;
+				try {
+					final Object cacheValue = toCacheValue(submission, plan.getAnnotationData(), loadMillis);
+					if (cached == null) {
+						// Never overwrite what an update or invalidation wrote while this was loading.
+						addToCache(cacheKey, plan.getAnnotationData(), cacheValue);
+					} else {
+						replaceInCache(cacheKey, plan.getAnnotationData(), cacheValue);
+					}
+				} catch (Throwable ex) {
+					LOG.warn("Caching on " + pjp.toShortString() + " aborted due to an error.", ex);
+				}
+				return submission;
+			}
+		};
+
+		if (stale || (early && backgroundRefresher != null)) {
+			// Serve the current entry, and have it reloaded in the background.
+			refreshInBackground(cacheKey, plan.getAnnotationData(), loader);
+			return fromCacheValue(cached);
 		}
-		return result;
+
+		// A miss, or an early recompute without a background refresher. Concurrent
+		// loads of this key wait for a single one instead of all calling the target.
+		return fromCacheValue(loadMissing(cacheKey, plan.getAnnotationData(), loader));
 	}
 
     @Deprecated
@@ -78,7 +104,6 @@ public class ReadThroughSingleCacheAdvice extends CacheBase {
 	                             final JoinPoint jp,
 	                             final Method methodToCache) throws Exception {
 		final Object keyObject = getIndexObject(keyIndex, jp, methodToCache);
-		final Method keyMethod = getKeyMethod(keyObject);
-		return generateObjectId(keyMethod, keyObject);
+		return generateObjectId(keyObject);
 	}
 }
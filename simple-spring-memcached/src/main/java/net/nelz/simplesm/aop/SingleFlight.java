@@ -0,0 +1,185 @@
+package net.nelz.simplesm.aop;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Coalesces concurrent cache misses for the same cache key within this JVM: the first
+ * thread to miss becomes the leader and loads the value, every other thread missing on
+ * that key in the meantime waits for the leader and shares its result instead of calling
+ * the target method again.
+ *
+ * The table of loads in flight is a <code>ConcurrentHashMap</code>, so joining a flight
+ * never takes a lock. A follower stops waiting after <code>maxWaitMillis</code>, and
+ * followers whose leader failed (or timed out) load the value themselves, so that every
+ * caller still sees its own exception.
+ */
+public class SingleFlight {
+    private long maxWaitMillis = 10000;
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong followers = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * Something that loads (and caches) the value for a key.
+     */
+    public interface Loader {
+        Object load() throws Throwable;
+    }
+
+    public void setMaxWaitMillis(final long maxWaitMillis) {
+        if (maxWaitMillis < 1) {
+            throw new IllegalArgumentException("maxWaitMillis must be at least 1.");
+        }
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Runs the loader, unless another thread is already loading the same key, in
+     * which case that thread's result is returned instead.
+     */
+    public Object load(final String key, final Loader loader) throws Throwable {
+        final Flight flight = begin(key);
+        if (flight.isLeader()) {
+            final Object result;
+            try {
+                result = loader.load();
+            } catch (Throwable ex) {
+                fail(key, flight);
+                throw ex;
+            }
+            complete(key, flight, result);
+            return result;
+        }
+        if (flight.await(maxWaitMillis)) {
+            return flight.getResult();
+        }
+        fallbacks.incrementAndGet();
+        return loader.load();
+    }
+
+    /**
+     * Joins the flight for the given key, starting a new one if there is none. The caller
+     * must check <code>isLeader()</code> on the result: a leader has to end the flight
+     * through either <code>complete</code> or <code>fail</code>, a follower waits on it.
+     */
+    public Flight begin(final String key) {
+        final Flight flight = new Flight(Thread.currentThread());
+        final Flight existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            leaders.incrementAndGet();
+            return flight;
+        }
+        if (existing.owner == Thread.currentThread()) {
+            // A recursive miss on a key this thread is already loading. Waiting would
+            // deadlock, so let it load on its own.
+            return new Flight(Thread.currentThread());
+        }
+        followers.incrementAndGet();
+        return existing;
+    }
+
+    public void complete(final String key, final Flight flight, final Object result) {
+        flight.result = result;
+        end(key, flight);
+    }
+
+    public void fail(final String key, final Flight flight) {
+        flight.failed = true;
+        end(key, flight);
+    }
+
+    private void end(final String key, final Flight flight) {
+        flights.remove(key, flight);
+        flight.done.countDown();
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @return the number of loads that were started.
+     */
+    public long getLeaders() {
+        return leaders.get();
+    }
+
+    /**
+     * @return the number of misses that waited for another thread's load.
+     */
+    public long getFollowers() {
+        return followers.get();
+    }
+
+    /**
+     * @return the number of followers that loaded the value themselves, because the
+     * leader failed or took longer than <code>maxWaitMillis</code>.
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    int getInFlight() {
+        return flights.size();
+    }
+
+    public static class Flight {
+        private final Thread owner;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Object result;
+        private volatile boolean failed;
+
+        Flight(final Thread owner) {
+            this.owner = owner;
+        }
+
+        public boolean isLeader() {
+            return owner == Thread.currentThread();
+        }
+
+        /**
+         * @return true if the leader completed successfully within the given time;
+         * false if it failed, took too long, or the waiting thread was interrupted.
+         */
+        public boolean await(final long maxWaitMillis) {
+            try {
+                if (!done.await(maxWaitMillis, TimeUnit.MILLISECONDS)) { return false; }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return !failed;
+        }
+
+        public Object getResult() {
+            return result;
+        }
+    }
+}
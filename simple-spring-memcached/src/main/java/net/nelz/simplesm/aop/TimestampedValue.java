@@ -0,0 +1,102 @@
+package net.nelz.simplesm.aop;
+
+import java.io.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * The envelope stored in the cache for annotations with a soft expiration or an early
+ * recompute: the cached value along with the time it was loaded, how long loading it
+ * took, and when it expires, so that readers can tell when it is due for a refresh.
+ */
+public class TimestampedValue implements Externalizable {
+	private static final long serialVersionUID = 1L;
+
+	private long loadedAt;
+	private long loadMillis;
+	private long expiresAt;
+	private Object value;
+
+	public TimestampedValue() {
+	}
+
+	public TimestampedValue(final long loadedAt, final Object value) {
+		this(loadedAt, 0, 0, value);
+	}
+
+	public TimestampedValue(final long loadedAt, final long loadMillis, final long expiresAt, final Object value) {
+		this.loadedAt = loadedAt;
+		this.loadMillis = loadMillis;
+		this.expiresAt = expiresAt;
+		this.value = value;
+	}
+
+	public long getLoadedAt() {
+		return loadedAt;
+	}
+
+	/**
+	 * @return how long the target method took to produce the value, in milliseconds.
+	 */
+	public long getLoadMillis() {
+		return loadMillis;
+	}
+
+	/**
+	 * @return when the entry expires in memcached (in milliseconds since the epoch),
+	 * or 0 if it does not.
+	 */
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+	public int hashCode() {
+		return value == null ? 0 : value.hashCode();
+	}
+
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof TimestampedValue)) { return false; }
+		final TimestampedValue other = (TimestampedValue) obj;
+		return loadedAt == other.loadedAt
+				&& loadMillis == other.loadMillis
+				&& expiresAt == other.expiresAt
+				&& (value == null ? other.value == null : value.equals(other.value));
+	}
+
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeLong(loadedAt);
+		out.writeLong(loadMillis);
+		out.writeLong(expiresAt);
+		out.writeObject(value);
+	}
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		loadedAt = in.readLong();
+		loadMillis = in.readLong();
+		expiresAt = in.readLong();
+		value = in.readObject();
+	}
+}
@@ -0,0 +1,44 @@
+package net.nelz.simplesm.aop;
+
+import java.io.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Left in place of an invalidated entry for a short while, so that a read-through that
+ * loaded its value before the invalidation cannot store that (now stale) value after it:
+ * read-throughs only <code>add</code> missing entries, which fails while the tombstone is
+ * there. Readers treat a tombstone like a miss.
+ */
+public class Tombstone implements Externalizable {
+	public int hashCode() {
+		return 2;
+	}
+
+	public boolean equals(final Object obj) {
+		return obj instanceof Tombstone;
+	}
+
+	public void writeExternal(ObjectOutput out) throws IOException { }
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException { }
+}
@@ -7,7 +7,6 @@ import org.aspectj.lang.JoinPoint;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.lang.reflect.Method;
 
 import net.nelz.simplesm.api.UpdateAssignCache;
 
@@ -36,6 +35,10 @@ THE SOFTWARE.
 public class UpdateAssignCacheAdvice extends CacheBase {
     private static final Log LOG = LogFactory.getLog(UpdateAssignCacheAdvice.class);
 
+    protected Class getAnnotationClass() {
+        return UpdateAssignCache.class;
+    }
+
     @Pointcut("@annotation(net.nelz.simplesm.api.UpdateAssignCache)")
     public void updateAssign() {}
 
@@ -43,18 +46,16 @@ public class UpdateAssignCacheAdvice extends CacheBase {
     public Object cacheUpdateAssign(final JoinPoint jp, final Object retVal) throws Throwable {
         // This is injected caching.  If anything goes wrong in the caching, LOG the crap outta it,
         // but do not let it surface up past the AOP injection itself.
+        final AdvicePlan plan = getActiveAdvicePlan(jp, UpdateAssignCache.class);
+        if (plan == null) { return retVal; }
+
         try {
-            final Method methodToCache = getMethodToCache(jp);
-            final UpdateAssignCache annotation = methodToCache.getAnnotation(UpdateAssignCache.class);
-            final AnnotationData annotationData = AnnotationDataBuilder.buildAnnotationData(annotation,
-                            UpdateAssignCache.class,
-                            methodToCache);
-            final String cacheKey = buildCacheKey(annotationData.getAssignedKey(), annotationData);
-            final Object dataObject = annotationData.getDataIndex() == -1
+            final String cacheKey = plan.getAssignedCacheKey();
+            final Object dataObject = plan.getDataIndex() == -1
                     ? retVal
-                    : getIndexObject(annotationData.getDataIndex(), jp, methodToCache);
-            final Object submission = (dataObject == null) ? new PertinentNegativeNull() : dataObject;
-			cache.set(cacheKey, annotationData.getExpiration(), submission);
+                    : getIndexObject(plan.getDataIndex(), jp, plan.getMethod());
+            final Object submission = (dataObject == null) ? PertinentNegativeNull.INSTANCE : dataObject;
+			setInCache(cacheKey, plan.getAnnotationData(), submission);
 		} catch (Exception ex) {
 			LOG.warn("Updating caching via " + jp.toShortString() + " aborted due to an error.", ex);
 		}
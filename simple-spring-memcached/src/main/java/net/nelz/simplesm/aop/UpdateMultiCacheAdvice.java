@@ -34,6 +34,10 @@ THE SOFTWARE.
 public class UpdateMultiCacheAdvice extends CacheBase {
 	private static final Log LOG = LogFactory.getLog(UpdateMultiCacheAdvice.class);
 
+	protected Class getAnnotationClass() {
+		return UpdateMultiCache.class;
+	}
+
 	@Pointcut("@annotation(net.nelz.simplesm.api.UpdateMultiCache)")
 	public void updateMulti() {}
 
@@ -42,16 +46,16 @@ public class UpdateMultiCacheAdvice extends CacheBase {
         // For Update*Cache, an AfterReturning aspect is fine. We will only apply our caching
         // after the underlying method completes successfully, and we will have the same
         // access to the method params.
+		final AdvicePlan plan = getActiveAdvicePlan(jp, UpdateMultiCache.class);
+		if (plan == null) { return retVal; }
+
 		try {
-			final Method methodToCache = getMethodToCache(jp);
-			final UpdateMultiCache annotation = methodToCache.getAnnotation(UpdateMultiCache.class);
-            final AnnotationData annotationData =
-                    AnnotationDataBuilder.buildAnnotationData(annotation,
-                            UpdateMultiCache.class, methodToCache);
-            final List<Object> dataList = annotationData.getDataIndex() == -1
+			final Method methodToCache = plan.getMethod();
+            final AnnotationData annotationData = plan.getAnnotationData();
+            final List<Object> dataList = plan.getDataIndex() == -1
                     ? (List<Object>) retVal
-                    : (List<Object>) getIndexObject(annotationData.getDataIndex(), jp, methodToCache);
-			final List<Object> keyObjects = getKeyObjects(annotationData.getKeyIndex(), retVal, jp, methodToCache);
+                    : (List<Object>) getIndexObject(plan.getDataIndex(), jp, methodToCache);
+			final List<Object> keyObjects = getKeyObjects(plan.getKeyIndex(), retVal, jp, methodToCache);
 			final List<String> cacheKeys = getCacheKeys(keyObjects, annotationData);
 			updateCache(cacheKeys, dataList, methodToCache, annotationData);
 		} catch (Exception ex) {
@@ -74,8 +78,8 @@ public class UpdateMultiCacheAdvice extends CacheBase {
 		for (int ix = 0; ix < returnList.size(); ix++) {
 			final Object result = returnList.get(ix);
 			final String cacheKey = cacheKeys.get(ix);
-			final Object cacheObject = result != null ? result : new PertinentNegativeNull();
-			cache.set(cacheKey, annotationData.getExpiration(), cacheObject);
+			final Object cacheObject = result != null ? result : PertinentNegativeNull.INSTANCE;
+			setInCache(cacheKey, annotationData, cacheObject);
 		}
 	}
 
@@ -32,6 +32,10 @@ THE SOFTWARE.
 public class UpdateSingleCacheAdvice extends CacheBase {
 	private static final Log LOG = LogFactory.getLog(UpdateSingleCacheAdvice.class);
 
+	protected Class getAnnotationClass() {
+		return UpdateSingleCache.class;
+	}
+
 	@Pointcut("@annotation(net.nelz.simplesm.api.UpdateSingleCache)")
 	public void updateSingle() {}
 
@@ -40,20 +44,18 @@ public class UpdateSingleCacheAdvice extends CacheBase {
         // For Update*Cache, an AfterReturning aspect is fine. We will only apply our caching
         // after the underlying method completes successfully, and we will have the same
         // access to the method params.
+		final AdvicePlan plan = getActiveAdvicePlan(jp, UpdateSingleCache.class);
+		if (plan == null) { return retVal; }
+
         try {
-			final Method methodToCache = getMethodToCache(jp);
-			final UpdateSingleCache annotation = methodToCache.getAnnotation(UpdateSingleCache.class);
-            final AnnotationData annotationData =
-                    AnnotationDataBuilder.buildAnnotationData(annotation,
-                            UpdateSingleCache.class,
-                            methodToCache);
-            final String objectId = getObjectId(annotationData.getKeyIndex(), retVal, jp, methodToCache);
-			final String cacheKey = buildCacheKey(objectId, annotationData);
-            final Object dataObject = annotationData.getDataIndex() == -1
+			final Method methodToCache = plan.getMethod();
+			final String objectId = getObjectId(plan.getKeyIndex(), retVal, jp, methodToCache);
+			final String cacheKey = buildCacheKey(objectId, plan.getAnnotationData());
+            final Object dataObject = plan.getDataIndex() == -1
                     ? retVal
-                    : getIndexObject(annotationData.getDataIndex(), jp, methodToCache);
-            final Object submission = (dataObject == null) ? new PertinentNegativeNull() : dataObject;
-			cache.set(cacheKey, annotationData.getExpiration(), submission);
+                    : getIndexObject(plan.getDataIndex(), jp, methodToCache);
+            final Object submission = (dataObject == null) ? PertinentNegativeNull.INSTANCE : dataObject;
+			setInCache(cacheKey, plan.getAnnotationData(), submission);
 		} catch (Exception ex) {
 			LOG.warn("Updating caching via " + jp.toShortString() + " aborted due to an error.", ex);
 		}
@@ -67,7 +69,6 @@ public class UpdateSingleCacheAdvice extends CacheBase {
 		final Object keyObject = keyIndex == -1
 									? validateReturnValueAsKeyObject(returnValue, methodToCache)
 									: getIndexObject(keyIndex, jp, methodToCache);
-		final Method keyMethod = getKeyMethod(keyObject);
-		return generateObjectId(keyMethod, keyObject);
+		return generateObjectId(keyObject);
 	}
 }
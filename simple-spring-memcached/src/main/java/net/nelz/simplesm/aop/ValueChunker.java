@@ -0,0 +1,266 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Stores the values of annotations with <code>chunked</code> set. A value is encoded once;
+ * if it is at most <code>chunkSize</code> bytes, that encoded form is stored as it is.
+ * Larger values are split into chunks of <code>chunkSize</code> bytes, stored under keys
+ * of their own, and a <code>ChunkManifest</code> is stored under the key once all of them
+ * were written; the chunks are sent back to back before waiting for any of them.
+ *
+ * Readers that find a manifest read all of its chunks with a single <code>getBulk</code>.
+ * If any chunk is missing (e.g. evicted), or the chunks do not add up to the value the
+ * manifest describes, the value reads as a miss, and the manifest is deleted so that the
+ * reloaded value can be stored in its place.
+ *
+ * Values of namespaces without a transcoder of their own are encoded with Java
+ * serialization, allowing up to <code>maxSize</code> bytes.
+ */
+public class ValueChunker {
+    private static final Log LOG = LogFactory.getLog(ValueChunker.class);
+
+    private int chunkSize = 1000 * 1024;
+    private int maxSize = 32 * 1024 * 1024;
+    private long deadlineMillis = 5000;
+    private Transcoder<Object> transcoder = new SerializingTranscoder(maxSize);
+    private final Random random = new Random();
+
+    private final AtomicLong chunkedWrites = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong chunkedReads = new AtomicLong();
+    private final AtomicLong incompleteReads = new AtomicLong();
+
+    /**
+     * @param chunkSize the size of the largest value stored in one piece, and of the chunks;
+     * a little below the item size limit of memcached, which also counts the key and flags.
+     */
+    public void setChunkSize(final int chunkSize) {
+        if (chunkSize < 1024 || chunkSize > CachedData.MAX_SIZE) {
+            throw new IllegalArgumentException("chunkSize must be between 1KB and " + CachedData.MAX_SIZE + " bytes.");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param maxSize the size of the largest value Java serialization encodes.
+     */
+    public void setMaxSize(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1.");
+        }
+        this.maxSize = maxSize;
+        this.transcoder = new SerializingTranscoder(maxSize);
+    }
+
+    public void setDeadlineMillis(final long deadlineMillis) {
+        if (deadlineMillis < 1) {
+            throw new IllegalArgumentException("deadlineMillis must be at least 1.");
+        }
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Stores the value, in chunks if needed.
+     * @param transcoder the transcoder of the namespace, or null for Java serialization.
+     * @param onlyIfAbsent whether to store the value (or its manifest) with <code>add</code>.
+     * @return the write of the key itself; or a future of false if its chunks could not all
+     * be written, in which case the key was left alone.
+     */
+    public Future<Boolean> write(final MemcachedClientIF cache,
+                                 final String cacheKey,
+                                 final int expiration,
+                                 final Object value,
+                                 final Transcoder<Object> transcoder,
+                                 final boolean onlyIfAbsent) {
+        final CachedData encoded = (transcoder == null ? this.transcoder : transcoder).encode(value);
+        final byte[] bytes = encoded.getData();
+        if (bytes.length <= chunkSize) {
+            // Already encoded; hand it over as it is.
+            return send(cache, cacheKey, expiration, encoded, RawTranscoder.INSTANCE, onlyIfAbsent);
+        }
+
+        final long generation = random.nextLong();
+        final int chunks = (bytes.length + chunkSize - 1) / chunkSize;
+        final long deadline = System.currentTimeMillis() + deadlineMillis;
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(chunks);
+        for (int ix = 0; ix < chunks; ix++) {
+            final int offset = ix * chunkSize;
+            final byte[] chunk = new byte[Math.min(chunkSize, bytes.length - offset)];
+            System.arraycopy(bytes, offset, chunk, 0, chunk.length);
+            futures.add(cache.set(getChunkKey(cacheKey, generation, ix),
+                    expiration,
+                    (Object) new CachedData(0, chunk, CachedData.MAX_SIZE),
+                    RawTranscoder.INSTANCE));
+        }
+        for (final Future<Boolean> future : futures) {
+            if (!await(future, deadline)) {
+                LOG.warn("Unable to write all " + chunks + " chunks of [" + cacheKey + "], leaving it alone.");
+                failedWrites.incrementAndGet();
+                return done(false);
+            }
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        final ChunkManifest manifest = new ChunkManifest(generation, chunks, bytes.length, encoded.getFlags(), crc.getValue());
+        chunkedWrites.incrementAndGet();
+        return send(cache, cacheKey, expiration, manifest, transcoder, onlyIfAbsent);
+    }
+
+    /**
+     * Reads and decodes the value the manifest read from the given key describes.
+     * @param transcoder the transcoder of the namespace, or null for Java serialization.
+     * @return the value, or null (a miss) if its chunks are not all there; the manifest is
+     * deleted then.
+     */
+    public Object read(final MemcachedClientIF cache,
+                       final String cacheKey,
+                       final ChunkManifest manifest,
+                       final Transcoder<Object> transcoder) {
+        final List<String> chunkKeys = new ArrayList<String>(manifest.getChunks());
+        for (int ix = 0; ix < manifest.getChunks(); ix++) {
+            chunkKeys.add(getChunkKey(cacheKey, manifest.getGeneration(), ix));
+        }
+        final Map<String, Object> chunks = cache.getBulk(chunkKeys, RawTranscoder.INSTANCE);
+
+        final byte[] bytes = new byte[manifest.getLength()];
+        int offset = 0;
+        for (final String chunkKey : chunkKeys) {
+            final Object chunk = chunks.get(chunkKey);
+            if (!(chunk instanceof CachedData)) {
+                return incomplete(cache, cacheKey, "chunk [" + chunkKey + "] is missing");
+            }
+            final byte[] data = ((CachedData) chunk).getData();
+            if (offset + data.length > bytes.length) {
+                return incomplete(cache, cacheKey, "its chunks are longer than " + bytes.length + " bytes");
+            }
+            System.arraycopy(data, 0, bytes, offset, data.length);
+            offset += data.length;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        if (offset != bytes.length || crc.getValue() != manifest.getChecksum()) {
+            return incomplete(cache, cacheKey, "its chunks do not match the manifest");
+        }
+
+        chunkedReads.incrementAndGet();
+        return (transcoder == null ? this.transcoder : transcoder).decode(
+                new CachedData(manifest.getFlags(), bytes, Math.max(bytes.length, CachedData.MAX_SIZE)));
+    }
+
+    /**
+     * Deletes the manifest, as its chunks will not come back; otherwise it would keep the
+     * value reloaded after this miss from being added in its place.
+     */
+    private Object incomplete(final MemcachedClientIF cache, final String cacheKey, final String reason) {
+        LOG.debug("Reading [" + cacheKey + "] as a miss and deleting it, because " + reason + ".");
+        incompleteReads.incrementAndGet();
+        cache.delete(cacheKey);
+        return null;
+    }
+
+    static String getChunkKey(final String cacheKey, final long generation, final int index) {
+        return cacheKey + CacheBase.SEPARATOR + "chunk" + Long.toString(generation, 36) + CacheBase.SEPARATOR + index;
+    }
+
+    private static Future<Boolean> send(final MemcachedClientIF cache,
+                                        final String cacheKey,
+                                        final int expiration,
+                                        final Object value,
+                                        final Transcoder<Object> transcoder,
+                                        final boolean onlyIfAbsent) {
+        if (transcoder == null) {
+            return onlyIfAbsent ? cache.add(cacheKey, expiration, value) : cache.set(cacheKey, expiration, value);
+        }
+        return onlyIfAbsent
+                ? cache.add(cacheKey, expiration, value, transcoder)
+                : cache.set(cacheKey, expiration, value, transcoder);
+    }
+
+    private static boolean await(final Future<Boolean> future, final long deadline) {
+        if (future == null) { return true; }
+        try {
+            final Boolean stored = future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            return stored == null || stored;
+        } catch (TimeoutException ex) {
+            return false;
+        } catch (ExecutionException ex) {
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static Future<Boolean> done(final boolean result) {
+        final FutureTask<Boolean> future = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() {
+                return result;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    /**
+     * @return the number of values stored in chunks.
+     */
+    public long getChunkedWrites() {
+        return chunkedWrites.get();
+    }
+
+    /**
+     * @return the number of values not stored, because some of their chunks could not be.
+     */
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    public long getChunkedReads() {
+        return chunkedReads.get();
+    }
+
+    /**
+     * @return the number of manifests read as misses, because their chunks were not all there.
+     */
+    public long getIncompleteReads() {
+        return incompleteReads.get();
+    }
+}
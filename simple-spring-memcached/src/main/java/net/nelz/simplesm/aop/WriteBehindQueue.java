@@ -0,0 +1,406 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Takes the cache writes of the <code>Update*Cache</code> annotations that ask for
+ * <code>writeBehind</code> off the caller's thread: the write is queued, and a small pool of
+ * daemon writer threads sends it to memcached later.
+ *
+ * While a write to a key is still queued, further writes to the same key replace its value
+ * instead of queueing again, so only the latest one is sent. Each key is always written by
+ * the same writer thread, so writes to one key are never reordered. Invalidations of a key
+ * <code>cancel</code> its queued write first, so that it cannot put the old value back.
+ *
+ * At most <code>capacity</code> keys are queued. What happens to a write to another key
+ * when the queue is full depends on the <code>overflowPolicy</code>:
+ * <ul>
+ * <li><code>DROP_OLDEST</code> drops the longest queued write to make room,</li>
+ * <li><code>BLOCK</code> waits for up to <code>blockMillis</code> for room, and drops the
+ *     new write if there is none by then,</li>
+ * <li><code>CALLER_RUNS</code> sends the write on the caller's thread instead.</li>
+ * </ul>
+ * The key of a dropped write is deleted, as memcached would otherwise keep serving the
+ * value that the write was meant to replace.
+ */
+public class WriteBehindQueue {
+    private static final Log LOG = LogFactory.getLog(WriteBehindQueue.class);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    public enum OverflowPolicy { DROP_OLDEST, BLOCK, CALLER_RUNS }
+
+    private MemcachedClientIF cache;
+    private int threads = 2;
+    private int capacity = 10000;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private long blockMillis = 100;
+    private long shutdownMillis = 5000;
+
+    private final ConcurrentMap<String, Write> pending = new ConcurrentHashMap<String, Write>();
+    private Semaphore room;
+    private Writer[] writers;
+    private volatile boolean running;
+    private volatile boolean stopped;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong drained = new AtomicLong();
+    private final AtomicLong lagMillis = new AtomicLong();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+
+    public void setCache(final MemcachedClientIF cache) {
+        this.cache = cache;
+    }
+
+    public void setThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1.");
+        }
+        this.threads = threads;
+    }
+
+    public void setCapacity(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1.");
+        }
+        this.capacity = capacity;
+    }
+
+    public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy must be set.");
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setBlockMillis(final long blockMillis) {
+        if (blockMillis < 0) {
+            throw new IllegalArgumentException("blockMillis must be 0 or greater.");
+        }
+        this.blockMillis = blockMillis;
+    }
+
+    /**
+     * @param shutdownMillis how long <code>shutdown()</code> waits for the queued writes to be sent.
+     */
+    public void setShutdownMillis(final long shutdownMillis) {
+        if (shutdownMillis < 0) {
+            throw new IllegalArgumentException("shutdownMillis must be 0 or greater.");
+        }
+        this.shutdownMillis = shutdownMillis;
+    }
+
+    /**
+     * Queues a write of the given value, or replaces the value of a write to the same
+     * key that is still queued. Once the queue was shut down, writes are sent right away.
+     * @return false if the write was dropped because the queue was full.
+     */
+    public boolean set(final String cacheKey, final int expiration, final Object value) {
+        return set(cacheKey, expiration, value, null);
+    }
+
+    /**
+     * Like <code>set(cacheKey, expiration, value)</code>, encoding the value with the given
+     * transcoder, or the client's own if it is null.
+     */
+    public boolean set(final String cacheKey, final int expiration, final Object value, final Transcoder<Object> transcoder) {
+        final Write write = new Write(cacheKey, expiration, value, transcoder);
+        if (!start()) {
+            write(write);
+            return true;
+        }
+        while (true) {
+            if (pending.replace(cacheKey, write) != null) {
+                coalesced.incrementAndGet();
+                return true;
+            }
+            if (!room.tryAcquire() && !makeRoom(write)) {
+                return overflowPolicy == OverflowPolicy.CALLER_RUNS;
+            }
+            if (pending.putIfAbsent(cacheKey, write) == null) {
+                queued.incrementAndGet();
+                final Writer writer = writerOf(cacheKey);
+                writer.keys.offer(cacheKey);
+                LockSupport.unpark(writer.thread);
+                return true;
+            }
+            // Somebody else queued a write to this key in the meantime: replace that one.
+            room.release();
+        }
+    }
+
+    /**
+     * Removes the queued write to the given key, if any, and waits until a write to it that
+     * a writer thread already took from the queue was handed to the client. A delete of the
+     * key sent afterwards is then sent after any write of the old value.
+     */
+    public void cancel(final String cacheKey) {
+        // Once shut down, the writers may still be sending what was queued.
+        if (!running && (!stopped || writers == null)) { return; }
+        if (pending.remove(cacheKey) != null) {
+            room.release();
+            cancelled.incrementAndGet();
+        }
+        final Writer writer = writerOf(cacheKey);
+        while (cacheKey.equals(writer.current)) {
+            // The client only queues the write, so this does not take long.
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Applies the overflow policy.
+     * @return true if there is room for the write now; false if it was dropped or already sent.
+     */
+    private boolean makeRoom(final Write write) {
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                for (int ix = 0; ix < writers.length; ix++) {
+                    final String oldest = writerOf(write.cacheKey, ix).keys.poll();
+                    if (oldest != null && pending.remove(oldest) != null) {
+                        // Take over the room of the dropped write.
+                        drop(oldest);
+                        return true;
+                    }
+                }
+                break;
+            case BLOCK:
+                try {
+                    if (room.tryAcquire(blockMillis, TimeUnit.MILLISECONDS)) { return true; }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            case CALLER_RUNS:
+                callerRuns.incrementAndGet();
+                write(write);
+                return false;
+        }
+        drop(write.cacheKey);
+        return false;
+    }
+
+    private void drop(final String cacheKey) {
+        dropped.incrementAndGet();
+        try {
+            cache.delete(cacheKey);
+        } catch (RuntimeException ex) {
+            LOG.warn("Unable to delete [" + cacheKey + "] after dropping its write.", ex);
+        }
+    }
+
+    private Writer writerOf(final String cacheKey) {
+        return writerOf(cacheKey, 0);
+    }
+
+    private Writer writerOf(final String cacheKey, final int offset) {
+        return writers[((cacheKey.hashCode() & Integer.MAX_VALUE) + offset) % writers.length];
+    }
+
+    /**
+     * Starts the writer threads, unless they are running already.
+     * @return false if the queue was shut down.
+     */
+    private boolean start() {
+        if (running) { return true; }
+        synchronized (this) {
+            if (stopped) { return false; }
+            if (!running) {
+                room = new Semaphore(capacity);
+                writers = new Writer[threads];
+                for (int ix = 0; ix < threads; ix++) {
+                    writers[ix] = new Writer();
+                    writers[ix].thread = new Thread(writers[ix], "simplesm-write-behind-" + (ix + 1));
+                    writers[ix].thread.setDaemon(true);
+                    writers[ix].thread.start();
+                }
+                running = true;
+            }
+            return true;
+        }
+    }
+
+    private void write(final Write write) {
+        try {
+            if (write.transcoder == null) {
+                cache.set(write.cacheKey, write.expiration, write.value);
+            } else {
+                cache.set(write.cacheKey, write.expiration, write.value, write.transcoder);
+            }
+            written.incrementAndGet();
+        } catch (RuntimeException ex) {
+            failed.incrementAndGet();
+            LOG.warn("Writing [" + write.cacheKey + "] behind failed.", ex);
+        }
+    }
+
+    /**
+     * Sends the writes that are still queued (waiting up to <code>shutdownMillis</code>),
+     * and stops the writer threads.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            stopped = true;
+            if (!running) { return; }
+            running = false;
+        }
+        final long deadline = System.currentTimeMillis() + shutdownMillis;
+        for (final Writer writer : writers) {
+            LockSupport.unpark(writer.thread);
+        }
+        for (final Writer writer : writers) {
+            try {
+                writer.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!pending.isEmpty()) {
+            LOG.warn("Shut down with " + pending.size() + " writes still queued.");
+        }
+    }
+
+    /**
+     * @return the number of keys with a queued write.
+     */
+    public int getDepth() {
+        return pending.size();
+    }
+
+    public long getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of writes that replaced the value of a write still in the queue.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of writes that were dropped, and their keys deleted, because the
+     * queue was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of queued writes removed by an invalidation of their key.
+     */
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * @return the number of writes sent on the caller's thread because the queue was full.
+     */
+    public long getCallerRuns() {
+        return callerRuns.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the average time from queueing a write until it was sent, in milliseconds.
+     */
+    public double getAverageLagMillis() {
+        final long count = drained.get();
+        return count == 0 ? 0.0 : (double) lagMillis.get() / count;
+    }
+
+    public long getMaxLagMillis() {
+        return maxLagMillis.get();
+    }
+
+    private class Writer implements Runnable {
+        final ConcurrentLinkedQueue<String> keys = new ConcurrentLinkedQueue<String>();
+        // The key being written; set before its write is taken from the queue.
+        volatile String current;
+        Thread thread;
+
+        public void run() {
+            while (true) {
+                final String cacheKey = keys.poll();
+                if (cacheKey == null) {
+                    if (stopped) { return; }
+                    LockSupport.parkNanos(IDLE_NANOS);
+                    continue;
+                }
+                current = cacheKey;
+                final Write write = pending.remove(cacheKey);
+                if (write == null) {
+                    current = null;
+                    continue;
+                }
+                room.release();
+
+                final long lag = System.currentTimeMillis() - write.queuedAt;
+                drained.incrementAndGet();
+                lagMillis.addAndGet(lag);
+                long max;
+                while (lag > (max = maxLagMillis.get()) && !maxLagMillis.compareAndSet(max, lag)) {
+                    // Retry.
+                }
+                write(write);
+                current = null;
+            }
+        }
+    }
+
+    private static class Write {
+        final String cacheKey;
+        final int expiration;
+        final Object value;
+        final Transcoder<Object> transcoder;
+        final long queuedAt = System.currentTimeMillis();
+
+        Write(final String cacheKey, final int expiration, final Object value, final Transcoder<Object> transcoder) {
+            this.cacheKey = cacheKey;
+            this.expiration = expiration;
+            this.value = value;
+            this.transcoder = transcoder;
+        }
+    }
+}
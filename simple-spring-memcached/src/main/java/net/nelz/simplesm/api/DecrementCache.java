@@ -0,0 +1,71 @@
+package net.nelz.simplesm.api;
+
+import java.lang.annotation.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Subtracts <code>by()</code> from a counter in the cache, with memcached's atomic
+ * <code>decr</code>, after the annotated method returned. Just like memcached itself, the
+ * counter never goes below 0. Otherwise it works like <code>IncrementCache</code>.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface DecrementCache {
+
+	/**
+	 * A namespace that is added to the key as it is stored in the distributed cache.
+	 * This allows differing object that may have the same ID to coexist.
+	 * This value must be assigned.
+	 * @return the namespace for the objects cached in the given method.
+	 */
+	String namespace() default AnnotationConstants.DEFAULT_STRING;
+
+	/**
+	 * The expiration of a counter this annotation creates, passed along to memcached as
+	 * described for <code>ReadThroughSingleCache</code>. Changing an existing counter does
+	 * not change its expiration.
+	 * @return the expiration in seconds, or 0 for none.
+	 */
+	int expiration() default 0;
+
+	/**
+	 * @return how much to decrement the counter by on each call; at least 1.
+	 */
+	int by() default 1;
+
+	/**
+	 * @return the value a counter that is not in the cache yet starts from.
+	 */
+	long initialValue() default 0;
+
+	/**
+	 * When true, the changes are added up in memory and sent to memcached periodically by
+	 * the <code>CounterBatcher</code>, one <code>incr</code> or <code>decr</code> per counter,
+	 * instead of on every call. This cuts the writes to hot counters, at the price of
+	 * reads lagging behind by up to one flush interval, and of losing the changes not
+	 * sent yet if the JVM dies. Without a <code>CounterBatcher</code> configured on the
+	 * advice, changes are sent right away as usual.
+	 * @return whether to batch the changes locally.
+	 */
+	boolean batched() default false;
+}
@@ -44,4 +44,12 @@ public @interface InvalidateAssignCache {
      * @return the assigned key for the given data
      */
     String assignedKey() default AnnotationConstants.DEFAULT_STRING;
+
+    /**
+     * When greater than 0, the invalidated entry is overwritten with a tombstone living this many
+     * seconds instead of being deleted.
+     * @see InvalidateSingleCache#tombstoneExpiration()
+     * @return the expiration of the tombstone in seconds, or 0 to delete.
+     */
+    int tombstoneExpiration() default 0;
 }
@@ -36,4 +36,12 @@ public @interface InvalidateMultiCache {
      * @return the namespace for the objects cached in the given method.
      */
     String namespace() default AnnotationConstants.DEFAULT_STRING;
+
+    /**
+     * When greater than 0, each invalidated entry is overwritten with a tombstone living this many
+     * seconds instead of being deleted.
+     * @see InvalidateSingleCache#tombstoneExpiration()
+     * @return the expiration of the tombstone in seconds, or 0 to delete.
+     */
+    int tombstoneExpiration() default 0;
 }
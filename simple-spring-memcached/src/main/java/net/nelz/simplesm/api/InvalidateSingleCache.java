@@ -36,4 +36,14 @@ public @interface InvalidateSingleCache {
      * @return the namespace for the objects cached in the given method.
      */
     String namespace() default AnnotationConstants.DEFAULT_STRING;
+
+    /**
+     * When greater than 0, the invalidated entries are replaced by a tombstone that lives
+     * this many seconds, instead of being deleted. Read-throughs only add missing entries,
+     * so a read-through that loaded a value before the invalidation cannot cache it after
+     * the invalidation. It should be a bit longer than the target method of the matching
+     * read-through takes to load.
+     * @return the expiration of the tombstone in seconds, or 0 to delete entries.
+     */
+    int tombstoneExpiration() default 0;
 }
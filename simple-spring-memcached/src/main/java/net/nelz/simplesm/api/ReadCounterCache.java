@@ -0,0 +1,51 @@
+package net.nelz.simplesm.api;
+
+import java.lang.annotation.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Reads a counter maintained by <code>IncrementCache</code> and <code>DecrementCache</code>.
+ * On a miss, the annotated method is called, and the number it returns is stored as the
+ * counter, unless the counter was created by someone else in the meantime. The method must
+ * return a <code>long</code> or an <code>int</code> (or their wrappers); a null result is
+ * not cached.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ReadCounterCache {
+
+	/**
+	 * A namespace that is added to the key as it is stored in the distributed cache.
+	 * This allows differing object that may have the same ID to coexist.
+	 * This value must be assigned.
+	 * @return the namespace for the objects cached in the given method.
+	 */
+	String namespace() default AnnotationConstants.DEFAULT_STRING;
+
+	/**
+	 * The expiration of a counter stored after a miss, passed along to memcached as
+	 * described for <code>ReadThroughSingleCache</code>.
+	 * @return the expiration in seconds, or 0 for none.
+	 */
+	int expiration() default 0;
+}
@@ -62,4 +62,66 @@ public @interface ReadThroughAssignCache {
      */
     int expiration() default 0;
 
+    /**
+     * When greater than 0, entries older than this many seconds are still returned right
+     * away, while the method is called again in the background (once per key at a time)
+     * to rewrite the entry. Must be smaller than <code>expiration()</code>, unless that is 0.
+     *
+     * Values are then stored together with the time they were loaded, so entries written
+     * with a soft expiration can only be read back by annotations that have one as well.
+     * @return the soft expiration in seconds, or 0 to only use the hard expiration.
+     */
+    int softExpiration() default 0;
+
+    /**
+     * When greater than 0, entries are recomputed a little before they expire, at random:
+     * every read recomputes with a probability that grows as the expiration comes closer,
+     * and the more so the longer the method took to load the entry ("XFetch"). This spreads
+     * the reloads of a hot key over time instead of having all readers miss at once.
+     * 1.0 is a good start; larger values recompute earlier. Requires an <code>expiration()</code>.
+     * @return the weight of the early recompute, or 0 to only recompute after expiration.
+     */
+    double earlyRecomputeBeta() default 0;
+
+    /**
+     * When greater than 0, a missing value is loaded by only one node at a time: the node
+     * that wins a lease (taken with memcached's <code>add</code>) calls the method, the others
+     * poll the cache for its result for up to <code>leaseWaitMillis()</code> and only then
+     * call the method themselves.
+     *
+     * The value is the number of seconds after which an unreleased lease (e.g. of a crashed
+     * node) expires. It should be a bit longer than the method usually takes.
+     * @return the expiration of the lease in seconds, or 0 to not take leases.
+     */
+    int leaseExpiration() default 0;
+
+    /**
+     * How long a node that lost the lease waits for the value to appear in the cache.
+     * Only used when <code>leaseExpiration()</code> is greater than 0.
+     * @return the time to wait in milliseconds.
+     */
+    int leaseWaitMillis() default 1000;
+
+    /**
+     * When true, every hit pushes the expiration of the entry back to <code>expiration()</code>
+     * seconds from now, rate limited per key. Invalid in namespaces that are written to.
+     * @see ReadThroughSingleCache#slidingExpiration()
+     * @return whether hits extend the expiration.
+     */
+    boolean slidingExpiration() default false;
+
+    /**
+     * When greater than 0, null results are cached for this many seconds instead of
+     * <code>expiration()</code>.
+     * @see ReadThroughSingleCache#negativeExpiration()
+     * @return the expiration of null results in seconds, or 0 to use <code>expiration()</code>.
+     */
+    int negativeExpiration() default 0;
+
+    /**
+     * When true, values too large for a single memcached item are stored in chunks.
+     * @see ReadThroughSingleCache#chunked()
+     * @return whether large values are stored in chunks.
+     */
+    boolean chunked() default false;
 }
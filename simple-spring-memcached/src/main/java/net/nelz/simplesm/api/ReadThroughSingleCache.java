@@ -51,4 +51,80 @@ public @interface ReadThroughSingleCache {
 	 * @return
 	 */
 	int expiration() default 0;
+
+	/**
+	 * When greater than 0, entries older than this many seconds are still returned right
+	 * away, while the method is called again in the background (once per key at a time)
+	 * to rewrite the entry. Must be smaller than <code>expiration()</code>, unless that is 0.
+	 *
+	 * Values are then stored together with the time they were loaded, so entries written
+	 * with a soft expiration can only be read back by annotations that have one as well.
+	 * @return the soft expiration in seconds, or 0 to only use the hard expiration.
+	 */
+	int softExpiration() default 0;
+
+	/**
+	 * When greater than 0, entries are recomputed a little before they expire, at random:
+	 * every read recomputes with a probability that grows as the expiration comes closer,
+	 * and the more so the longer the method took to load the entry ("XFetch"). This spreads
+	 * the reloads of a hot key over time instead of having all readers miss at once.
+	 * 1.0 is a good start; larger values recompute earlier. Requires an <code>expiration()</code>.
+	 * @return the weight of the early recompute, or 0 to only recompute after expiration.
+	 */
+	double earlyRecomputeBeta() default 0;
+
+	/**
+	 * When greater than 0, a missing value is loaded by only one node at a time: the node
+	 * that wins a lease (taken with memcached's <code>add</code>) calls the method, the others
+	 * poll the cache for its result for up to <code>leaseWaitMillis()</code> and only then
+	 * call the method themselves.
+	 *
+	 * The value is the number of seconds after which an unreleased lease (e.g. of a crashed
+	 * node) expires. It should be a bit longer than the method usually takes.
+	 * @return the expiration of the lease in seconds, or 0 to not take leases.
+	 */
+	int leaseExpiration() default 0;
+
+	/**
+	 * How long a node that lost the lease waits for the value to appear in the cache.
+	 * Only used when <code>leaseExpiration()</code> is greater than 0.
+	 * @return the time to wait in milliseconds.
+	 */
+	int leaseWaitMillis() default 1000;
+
+	/**
+	 * When true, every hit pushes the expiration of the entry back to <code>expiration()</code>
+	 * seconds from now, so that entries stay cached for as long as they are read. To keep
+	 * reads from turning into writes, each key is touched at most once per quarter of the
+	 * expiration by each JVM. Requires an <code>expiration()</code> of at most 30 days, and
+	 * cannot be combined with <code>earlyRecomputeBeta()</code>, which relies on a fixed expiration.
+	 * This memcached client has no <code>touch</code>: an entry is touched by writing back the
+	 * value that was read, which undoes any write made to the key in between. So this cannot be
+	 * used in a namespace that is also updated, invalidated, counted in or refreshed in the
+	 * background (<code>softExpiration()</code>): such a method is rejected as invalid, like
+	 * any other invalid annotation (see <code>CacheAnnotationScanner</code>). Writes made by
+	 * other applications sharing the namespace still race with the touches.
+	 * @return whether hits extend the expiration.
+	 */
+	boolean slidingExpiration() default false;
+
+	/**
+	 * When greater than 0, null results are cached for this many seconds instead of
+	 * <code>expiration()</code>, so that a missing entity that gets created shows up sooner,
+	 * without shortening the expiration of the values that were found. At most 30 days.
+	 * @return the expiration of null results in seconds, or 0 to use <code>expiration()</code>.
+	 */
+	int negativeExpiration() default 0;
+
+	/**
+	 * When true, values too large for a single memcached item are split into chunks stored
+	 * under keys of their own, with a manifest under the key that readers reassemble them
+	 * from; a value whose chunks are not all there reads as a miss. Values that fit are stored
+	 * as usual. A transcoder of the namespace must allow values of that size (see
+	 * <code>CompactTranscoder.setMaxSize</code>). Cannot be combined with
+	 * <code>slidingExpiration()</code>, which would only extend the manifest.
+	 * @see net.nelz.simplesm.aop.ValueChunker
+	 * @return whether large values are stored in chunks.
+	 */
+	boolean chunked() default false;
 }
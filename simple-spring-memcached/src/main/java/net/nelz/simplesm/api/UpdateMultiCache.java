@@ -50,4 +50,15 @@ public @interface UpdateMultiCache {
 	 * @return
 	 */
 	int expiration() default 0;
+
+	/**
+	 * When true, the cache write is queued and sent by a background writer thread, so
+	 * the method returns without waiting for memcached. Queued writes to the same key are
+	 * coalesced, keeping the latest. Needs a <code>WriteBehindQueue</code> configured on
+	 * the advice; without one the write is sent right away as usual. An invalidation of
+	 * the key cancels its queued write, and a write dropped because the queue is full
+	 * deletes the key.
+	 * @return whether to write to the cache in the background.
+	 */
+	boolean writeBehind() default false;
 }
@@ -51,4 +51,37 @@ public @interface UpdateSingleCache {
 	 * @return
 	 */
 	int expiration() default 0;
+
+	/**
+	 * When true, the cache write is queued and sent by a background writer thread, so
+	 * the method returns without waiting for memcached. Queued writes to the same key are
+	 * coalesced, keeping the latest. Needs a <code>WriteBehindQueue</code> configured on
+	 * the advice; without one the write is sent right away as usual. An invalidation of
+	 * the key cancels its queued write, and a write dropped because the queue is full
+	 * deletes the key.
+	 * @return whether to write to the cache in the background.
+	 */
+	boolean writeBehind() default false;
+
+	/**
+	 * When greater than 0, the value is only written if it is newer than the one already in
+	 * the cache, so that a slow updater cannot overwrite a newer value with an older one.
+	 * Versions come from the method of the value's class annotated with
+	 * <code>CacheVersionMethod</code>; the write is a <code>gets</code>/<code>cas</code> round
+	 * trip, retried up to this many times when another node writes the key in between. If
+	 * the retries run out, the key is deleted instead. Values without a version are simply set.
+	 *
+	 * A <code>cas</code> cannot carry an expiration with this memcached client, so this
+	 * requires an <code>expiration()</code> of 0, and cannot be combined with <code>writeBehind()</code>.
+	 * @return the number of retries, or 0 to always overwrite the cached value.
+	 */
+	int casRetries() default 0;
+
+	/**
+	 * When true, values too large for a single memcached item are stored in chunks.
+	 * Cannot be combined with <code>writeBehind()</code> or <code>casRetries()</code>.
+	 * @see ReadThroughSingleCache#chunked()
+	 * @return whether large values are stored in chunks.
+	 */
+	boolean chunked() default false;
 }
@@ -1,5 +1,6 @@
 package net.nelz.simplesm.config;
 
+import net.nelz.simplesm.transcoders.*;
 import net.spy.memcached.*;
 
 import java.io.*;
@@ -42,7 +43,12 @@ public class MemcachedClientFactory {
 		final List<InetSocketAddress> addrs = AddrUtil.getAddresses(this.bean.getNodeList());
 		final ConnectionFactory connectionFactory = this.bean.isConsistentHashing() ?
 				new KetamaConnectionFactory() : new DefaultConnectionFactory();
-		final MemcachedClientIF client = new MemcachedClient(connectionFactory, addrs);
+		final MemcachedClient client = new MemcachedClient(connectionFactory, addrs);
+		if (this.bean.isCompactNegativeResults()) {
+			final NegativeNullTranscoder transcoder = new NegativeNullTranscoder();
+			transcoder.setTranscoder(client.getTranscoder());
+			client.setTranscoder(transcoder);
+		}
 		return client;
 	}
 }
@@ -24,6 +24,7 @@ THE SOFTWARE.
 public class MemcachedConnectionBean {
 	private String nodeList;
 	private boolean consistentHashing;
+	private boolean compactNegativeResults;
 
 	public String getNodeList() {
 		return nodeList;
@@ -40,4 +41,17 @@ public class MemcachedConnectionBean {
 	public void setConsistentHashing(final boolean consistentHashing) {
 		this.consistentHashing = consistentHashing;
 	}
+
+	public boolean isCompactNegativeResults() {
+		return compactNegativeResults;
+	}
+
+	/**
+	 * @param compactNegativeResults whether the client stores cached null results as empty
+	 * values, through a <code>NegativeNullTranscoder</code>, instead of serializing them.
+	 * Only turn it on once every node reading the cache runs a version that knows them.
+	 */
+	public void setCompactNegativeResults(final boolean compactNegativeResults) {
+		this.compactNegativeResults = compactNegativeResults;
+	}
 }
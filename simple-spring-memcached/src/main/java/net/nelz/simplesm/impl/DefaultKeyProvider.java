@@ -1,9 +1,8 @@
 package net.nelz.simplesm.impl;
 
 import net.nelz.simplesm.api.KeyProvider;
-import net.nelz.simplesm.api.CacheKeyMethod;
-import net.nelz.simplesm.exceptions.InvalidAnnotationException;
 import net.nelz.simplesm.aop.CacheKeyMethodStore;
+import net.nelz.simplesm.aop.CacheKeyAccessor;
 
 import java.util.List;
 import java.util.ArrayList;
@@ -44,8 +43,7 @@ public class DefaultKeyProvider implements KeyProvider {
             throw new InvalidParameterException("keyObject must be defined");
         }
         try {
-            final Method keyMethod = getKeyMethod(keyObject);
-            return generateObjectId(keyMethod, keyObject);
+            return CacheKeyAccessor.forObject(methodStore, keyObject).getObjectId(keyObject);
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         }
@@ -63,52 +61,6 @@ public class DefaultKeyProvider implements KeyProvider {
     }
 
     Method getKeyMethod(final Object keyObject) throws NoSuchMethodException {
-        final Method storedMethod = methodStore.find(keyObject.getClass());
-        if (storedMethod != null) { return storedMethod; }
-        final Method[] methods = keyObject.getClass().getDeclaredMethods();
-        Method targetMethod = null;
-        for (final Method method : methods) {
-            if (method != null && method.getAnnotation(CacheKeyMethod.class) != null) {
-                if (method.getParameterTypes().length > 0) {
-                    throw new InvalidAnnotationException(String.format(
-                            "Method [%s] must have 0 arguments to be annotated with [%s]",
-                            method.toString(),
-                            CacheKeyMethod.class.getName()));
-                }
-                if (!String.class.equals(method.getReturnType())) {
-                    throw new InvalidAnnotationException(String.format(
-                            "Method [%s] must return a String to be annotated with [%s]",
-                            method.toString(),
-                            CacheKeyMethod.class.getName()));
-                }
-                if (targetMethod != null) {
-                    throw new InvalidAnnotationException(String.format(
-                            "Class [%s] should have only one method annotated with [%s]. See [%s] and [%s]",
-                            keyObject.getClass().getName(),
-                            CacheKeyMethod.class.getName(),
-                            targetMethod.getName(),
-                            method.getName()));
-                }
-                targetMethod = method;
-            }
-        }
-
-        if (targetMethod == null) {
-            targetMethod = keyObject.getClass().getMethod("toString", null);
-        }
-
-        methodStore.add(keyObject.getClass(), targetMethod);
-
-        return targetMethod;
+        return CacheKeyAccessor.forObject(methodStore, keyObject).getMethod();
     }
-
-    String generateObjectId(final Method keyMethod, final Object keyObject) throws Exception {
-        final String objectId = (String) keyMethod.invoke(keyObject, null);
-        if (objectId == null || objectId.length() < 1) {
-            throw new RuntimeException("Got an empty key value from " + keyMethod.getName());
-        }
-        return objectId;
-    }
-
-
 }
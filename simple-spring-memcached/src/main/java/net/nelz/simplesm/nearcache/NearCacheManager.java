@@ -0,0 +1,45 @@
+package net.nelz.simplesm.nearcache;
+
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Holds the near caches by namespace. A single instance is shared by all of the advices,
+ * so that updates and invalidations on this JVM reach the same caches the reads use.
+ * Namespaces without an entry are not near-cached.
+ */
+public class NearCacheManager {
+    private Map<String, NearCache> caches = new HashMap<String, NearCache>();
+
+    public void setCaches(final Map<String, NearCache> caches) {
+        this.caches = new HashMap<String, NearCache>(caches);
+    }
+
+    public Map<String, NearCache> getCaches() {
+        return Collections.unmodifiableMap(caches);
+    }
+
+    public NearCache getCache(final String namespace) {
+        return caches.get(namespace);
+    }
+}
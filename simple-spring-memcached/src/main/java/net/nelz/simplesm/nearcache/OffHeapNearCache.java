@@ -0,0 +1,473 @@
+package net.nelz.simplesm.nearcache;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * A <code>NearCache</code> that keeps its entries outside of the Java heap, so that it can
+ * be sized in gigabytes without lengthening GC pauses.
+ *
+ * Values are encoded with a <code>Transcoder</code> (by default the same serializing
+ * transcoder the memcached client uses) and appended, together with their key, to a ring of
+ * fixed-size direct <code>ByteBuffer</code> slabs. The entries are located through an
+ * open-addressing index made of two primitive arrays that are sized once, up front, from
+ * <code>maxEntries</code>; nothing on the heap grows with the number of entries.
+ *
+ * When the next entry does not fit into the remaining <code>capacityBytes</code>, the oldest
+ * slab is dropped as a whole and reused. Removed and overwritten entries leave dead bytes behind
+ * in their slab until it is reused; <code>getFragmentation()</code> reports that share.
+ *
+ * Every <code>get</code> decodes a new copy of the value, so callers may modify what they get.
+ */
+public class OffHeapNearCache implements NearCache {
+    private static final Log LOG = LogFactory.getLog(OffHeapNearCache.class);
+
+    // hash, key length, value length, transcoder flags, expiry
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8;
+
+    private long capacityBytes = 64L * 1024 * 1024;
+    private int slabBytes = 4 * 1024 * 1024;
+    private int maxEntries = 100000;
+    private long ttlMillis = 5000;
+    private Transcoder<Object> transcoder = new SerializingTranscoder();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Everything below is guarded by the lock, and allocated on the first put.
+    private ByteBuffer[] slabs;
+    private int[] slabEnd;
+    private int writeSlab;
+    private int[] indexHashes;
+    private long[] indexAddresses;
+    private int indexMask;
+    private int entries;
+    private long usedBytes;
+    private long liveBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    public void setCapacityBytes(final long capacityBytes) {
+        if (capacityBytes < 1) {
+            throw new IllegalArgumentException("capacityBytes must be at least 1.");
+        }
+        this.capacityBytes = capacityBytes;
+    }
+
+    public void setSlabBytes(final int slabBytes) {
+        if (slabBytes <= HEADER_BYTES) {
+            throw new IllegalArgumentException("slabBytes must be larger than " + HEADER_BYTES + ".");
+        }
+        this.slabBytes = slabBytes;
+    }
+
+    public void setMaxEntries(final int maxEntries) {
+        if (maxEntries < 1 || maxEntries > (1 << 29)) {
+            throw new IllegalArgumentException("maxEntries must be between 1 and " + (1 << 29) + ".");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    public void setTtlMillis(final long ttlMillis) {
+        if (ttlMillis < 1) {
+            throw new IllegalArgumentException("ttlMillis must be at least 1.");
+        }
+        this.ttlMillis = ttlMillis;
+    }
+
+    public void setTranscoder(final Transcoder<Object> transcoder) {
+        if (transcoder == null) {
+            throw new IllegalArgumentException("transcoder must not be null.");
+        }
+        this.transcoder = transcoder;
+    }
+
+    public Object get(final String key) {
+        if (key == null) { return null; }
+        final byte[] keyBytes = toBytes(key);
+        final int hash = hash(keyBytes);
+        final int flags;
+        final byte[] data;
+        lock.readLock().lock();
+        try {
+            final int slot = slabs == null ? -1 : findSlot(hash, keyBytes);
+            if (slot < 0) {
+                misses.incrementAndGet();
+                return null;
+            }
+            final ByteBuffer buffer = slabs[slabOf(indexAddresses[slot])].duplicate();
+            buffer.position(offsetOf(indexAddresses[slot]) + 4);
+            final int keyLength = buffer.getInt();
+            final int valueLength = buffer.getInt();
+            flags = buffer.getInt();
+            if (buffer.getLong() <= System.currentTimeMillis()) {
+                // Expired entries are left for the slab to be recycled.
+                misses.incrementAndGet();
+                return null;
+            }
+            buffer.position(buffer.position() + keyLength);
+            data = new byte[valueLength];
+            buffer.get(data);
+        } finally {
+            lock.readLock().unlock();
+        }
+        hits.incrementAndGet();
+        return transcoder.decode(new CachedData(flags, data, data.length));
+    }
+
+    public void put(final String key, final Object value) {
+        if (key == null || value == null) { return; }
+        final CachedData encoded;
+        try {
+            encoded = transcoder.encode(value);
+        } catch (RuntimeException ex) {
+            LOG.debug("Unable to encode value for near cache key [" + key + "].", ex);
+            rejections.incrementAndGet();
+            return;
+        }
+        final byte[] keyBytes = toBytes(key);
+        final byte[] data = encoded.getData();
+        final int size = HEADER_BYTES + keyBytes.length + data.length;
+        if (size > slabBytes) {
+            rejections.incrementAndGet();
+            return;
+        }
+        final int hash = hash(keyBytes);
+        lock.writeLock().lock();
+        try {
+            if (slabs == null) {
+                allocate();
+            }
+            final int existing = findSlot(hash, keyBytes);
+            if (existing >= 0) {
+                removeSlot(existing);
+            }
+            while (entries >= maxEntries && evictOldestSlab()) {
+                // Keep dropping slabs until the index has room.
+            }
+            if (slabEnd[writeSlab] + size > slabBytes) {
+                writeSlab = (writeSlab + 1) % slabs.length;
+                dropSlab(writeSlab);
+            }
+
+            final int offset = slabEnd[writeSlab];
+            final ByteBuffer buffer = slabs[writeSlab].duplicate();
+            buffer.position(offset);
+            buffer.putInt(hash);
+            buffer.putInt(keyBytes.length);
+            buffer.putInt(data.length);
+            buffer.putInt(encoded.getFlags());
+            buffer.putLong(System.currentTimeMillis() + ttlMillis);
+            buffer.put(keyBytes);
+            buffer.put(data);
+            slabEnd[writeSlab] += size;
+            usedBytes += size;
+            liveBytes += size;
+            insertSlot(hash, address(writeSlab, offset));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(final String key) {
+        if (key == null) { return; }
+        final byte[] keyBytes = toBytes(key);
+        final int hash = hash(keyBytes);
+        lock.writeLock().lock();
+        try {
+            if (slabs == null) { return; }
+            final int slot = findSlot(hash, keyBytes);
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            if (slabs == null) { return; }
+            for (int ix = 0; ix < slabs.length; ix++) {
+                slabEnd[ix] = 0;
+            }
+            for (int ix = 0; ix < indexHashes.length; ix++) {
+                indexHashes[ix] = 0;
+            }
+            writeSlab = 0;
+            entries = 0;
+            usedBytes = 0;
+            liveBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of direct memory bytes reserved by this cache (0 until the first put).
+     */
+    public long getReservedBytes() {
+        lock.readLock().lock();
+        try {
+            return slabs == null ? 0 : (long) slabs.length * slabBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes held by live entries, including their keys and headers.
+     */
+    public long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            return liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the share (0.0 to 1.0) of <code>capacityBytes</code> held by live entries.
+     */
+    public double getOccupancy() {
+        lock.readLock().lock();
+        try {
+            return (double) liveBytes / capacityBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the share (0.0 to 1.0) of the written bytes that belong to removed or
+     * overwritten entries and cannot be reused until their slab is recycled.
+     */
+    public double getFragmentation() {
+        lock.readLock().lock();
+        try {
+            return usedBytes == 0 ? 0.0 : (double) (usedBytes - liveBytes) / usedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of values that were not cached, because they could not be
+     * encoded or would not fit into a single slab.
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    // Must hold the write lock.
+    private void allocate() {
+        final long slabCount = Math.max(1, (capacityBytes + slabBytes - 1) / slabBytes);
+        if (slabCount > Integer.MAX_VALUE) {
+            throw new IllegalStateException("capacityBytes requires too many slabs of slabBytes.");
+        }
+        slabs = new ByteBuffer[(int) slabCount];
+        for (int ix = 0; ix < slabs.length; ix++) {
+            slabs[ix] = ByteBuffer.allocateDirect(slabBytes);
+        }
+        slabEnd = new int[slabs.length];
+
+        // Keep the load factor at or below one half, so that probe sequences stay short.
+        int slots = 2;
+        while (slots < 2 * maxEntries) {
+            slots <<= 1;
+        }
+        indexHashes = new int[slots];
+        indexAddresses = new long[slots];
+        indexMask = slots - 1;
+    }
+
+    // Must hold the write lock. The slab after the one being written is the oldest; when
+    // every entry lives in the slab being written, that one is dropped and rewritten.
+    private boolean evictOldestSlab() {
+        for (int step = 1; step <= slabs.length; step++) {
+            final int slab = (writeSlab + step) % slabs.length;
+            if (slabEnd[slab] > 0) {
+                dropSlab(slab);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Must hold the write lock.
+    private void dropSlab(final int slab) {
+        final ByteBuffer buffer = slabs[slab].duplicate();
+        int offset = 0;
+        while (offset < slabEnd[slab]) {
+            buffer.position(offset);
+            final int hash = buffer.getInt();
+            final int keyLength = buffer.getInt();
+            final int valueLength = buffer.getInt();
+            final int slot = findAddress(hash, address(slab, offset));
+            if (slot >= 0) {
+                removeSlot(slot);
+                evictions.incrementAndGet();
+            }
+            offset += HEADER_BYTES + keyLength + valueLength;
+        }
+        usedBytes -= slabEnd[slab];
+        slabEnd[slab] = 0;
+    }
+
+    private int findSlot(final int hash, final byte[] keyBytes) {
+        int slot = hash & indexMask;
+        while (indexHashes[slot] != 0) {
+            if (indexHashes[slot] == hash && keyEquals(indexAddresses[slot], keyBytes)) {
+                return slot;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+        return -1;
+    }
+
+    private int findAddress(final int hash, final long address) {
+        int slot = hash & indexMask;
+        while (indexHashes[slot] != 0) {
+            if (indexAddresses[slot] == address) {
+                return slot;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(final long address, final byte[] keyBytes) {
+        final ByteBuffer slab = slabs[slabOf(address)];
+        final int offset = offsetOf(address);
+        if (slab.getInt(offset + 4) != keyBytes.length) { return false; }
+        final int keyStart = offset + HEADER_BYTES;
+        for (int ix = 0; ix < keyBytes.length; ix++) {
+            if (slab.get(keyStart + ix) != keyBytes[ix]) { return false; }
+        }
+        return true;
+    }
+
+    // Must hold the write lock.
+    private void insertSlot(final int hash, final long address) {
+        int slot = hash & indexMask;
+        while (indexHashes[slot] != 0) {
+            slot = (slot + 1) & indexMask;
+        }
+        indexHashes[slot] = hash;
+        indexAddresses[slot] = address;
+        entries++;
+    }
+
+    // Must hold the write lock. Shifts the rest of the probe sequence back instead of
+    // leaving a tombstone, so lookups never have to skip deleted slots.
+    private void removeSlot(int slot) {
+        final long address = indexAddresses[slot];
+        final ByteBuffer slab = slabs[slabOf(address)];
+        final int offset = offsetOf(address);
+        final int size = HEADER_BYTES + slab.getInt(offset + 4) + slab.getInt(offset + 8);
+        liveBytes -= size;
+        entries--;
+
+        int next = slot;
+        while (true) {
+            next = (next + 1) & indexMask;
+            if (indexHashes[next] == 0) { break; }
+            final int home = indexHashes[next] & indexMask;
+            final boolean movable = slot <= next
+                    ? (home <= slot || home > next)
+                    : (home <= slot && home > next);
+            if (movable) {
+                indexHashes[slot] = indexHashes[next];
+                indexAddresses[slot] = indexAddresses[next];
+                slot = next;
+            }
+        }
+        indexHashes[slot] = 0;
+    }
+
+    private static long address(final int slab, final int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int slabOf(final long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(final long address) {
+        return (int) address;
+    }
+
+    private static int hash(final byte[] keyBytes) {
+        int hash = 0;
+        for (final byte b : keyBytes) {
+            hash = 31 * hash + b;
+        }
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        // 0 marks an empty index slot.
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static byte[] toBytes(final String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
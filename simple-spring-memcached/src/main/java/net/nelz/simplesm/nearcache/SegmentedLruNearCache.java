@@ -0,0 +1,230 @@
+package net.nelz.simplesm.nearcache;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * A bounded, on-heap <code>NearCache</code> with segmented LRU eviction.
+ *
+ * New entries start in the probationary segment. Reads never take a lock: they only look
+ * the entry up in a <code>ConcurrentHashMap</code> and set its "referenced" bit. The bits
+ * are acted upon when a write pushes the cache over <code>maxEntries</code>: a referenced
+ * probationary entry is promoted to the protected segment instead of being evicted, and a
+ * protected entry must go unreferenced for a full pass before it is demoted again. Entries
+ * that were only read once are therefore evicted first, and a burst of one-off keys cannot
+ * flush out the frequently used ones.
+ *
+ * Values are handed out as-is (not copied), so they must not be modified by callers.
+ */
+public class SegmentedLruNearCache implements NearCache {
+    private int maxEntries = 10000;
+    private int protectedPercent = 80;
+    private long ttlMillis = 5000;
+
+    private final ConcurrentMap<String, Node> map = new ConcurrentHashMap<String, Node>();
+    private final Object lock = new Object();
+    private final Node probation = new Node(null, null, 0);
+    private final Node protect = new Node(null, null, 0);
+    private int probationSize = 0;
+    private int protectedSize = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public SegmentedLruNearCache() {
+        probation.prev = probation.next = probation;
+        protect.prev = protect.next = protect;
+    }
+
+    public void setMaxEntries(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1.");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    public void setProtectedPercent(final int protectedPercent) {
+        if (protectedPercent < 0 || protectedPercent > 100) {
+            throw new IllegalArgumentException("protectedPercent must be between 0 and 100.");
+        }
+        this.protectedPercent = protectedPercent;
+    }
+
+    public void setTtlMillis(final long ttlMillis) {
+        if (ttlMillis < 1) {
+            throw new IllegalArgumentException("ttlMillis must be at least 1.");
+        }
+        this.ttlMillis = ttlMillis;
+    }
+
+    public Object get(final String key) {
+        final Node node = map.get(key);
+        if (node == null || node.expiresAt <= System.currentTimeMillis()) {
+            // Expired entries are left for the next write to replace or evict.
+            misses.incrementAndGet();
+            return null;
+        }
+        node.referenced = true;
+        hits.incrementAndGet();
+        return node.value;
+    }
+
+    public void put(final String key, final Object value) {
+        if (key == null || value == null) { return; }
+        final Node node = new Node(key, value, System.currentTimeMillis() + ttlMillis);
+        synchronized (lock) {
+            final Node old = map.put(key, node);
+            if (old != null) {
+                unlink(old);
+                if (old.inProtected) {
+                    linkFirst(protect, node);
+                } else {
+                    linkFirst(probation, node);
+                }
+            } else {
+                linkFirst(probation, node);
+            }
+            evict();
+        }
+    }
+
+    public void remove(final String key) {
+        synchronized (lock) {
+            final Node node = map.remove(key);
+            if (node != null) {
+                unlink(node);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            map.clear();
+            probation.prev = probation.next = probation;
+            protect.prev = protect.next = protect;
+            probationSize = 0;
+            protectedSize = 0;
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    // Must hold the lock.
+    private void evict() {
+        final long now = System.currentTimeMillis();
+        final int protectedMax = (int) ((long) maxEntries * protectedPercent / 100);
+        // Readers may keep setting reference bits while we work, so bound the number of
+        // second chances handed out; past that, the least recently admitted entry goes.
+        int chances = 2 * (probationSize + protectedSize);
+        while (probationSize + protectedSize > maxEntries) {
+            if (probationSize == 0) {
+                demote(chances-- <= 0);
+                continue;
+            }
+            final Node victim = probation.prev;
+            if (victim.referenced && victim.expiresAt > now && chances-- > 0) {
+                victim.referenced = false;
+                unlink(victim);
+                linkFirst(protect, victim);
+                while (protectedSize > protectedMax) {
+                    demote(chances-- <= 0);
+                }
+                continue;
+            }
+            unlink(victim);
+            map.remove(victim.key, victim);
+            evictions.incrementAndGet();
+        }
+    }
+
+    // Must hold the lock.
+    private void demote(final boolean force) {
+        final Node node = protect.prev;
+        unlink(node);
+        if (node.referenced && !force) {
+            node.referenced = false;
+            linkFirst(protect, node);
+        } else {
+            linkFirst(probation, node);
+        }
+    }
+
+    private void linkFirst(final Node head, final Node node) {
+        node.prev = head;
+        node.next = head.next;
+        head.next.prev = node;
+        head.next = node;
+        node.inProtected = head == protect;
+        if (node.inProtected) {
+            protectedSize++;
+        } else {
+            probationSize++;
+        }
+    }
+
+    private void unlink(final Node node) {
+        if (node.prev == null) { return; }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        if (node.inProtected) {
+            protectedSize--;
+        } else {
+            probationSize--;
+        }
+    }
+
+    static class Node {
+        final String key;
+        final Object value;
+        final long expiresAt;
+        volatile boolean referenced;
+        // The rest is guarded by the cache's lock.
+        boolean inProtected;
+        Node prev;
+        Node next;
+
+        Node(final String key, final Object value, final long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package net.nelz.simplesm.transcoders;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Reads back what was written to a <code>CompactOutput</code>, in the same order.
+ * Throws an <code>IllegalArgumentException</code> when the data ends early or is malformed.
+ * Not thread-safe.
+ */
+public final class CompactInput {
+    private final CompactTranscoder transcoder;
+    private final byte[] buffer;
+    private int position;
+
+    CompactInput(final CompactTranscoder transcoder, final byte[] buffer) {
+        this.transcoder = transcoder;
+        this.buffer = buffer;
+    }
+
+    public int readByte() {
+        require(1);
+        return buffer[position++];
+    }
+
+    public boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    public int readVarInt() {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final int next = readByte();
+            result |= (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) { return result; }
+        }
+        throw new IllegalArgumentException("Malformed varint at " + position + ".");
+    }
+
+    public long readVarLong() {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            final int next = readByte();
+            result |= (long) (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) { return result; }
+        }
+        throw new IllegalArgumentException("Malformed varint at " + position + ".");
+    }
+
+    public int readInt() {
+        final int value = readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long readLong() {
+        final long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public float readFloat() {
+        return Float.intBitsToFloat((int) readFixed(4));
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(readFixed(8));
+    }
+
+    private long readFixed(final int bytes) {
+        require(bytes);
+        long bits = 0;
+        for (int ix = 0; ix < bytes; ix++) {
+            bits = (bits << 8) | (buffer[position++] & 0xFF);
+        }
+        return bits;
+    }
+
+    public String readString() {
+        final int length = readLength();
+        if (length < 0) { return null; }
+        require(length);
+        boolean ascii = true;
+        for (int ix = position; ix < position + length && ascii; ix++) {
+            ascii = buffer[ix] >= 0;
+        }
+        try {
+            // Decoded straight from the value's bytes; plain ASCII skips the UTF-8 decoder.
+            final String result = new String(buffer, position, length, ascii ? "ISO-8859-1" : "UTF-8");
+            position += length;
+            return result;
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("Unsupported encoding.", ex);
+        }
+    }
+
+    public byte[] readBytes() {
+        final int length = readLength();
+        if (length < 0) { return null; }
+        require(length);
+        final byte[] result = new byte[length];
+        System.arraycopy(buffer, position, result, 0, length);
+        position += length;
+        return result;
+    }
+
+    public Object readObject() {
+        return transcoder.readValue(this);
+    }
+
+    /**
+     * @return the length written by <code>writeString</code> or <code>writeBytes</code>,
+     * or -1 for null.
+     */
+    private int readLength() {
+        return readVarInt() - 1;
+    }
+
+    /**
+     * @return a number of elements, checked against the data that is left, so that a
+     * corrupted count does not make the reader allocate a huge collection.
+     */
+    int readCount() {
+        final int count = readVarInt();
+        if (count < 0 || count > remaining()) {
+            throw new IllegalArgumentException("Malformed count " + count + " at " + position + ".");
+        }
+        return count;
+    }
+
+    int remaining() {
+        return buffer.length - position;
+    }
+
+    private void require(final int bytes) {
+        if (bytes < 0 || position + bytes > buffer.length) {
+            throw new IllegalArgumentException("Truncated value: " + bytes + " more bytes needed at " + position + ".");
+        }
+    }
+}
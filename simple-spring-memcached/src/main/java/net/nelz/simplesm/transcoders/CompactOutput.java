@@ -0,0 +1,174 @@
+package net.nelz.simplesm.transcoders;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * The buffer the <code>CompactTranscoder</code> encodes a value into, handed to the
+ * <code>ObjectCodec</code>s to write the fields of their objects. Integers are written as
+ * varints (zig-zag encoded, so that small negative numbers stay small too), and strings and
+ * byte arrays are prefixed with their length. Not thread-safe.
+ */
+public final class CompactOutput {
+    private final CompactTranscoder transcoder;
+    private final int initialCapacity;
+    private byte[] buffer;
+    private int size;
+    // Set while the transcoder uses this output; see CompactTranscoder.borrowOutput().
+    boolean borrowed;
+
+    CompactOutput(final CompactTranscoder transcoder, final int initialCapacity) {
+        this.transcoder = transcoder;
+        this.initialCapacity = initialCapacity;
+        this.buffer = new byte[initialCapacity];
+    }
+
+    public void writeByte(final int value) {
+        ensure(1);
+        buffer[size++] = (byte) value;
+    }
+
+    public void writeBoolean(final boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * Writes a number that is known not to be negative, such as a length, in 1 to 5 bytes.
+     */
+    public void writeVarInt(int value) {
+        ensure(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    public void writeVarLong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    public void writeInt(final int value) {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public void writeLong(final long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeFloat(final float value) {
+        writeFixed(Float.floatToIntBits(value), 4);
+    }
+
+    public void writeDouble(final double value) {
+        writeFixed(Double.doubleToLongBits(value), 8);
+    }
+
+    private void writeFixed(final long bits, final int bytes) {
+        ensure(bytes);
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            buffer[size++] = (byte) (bits >>> shift);
+        }
+    }
+
+    /**
+     * Writes a string, which may be null, as UTF-8.
+     */
+    public void writeString(final String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        final int length = value.length();
+        for (int ix = 0; ix < length; ix++) {
+            if (value.charAt(ix) >= 0x80) {
+                try {
+                    writeBytes(value.getBytes("UTF-8"));
+                } catch (UnsupportedEncodingException ex) {
+                    throw new IllegalStateException("UTF-8 is not supported.", ex);
+                }
+                return;
+            }
+        }
+        // Plain ASCII, the common case: no need to go through an encoder.
+        writeVarInt(length + 1);
+        ensure(length);
+        for (int ix = 0; ix < length; ix++) {
+            buffer[size++] = (byte) value.charAt(ix);
+        }
+    }
+
+    /**
+     * Writes a byte array, which may be null.
+     */
+    public void writeBytes(final byte[] value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        writeVarInt(value.length + 1);
+        ensure(value.length);
+        System.arraycopy(value, 0, buffer, size, value.length);
+        size += value.length;
+    }
+
+    /**
+     * Writes any value the transcoder can encode, including null.
+     */
+    public void writeObject(final Object value) {
+        transcoder.writeValue(this, value);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Empties the output for the next value, letting go of the buffer if it grew past
+     * <code>maxCapacity</code>, so that one large value does not stay allocated for good.
+     */
+    void reset(final int maxCapacity) {
+        size = 0;
+        if (buffer.length > maxCapacity) {
+            buffer = new byte[initialCapacity];
+        }
+    }
+
+    byte[] toByteArray() {
+        final byte[] result = new byte[size];
+        System.arraycopy(buffer, 0, result, 0, size);
+        return result;
+    }
+
+    private void ensure(final int bytes) {
+        if (size + bytes <= buffer.length) { return; }
+        final byte[] grown = new byte[Math.max(buffer.length * 2, size + bytes)];
+        System.arraycopy(buffer, 0, grown, 0, size);
+        buffer = grown;
+    }
+}
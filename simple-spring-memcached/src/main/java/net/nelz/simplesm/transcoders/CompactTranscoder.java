@@ -0,0 +1,418 @@
+package net.nelz.simplesm.transcoders;
+
+import net.nelz.simplesm.aop.PertinentNegativeNull;
+import net.nelz.simplesm.aop.TimestampedValue;
+import net.nelz.simplesm.aop.Tombstone;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * A transcoder that writes values in a compact binary format instead of with Java
+ * serialization: one tag byte per value, followed by varints for integers and lengths.
+ * It handles primitives and their wrappers, Strings, Dates, arrays of primitives, Strings
+ * and Objects, Lists, Sets and Maps, and the wrappers the advices store (such as
+ * <code>TimestampedValue</code>), nesting them as deeply as needed. An Integer takes 2 to 6
+ * bytes, where the serializing transcoder needs about 80.
+ *
+ * Other classes are written by the <code>ObjectCodec</code> registered for them, if any,
+ * and else with Java serialization, so they still need to be Serializable.
+ *
+ * <code>ArrayList</code>s (and the lists of <code>Arrays.asList</code>) are read back as
+ * <code>ArrayList</code>s, <code>HashSet</code>s and <code>LinkedHashSet</code>s as
+ * <code>LinkedHashSet</code>s, and <code>HashMap</code>s and <code>LinkedHashMap</code>s as
+ * <code>LinkedHashMap</code>s. Any other collection, including subclasses of these, is
+ * serialized instead, so that it is read back as what it was.
+ *
+ * Values carry the <code>FLAG</code> bit in their memcached flags. Values without it, such as
+ * those written by the memcached client's own transcoder before a namespace was switched to
+ * this one, are decoded with the serializing transcoder (or as negative results, when written
+ * by the <code>NegativeNullTranscoder</code>).
+ */
+public class CompactTranscoder implements Transcoder<Object> {
+    private static final Log LOG = LogFactory.getLog(CompactTranscoder.class);
+
+    /**
+     * Marks the values written by this transcoder. Not used by the client's own transcoders,
+     * which keep the low bits for serialization and compression and bits 8 to 15 for types.
+     */
+    public static final int FLAG = 1 << 4;
+
+    // Tags; never renumber them, they are stored with the values.
+    static final int NULL = 0;
+    static final int TRUE = 1;
+    static final int FALSE = 2;
+    static final int BYTE = 3;
+    static final int SHORT = 4;
+    static final int CHAR = 5;
+    static final int INT = 6;
+    static final int LONG = 7;
+    static final int FLOAT = 8;
+    static final int DOUBLE = 9;
+    static final int STRING = 10;
+    static final int DATE = 11;
+    static final int BYTES = 12;
+    static final int INTS = 13;
+    static final int LONGS = 14;
+    static final int DOUBLES = 15;
+    static final int STRINGS = 16;
+    static final int OBJECTS = 17;
+    static final int LIST = 18;
+    static final int SET = 19;
+    static final int MAP = 20;
+    static final int NEGATIVE_NULL = 21;
+    static final int TOMBSTONE = 22;
+    static final int TIMESTAMPED = 23;
+    static final int CODEC = 24;
+    static final int SERIALIZED = 25;
+
+    // The exact classes written with the LIST, SET and MAP tags.
+    private static final Set<Class> LIST_TYPES = types(ArrayList.class, Arrays.asList().getClass());
+    private static final Set<Class> SET_TYPES = types(HashSet.class, LinkedHashSet.class);
+    private static final Set<Class> MAP_TYPES = types(HashMap.class, LinkedHashMap.class);
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+    // Also reads the negative results of the NegativeNullTranscoder.
+    private final Transcoder<Object> fallback = new NegativeNullTranscoder();
+    private int maxSize = CachedData.MAX_SIZE;
+    private Map<Integer, ObjectCodec> codecsById = Collections.emptyMap();
+    private Map<Class, Integer> idsByType = Collections.emptyMap();
+    // Each thread encodes into a buffer of its own, reused from one value to the next.
+    private final ThreadLocal<CompactOutput> outputs = new ThreadLocal<CompactOutput>();
+
+    public void setMaxSize(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1.");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param codecs the codecs for classes that should not be serialized, by their id.
+     */
+    public void setCodecs(final Map<Integer, ObjectCodec> codecs) {
+        final Map<Integer, ObjectCodec> byId = new HashMap<Integer, ObjectCodec>();
+        final Map<Class, Integer> byType = new HashMap<Class, Integer>();
+        for (final Map.Entry<Integer, ObjectCodec> entry : codecs.entrySet()) {
+            final Integer id = entry.getKey();
+            final ObjectCodec codec = entry.getValue();
+            if (id == null || id < 0) {
+                throw new IllegalArgumentException("Codec ids must be 0 or greater, not [" + id + "].");
+            }
+            if (codec == null || codec.getType() == null) {
+                throw new IllegalArgumentException("The codec with id [" + id + "] has no type.");
+            }
+            if (byType.put(codec.getType(), id) != null) {
+                throw new IllegalArgumentException("More than one codec for [" + codec.getType().getName() + "].");
+            }
+            byId.put(id, codec);
+        }
+        codecsById = byId;
+        idsByType = byType;
+    }
+
+    public boolean asyncDecode(final CachedData data) {
+        return false;
+    }
+
+    /**
+     * Encodes the value into a buffer that is reused by the following values of the same
+     * thread, so that the only allocation left is the copy handed to the memcached client.
+     */
+    public CachedData encode(final Object value) {
+        final CompactOutput out = borrowOutput();
+        try {
+            writeValue(out, value);
+            if (out.size() > maxSize) {
+                throw new IllegalArgumentException("Encoded value is " + out.size() + " bytes, more than the maximum of " + maxSize + ".");
+            }
+            return new CachedData(FLAG, out.toByteArray(), maxSize);
+        } finally {
+            out.reset(MAX_POOLED_CAPACITY);
+            out.borrowed = false;
+        }
+    }
+
+    private CompactOutput borrowOutput() {
+        CompactOutput out = outputs.get();
+        if (out == null) {
+            out = new CompactOutput(this, INITIAL_CAPACITY);
+            outputs.set(out);
+        } else if (out.borrowed) {
+            // An ObjectCodec encoding a value of its own: leave the outer one's buffer alone.
+            out = new CompactOutput(this, INITIAL_CAPACITY);
+        }
+        out.borrowed = true;
+        return out;
+    }
+
+    /**
+     * @return the decoded value, or null (a miss) if it could not be decoded.
+     */
+    public Object decode(final CachedData data) {
+        if ((data.getFlags() & FLAG) == 0) {
+            return fallback.decode(data);
+        }
+        try {
+            final CompactInput in = new CompactInput(this, data.getData());
+            final Object value = readValue(in);
+            if (in.remaining() > 0) {
+                throw new IllegalArgumentException(in.remaining() + " bytes left over.");
+            }
+            return value;
+        } catch (RuntimeException ex) {
+            LOG.warn("Unable to decode a value of " + data.getData().length + " bytes.", ex);
+            return null;
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    void writeValue(final CompactOutput out, final Object value) {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        final Class type = value.getClass();
+        final Integer codecId = idsByType.get(type);
+        if (codecId != null) {
+            out.writeByte(CODEC);
+            out.writeVarInt(codecId);
+            codecsById.get(codecId).write(value, out);
+        } else if (type == String.class) {
+            out.writeByte(STRING);
+            out.writeString((String) value);
+        } else if (type == Integer.class) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (type == Long.class) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (type == Boolean.class) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (type == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (type == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (type == Short.class) {
+            out.writeByte(SHORT);
+            out.writeInt((Short) value);
+        } else if (type == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (type == Character.class) {
+            out.writeByte(CHAR);
+            out.writeVarInt((Character) value);
+        } else if (type == Date.class) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (type == byte[].class) {
+            out.writeByte(BYTES);
+            out.writeBytes((byte[]) value);
+        } else if (type == int[].class) {
+            final int[] array = (int[]) value;
+            out.writeByte(INTS);
+            out.writeVarInt(array.length);
+            for (final int element : array) { out.writeInt(element); }
+        } else if (type == long[].class) {
+            final long[] array = (long[]) value;
+            out.writeByte(LONGS);
+            out.writeVarInt(array.length);
+            for (final long element : array) { out.writeLong(element); }
+        } else if (type == double[].class) {
+            final double[] array = (double[]) value;
+            out.writeByte(DOUBLES);
+            out.writeVarInt(array.length);
+            for (final double element : array) { out.writeDouble(element); }
+        } else if (type == String[].class) {
+            final String[] array = (String[]) value;
+            out.writeByte(STRINGS);
+            out.writeVarInt(array.length);
+            for (final String element : array) { out.writeString(element); }
+        } else if (type == Object[].class) {
+            final Object[] array = (Object[]) value;
+            out.writeByte(OBJECTS);
+            out.writeVarInt(array.length);
+            for (final Object element : array) { writeValue(out, element); }
+        } else if (LIST_TYPES.contains(type)) {
+            writeElements(out, LIST, (List) value);
+        } else if (SET_TYPES.contains(type)) {
+            writeElements(out, SET, (Set) value);
+        } else if (MAP_TYPES.contains(type)) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeVarInt(map.size());
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (type == TimestampedValue.class) {
+            final TimestampedValue timestamped = (TimestampedValue) value;
+            out.writeByte(TIMESTAMPED);
+            out.writeLong(timestamped.getLoadedAt());
+            out.writeLong(timestamped.getLoadMillis());
+            out.writeLong(timestamped.getExpiresAt());
+            writeValue(out, timestamped.getValue());
+        } else if (type == PertinentNegativeNull.class) {
+            out.writeByte(NEGATIVE_NULL);
+        } else if (type == Tombstone.class) {
+            out.writeByte(TOMBSTONE);
+        } else if (value instanceof Serializable) {
+            out.writeByte(SERIALIZED);
+            out.writeBytes(serialize(value));
+        } else {
+            throw new IllegalArgumentException("Cannot encode [" + type.getName()
+                    + "]: it is not Serializable, and no ObjectCodec is registered for it.");
+        }
+    }
+
+    private static Set<Class> types(final Class... types) {
+        return new HashSet<Class>(Arrays.asList(types));
+    }
+
+    private void writeElements(final CompactOutput out, final int tag, final Collection elements) {
+        out.writeByte(tag);
+        out.writeVarInt(elements.size());
+        for (final Object element : elements) {
+            writeValue(out, element);
+        }
+    }
+
+    Object readValue(final CompactInput in) {
+        final int tag = in.readByte();
+        switch (tag) {
+            case NULL: return null;
+            case TRUE: return Boolean.TRUE;
+            case FALSE: return Boolean.FALSE;
+            case BYTE: return (byte) in.readByte();
+            case SHORT: return (short) in.readInt();
+            case CHAR: return (char) in.readVarInt();
+            case INT: return in.readInt();
+            case LONG: return in.readLong();
+            case FLOAT: return in.readFloat();
+            case DOUBLE: return in.readDouble();
+            case STRING: return in.readString();
+            case DATE: return new Date(in.readLong());
+            case BYTES: return in.readBytes();
+            case INTS: {
+                final int[] array = new int[in.readCount()];
+                for (int ix = 0; ix < array.length; ix++) { array[ix] = in.readInt(); }
+                return array;
+            }
+            case LONGS: {
+                final long[] array = new long[in.readCount()];
+                for (int ix = 0; ix < array.length; ix++) { array[ix] = in.readLong(); }
+                return array;
+            }
+            case DOUBLES: {
+                final double[] array = new double[in.readCount()];
+                for (int ix = 0; ix < array.length; ix++) { array[ix] = in.readDouble(); }
+                return array;
+            }
+            case STRINGS: {
+                final String[] array = new String[in.readCount()];
+                for (int ix = 0; ix < array.length; ix++) { array[ix] = in.readString(); }
+                return array;
+            }
+            case OBJECTS: {
+                final Object[] array = new Object[in.readCount()];
+                for (int ix = 0; ix < array.length; ix++) { array[ix] = readValue(in); }
+                return array;
+            }
+            case LIST: {
+                final int count = in.readCount();
+                final List<Object> list = new ArrayList<Object>(count);
+                for (int ix = 0; ix < count; ix++) { list.add(readValue(in)); }
+                return list;
+            }
+            case SET: {
+                final int count = in.readCount();
+                final Set<Object> set = new LinkedHashSet<Object>(count * 4 / 3 + 1);
+                for (int ix = 0; ix < count; ix++) { set.add(readValue(in)); }
+                return set;
+            }
+            case MAP: {
+                final int count = in.readCount();
+                final Map<Object, Object> map = new LinkedHashMap<Object, Object>(count * 4 / 3 + 1);
+                for (int ix = 0; ix < count; ix++) {
+                    final Object key = readValue(in);
+                    map.put(key, readValue(in));
+                }
+                return map;
+            }
+            case NEGATIVE_NULL: return PertinentNegativeNull.INSTANCE;
+            case TOMBSTONE: return new Tombstone();
+            case TIMESTAMPED: {
+                final long loadedAt = in.readLong();
+                final long loadMillis = in.readLong();
+                final long expiresAt = in.readLong();
+                return new TimestampedValue(loadedAt, loadMillis, expiresAt, readValue(in));
+            }
+            case CODEC: {
+                final int id = in.readVarInt();
+                final ObjectCodec codec = codecsById.get(id);
+                if (codec == null) {
+                    throw new IllegalArgumentException("No codec registered with id [" + id + "].");
+                }
+                return codec.read(in);
+            }
+            case SERIALIZED: return deserialize(in.readBytes());
+            default:
+                throw new IllegalArgumentException("Unknown tag [" + tag + "].");
+        }
+    }
+
+    private static byte[] serialize(final Object value) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Unable to serialize [" + value.getClass().getName() + "].", ex);
+        }
+    }
+
+    private static Object deserialize(final byte[] data) {
+        try {
+            final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+            return in.readObject();
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Unable to deserialize a value.", ex);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalArgumentException("Unable to deserialize a value.", ex);
+        }
+    }
+}
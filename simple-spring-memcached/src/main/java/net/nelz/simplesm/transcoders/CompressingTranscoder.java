@@ -0,0 +1,227 @@
+package net.nelz.simplesm.transcoders;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Compresses the values another transcoder encodes, with the fast <code>LzCodec</code>.
+ * Values smaller than <code>threshold</code> bytes are stored as they are. Larger ones are
+ * compressed, and stored compressed, marked with the <code>FLAG</code> bit, only if that
+ * makes them at most <code>maxRatio</code> of their size; otherwise they are stored raw.
+ *
+ * When <code>giveUpAfter</code> values in a row did not shrink enough, the namespace most
+ * likely holds data that does not compress (such as images, or values that are compressed
+ * already); from then on only one value in <code>retryEvery</code> is tried, until one
+ * compresses again.
+ *
+ * Map each namespace to an instance of its own, so that its thresholds can be tuned to its
+ * values and its metrics tell how well that pays off.
+ */
+public class CompressingTranscoder implements Transcoder<Object> {
+    private static final Log LOG = LogFactory.getLog(CompressingTranscoder.class);
+
+    /**
+     * Marks compressed values. Not used by <code>CompactTranscoder</code> or by the client's
+     * own transcoders.
+     */
+    public static final int FLAG = 1 << 5;
+
+    private Transcoder<Object> transcoder = uncompressedSerializingTranscoder();
+    private int threshold = 4096;
+    private double maxRatio = 0.8;
+    private int giveUpAfter = 16;
+    private int retryEvery = 64;
+
+    private final AtomicInteger incompressibleInARow = new AtomicInteger();
+    private final AtomicLong encoded = new AtomicLong();
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong storedRaw = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong bytesBefore = new AtomicLong();
+    private final AtomicLong bytesAfter = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressed = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    private static Transcoder<Object> uncompressedSerializingTranscoder() {
+        final SerializingTranscoder serializing = new SerializingTranscoder();
+        // Compressing is this class's job; do not gzip on top.
+        serializing.setCompressionThreshold(Integer.MAX_VALUE);
+        return serializing;
+    }
+
+    /**
+     * @param transcoder encodes the values before they are compressed; by default, Java
+     * serialization.
+     */
+    public void setTranscoder(final Transcoder<Object> transcoder) {
+        if (transcoder == null) {
+            throw new IllegalArgumentException("transcoder must not be null.");
+        }
+        this.transcoder = transcoder;
+    }
+
+    public void setThreshold(final int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must be 0 or greater.");
+        }
+        this.threshold = threshold;
+    }
+
+    public void setMaxRatio(final double maxRatio) {
+        if (maxRatio <= 0 || maxRatio > 1) {
+            throw new IllegalArgumentException("maxRatio must be greater than 0, and at most 1.");
+        }
+        this.maxRatio = maxRatio;
+    }
+
+    public void setGiveUpAfter(final int giveUpAfter) {
+        if (giveUpAfter < 1) {
+            throw new IllegalArgumentException("giveUpAfter must be at least 1.");
+        }
+        this.giveUpAfter = giveUpAfter;
+    }
+
+    public void setRetryEvery(final int retryEvery) {
+        if (retryEvery < 1) {
+            throw new IllegalArgumentException("retryEvery must be at least 1.");
+        }
+        this.retryEvery = retryEvery;
+    }
+
+    public boolean asyncDecode(final CachedData data) {
+        return transcoder.asyncDecode(data);
+    }
+
+    public CachedData encode(final Object value) {
+        final CachedData raw = transcoder.encode(value);
+        final byte[] data = raw.getData();
+        encoded.incrementAndGet();
+        if (data.length < threshold) { return raw; }
+
+        final int inARow = incompressibleInARow.get();
+        if (inARow >= giveUpAfter && (inARow - giveUpAfter + 1) % retryEvery != 0) {
+            incompressibleInARow.incrementAndGet();
+            skipped.incrementAndGet();
+            return raw;
+        }
+
+        final long begin = System.nanoTime();
+        final byte[] packed = LzCodec.compress(data);
+        compressNanos.addAndGet(System.nanoTime() - begin);
+        bytesBefore.addAndGet(data.length);
+
+        if (packed.length > data.length * maxRatio) {
+            incompressibleInARow.incrementAndGet();
+            storedRaw.incrementAndGet();
+            bytesAfter.addAndGet(data.length);
+            return raw;
+        }
+        incompressibleInARow.set(0);
+        compressed.incrementAndGet();
+        bytesAfter.addAndGet(packed.length);
+        return new CachedData(raw.getFlags() | FLAG, packed, getMaxSize());
+    }
+
+    /**
+     * @return the decoded value, or null (a miss) if it could not be decompressed.
+     */
+    public Object decode(final CachedData data) {
+        if ((data.getFlags() & FLAG) == 0) {
+            return transcoder.decode(data);
+        }
+        final byte[] raw;
+        final long begin = System.nanoTime();
+        try {
+            raw = LzCodec.decompress(data.getData());
+        } catch (IllegalArgumentException ex) {
+            LOG.warn("Unable to decompress a value of " + data.getData().length + " bytes.", ex);
+            return null;
+        }
+        decompressNanos.addAndGet(System.nanoTime() - begin);
+        decompressed.incrementAndGet();
+        return transcoder.decode(new CachedData(data.getFlags() & ~FLAG, raw, Math.max(raw.length, transcoder.getMaxSize())));
+    }
+
+    public int getMaxSize() {
+        return transcoder.getMaxSize();
+    }
+
+    /**
+     * @return the number of values encoded, of any size.
+     */
+    public long getEncoded() {
+        return encoded.get();
+    }
+
+    /**
+     * @return the number of values stored compressed.
+     */
+    public long getCompressed() {
+        return compressed.get();
+    }
+
+    /**
+     * @return the number of values that were compressed, but stored raw because they did
+     * not shrink enough.
+     */
+    public long getStoredRaw() {
+        return storedRaw.get();
+    }
+
+    /**
+     * @return the number of values above the threshold that were not even tried, because
+     * the values before them did not compress.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return the size of the values that were tried, as stored, over their size before;
+     * 1.0 if none were tried.
+     */
+    public double getCompressionRatio() {
+        final long before = bytesBefore.get();
+        return before == 0 ? 1.0 : (double) bytesAfter.get() / before;
+    }
+
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    public long getDecompressed() {
+        return decompressed.get();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+}
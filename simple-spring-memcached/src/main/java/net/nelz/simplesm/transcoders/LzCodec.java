@@ -0,0 +1,234 @@
+package net.nelz.simplesm.transcoders;
+
+import java.util.Arrays;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * A byte-oriented LZ77 compressor in the style of LZ4: no entropy coding, a single hash
+ * probe per position, and a 64KB window. It trades some compression ratio for speed, so
+ * that compressing a value costs much less than the round trip it makes smaller.
+ *
+ * The compressed form starts with the uncompressed length as a varint, followed by
+ * sequences of a token byte (the number of literals in the high nibble, the match length
+ * minus 4 in the low one, with 15 meaning "more in the following bytes"), the literals, and
+ * the 2 byte offset of the match. The last sequence has no match.
+ */
+final class LzCodec {
+    private static final int MIN_MATCH = 4;
+    // Left as literals at the end, so that matching never reads past the input.
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+    private static final int MIN_HASH_LOG = 8;
+    private static final int MAX_HASH_LOG = 14;
+    // Each miss in a row skips a little further ahead, so incompressible data goes fast.
+    private static final int SKIP_STRENGTH = 6;
+    private static final int MAX_POOLED_OUTPUT = 256 * 1024;
+
+    // The hash table and output buffer of each thread, reused from one value to the next.
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private LzCodec() {
+    }
+
+    /**
+     * @return the compressed data; the only array allocated, as the hash table and the
+     * output buffer are reused.
+     */
+    static byte[] compress(final byte[] src) {
+        final int length = src.length;
+        final Scratch scratch = SCRATCH.get();
+        final int bound = 5 + length + length / 255 + 16;
+        final byte[] out = bound <= scratch.out.length
+                ? scratch.out
+                : bound <= MAX_POOLED_OUTPUT ? (scratch.out = new byte[bound]) : new byte[bound];
+        int op = writeVarInt(out, 0, length);
+
+        final int hashLog = Math.max(MIN_HASH_LOG, Math.min(MAX_HASH_LOG, 32 - Integer.numberOfLeadingZeros(length)));
+        // Positions plus one; 0 is empty.
+        final int[] table = scratch.table;
+        Arrays.fill(table, 0, 1 << hashLog, 0);
+        final int matchLimit = length - LAST_LITERALS - MIN_MATCH;
+        int anchor = 0;
+        int ip = 0;
+        while (ip <= matchLimit) {
+            final int sequence = readInt(src, ip);
+            final int hash = (sequence * -1640531535) >>> (32 - hashLog);
+            final int ref = table[hash] - 1;
+            table[hash] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                ip += 1 + ((ip - anchor) >>> SKIP_STRENGTH);
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < length - LAST_LITERALS && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(out, op, src, anchor, ip - anchor, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        op = writeSequence(out, op, src, anchor, length - anchor, 0, 0);
+
+        final byte[] result = new byte[op];
+        System.arraycopy(out, 0, result, 0, op);
+        return result;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the data is not something <code>compress</code> wrote.
+     */
+    static byte[] decompress(final byte[] src) {
+        try {
+            int ip = 0;
+            int rawLength = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (shift > 28) { throw new IllegalArgumentException("Malformed length."); }
+                final int next = src[ip++];
+                rawLength |= (next & 0x7F) << shift;
+                if ((next & 0x80) == 0) { break; }
+            }
+            // Each byte of input expands to at most 255 bytes of output.
+            if (rawLength < 0 || rawLength > (src.length - ip) * 255L) {
+                throw new IllegalArgumentException("Malformed length " + rawLength + ".");
+            }
+
+            final byte[] out = new byte[rawLength];
+            int op = 0;
+            while (true) {
+                final int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int next;
+                    do {
+                        next = src[ip++] & 0xFF;
+                        literals += next;
+                    } while (next == 255);
+                }
+                if (ip + literals > src.length || op + literals > rawLength) {
+                    throw new IllegalArgumentException("Malformed literals at " + ip + ".");
+                }
+                System.arraycopy(src, ip, out, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == src.length) { break; }
+
+                final int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int next;
+                    do {
+                        next = src[ip++] & 0xFF;
+                        matchLength += next;
+                    } while (next == 255);
+                }
+                matchLength += MIN_MATCH;
+                final int ref = op - offset;
+                if (offset == 0 || ref < 0 || op + matchLength > rawLength) {
+                    throw new IllegalArgumentException("Malformed match at " + ip + ".");
+                }
+                if (offset >= matchLength) {
+                    System.arraycopy(out, ref, out, op, matchLength);
+                    op += matchLength;
+                } else {
+                    // Overlapping: the match repeats bytes it is producing.
+                    for (int ix = 0; ix < matchLength; ix++) {
+                        out[op++] = out[ref + ix];
+                    }
+                }
+            }
+            if (op != rawLength) {
+                throw new IllegalArgumentException("Expected " + rawLength + " bytes, got " + op + ".");
+            }
+            return out;
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Truncated data.", ex);
+        }
+    }
+
+    private static int writeSequence(final byte[] out,
+                                     int op,
+                                     final byte[] src,
+                                     final int literalStart,
+                                     final int literals,
+                                     final int offset,
+                                     final int matchLength) {
+        final int tokenPosition = op++;
+        int token = 0;
+        if (literals >= 15) {
+            token = 15 << 4;
+            op = writeLength(out, op, literals - 15);
+        } else {
+            token = literals << 4;
+        }
+        System.arraycopy(src, literalStart, out, op, literals);
+        op += literals;
+        if (matchLength > 0) {
+            out[op++] = (byte) offset;
+            out[op++] = (byte) (offset >>> 8);
+            final int extra = matchLength - MIN_MATCH;
+            if (extra >= 15) {
+                token |= 15;
+                op = writeLength(out, op, extra - 15);
+            } else {
+                token |= extra;
+            }
+        }
+        out[tokenPosition] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(final byte[] out, int op, int length) {
+        while (length >= 255) {
+            out[op++] = (byte) 255;
+            length -= 255;
+        }
+        out[op++] = (byte) length;
+        return op;
+    }
+
+    private static int writeVarInt(final byte[] out, int op, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[op++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[op++] = (byte) value;
+        return op;
+    }
+
+    private static class Scratch {
+        final int[] table = new int[1 << MAX_HASH_LOG];
+        byte[] out = new byte[4096];
+    }
+
+    private static int readInt(final byte[] src, final int position) {
+        return (src[position] & 0xFF)
+                | ((src[position + 1] & 0xFF) << 8)
+                | ((src[position + 2] & 0xFF) << 16)
+                | ((src[position + 3] & 0xFF) << 24);
+    }
+}
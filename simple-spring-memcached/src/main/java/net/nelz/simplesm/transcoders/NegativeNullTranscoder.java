@@ -0,0 +1,83 @@
+package net.nelz.simplesm.transcoders;
+
+import net.nelz.simplesm.aop.PertinentNegativeNull;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Stores the <code>PertinentNegativeNull</code> that stands for a cached null result as an
+ * empty value marked with the <code>FLAG</code> bit, and reads it back as the shared instance
+ * without deserializing anything. All other values go through the wrapped transcoder, by
+ * default the serializing one; values it wrote before, including serialized negative
+ * results, still read.
+ *
+ * Set it as the memcached client's transcoder (see <code>MemcachedConnectionBean</code>) to
+ * have the namespaces without a transcoder of their own store null results this way; the
+ * <code>CompactTranscoder</code> reads these values as well. Older versions of this library
+ * read them as an empty String, so only turn it on once every node runs this one.
+ */
+public class NegativeNullTranscoder implements Transcoder<Object> {
+    /**
+     * Marks negative results. Not used by the other transcoders of this package, or by the
+     * client's own.
+     */
+    public static final int FLAG = 1 << 6;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private Transcoder<Object> transcoder = new SerializingTranscoder();
+
+    /**
+     * @param transcoder encodes every value but negative results; by default, Java serialization.
+     */
+    public void setTranscoder(final Transcoder<Object> transcoder) {
+        if (transcoder == null) {
+            throw new IllegalArgumentException("transcoder must not be null.");
+        }
+        this.transcoder = transcoder;
+    }
+
+    public boolean asyncDecode(final CachedData data) {
+        return (data.getFlags() & FLAG) == 0 && transcoder.asyncDecode(data);
+    }
+
+    public CachedData encode(final Object value) {
+        if (value instanceof PertinentNegativeNull) {
+            return new CachedData(FLAG, EMPTY, getMaxSize());
+        }
+        return transcoder.encode(value);
+    }
+
+    public Object decode(final CachedData data) {
+        if ((data.getFlags() & FLAG) != 0) {
+            return PertinentNegativeNull.INSTANCE;
+        }
+        return transcoder.decode(data);
+    }
+
+    public int getMaxSize() {
+        return transcoder.getMaxSize();
+    }
+}
@@ -0,0 +1,39 @@
+package net.nelz.simplesm.transcoders;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Encodes the instances of one class for the <code>CompactTranscoder</code>, as an alternative
+ * to Java serialization. Codecs are registered with the transcoder under an id that is
+ * written in front of every value they encode, so the id of a codec must never change or
+ * be reused while values it wrote may still be in the cache.
+ *
+ * Only instances of exactly <code>getType()</code> are handed to the codec, not those of
+ * its subclasses. Implementations must be thread-safe.
+ */
+public interface ObjectCodec<T> {
+    Class<T> getType();
+
+    void write(T value, CompactOutput out);
+
+    T read(CompactInput in);
+}
@@ -0,0 +1,56 @@
+package net.nelz.simplesm.transcoders;
+
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Holds the transcoders by namespace. The values of a namespace with an entry are encoded
+ * and decoded with that transcoder instead of the memcached client's own; namespaces without
+ * an entry keep using the client's. Counters are always stored as plain numbers, whatever
+ * their namespace maps to.
+ *
+ * Changing the transcoder of a namespace changes the format of its values: entries written
+ * in the old format can only be read if the new transcoder still understands them (as
+ * <code>CompactTranscoder</code> does with the serialized values of the client's default
+ * transcoder).
+ */
+public class TranscoderManager {
+    private Map<String, Transcoder<Object>> transcoders = new HashMap<String, Transcoder<Object>>();
+
+    public void setTranscoders(final Map<String, Transcoder<Object>> transcoders) {
+        this.transcoders = new HashMap<String, Transcoder<Object>>(transcoders);
+    }
+
+    public Map<String, Transcoder<Object>> getTranscoders() {
+        return Collections.unmodifiableMap(transcoders);
+    }
+
+    /**
+     * @return the transcoder of the namespace, or null to use the memcached client's.
+     */
+    public Transcoder<Object> getTranscoder(final String namespace) {
+        return transcoders.get(namespace);
+    }
+}
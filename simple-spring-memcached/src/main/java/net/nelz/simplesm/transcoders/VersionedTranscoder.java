@@ -0,0 +1,212 @@
+package net.nelz.simplesm.transcoders;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Writes the schema version of a namespace in front of each of its values, and reads the
+ * values written with any other version as misses, without handing them to the wrapped
+ * transcoder. Entries of a previous deploy then no longer fail to deserialize one by one
+ * (or worse, deserialize into something wrong); they are counted, and the advice that read
+ * one deletes it, so that the value it reloads can take its place.
+ *
+ * The version is either set explicitly, and bumped with every incompatible change of the
+ * cached classes, or derived from a class with <code>setFingerprintOf</code>. Values carry
+ * the <code>FLAG</code> bit, followed by the version in 4 bytes. Values without it were
+ * written before the envelope was turned on; they are decoded as they are, unless
+ * <code>acceptUnversioned</code> is false.
+ *
+ * Wrap the other transcoders (such as a <code>CompressingTranscoder</code>) rather than the
+ * other way around, so that mismatched values are not even decompressed.
+ */
+public class VersionedTranscoder implements Transcoder<Object> {
+    /**
+     * Marks versioned values. Not used by the other transcoders of this package, or by the
+     * client's own.
+     */
+    public static final int FLAG = 1 << 7;
+
+    private static final int HEADER_SIZE = 4;
+
+    private Transcoder<Object> transcoder = new SerializingTranscoder();
+    private int version;
+    private boolean acceptUnversioned = true;
+
+    private final AtomicLong matched = new AtomicLong();
+    private final AtomicLong mismatched = new AtomicLong();
+    private final AtomicLong unversioned = new AtomicLong();
+
+    /**
+     * @param transcoder encodes the values inside the envelope; by default, Java serialization.
+     */
+    public void setTranscoder(final Transcoder<Object> transcoder) {
+        if (transcoder == null) {
+            throw new IllegalArgumentException("transcoder must not be null.");
+        }
+        this.transcoder = transcoder;
+    }
+
+    public void setVersion(final int version) {
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version to a fingerprint of the given class: its serialVersionUID if it is
+     * Serializable (computed from its structure when it does not declare one, so a declared
+     * one must be changed by hand), and else a hash of the names and types of its fields.
+     */
+    public void setFingerprintOf(final Class type) {
+        this.version = fingerprint(type);
+    }
+
+    /**
+     * @param acceptUnversioned whether to decode the values written before the envelope
+     * was turned on, or to read them as misses as well.
+     */
+    public void setAcceptUnversioned(final boolean acceptUnversioned) {
+        this.acceptUnversioned = acceptUnversioned;
+    }
+
+    static int fingerprint(final Class type) {
+        if (Serializable.class.isAssignableFrom(type)) {
+            final long uid = ObjectStreamClass.lookup(type).getSerialVersionUID();
+            return (int) (uid ^ (uid >>> 32));
+        }
+        int hash = type.getName().hashCode();
+        for (Class current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            final Field[] fields = current.getDeclaredFields();
+            final String[] signatures = new String[fields.length];
+            for (int ix = 0; ix < fields.length; ix++) {
+                final int modifiers = fields[ix].getModifiers();
+                signatures[ix] = Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+                        ? ""
+                        : fields[ix].getName() + ":" + fields[ix].getType().getName();
+            }
+            // The order of getDeclaredFields is unspecified.
+            Arrays.sort(signatures);
+            for (final String signature : signatures) {
+                hash = 31 * hash + signature.hashCode();
+            }
+        }
+        return hash;
+    }
+
+    public boolean asyncDecode(final CachedData data) {
+        return transcoder.asyncDecode(data);
+    }
+
+    public CachedData encode(final Object value) {
+        final CachedData inner = transcoder.encode(value);
+        final byte[] body = inner.getData();
+        final byte[] data = new byte[HEADER_SIZE + body.length];
+        data[0] = (byte) (version >>> 24);
+        data[1] = (byte) (version >>> 16);
+        data[2] = (byte) (version >>> 8);
+        data[3] = (byte) version;
+        System.arraycopy(body, 0, data, HEADER_SIZE, body.length);
+        return new CachedData(inner.getFlags() | FLAG, data, getMaxSize());
+    }
+
+    /**
+     * Tells from its flags and header alone whether a value would be decoded, for callers that
+     * only decode it later (see <code>ReadThroughMultiCache.lazyResults</code>). A value that
+     * would not be is counted, like <code>decode</code> does.
+     * @return false if the value was written with another version, or without one when
+     * unversioned values are not accepted.
+     */
+    public boolean isCurrent(final CachedData data) {
+        if ((data.getFlags() & FLAG) == 0) {
+            if (acceptUnversioned) { return true; }
+            unversioned.incrementAndGet();
+            return false;
+        }
+        final byte[] bytes = data.getData();
+        if (bytes.length < HEADER_SIZE || readVersion(bytes) != version) {
+            mismatched.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the decoded value, or null (a miss, which the advices delete) if it was written
+     * with another version.
+     */
+    public Object decode(final CachedData data) {
+        if ((data.getFlags() & FLAG) == 0) {
+            unversioned.incrementAndGet();
+            return acceptUnversioned ? transcoder.decode(data) : null;
+        }
+        final byte[] bytes = data.getData();
+        if (bytes.length < HEADER_SIZE || readVersion(bytes) != version) {
+            mismatched.incrementAndGet();
+            return null;
+        }
+        matched.incrementAndGet();
+        final byte[] body = new byte[bytes.length - HEADER_SIZE];
+        System.arraycopy(bytes, HEADER_SIZE, body, 0, body.length);
+        return transcoder.decode(new CachedData(data.getFlags() & ~FLAG, body, Math.max(body.length, transcoder.getMaxSize())));
+    }
+
+    private static int readVersion(final byte[] bytes) {
+        return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+    }
+
+    public int getMaxSize() {
+        return transcoder.getMaxSize();
+    }
+
+    /**
+     * @return the number of values read with the current version.
+     */
+    public long getMatched() {
+        return matched.get();
+    }
+
+    /**
+     * @return the number of values read as misses, because they were written with another version.
+     */
+    public long getMismatched() {
+        return mismatched.get();
+    }
+
+    /**
+     * @return the number of values read without a version, whether they were decoded or not.
+     */
+    public long getUnversioned() {
+        return unversioned.get();
+    }
+}
@@ -0,0 +1,113 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import org.aspectj.lang.*;
+import org.aspectj.lang.reflect.*;
+import static org.easymock.EasyMock.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class AdvicePlanTest {
+	private CacheBase cut;
+	private JoinPoint jp;
+	private MethodSignature sig;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		cut = new CacheBase();
+		cut.setMethodStore(new CacheKeyMethodStoreImpl());
+		jp = createMock(JoinPoint.class);
+		sig = createMock(MethodSignature.class);
+	}
+
+	@Test
+	public void testPlanIsBuiltOnce() throws Exception {
+		// The first call resolves the method (twice asking for the signature),
+		// every later call only builds the lookup key.
+		expect(jp.getSignature()).andReturn(sig).times(4);
+		expect(jp.getTarget()).andReturn(new PlanTarget()).times(4);
+		expect(sig.getName()).andReturn("readSingle").times(4);
+		expect(sig.getParameterTypes()).andReturn(new Class[] {String.class}).times(4);
+		replay(jp, sig);
+
+		final AdvicePlan first = cut.getAdvicePlan(jp, ReadThroughSingleCache.class);
+		final AdvicePlan second = cut.getAdvicePlan(jp, ReadThroughSingleCache.class);
+		final AdvicePlan third = cut.getAdvicePlan(jp, ReadThroughSingleCache.class);
+
+		verify(jp, sig);
+		assertSame(first, second);
+		assertSame(first, third);
+		assertEquals(0, first.getKeyIndex());
+		assertEquals(30, first.getExpiration());
+		assertEquals(AdvicePlan.KeySource.PARAMETER, first.getKeySource());
+		assertNull(first.getAssignedCacheKey());
+	}
+
+	@Test
+	public void testKeySources() throws Exception {
+		final AdvicePlan single = cut.buildAdvicePlan(
+				PlanTarget.class.getMethod("readSingle", String.class), ReadThroughSingleCache.class);
+		assertEquals(AdvicePlan.KeySource.PARAMETER, single.getKeySource());
+
+		final AdvicePlan update = cut.buildAdvicePlan(
+				PlanTarget.class.getMethod("updateSingle", null), UpdateSingleCache.class);
+		assertEquals(AdvicePlan.KeySource.RETURN_VALUE, update.getKeySource());
+		assertEquals(-1, update.getDataIndex());
+
+		final AdvicePlan assign = cut.buildAdvicePlan(
+				PlanTarget.class.getMethod("readAssign", null), ReadThroughAssignCache.class);
+		assertEquals(AdvicePlan.KeySource.ASSIGNED, assign.getKeySource());
+		assertEquals("plans" + CacheBase.SEPARATOR + "all", assign.getAssignedCacheKey());
+	}
+
+	@Test
+	public void testPlanKeyEquality() {
+		final AdvicePlanKey key1 = new AdvicePlanKey(PlanTarget.class, "readSingle",
+				new Class[] {String.class}, ReadThroughSingleCache.class);
+		final AdvicePlanKey key2 = new AdvicePlanKey(PlanTarget.class, "readSingle",
+				new Class[] {String.class}, ReadThroughSingleCache.class);
+		final AdvicePlanKey key3 = new AdvicePlanKey(PlanTarget.class, "readSingle",
+				new Class[] {Integer.class}, ReadThroughSingleCache.class);
+		final AdvicePlanKey key4 = new AdvicePlanKey(PlanTarget.class, "readSingle",
+				new Class[] {String.class}, InvalidateSingleCache.class);
+
+		assertEquals(key1, key2);
+		assertEquals(key1.hashCode(), key2.hashCode());
+		assertFalse(key1.equals(key3));
+		assertFalse(key1.equals(key4));
+	}
+
+	public static class PlanTarget {
+		@ReadThroughSingleCache(namespace = "plans", expiration = 30)
+		public String readSingle(@ParameterValueKeyProvider final String key) { return key; }
+
+		@UpdateSingleCache(namespace = "plans")
+		@ReturnValueKeyProvider
+		@ReturnDataUpdateContent
+		public String updateSingle() { return null; }
+
+		@ReadThroughAssignCache(namespace = "plans", assignedKey = "all")
+		public String readAssign() { return null; }
+	}
+}
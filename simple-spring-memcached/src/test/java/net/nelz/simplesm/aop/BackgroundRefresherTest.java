@@ -0,0 +1,176 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class BackgroundRefresherTest {
+	private BackgroundRefresher cut;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		cut = new BackgroundRefresher();
+		cut.setThreads(1);
+		cut.setQueueCapacity(1);
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		cut.shutdown();
+	}
+
+	@Test
+	public void testOneRefreshPerKey() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicInteger runs = new AtomicInteger();
+		final Runnable task = new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			}
+		};
+
+		assertTrue(cut.refresh("key", task));
+		assertFalse(cut.refresh("key", task));
+		assertEquals(1, cut.getInProgress());
+
+		release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		waitUntilIdle();
+		assertEquals(1, runs.get());
+		assertEquals(1, cut.getCompleted());
+
+		// Once done, the key can be refreshed again.
+		assertEquals(Arrays.asList("key", "other"), cut.claim(Arrays.asList("key", "other")));
+		assertEquals(Collections.emptyList(), cut.claim(Arrays.asList("key")));
+	}
+
+	@Test
+	public void testFullQueueDropsRefreshes() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final Runnable blocking = new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+
+		assertTrue(cut.refresh("running", blocking));
+		Thread.sleep(20);
+		assertTrue(cut.refresh("queued", blocking));
+		assertFalse(cut.refresh("dropped", blocking));
+		assertEquals(1, cut.getRejected());
+		assertEquals(2, cut.getInProgress());
+
+		release.countDown();
+		waitUntilIdle();
+		assertEquals(2, cut.getCompleted());
+	}
+
+	@Test
+	public void testStaleEntriesAreServedAndRefreshed() throws Throwable {
+		final InMemoryMemcachedClient client = new InMemoryMemcachedClient();
+		final CacheBase base = new CacheBase();
+		base.setCache(client);
+		base.setBackgroundRefresher(cut);
+		final AnnotationData data = new AnnotationData();
+		data.setNamespace("soft");
+		data.setSoftExpiration(60);
+
+		final Object fresh = base.toCacheValue("value", data);
+		assertTrue(fresh instanceof TimestampedValue);
+		assertFalse(base.isStale(fresh, data));
+		assertEquals("value", base.fromCacheValue(fresh));
+		assertNull(base.fromCacheValue(base.toCacheValue(new PertinentNegativeNull(), data)));
+
+		final Object stale = new TimestampedValue(System.currentTimeMillis() - 61000, "old");
+		assertTrue(base.isStale(stale, data));
+		// Values written without a soft expiration are never considered stale.
+		assertFalse(base.isStale("plain", data));
+
+		base.refreshInBackground("soft:1", data, new SingleFlight.Loader() {
+			public Object load() throws Throwable {
+				client.set("soft:1", 0, base.toCacheValue("new", data));
+				return "new";
+			}
+		});
+		waitUntilIdle();
+		assertEquals("new", base.fromCacheValue(client.get("soft:1")));
+		assertFalse(base.isStale(client.get("soft:1"), data));
+	}
+
+	@Test
+	public void testEnvelopeSerialization() throws Exception {
+		final TimestampedValue value = new TimestampedValue(1234L, "payload");
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+
+		final Object result = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals(value, result);
+		assertEquals(1234L, ((TimestampedValue) result).getLoadedAt());
+	}
+
+	@Test
+	public void testSoftExpirationValidation() throws Exception {
+		final CacheBase base = new CacheBase();
+		final AdvicePlan valid = base.buildAdvicePlan(
+				SoftTarget.class.getMethod("valid", String.class), ReadThroughSingleCache.class);
+		assertEquals(10, valid.getAnnotationData().getSoftExpiration());
+
+		final AdvicePlan invalid = base.createAdvicePlan(
+				SoftTarget.class.getMethod("invalid", String.class), ReadThroughSingleCache.class);
+		assertTrue(invalid.isBypassed());
+	}
+
+	private void waitUntilIdle() throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (cut.getInProgress() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+
+	public static class SoftTarget {
+		@ReadThroughSingleCache(namespace = "soft", expiration = 60, softExpiration = 10)
+		public String valid(@ParameterValueKeyProvider final String key) { return key; }
+
+		@ReadThroughSingleCache(namespace = "soft", expiration = 60, softExpiration = 60)
+		public String invalid(@ParameterValueKeyProvider final String key) { return key; }
+	}
+}
@@ -0,0 +1,201 @@
+package net.nelz.simplesm.aop;
+
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class BulkDeleterTest {
+	private ScriptedClient client;
+	private BulkDeleter cut;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new ScriptedClient();
+		for (int ix = 0; ix < 10; ix++) {
+			client.set("key" + ix, 0, "value" + ix);
+		}
+		cut = new BulkDeleter();
+	}
+
+	@Test
+	public void testDeletesAllKeys() {
+		final BulkDeleter.Result result = cut.delete(client, keys(10));
+
+		assertTrue(result.isComplete());
+		assertEquals(10, result.getDeleted());
+		for (int ix = 0; ix < 10; ix++) {
+			assertNull(client.get("key" + ix));
+		}
+		assertEquals(1, cut.getBatches());
+		assertEquals(10, cut.getDeleted());
+	}
+
+	@Test
+	public void testMissingKeysCountAsDeleted() {
+		final BulkDeleter.Result result = cut.delete(client, Arrays.asList("key1", "absent", "key1"));
+
+		assertTrue(result.isComplete());
+		assertEquals(2, result.getDeleted());
+		assertEquals(2, client.deletes.size());
+	}
+
+	@Test
+	public void testFailedKeysAreReported() {
+		client.outcomes.put("key2", new IllegalStateException("Queue full"));
+		client.outcomes.put("key5", new ExecutionException(new RuntimeException("Failed")));
+		final List<List<String>> handled = new ArrayList<List<String>>();
+		cut.setFailedKeysHandler(new BulkDeleter.FailedKeysHandler() {
+			public void deletesFailed(final List<String> cacheKeys) {
+				handled.add(cacheKeys);
+			}
+		});
+
+		final BulkDeleter.Result result = cut.delete(client, keys(10));
+
+		assertFalse(result.isComplete());
+		assertEquals(8, result.getDeleted());
+		assertEquals(Arrays.asList("key2", "key5"), result.getFailed());
+		assertEquals(Arrays.asList(Arrays.asList("key2", "key5")), handled);
+		assertEquals("value2", client.get("key2"));
+		assertEquals(2, cut.getFailed());
+	}
+
+	@Test
+	public void testUnacknowledgedDeletesTimeOut() {
+		cut.setDeadlineMillis(200);
+		client.outcomes.put("key3", null);
+		client.outcomes.put("key7", null);
+
+		final long start = System.currentTimeMillis();
+		final BulkDeleter.Result result = cut.delete(client, keys(10));
+		final long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals(8, result.getDeleted());
+		assertEquals(Arrays.asList("key3", "key7"), result.getTimedOut());
+		assertEquals(Arrays.asList("key3", "key7"), result.getFailedKeys());
+		assertTrue("Took " + elapsed + "ms", elapsed < 600);
+		assertEquals(2, cut.getTimedOut());
+	}
+
+	@Test
+	public void testInFlightDeletesAreBounded() {
+		cut.setMaxInFlight(3);
+
+		final BulkDeleter.Result result = cut.delete(client, keys(10));
+
+		assertTrue(result.isComplete());
+		assertEquals(3, client.maxOutstanding);
+	}
+
+	@Test
+	public void testKeysPastTheDeadlineAreNotIssued() {
+		cut.setDeadlineMillis(100);
+		cut.setMaxInFlight(1);
+		client.outcomes.put("key0", null);
+
+		final BulkDeleter.Result result = cut.delete(client, keys(10));
+
+		// key0 holds up the only slot until the deadline has passed.
+		assertEquals(1, client.deletes.size());
+		assertEquals(10, result.getTimedOut().size());
+		assertEquals("value9", client.get("key9"));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testInvalidMaxInFlight() {
+		cut.setMaxInFlight(0);
+	}
+
+	private static List<String> keys(final int count) {
+		final List<String> keys = new ArrayList<String>();
+		for (int ix = 0; ix < count; ix++) {
+			keys.add("key" + ix);
+		}
+		return keys;
+	}
+
+	/**
+	 * Completes each delete according to <code>outcomes</code>: a RuntimeException is thrown
+	 * by <code>delete</code> itself, an ExecutionException fails the future, and null means
+	 * the delete is never acknowledged. Also tracks how many deletes were outstanding at once,
+	 * counting a delete as outstanding until its future was read.
+	 */
+	private static class ScriptedClient extends InMemoryMemcachedClient {
+		private final Map<String, Object> outcomes = new HashMap<String, Object>();
+		private final List<String> deletes = new ArrayList<String>();
+		private int outstanding;
+		private int maxOutstanding;
+
+		public Future<Boolean> delete(final String key) {
+			deletes.add(key);
+			final Object outcome = outcomes.get(key);
+			if (outcome instanceof RuntimeException) {
+				throw (RuntimeException) outcome;
+			}
+			outstanding++;
+			maxOutstanding = Math.max(maxOutstanding, outstanding);
+			if (!outcomes.containsKey(key)) {
+				return track(super.delete(key));
+			}
+			final FutureTask<Boolean> future = new FutureTask<Boolean>(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					throw (Exception) ((ExecutionException) outcome).getCause();
+				}
+			});
+			if (outcome != null) {
+				future.run();
+			}
+			return track(future);
+		}
+
+		private Future<Boolean> track(final Future<Boolean> future) {
+			return new Future<Boolean>() {
+				public boolean cancel(final boolean mayInterrupt) {
+					return future.cancel(mayInterrupt);
+				}
+
+				public boolean isCancelled() {
+					return future.isCancelled();
+				}
+
+				public boolean isDone() {
+					return future.isDone();
+				}
+
+				public Boolean get() throws InterruptedException, ExecutionException {
+					outstanding--;
+					return future.get();
+				}
+
+				public Boolean get(final long timeout, final TimeUnit unit)
+						throws InterruptedException, ExecutionException, TimeoutException {
+					outstanding--;
+					return future.get(timeout, unit);
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import net.nelz.simplesm.exceptions.*;
+import org.springframework.context.event.*;
+import org.springframework.context.support.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class CacheAnnotationScannerTest {
+	private CacheAnnotationScanner cut;
+	private StaticApplicationContext context;
+	private ReadThroughSingleCacheAdvice singleAdvice;
+	private UpdateSingleCacheAdvice updateAdvice;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		singleAdvice = new ReadThroughSingleCacheAdvice();
+		updateAdvice = new UpdateSingleCacheAdvice();
+		context = new StaticApplicationContext();
+		context.getBeanFactory().registerSingleton("readThroughSingleCache", singleAdvice);
+		context.getBeanFactory().registerSingleton("updateSingleCache", updateAdvice);
+
+		cut = new CacheAnnotationScanner();
+		cut.setApplicationContext(context);
+	}
+
+	@Test
+	public void testFindAnnotatedMethods() {
+		final List<CacheAnnotationScanner.AnnotatedMethod> methods =
+				CacheAnnotationScanner.findAnnotatedMethods(ValidBean.class);
+		final Set<Class> annotationClasses = new HashSet<Class>();
+		for (final CacheAnnotationScanner.AnnotatedMethod method : methods) {
+			annotationClasses.add(method.annotationClass);
+		}
+		assertTrue(annotationClasses.contains(ReadThroughSingleCache.class));
+		assertTrue(annotationClasses.contains(UpdateSingleCache.class));
+		assertTrue(annotationClasses.contains(ReturnDataUpdateContent.class));
+		assertEquals(0, CacheAnnotationScanner.findAnnotatedMethods(String.class).size());
+	}
+
+	@Test
+	public void testPlansArePreparedOnRefresh() {
+		cut.postProcessBeforeInitialization(new ValidBean(), "validBean");
+		assertEquals(0, singleAdvice.plans.size());
+
+		cut.onApplicationEvent(new ContextRefreshedEvent(context));
+
+		assertEquals(1, singleAdvice.plans.size());
+		assertEquals(1, updateAdvice.plans.size());
+		assertFalse(singleAdvice.plans.values().iterator().next().isBypassed());
+
+		// Beans created after the refresh are prepared straight away.
+		cut.postProcessBeforeInitialization(new InvalidBean(), "invalidBean");
+		assertEquals(3, singleAdvice.plans.size());
+	}
+
+	@Test
+	public void testInvalidMethodsAreBypassed() throws Exception {
+		cut.postProcessBeforeInitialization(new InvalidBean(), "invalidBean");
+		cut.onApplicationEvent(new ContextRefreshedEvent(context));
+
+		final AdvicePlan noKey = singleAdvice.prepareAdvicePlan(InvalidBean.class,
+				InvalidBean.class.getMethod("noKey", String.class), ReadThroughSingleCache.class);
+		assertTrue(noKey.isBypassed());
+		assertNotNull(noKey.getBypassReason());
+
+		final AdvicePlan notSerializable = singleAdvice.prepareAdvicePlan(InvalidBean.class,
+				InvalidBean.class.getMethod("notSerializable", String.class), ReadThroughSingleCache.class);
+		assertTrue(notSerializable.isBypassed());
+		assertTrue(notSerializable.getBypassReason().getMessage().indexOf("Serializable") != -1);
+	}
+
+	@Test
+	public void testFailOnInvalidAnnotation() {
+		cut.setFailOnInvalidAnnotation(true);
+		cut.postProcessBeforeInitialization(new InvalidBean(), "invalidBean");
+		try {
+			cut.onApplicationEvent(new ContextRefreshedEvent(context));
+			fail("Expected exception.");
+		} catch (InvalidAnnotationException ex) {
+			assertTrue(ex.getMessage().indexOf("noKey") != -1);
+			assertTrue(ex.getMessage().indexOf("notSerializable") != -1);
+		}
+	}
+
+	@Test
+	public void testSlidingReadsOfWrittenNamespacesFailTheStartup() {
+		final NamespaceRegistry registry = new NamespaceRegistry();
+		singleAdvice.setNamespaceRegistry(registry);
+		updateAdvice.setNamespaceRegistry(registry);
+		cut.setFailOnInvalidAnnotation(true);
+		cut.postProcessBeforeInitialization(new SlidingBean(), "slidingBean");
+		try {
+			cut.onApplicationEvent(new ContextRefreshedEvent(context));
+			fail("Expected exception.");
+		} catch (InvalidAnnotationException ex) {
+			// The read-through is rejected, whatever the order of the methods.
+			assertTrue(ex.getMessage().indexOf("read(") != -1);
+			assertTrue(ex.getMessage().indexOf("update(") == -1);
+		}
+		assertFalse(updateAdvice.plans.values().iterator().next().isBypassed());
+	}
+
+	public static class ValidBean {
+		@ReadThroughSingleCache(namespace = "valid", expiration = 30)
+		public String read(@ParameterValueKeyProvider final String key) { return key; }
+
+		@UpdateSingleCache(namespace = "valid", expiration = 30)
+		@ReturnDataUpdateContent
+		public String update(@ParameterValueKeyProvider final String key) { return key; }
+	}
+
+	public static class InvalidBean {
+		@ReadThroughSingleCache(namespace = "invalid", expiration = 30)
+		public String noKey(final String key) { return key; }
+
+		@ReadThroughSingleCache(namespace = "invalid", expiration = 30)
+		public Thread notSerializable(@ParameterValueKeyProvider final String key) { return null; }
+	}
+
+	public static class SlidingBean {
+		@ReadThroughSingleCache(namespace = "sessions", expiration = 30, slidingExpiration = true)
+		public String read(@ParameterValueKeyProvider final String key) { return key; }
+
+		@UpdateSingleCache(namespace = "sessions", expiration = 30)
+		@ReturnDataUpdateContent
+		public String update(@ParameterValueKeyProvider final String key) { return key; }
+	}
+}
@@ -2,6 +2,9 @@ package net.nelz.simplesm.aop;
 
 import net.nelz.simplesm.api.*;
 import net.nelz.simplesm.exceptions.*;
+import net.nelz.simplesm.nearcache.*;
+import net.spy.memcached.*;
+import static org.easymock.EasyMock.*;
 import org.apache.commons.lang.*;
 import static org.testng.AssertJUnit.*;
 import org.testng.annotations.*;
@@ -110,24 +113,96 @@ public class CacheBaseTest {
 
 	@Test
 	public void testGenerateCacheKey() throws Exception {
-		final Method method = KeyObject.class.getMethod("toString", null);
-
 		try {
-			cut.generateObjectId(method, new KeyObject(null));
+			cut.generateObjectId(new KeyObject(null));
 			fail("Expected Exception.");
 		} catch (RuntimeException ex) {
 			assertTrue(ex.getMessage().indexOf("empty key value") != -1);
 		}
 
 		try {
-			cut.generateObjectId(method, new KeyObject(""));
+			cut.generateObjectId(new KeyObject(""));
 			fail("Expected Exception.");
 		} catch (RuntimeException ex) {
 			assertTrue(ex.getMessage().indexOf("empty key value") != -1);
 		}
 
 		final String result = "momma";
-		assertEquals(result, cut.generateObjectId(method, new KeyObject(result)));
+		assertEquals(result, cut.generateObjectId(new KeyObject(result)));
+	}
+
+	@Test
+	public void testKeyAccessor() throws Exception {
+		final CacheKeyAccessor annotated = cut.getKeyAccessor(new KeyObject05());
+		assertTrue(annotated instanceof CacheKeyAccessor.MethodAccessor);
+		assertEquals("doIt", annotated.getMethod().getName());
+		assertEquals(KeyObject05.result, annotated.getObjectId(new KeyObject05()));
+		assertSame(annotated, cut.getKeyAccessor(new KeyObject05()));
+
+		final CacheKeyAccessor fallback = cut.getKeyAccessor(new KeyObject06("clam"));
+		assertTrue(fallback instanceof CacheKeyAccessor.ToStringAccessor);
+		assertEquals("toString", fallback.getMethod().getName());
+		assertEquals("clam", cut.generateObjectId(new KeyObject06("clam")));
+
+		try {
+			cut.generateObjectId(new KeyObject06(""));
+			fail("Expected Exception.");
+		} catch (RuntimeException ex) {
+			assertTrue(ex.getMessage().indexOf("empty key value") != -1);
+		}
+	}
+
+	@Test
+	public void testKeyAccessorOfOtherMethodStores() throws Exception {
+		final Map<Class, Method> methods = new HashMap<Class, Method>();
+		final CacheBase base = new CacheBase();
+		base.setMethodStore(new CacheKeyMethodStore() {
+			public void add(final Class key, final Method value) {
+				methods.put(key, value);
+			}
+
+			public Method find(final Class key) {
+				return methods.get(key);
+			}
+		});
+
+		assertEquals(KeyObject05.result, base.generateObjectId(new KeyObject05()));
+		assertEquals("doIt", methods.get(KeyObject05.class).getName());
+		assertEquals("clam", base.generateObjectId(new KeyObject06("clam")));
+		assertEquals("toString", base.getKeyMethod(new KeyObject06("clam")).getName());
+	}
+
+	@Test
+	public void testNearCacheLayering() throws Exception {
+		final AnnotationData data = new AnnotationData();
+		data.setNamespace("near");
+		data.setExpiration(30);
+		final SegmentedLruNearCache nearCache = new SegmentedLruNearCache();
+		final Map<String, NearCache> caches = new HashMap<String, NearCache>();
+		caches.put("near", nearCache);
+		final NearCacheManager manager = new NearCacheManager();
+		manager.setCaches(caches);
+
+		final CacheBase base = new CacheBase();
+		final MemcachedClientIF cache = createMock(MemcachedClientIF.class);
+		base.setCache(cache);
+		base.setNearCacheManager(manager);
+
+		// Only the first read goes to memcached, the second is served locally.
+		expect(cache.get("near:1")).andReturn("one");
+		expect(cache.set("near:2", 30, "two")).andReturn(null);
+		expect(cache.delete("near:1")).andReturn(null);
+		expect(cache.get("near:1")).andReturn(null);
+		replay(cache);
+
+		assertEquals("one", base.getFromCache("near:1", data));
+		assertEquals("one", base.getFromCache("near:1", data));
+		base.setInCache("near:2", data, "two");
+		assertEquals("two", nearCache.get("near:2"));
+		base.deleteFromCache("near:1", data);
+		assertNull(base.getFromCache("near:1", data));
+
+		verify(cache);
 	}
 
 	@Test
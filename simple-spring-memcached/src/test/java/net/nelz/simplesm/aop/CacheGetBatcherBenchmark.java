@@ -0,0 +1,151 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Compares plain single-key gets with gets merged by <code>CacheGetBatcher</code> against
+ * a simulated memcached: every request costs a fixed network round trip, plus a fixed
+ * amount of work (and a little per key) on a single, shared connection, which is what
+ * limits the throughput of individual gets. Run the <code>main</code> method directly;
+ * it is not part of the test suite.
+ */
+public class CacheGetBatcherBenchmark {
+	private static final long ROUND_TRIP_NANOS = 200000;
+	private static final long REQUEST_NANOS = 20000;
+	private static final long KEY_NANOS = 1000;
+	private static final int GETS_PER_THREAD = 2000;
+
+	public static void main(final String[] args) throws Exception {
+		final SimulatedClient client = new SimulatedClient();
+		for (int pass = 0; pass < 2; pass++) {
+			for (final int threads : new int[] {4, 16, 64}) {
+				run("direct      ", threads, client, null);
+				for (final long window : new long[] {50, 200}) {
+					final CacheGetBatcher batcher = new CacheGetBatcher();
+					batcher.setCache(client);
+					batcher.setEnabled(true);
+					batcher.setWindowMicros(window);
+					run(String.format("batch %3dus ", window), threads, client, batcher);
+				}
+			}
+			System.out.println();
+		}
+	}
+
+	private static void run(final String label,
+	                        final int threads,
+	                        final SimulatedClient client,
+	                        final CacheGetBatcher batcher) throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final long[] latencies = new long[threads * GETS_PER_THREAD];
+		final AtomicInteger slot = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int ix = 0; ix < threads; ix++) {
+			final int thread = ix;
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					start.await();
+					for (int jx = 0; jx < GETS_PER_THREAD; jx++) {
+						final String key = "key" + thread + "-" + jx;
+						final long begin = System.nanoTime();
+						if (batcher == null) {
+							client.get(key);
+						} else {
+							batcher.get(key);
+						}
+						latencies[slot.getAndIncrement()] = System.nanoTime() - begin;
+					}
+					return null;
+				}
+			}));
+		}
+
+		final long begin = System.nanoTime();
+		start.countDown();
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+		final long elapsed = System.nanoTime() - begin;
+		executor.shutdown();
+
+		Arrays.sort(latencies);
+		long total = 0;
+		for (final long latency : latencies) {
+			total += latency;
+		}
+		System.out.println(String.format(
+				"%s threads=%2d: %8.0f gets/s, latency avg %6.0fus p99 %6.0fus%s",
+				label,
+				threads,
+				latencies.length / (elapsed / 1e9),
+				total / 1000.0 / latencies.length,
+				latencies[(int) (latencies.length * 0.99)] / 1000.0,
+				batcher == null ? "" : String.format(", %.1f keys/batch", batcher.getAverageBatchSize())));
+	}
+
+	/**
+	 * Requests share one connection, which is busy for <code>REQUEST_NANOS</code> (plus
+	 * <code>KEY_NANOS</code> per key) each; the round trip itself overlaps freely.
+	 */
+	private static class SimulatedClient extends MockMemcachedClient {
+		private final Lock connection = new ReentrantLock(true);
+
+		public Object get(final String key) {
+			request(1);
+			return key;
+		}
+
+		public Map<String, Object> getBulk(final Collection<String> keys) {
+			request(keys.size());
+			final Map<String, Object> results = new HashMap<String, Object>();
+			for (final String key : keys) {
+				results.put(key, key);
+			}
+			return results;
+		}
+
+		private void request(final int keys) {
+			connection.lock();
+			try {
+				spin(REQUEST_NANOS + keys * KEY_NANOS);
+			} finally {
+				connection.unlock();
+			}
+			LockSupport.parkNanos(ROUND_TRIP_NANOS);
+		}
+
+		private static void spin(final long nanos) {
+			final long end = System.nanoTime() + nanos;
+			while (System.nanoTime() < end) {
+				// Busy, like a connection writing and reading.
+			}
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class CacheGetBatcherTest {
+	private CountingClient client;
+	private CacheGetBatcher cut;
+	private ExecutorService executor;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new CountingClient();
+		for (int ix = 0; ix < 16; ix++) {
+			client.set("key" + ix, 0, "value" + ix);
+		}
+		cut = new CacheGetBatcher();
+		cut.setCache(client);
+		cut.setEnabled(true);
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConcurrentGetsShareOneBulkGet() throws Exception {
+		cut.setWindowMicros(200000);
+		final List<Future<Object>> futures = getConcurrently(8);
+
+		for (int ix = 0; ix < 8; ix++) {
+			assertEquals("value" + ix, futures.get(ix).get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(1, client.bulkGets.get());
+		assertEquals(0, client.gets.get());
+		assertEquals(8, cut.getRequests());
+		assertEquals(1, cut.getBatches());
+		assertEquals(8.0, cut.getAverageBatchSize(), 0.0);
+		assertTrue(cut.getAverageWaitMicros() >= cut.getAverageBulkMicros());
+	}
+
+	@Test
+	public void testFullBatchesAreSentRightAway() throws Exception {
+		cut.setWindowMicros(TimeUnit.SECONDS.toMicros(30));
+		cut.setMaxBatchSize(4);
+		final long start = System.currentTimeMillis();
+		final List<Future<Object>> futures = getConcurrently(4);
+
+		for (int ix = 0; ix < 4; ix++) {
+			assertEquals("value" + ix, futures.get(ix).get(5, TimeUnit.SECONDS));
+		}
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(1, cut.getFullBatches());
+	}
+
+	@Test
+	public void testMissesAndDuplicates() {
+		cut.setWindowMicros(10);
+		assertNull(cut.get("missing"));
+		assertEquals("value1", cut.get("key1"));
+		assertEquals(2, client.bulkGets.get());
+	}
+
+	@Test
+	public void testFailuresReachEveryCaller() throws Exception {
+		cut.setWindowMicros(100000);
+		client.failing = true;
+		final List<Future<Object>> futures = getConcurrently(3);
+		for (final Future<Object> future : futures) {
+			try {
+				future.get(5, TimeUnit.SECONDS);
+				fail("Expected Exception");
+			} catch (ExecutionException ex) {
+				assertTrue(ex.getCause() instanceof RuntimeException);
+				assertEquals("down", ex.getCause().getCause().getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void testWithoutWindow() {
+		cut.setWindowMicros(0);
+		assertEquals("value1", cut.get("key1"));
+		assertEquals(1, client.gets.get());
+		assertEquals(0, client.bulkGets.get());
+	}
+
+	@Test
+	public void testCacheBaseUsesTheBatcherWhenEnabled() {
+		final CacheBase base = new CacheBase();
+		base.setCache(client);
+		base.setCacheGetBatcher(cut);
+		final AnnotationData data = new AnnotationData();
+		data.setNamespace("batch");
+
+		assertEquals("value1", base.getFromCache("key1", data));
+		assertEquals(1, client.bulkGets.get());
+
+		cut.setEnabled(false);
+		assertEquals("value2", base.getFromCache("key2", data));
+		assertEquals(1, client.gets.get());
+	}
+
+	private List<Future<Object>> getConcurrently(final int threads) {
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+		final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (int ix = 0; ix < threads; ix++) {
+			final String key = "key" + ix;
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					barrier.await();
+					return cut.get(key);
+				}
+			}));
+		}
+		return futures;
+	}
+
+	private static class CountingClient extends InMemoryMemcachedClient {
+		final AtomicInteger gets = new AtomicInteger();
+		final AtomicInteger bulkGets = new AtomicInteger();
+		volatile boolean failing;
+
+		public Object get(final String key) throws OperationTimeoutException {
+			gets.incrementAndGet();
+			return super.get(key);
+		}
+
+		public Map<String, Object> getBulk(final Collection<String> keys) throws OperationTimeoutException {
+			bulkGets.incrementAndGet();
+			if (failing) {
+				throw new IllegalStateException("down");
+			}
+			final Map<String, Object> results = new HashMap<String, Object>();
+			for (final String key : keys) {
+				final Object value = super.get(key);
+				if (value != null) {
+					results.put(key, value);
+				}
+			}
+			return results;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Compares the per-key cost of the old <code>Method.invoke(keyObject, null)</code> path
+ * with the prepared <code>CacheKeyAccessor</code>. Run the <code>main</code> method
+ * directly; it is not part of the test suite.
+ */
+public class CacheKeyAccessorBenchmark {
+	private static final int KEYS = 500;
+	private static final int ROUNDS = 20000;
+
+	public static void main(final String[] args) throws Exception {
+		final List<Object> annotated = new ArrayList<Object>();
+		final List<Object> plain = new ArrayList<Object>();
+		for (int ix = 0; ix < KEYS; ix++) {
+			annotated.add(new AnnotatedKey("id-" + ix));
+			plain.add(new PlainKey("id-" + ix));
+		}
+
+		final Method annotatedMethod = AnnotatedKey.class.getMethod("getKey", null);
+		final Method plainMethod = PlainKey.class.getMethod("toString", null);
+		final CacheKeyAccessor annotatedAccessor = CacheKeyAccessor.forMethod(annotatedMethod);
+		final CacheKeyAccessor plainAccessor = CacheKeyAccessor.forMethod(plainMethod);
+
+		// Two passes, so the second one reports numbers after the JIT has warmed up.
+		for (int pass = 0; pass < 2; pass++) {
+			report("@CacheKeyMethod, Method.invoke", reflective(annotatedMethod, annotated));
+			report("@CacheKeyMethod, accessor     ", accessor(annotatedAccessor, annotated));
+			report("toString(),      Method.invoke", reflective(plainMethod, plain));
+			report("toString(),      accessor     ", accessor(plainAccessor, plain));
+			System.out.println();
+		}
+	}
+
+	private static long reflective(final Method method, final List<Object> keys) throws Exception {
+		long length = 0;
+		final long start = System.nanoTime();
+		for (int round = 0; round < ROUNDS; round++) {
+			for (final Object key : keys) {
+				length += ((String) method.invoke(key, null)).length();
+			}
+		}
+		consume(length);
+		return System.nanoTime() - start;
+	}
+
+	private static long accessor(final CacheKeyAccessor accessor, final List<Object> keys) throws Exception {
+		long length = 0;
+		final long start = System.nanoTime();
+		for (int round = 0; round < ROUNDS; round++) {
+			for (final Object key : keys) {
+				length += accessor.getKey(key).length();
+			}
+		}
+		consume(length);
+		return System.nanoTime() - start;
+	}
+
+	private static void report(final String label, final long nanos) {
+		System.out.println(String.format("%s: %6.1f ns/key", label, (double) nanos / (KEYS * (long) ROUNDS)));
+	}
+
+	private static void consume(final long value) {
+		if (value == 42) { System.out.println(); }
+	}
+
+	public static class AnnotatedKey {
+		private final String key;
+		public AnnotatedKey(final String key) { this.key = key; }
+		@CacheKeyMethod
+		public String getKey() { return key; }
+	}
+
+	public static class PlainKey {
+		private final String key;
+		public PlainKey(final String key) { this.key = key; }
+		public String toString() { return key; }
+	}
+}
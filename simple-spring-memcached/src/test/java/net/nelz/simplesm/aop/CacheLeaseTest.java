@@ -0,0 +1,161 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class CacheLeaseTest {
+	private static final String KEY = "lease:1";
+
+	private InMemoryMemcachedClient client;
+	private CacheBase node1;
+	private CacheBase node2;
+	private AnnotationData data;
+	private ExecutorService executor;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		// Two nodes sharing one memcached.
+		client = new InMemoryMemcachedClient();
+		node1 = new CacheBase();
+		node1.setCache(client);
+		node2 = new CacheBase();
+		node2.setCache(client);
+
+		data = new AnnotationData();
+		data.setNamespace("lease");
+		data.setLeaseExpiration(5);
+		data.setLeaseWaitMillis(5000);
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testOnlyTheLeaseHolderLoads() throws Exception {
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final Future<Object> first = executor.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				return load(node1, new SingleFlight.Loader() {
+					public Object load() throws Throwable {
+						loads.incrementAndGet();
+						release.await();
+						client.set(KEY, 0, "loaded");
+						return "loaded";
+					}
+				});
+			}
+		});
+		waitFor(node1.getLeaseKey(KEY));
+
+		final Future<Object> second = executor.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				return load(node2, new SingleFlight.Loader() {
+					public Object load() throws Throwable {
+						loads.incrementAndGet();
+						return "loaded again";
+					}
+				});
+			}
+		});
+		Thread.sleep(20);
+		release.countDown();
+
+		assertEquals("loaded", first.get(5, TimeUnit.SECONDS));
+		assertEquals("loaded", second.get(5, TimeUnit.SECONDS));
+		assertEquals(1, loads.get());
+		assertFalse(client.contains(node1.getLeaseKey(KEY)));
+	}
+
+	@Test
+	public void testLoadAfterTheWaitBudget() throws Throwable {
+		data.setLeaseWaitMillis(30);
+		client.add(node1.getLeaseKey(KEY), 5, "held by another node");
+
+		final long start = System.currentTimeMillis();
+		assertEquals("mine", node2.loadWithLease(KEY, data, new SingleFlight.Loader() {
+			public Object load() throws Throwable {
+				return "mine";
+			}
+		}));
+		assertTrue(System.currentTimeMillis() - start >= 30);
+		// Somebody else's lease is left alone.
+		assertEquals("held by another node", client.get(node1.getLeaseKey(KEY)));
+	}
+
+	@Test
+	public void testNoLeaseByDefault() throws Throwable {
+		data.setLeaseExpiration(0);
+		assertEquals("mine", node1.loadWithLease(KEY, data, new SingleFlight.Loader() {
+			public Object load() throws Throwable {
+				assertFalse(client.contains(node1.getLeaseKey(KEY)));
+				return "mine";
+			}
+		}));
+	}
+
+	@Test
+	public void testLeaseAttributes() throws Exception {
+		final AdvicePlan leased = node1.buildAdvicePlan(
+				LeaseTarget.class.getMethod("leased", String.class), ReadThroughSingleCache.class);
+		assertEquals(10, leased.getAnnotationData().getLeaseExpiration());
+		assertEquals(250, leased.getAnnotationData().getLeaseWaitMillis());
+
+		final AdvicePlan plain = node1.buildAdvicePlan(
+				LeaseTarget.class.getMethod("plain", String.class), ReadThroughSingleCache.class);
+		assertEquals(0, plain.getAnnotationData().getLeaseExpiration());
+	}
+
+	private Object load(final CacheBase node, final SingleFlight.Loader loader) throws Exception {
+		try {
+			return node.loadWithLease(KEY, data, loader);
+		} catch (Exception ex) {
+			throw ex;
+		} catch (Throwable ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private void waitFor(final String key) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (!client.contains(key) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+
+	public static class LeaseTarget {
+		@ReadThroughSingleCache(namespace = "lease", leaseExpiration = 10, leaseWaitMillis = 250)
+		public String leased(@ParameterValueKeyProvider final String key) { return key; }
+
+		@ReadThroughSingleCache(namespace = "lease")
+		public String plain(@ParameterValueKeyProvider final String key) { return key; }
+	}
+}
@@ -0,0 +1,289 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import net.nelz.simplesm.impl.*;
+import net.nelz.simplesm.nearcache.*;
+import net.spy.memcached.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Runs the read-through advices against a memcached that fails part way through a call,
+ * and checks that the target method still runs only once.
+ */
+public class CachingFailureTest {
+	private BrownoutClient client;
+	private Target target;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new BrownoutClient();
+		target = new Target();
+	}
+
+	@Test
+	public void testSingleWithFailingWrites() throws Throwable {
+		client.failWrites = true;
+
+		assertEquals("value-1", single().cacheGetSingle(TargetJoinPoint.create(target, "single", "1")));
+		assertEquals(1, target.calls.size());
+	}
+
+	@Test
+	public void testSingleWithFailingReads() throws Throwable {
+		client.healthyReads = 0;
+
+		assertEquals("value-1", single().cacheGetSingle(TargetJoinPoint.create(target, "single", "1")));
+		assertEquals(1, target.calls.size());
+	}
+
+	@Test
+	public void testSingleWaitingForALeaseWhileReadsFail() throws Throwable {
+		final ReadThroughSingleCacheAdvice advice = single();
+		// Another node holds the lease, and the cache stops answering reads after the first.
+		client.add(advice.getLeaseKey("leased:1"), 10, "another node");
+		client.healthyReads = 1;
+
+		assertEquals("value-1", advice.cacheGetSingle(TargetJoinPoint.create(target, "leasedSingle", "1")));
+		assertEquals(1, target.calls.size());
+	}
+
+	@Test
+	public void testMultiWithFailingWrites() throws Throwable {
+		client.set("multi:1", 0, "cached-1");
+		client.failWrites = true;
+
+		final List<String> keys = new ArrayList<String>(Arrays.asList("1", "2", "3"));
+		assertEquals(Arrays.asList("cached-1", "value-2", "value-3"),
+				multi().cacheMulti(TargetJoinPoint.create(target, "multi", keys)));
+		assertEquals(1, target.calls.size());
+		assertEquals(new HashSet<String>(Arrays.asList("2", "3")), new HashSet<Object>((List) target.calls.get(0)));
+	}
+
+	@Test
+	public void testMultiWithFailingReads() throws Throwable {
+		client.healthyReads = 0;
+
+		final List<String> keys = new ArrayList<String>(Arrays.asList("1", "2"));
+		assertEquals(Arrays.asList("value-1", "value-2"), multi().cacheMulti(TargetJoinPoint.create(target, "multi", keys)));
+		assertEquals(1, target.calls.size());
+	}
+
+	@Test
+	public void testMultiWithFailingNearCache() throws Throwable {
+		final ReadThroughMultiCacheAdvice advice = multi();
+		final NearCacheManager manager = new NearCacheManager();
+		manager.setCaches(Collections.singletonMap("multi", (NearCache) new BrokenNearCache()));
+		advice.setNearCacheManager(manager);
+
+		final List<String> keys = new ArrayList<String>(Arrays.asList("1", "2"));
+		assertEquals(Arrays.asList("value-1", "value-2"), advice.cacheMulti(TargetJoinPoint.create(target, "multi", keys)));
+		assertEquals(1, target.calls.size());
+	}
+
+	@Test
+	public void testMultiReturningTooFewResults() throws Throwable {
+		client.set("short:1", 0, "cached-1");
+
+		final List<String> keys = new ArrayList<String>(Arrays.asList("1", "2", "3"));
+		try {
+			multi().cacheMulti(TargetJoinPoint.create(target, "tooFew", keys));
+			fail("Expected exception.");
+		} catch (RuntimeException ex) {
+			assertTrue(ex.getMessage().indexOf("1 results for 2 keys") != -1);
+		}
+		// The method is not called a second time, with all of the keys.
+		assertEquals(1, target.calls.size());
+		assertEquals(2, ((List) target.calls.get(0)).size());
+	}
+
+	@Test
+	public void testMultiFailingToWrapResults() throws Throwable {
+		final ReadThroughMultiCacheAdvice advice = new ReadThroughMultiCacheAdvice() {
+			protected Object toCacheValue(final Object submission, final AnnotationData data) {
+				throw new IllegalStateException("Unable to wrap");
+			}
+		};
+		advice.setCache(client);
+		advice.setMethodStore(new CacheKeyMethodStoreImpl());
+
+		final List<String> keys = new ArrayList<String>(Arrays.asList("1", "2"));
+		assertEquals(Arrays.asList("value-1", "value-2"), advice.cacheMulti(TargetJoinPoint.create(target, "multi", keys)));
+		assertEquals(1, target.calls.size());
+	}
+
+	@Test
+	public void testMultiWaitingForLeasesWhileReadsFail() throws Throwable {
+		final ReadThroughMultiCacheAdvice advice = multi();
+		client.add(advice.getLeaseKey("leasedMulti:2"), 10, "another node");
+		client.healthyReads = 1;
+
+		final List<String> keys = new ArrayList<String>(Arrays.asList("1", "2"));
+		assertEquals(Arrays.asList("value-1", "value-2"), advice.cacheMulti(TargetJoinPoint.create(target, "leasedMulti", keys)));
+		// Once for the leased key, once for the one another node was supposed to load.
+		assertEquals(Arrays.asList(Arrays.asList("1"), Arrays.asList("2")), target.calls);
+	}
+
+	private ReadThroughSingleCacheAdvice single() {
+		final ReadThroughSingleCacheAdvice advice = new ReadThroughSingleCacheAdvice();
+		advice.setCache(client);
+		advice.setMethodStore(new CacheKeyMethodStoreImpl());
+		return advice;
+	}
+
+	private ReadThroughMultiCacheAdvice multi() {
+		final ReadThroughMultiCacheAdvice advice = new ReadThroughMultiCacheAdvice();
+		advice.setCache(client);
+		advice.setMethodStore(new CacheKeyMethodStoreImpl());
+		return advice;
+	}
+
+	/**
+	 * Starts failing reads after <code>healthyReads</code> of them, and writes when
+	 * <code>failWrites</code> is set, the way a client does during a memcached brownout.
+	 */
+	private static class BrownoutClient extends InMemoryMemcachedClient {
+		private int healthyReads = Integer.MAX_VALUE;
+		private boolean failWrites;
+
+		// The in-memory client reads through get() itself; only count the outermost call.
+		private int depth;
+
+		private void read() {
+			if (depth == 0 && healthyReads-- <= 0) {
+				throw new OperationTimeoutException("Timeout waiting for value");
+			}
+		}
+
+		private void write() {
+			if (depth == 0 && failWrites) {
+				throw new IllegalStateException("Timed out waiting to add");
+			}
+		}
+
+		public Object get(final String key) {
+			read();
+			depth++;
+			try {
+				return super.get(key);
+			} finally {
+				depth--;
+			}
+		}
+
+		public Map<String, Object> getBulk(final Collection<String> keys) {
+			read();
+			depth++;
+			try {
+				return super.getBulk(keys);
+			} finally {
+				depth--;
+			}
+		}
+
+		public Future<Boolean> set(final String key, final int exp, final Object value) {
+			write();
+			return super.set(key, exp, value);
+		}
+
+		public Future<Boolean> add(final String key, final int exp, final Object value) {
+			write();
+			depth++;
+			try {
+				return super.add(key, exp, value);
+			} finally {
+				depth--;
+			}
+		}
+
+		public Future<Boolean> delete(final String key) {
+			write();
+			return super.delete(key);
+		}
+	}
+
+	private static class BrokenNearCache implements NearCache {
+		public Object get(final String key) {
+			return null;
+		}
+
+		public void put(final String key, final Object value) {
+			throw new IllegalStateException("Broken");
+		}
+
+		public void remove(final String key) {
+			throw new IllegalStateException("Broken");
+		}
+
+		public void clear() {
+		}
+
+		public int size() {
+			return 0;
+		}
+	}
+
+	public static class Target {
+		private final List<Object> calls = new CopyOnWriteArrayList<Object>();
+
+		@ReadThroughSingleCache(namespace = "single")
+		public String single(@ParameterValueKeyProvider final String key) {
+			calls.add(key);
+			return "value-" + key;
+		}
+
+		@ReadThroughSingleCache(namespace = "leased", leaseExpiration = 10, leaseWaitMillis = 200)
+		public String leasedSingle(@ParameterValueKeyProvider final String key) {
+			calls.add(key);
+			return "value-" + key;
+		}
+
+		@ReadThroughMultiCache(namespace = "multi")
+		public List<String> multi(@ParameterValueKeyProvider final List<String> keys) {
+			return load(keys);
+		}
+
+		@ReadThroughMultiCache(namespace = "leasedMulti", leaseExpiration = 10, leaseWaitMillis = 200)
+		public List<String> leasedMulti(@ParameterValueKeyProvider final List<String> keys) {
+			return load(keys);
+		}
+
+		@ReadThroughMultiCache(namespace = "short")
+		public List<String> tooFew(@ParameterValueKeyProvider final List<String> keys) {
+			return load(keys).subList(0, 1);
+		}
+
+		private List<String> load(final List<String> keys) {
+			calls.add(new ArrayList<String>(keys));
+			final List<String> results = new ArrayList<String>();
+			for (final String key : keys) {
+				results.add("value-" + key);
+			}
+			return results;
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import net.nelz.simplesm.exceptions.*;
+import net.spy.memcached.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class CasUpdateTest {
+	private static final String KEY = "versioned:1";
+
+	private RacingClient client;
+	private CacheBase cut;
+	private AnnotationData data;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new RacingClient();
+		cut = new CacheBase();
+		cut.setCache(client);
+		data = new AnnotationData();
+		data.setNamespace("versioned");
+		data.setCasRetries(3);
+	}
+
+	@Test
+	public void testNewerVersionsAreWritten() {
+		assertTrue(cut.casInCache(KEY, data, new Item(1, "first")));
+		assertTrue(cut.casInCache(KEY, data, new Item(2, "second")));
+		assertEquals("second", ((Item) client.get(KEY)).name);
+	}
+
+	@Test
+	public void testOlderVersionsAreNotWritten() {
+		client.set(KEY, 0, new Item(5, "newer"));
+
+		assertFalse(cut.casInCache(KEY, data, new Item(4, "older")));
+		assertFalse(cut.casInCache(KEY, data, new Item(5, "same")));
+		assertEquals("newer", ((Item) client.get(KEY)).name);
+	}
+
+	@Test
+	public void testUpdatesGoThroughSetInCache() {
+		client.set(KEY, 0, new Item(5, "newer"));
+		cut.setInCache(KEY, data, new Item(4, "older"));
+		assertEquals("newer", ((Item) client.get(KEY)).name);
+
+		data.setCasRetries(0);
+		cut.setInCache(KEY, data, new Item(4, "older"));
+		assertEquals("older", ((Item) client.get(KEY)).name);
+	}
+
+	@Test
+	public void testRetriesWhenAnotherNodeWritesInBetween() {
+		client.set(KEY, 0, new Item(1, "first"));
+		client.interferences = 2;
+
+		assertTrue(cut.casInCache(KEY, data, new Item(10, "mine")));
+		assertEquals("mine", ((Item) client.get(KEY)).name);
+		assertEquals(3, client.casCalls);
+	}
+
+	@Test
+	public void testNewerWriteInBetweenWins() {
+		client.set(KEY, 0, new Item(1, "first"));
+		client.interferences = 1;
+		client.interferingVersion = 20;
+
+		assertFalse(cut.casInCache(KEY, data, new Item(10, "mine")));
+		assertEquals("other", ((Item) client.get(KEY)).name);
+	}
+
+	@Test
+	public void testGivesUpAndDeletesAfterTheRetries() {
+		client.set(KEY, 0, new Item(1, "first"));
+		client.interferences = Integer.MAX_VALUE;
+
+		assertFalse(cut.casInCache(KEY, data, new Item(10, "mine")));
+		assertEquals(4, client.casCalls);
+		assertNull(client.get(KEY));
+	}
+
+	@Test
+	public void testUnversionedValuesAreSet() {
+		client.set(KEY, 0, new Item(5, "versioned"));
+
+		assertTrue(cut.casInCache(KEY, data, "plain"));
+		assertEquals("plain", client.get(KEY));
+		assertTrue(cut.casInCache(KEY, data, new PertinentNegativeNull()));
+		assertEquals(0, client.casCalls);
+	}
+
+	@Test
+	public void testPrimitiveVersions() {
+		assertEquals(7L, cut.getVersion(new Item(7, "seven")));
+		assertNull(cut.getVersion("no version"));
+		assertNull(cut.getVersion(null));
+	}
+
+	@Test(expectedExceptions = InvalidAnnotationException.class)
+	public void testInvalidVersionMethod() {
+		cut.getVersion(new BadItem());
+	}
+
+	@Test
+	public void testValidation() throws Exception {
+		final AdvicePlan valid = cut.buildAdvicePlan(
+				Target.class.getMethod("valid", String.class, Item.class), UpdateSingleCache.class);
+		assertEquals(2, valid.getAnnotationData().getCasRetries());
+
+		assertTrue(cut.createAdvicePlan(
+				Target.class.getMethod("expiring", String.class, Item.class), UpdateSingleCache.class).isBypassed());
+		assertTrue(cut.createAdvicePlan(
+				Target.class.getMethod("behind", String.class, Item.class), UpdateSingleCache.class).isBypassed());
+	}
+
+	public static class Item implements Serializable {
+		private final long version;
+		private final String name;
+
+		public Item(final long version, final String name) {
+			this.version = version;
+			this.name = name;
+		}
+
+		@CacheVersionMethod
+		public long getVersion() {
+			return version;
+		}
+	}
+
+	public static class BadItem implements Serializable {
+		@CacheVersionMethod
+		public Object getVersion() {
+			return null;
+		}
+	}
+
+	/**
+	 * Lets another node write the key between this node's gets and cas, <code>interferences</code> times.
+	 */
+	private static class RacingClient extends InMemoryMemcachedClient {
+		private int interferences;
+		private long interferingVersion = 0;
+		private int casCalls;
+
+		public CASResponse cas(final String key, final long casId, final Object value) {
+			casCalls++;
+			if (interferences > 0) {
+				interferences--;
+				set(key, 0, new Item(interferingVersion, "other"));
+			}
+			return super.cas(key, casId, value);
+		}
+	}
+
+	public static class Target {
+		@UpdateSingleCache(namespace = "versioned", casRetries = 2)
+		public void valid(@ParameterValueKeyProvider final String key, @ParameterDataUpdateContent final Item item) { }
+
+		@UpdateSingleCache(namespace = "versioned", casRetries = 2, expiration = 60)
+		public void expiring(@ParameterValueKeyProvider final String key, @ParameterDataUpdateContent final Item item) { }
+
+		@UpdateSingleCache(namespace = "versioned", casRetries = 2, writeBehind = true)
+		public void behind(@ParameterValueKeyProvider final String key, @ParameterDataUpdateContent final Item item) { }
+	}
+}
@@ -0,0 +1,181 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class CounterCacheTest {
+	private InMemoryMemcachedClient client;
+	private Target target;
+	private IncrementCacheAdvice increment;
+	private DecrementCacheAdvice decrement;
+	private ReadCounterCacheAdvice read;
+	private CounterBatcher batcher;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new InMemoryMemcachedClient();
+		target = new Target();
+		batcher = new CounterBatcher();
+		batcher.setCache(client);
+		batcher.setFlushMillis(60 * 60 * 1000);
+		increment = new IncrementCacheAdvice();
+		decrement = new DecrementCacheAdvice();
+		read = new ReadCounterCacheAdvice();
+		for (final CacheBase advice : Arrays.asList(increment, decrement, read)) {
+			advice.setCache(client);
+			advice.setMethodStore(new CacheKeyMethodStoreImpl());
+			advice.setCounterBatcher(batcher);
+		}
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		batcher.shutdown();
+	}
+
+	@Test
+	public void testIncrementCreatesTheCounter() throws Throwable {
+		increment.cacheIncrement(TargetJoinPoint.create(target, "view", "1"), null);
+		// Created with the initial value plus the increment, as a plain number.
+		assertEquals("11", client.get("views:1"));
+
+		increment.cacheIncrement(TargetJoinPoint.create(target, "view", "1"), null);
+		assertEquals("12", client.get("views:1"));
+	}
+
+	@Test
+	public void testDecrementNeverGoesBelowZero() throws Throwable {
+		client.set("quota:1", 0, "7");
+
+		decrement.cacheDecrement(TargetJoinPoint.create(target, "release", "1"), null);
+		assertEquals("2", client.get("quota:1"));
+		decrement.cacheDecrement(TargetJoinPoint.create(target, "release", "1"), null);
+		assertEquals("0", client.get("quota:1"));
+
+		// A missing counter is created at 0 as well.
+		decrement.cacheDecrement(TargetJoinPoint.create(target, "release", "2"), null);
+		assertEquals("0", client.get("quota:2"));
+	}
+
+	@Test
+	public void testReadCounter() throws Throwable {
+		assertEquals(42L, read.cacheReadCounter(TargetJoinPoint.create(target, "views", "1")));
+		assertEquals(1, target.loads);
+		assertEquals("42", client.get("views:1"));
+
+		increment.cacheIncrement(TargetJoinPoint.create(target, "view", "1"), null);
+		assertEquals(43L, read.cacheReadCounter(TargetJoinPoint.create(target, "views", "1")));
+		assertEquals(1, target.loads);
+
+		client.set("quota:1", 0, "5");
+		assertEquals(5, read.cacheReadCounter(TargetJoinPoint.create(target, "quota", "1")));
+	}
+
+	@Test
+	public void testBatchedChangesAreSentAsOne() throws Throwable {
+		for (int ix = 0; ix < 100; ix++) {
+			increment.cacheIncrement(TargetJoinPoint.create(target, "batchedView", "1"), null);
+		}
+		increment.cacheIncrement(TargetJoinPoint.create(target, "batchedView", "2"), null);
+
+		assertNull(client.get("views:1"));
+		assertEquals(2, batcher.getPending());
+		assertEquals(101, batcher.getChanges());
+
+		batcher.flush();
+		assertEquals("100", client.get("views:1"));
+		assertEquals("1", client.get("views:2"));
+		assertEquals(2, batcher.getWrites());
+		assertEquals(0, batcher.getPending());
+	}
+
+	@Test
+	public void testShutdownSendsPendingChanges() throws Throwable {
+		increment.cacheIncrement(TargetJoinPoint.create(target, "batchedView", "1"), null);
+		batcher.shutdown();
+		assertEquals("1", client.get("views:1"));
+
+		// Once shut down, changes are sent right away.
+		increment.cacheIncrement(TargetJoinPoint.create(target, "batchedView", "1"), null);
+		assertEquals("2", client.get("views:1"));
+	}
+
+	@Test
+	public void testLargeChangesAreSentInSteps() {
+		client.set("big", 0, "0");
+
+		assertEquals(3L * Integer.MAX_VALUE, CounterBatcher.mutate(client, "big", 3L * Integer.MAX_VALUE, 0, 0));
+		assertEquals(String.valueOf(3L * Integer.MAX_VALUE), client.get("big"));
+		assertEquals(1L, CounterBatcher.mutate(client, "big", 1 - 3L * Integer.MAX_VALUE, 0, 0));
+	}
+
+	@Test
+	public void testValidation() throws Exception {
+		final AdvicePlan plan = increment.buildAdvicePlan(Target.class.getMethod("view", String.class), IncrementCache.class);
+		assertEquals(1, plan.getAnnotationData().getCounterDelta());
+		assertEquals(10, plan.getAnnotationData().getCounterInitialValue());
+		assertFalse(plan.getAnnotationData().isCounterBatched());
+
+		assertTrue(increment.createAdvicePlan(
+				Target.class.getMethod("zero", String.class), IncrementCache.class).isBypassed());
+		assertTrue(read.createAdvicePlan(
+				Target.class.getMethod("text", String.class), ReadCounterCache.class).isBypassed());
+	}
+
+	public static class Target {
+		private int loads;
+
+		@IncrementCache(namespace = "views", initialValue = 10)
+		public void view(@ParameterValueKeyProvider final String id) { }
+
+		@IncrementCache(namespace = "views", batched = true)
+		public void batchedView(@ParameterValueKeyProvider final String id) { }
+
+		@DecrementCache(namespace = "quota", by = 5)
+		public void release(@ParameterValueKeyProvider final String id) { }
+
+		@ReadCounterCache(namespace = "views")
+		public long views(@ParameterValueKeyProvider final String id) {
+			loads++;
+			return 42;
+		}
+
+		@ReadCounterCache(namespace = "quota")
+		public int quota(@ParameterValueKeyProvider final String id) {
+			loads++;
+			return 0;
+		}
+
+		@IncrementCache(namespace = "views", by = 0)
+		public void zero(@ParameterValueKeyProvider final String id) { }
+
+		@ReadCounterCache(namespace = "views")
+		public String text(@ParameterValueKeyProvider final String id) {
+			return "42";
+		}
+	}
+}
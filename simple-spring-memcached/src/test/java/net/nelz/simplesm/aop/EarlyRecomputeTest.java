@@ -0,0 +1,127 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class EarlyRecomputeTest {
+	private static final int TRIALS = 2000;
+
+	private CacheBase cut;
+	private AnnotationData data;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		cut = new CacheBase();
+		data = new AnnotationData();
+		data.setNamespace("early");
+		data.setExpiration(60);
+		data.setEarlyRecomputeBeta(1.0);
+	}
+
+	@Test
+	public void testEnvelope() {
+		final long before = System.currentTimeMillis();
+		final TimestampedValue value = (TimestampedValue) cut.toCacheValue("value", data, 250);
+		assertEquals(250, value.getLoadMillis());
+		assertTrue(value.getExpiresAt() >= before + 60000);
+		assertTrue(value.getExpiresAt() <= System.currentTimeMillis() + 60000);
+
+		data.setEarlyRecomputeBeta(0);
+		assertEquals("value", cut.toCacheValue("value", data, 250));
+
+		// Expirations over 30 days are absolute Unix times.
+		data.setExpiration(CacheBase.MAX_RELATIVE_EXPIRATION + 1);
+		assertEquals((CacheBase.MAX_RELATIVE_EXPIRATION + 1) * 1000L,
+				cut.getExpiresAt(data, System.currentTimeMillis()));
+	}
+
+	@Test
+	public void testFreshCheapEntriesAreNotRecomputed() {
+		final TimestampedValue entry = entry(5, 60000);
+		assertEquals(0, countDue(entry));
+	}
+
+	@Test
+	public void testExpiredEntriesAreAlwaysRecomputed() {
+		final TimestampedValue entry = entry(5, -1);
+		assertEquals(TRIALS, countDue(entry));
+	}
+
+	@Test
+	public void testExpensiveEntriesAreRecomputedEarlier() {
+		// One second left, with a load time of one second: due with a chance of e^-1.
+		final int due = countDue(entry(1000, 1000));
+		assertTrue("due " + due, due > TRIALS / 5 && due < TRIALS / 2);
+
+		// A cheaper load leaves the same entry alone far more often.
+		assertTrue(countDue(entry(100, 1000)) < due);
+
+		// A larger beta recomputes earlier.
+		data.setEarlyRecomputeBeta(5.0);
+		assertTrue(countDue(entry(1000, 1000)) > due);
+	}
+
+	@Test
+	public void testOnlyEnvelopesAreConsidered() {
+		assertFalse(cut.isDueForEarlyRecompute("plain", data));
+		assertFalse(cut.isDueForEarlyRecompute(new TimestampedValue(0, 1000, 0, "never expires"), data));
+		data.setEarlyRecomputeBeta(0);
+		assertFalse(cut.isDueForEarlyRecompute(entry(5, -1), data));
+	}
+
+	@Test
+	public void testValidation() throws Exception {
+		final AdvicePlan valid = cut.buildAdvicePlan(
+				EarlyTarget.class.getMethod("valid", String.class), ReadThroughSingleCache.class);
+		assertEquals(1.5, valid.getAnnotationData().getEarlyRecomputeBeta(), 0.0);
+
+		final AdvicePlan noExpiration = cut.createAdvicePlan(
+				EarlyTarget.class.getMethod("noExpiration", String.class), ReadThroughSingleCache.class);
+		assertTrue(noExpiration.isBypassed());
+	}
+
+	private TimestampedValue entry(final long loadMillis, final long remainingMillis) {
+		final long now = System.currentTimeMillis();
+		return new TimestampedValue(now, loadMillis, now + remainingMillis, "value");
+	}
+
+	private int countDue(final TimestampedValue entry) {
+		int due = 0;
+		for (int ix = 0; ix < TRIALS; ix++) {
+			if (cut.isDueForEarlyRecompute(entry, data)) {
+				due++;
+			}
+		}
+		return due;
+	}
+
+	public static class EarlyTarget {
+		@ReadThroughSingleCache(namespace = "early", expiration = 60, earlyRecomputeBeta = 1.5)
+		public String valid(@ParameterValueKeyProvider final String key) { return key; }
+
+		@ReadThroughSingleCache(namespace = "early", earlyRecomputeBeta = 1.0)
+		public String noExpiration(@ParameterValueKeyProvider final String key) { return key; }
+	}
+}
@@ -0,0 +1,200 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.*;
+import net.spy.memcached.transcoders.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * A thread-safe, in-JVM stand-in for a memcached server that supports the basic
+ * get/set/add/delete and gets/cas operations (including expiration) the advices rely on.
+ * Values written with a transcoder are kept in their encoded form, as <code>CachedData</code>,
+ * and decoded again when read with a transcoder.
+ */
+public class InMemoryMemcachedClient extends MockMemcachedClient {
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	public Object get(final String key) throws OperationTimeoutException {
+		final Entry entry = entries.get(key);
+		if (entry == null) { return null; }
+		if (entry.isExpired()) {
+			entries.remove(key, entry);
+			return null;
+		}
+		return entry.value;
+	}
+
+	public Map<String, Object> getBulk(final Collection<String> keys) throws OperationTimeoutException {
+		final Map<String, Object> results = new HashMap<String, Object>();
+		for (final String key : keys) {
+			final Object value = get(key);
+			if (value != null) {
+				results.put(key, value);
+			}
+		}
+		return results;
+	}
+
+	public Future<Boolean> set(final String key, final int exp, final Object value) {
+		entries.put(key, new Entry(value, exp));
+		return done(true);
+	}
+
+	public Future<Boolean> add(final String key, final int exp, final Object value) {
+		// Drop an expired entry first, so that it does not block the add.
+		get(key);
+		return done(entries.putIfAbsent(key, new Entry(value, exp)) == null);
+	}
+
+	public Future<Boolean> replace(final String key, final int exp, final Object value) {
+		final Entry entry = entries.get(key);
+		if (entry == null || entry.isExpired()) { return done(false); }
+		return done(entries.replace(key, entry, new Entry(value, exp)));
+	}
+
+	public Future<Boolean> delete(final String key) {
+		return done(entries.remove(key) != null);
+	}
+
+	public CASValue<Object> gets(final String key) throws OperationTimeoutException {
+		final Entry entry = entries.get(key);
+		if (entry == null || entry.isExpired()) { return null; }
+		return new CASValue<Object>(entry.cas, entry.value);
+	}
+
+	public CASResponse cas(final String key, final long casId, final Object value) throws OperationTimeoutException {
+		final Entry entry = entries.get(key);
+		if (entry == null || entry.isExpired()) { return CASResponse.NOT_FOUND; }
+		if (entry.cas != casId) { return CASResponse.EXISTS; }
+		// Like the real client, a cas does not carry an expiration.
+		return entries.replace(key, entry, new Entry(value, 0)) ? CASResponse.OK : CASResponse.EXISTS;
+	}
+
+	public long incr(final String key, final int by) throws OperationTimeoutException {
+		return mutate(key, by);
+	}
+
+	public long decr(final String key, final int by) throws OperationTimeoutException {
+		return mutate(key, -by);
+	}
+
+	/**
+	 * Like memcached, only changes values that are decimal numbers, never goes below 0,
+	 * and keeps the expiration of the entry.
+	 */
+	private long mutate(final String key, final long delta) {
+		while (true) {
+			final Entry entry = entries.get(key);
+			if (entry == null || entry.isExpired() || !(entry.value instanceof String)) { return -1; }
+			final long value;
+			try {
+				value = Math.max(0, Long.parseLong(((String) entry.value).trim()) + delta);
+			} catch (NumberFormatException ex) {
+				return -1;
+			}
+			if (entries.replace(key, entry, new Entry(String.valueOf(value), entry))) {
+				return value;
+			}
+		}
+	}
+
+	public <T> T get(final String key, final Transcoder<T> transcoder) throws OperationTimeoutException {
+		return decode(get(key), transcoder);
+	}
+
+	public <T> Map<String, T> getBulk(final Collection<String> keys, final Transcoder<T> transcoder) throws OperationTimeoutException {
+		final Map<String, T> results = new HashMap<String, T>();
+		for (final Map.Entry<String, Object> entry : getBulk(keys).entrySet()) {
+			results.put(entry.getKey(), decode(entry.getValue(), transcoder));
+		}
+		return results;
+	}
+
+	public <T> Future<Boolean> set(final String key, final int exp, final T value, final Transcoder<T> transcoder) {
+		return set(key, exp, transcoder.encode(value));
+	}
+
+	public <T> Future<Boolean> add(final String key, final int exp, final T value, final Transcoder<T> transcoder) {
+		return add(key, exp, transcoder.encode(value));
+	}
+
+	public <T> Future<Boolean> replace(final String key, final int exp, final T value, final Transcoder<T> transcoder) {
+		return replace(key, exp, transcoder.encode(value));
+	}
+
+	public <T> CASValue<T> gets(final String key, final Transcoder<T> transcoder) throws OperationTimeoutException {
+		final CASValue<Object> value = gets(key);
+		return value == null ? null : new CASValue<T>(value.getCas(), decode(value.getValue(), transcoder));
+	}
+
+	public <T> CASResponse cas(final String key, final long casId, final T value, final Transcoder<T> transcoder) throws OperationTimeoutException {
+		return cas(key, casId, transcoder.encode(value));
+	}
+
+	private static <T> T decode(final Object value, final Transcoder<T> transcoder) {
+		if (value instanceof CachedData) {
+			return transcoder.decode((CachedData) value);
+		}
+		return (T) value;
+	}
+
+	public boolean contains(final String key) {
+		return get(key) != null;
+	}
+
+	private static Future<Boolean> done(final boolean result) {
+		final FutureTask<Boolean> future = new FutureTask<Boolean>(new Callable<Boolean>() {
+			public Boolean call() {
+				return result;
+			}
+		});
+		future.run();
+		return future;
+	}
+
+	private static class Entry {
+		private static final AtomicLong CAS_IDS = new AtomicLong();
+
+		private final long cas = CAS_IDS.incrementAndGet();
+		private final Object value;
+		private final long expiresAt;
+
+		Entry(final Object value, final int exp) {
+			this.value = value;
+			this.expiresAt = exp == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + exp * 1000L;
+		}
+
+		Entry(final Object value, final Entry previous) {
+			this.value = value;
+			this.expiresAt = previous.expiresAt;
+		}
+
+		boolean isExpired() {
+			return expiresAt <= System.currentTimeMillis();
+		}
+	}
+}
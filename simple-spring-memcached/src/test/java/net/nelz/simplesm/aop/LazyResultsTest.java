@@ -0,0 +1,231 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import net.nelz.simplesm.transcoders.*;
+import net.spy.memcached.*;
+import net.spy.memcached.transcoders.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class LazyResultsTest {
+	private static final String LARGE = largeString();
+
+	private LazyClient client;
+	private ReadThroughMultiCacheAdvice advice;
+	private Target target;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new LazyClient();
+		advice = new ReadThroughMultiCacheAdvice();
+		advice.setCache(client);
+		advice.setMethodStore(new CacheKeyMethodStoreImpl());
+		target = new Target();
+	}
+
+	@Test
+	public void testValuesAreDecodedOnFirstAccess() throws Throwable {
+		for (final String key : Arrays.asList("1", "2", "3")) {
+			client.set("lazy:" + key, 0, LARGE + key, client.transcoder);
+		}
+		client.set("lazy:4", 0, "small", client.transcoder);
+
+		final List<Object> results = (List<Object>) advice.cacheMulti(TargetJoinPoint.create(target, "lazy", keys("1", "2", "3", "4", "5")));
+
+		assertTrue(results instanceof LazyResultList);
+		assertEquals(Arrays.asList(Arrays.asList("5")), target.calls);
+		// Only the small value was decoded so far.
+		assertEquals(1, client.transcoder.decoded);
+		assertEquals(3, ((LazyResultList) results).getUndecoded());
+
+		assertEquals(LARGE + "2", results.get(1));
+		assertEquals(LARGE + "2", results.get(1));
+		assertEquals(2, client.transcoder.decoded);
+
+		assertEquals(Arrays.asList(LARGE + "1", LARGE + "2", LARGE + "3", "small", "value-5"), results);
+		assertEquals(4, client.transcoder.decoded);
+		assertEquals(0, ((LazyResultList) results).getUndecoded());
+	}
+
+	@Test
+	public void testNullResultsAndTombstones() throws Throwable {
+		client.set("lazy:1", 0, PertinentNegativeNull.INSTANCE, client.transcoder);
+		client.set("lazy:2", 0, new Tombstone(), client.transcoder);
+
+		final List<Object> results = (List<Object>) advice.cacheMulti(TargetJoinPoint.create(target, "lazy", keys("1", "2")));
+
+		assertEquals(Arrays.asList(null, "value-2"), results);
+		assertEquals(Arrays.asList(Arrays.asList("2")), target.calls);
+	}
+
+	@Test
+	public void testValuesOfAnotherVersionAreLoadedWithTheMisses() throws Throwable {
+		final VersionedTranscoder versioned = new VersionedTranscoder();
+		versioned.setTranscoder(client.transcoder);
+		versioned.setVersion(1);
+		final TranscoderManager manager = new TranscoderManager();
+		manager.setTranscoders(Collections.<String, Transcoder<Object>>singletonMap("lazy", versioned));
+		advice.setTranscoderManager(manager);
+		client.set("lazy:1", 0, LARGE + "1", versioned);
+		client.set("lazy:2", 0, LARGE + "2", versioned);
+		versioned.setVersion(2);
+		client.set("lazy:3", 0, LARGE + "3", versioned);
+
+		final List<Object> results = (List<Object>) advice.cacheMulti(TargetJoinPoint.create(target, "lazy", keys("1", "2", "3")));
+
+		// Both of the old version are loaded in one call, before the list is returned.
+		assertEquals(1, target.calls.size());
+		assertEquals(new HashSet<Object>(Arrays.asList("1", "2")), new HashSet<Object>((List) target.calls.get(0)));
+		assertEquals(2, versioned.getMismatched());
+		assertEquals(0, client.transcoder.decoded);
+		assertEquals(Arrays.asList("value-1", "value-2", LARGE + "3"), results);
+
+		assertEquals(Arrays.asList("value-1", "value-2", LARGE + "3"),
+				advice.cacheMulti(TargetJoinPoint.create(target, "lazy", keys("1", "2", "3"))));
+		assertEquals(1, target.calls.size());
+	}
+
+	@Test
+	public void testUndecodableValuesThrowOnAccess() throws Throwable {
+		client.set("lazy:1", 0, new CachedData(1, new byte[CacheBase.LAZY_DECODE_MIN_BYTES], CachedData.MAX_SIZE));
+		client.set("lazy:2", 0, LARGE, client.transcoder);
+
+		final List<Object> results = (List<Object>) advice.cacheMulti(TargetJoinPoint.create(target, "lazy", keys("1", "2")));
+
+		try {
+			results.get(0);
+			fail("Expected exception.");
+		} catch (IllegalStateException ex) {
+			assertTrue(ex.getMessage().indexOf("lazy:1") != -1);
+		}
+		assertEquals(LARGE, results.get(1));
+		// The target is not called from the list; the key is reloaded by the next call.
+		assertEquals(0, target.calls.size());
+		assertFalse(client.contains("lazy:1"));
+		assertEquals(Arrays.asList("value-1", LARGE),
+				advice.cacheMulti(TargetJoinPoint.create(target, "lazy", keys("1", "2"))));
+		assertEquals(Arrays.asList(Arrays.asList("1")), target.calls);
+	}
+
+	@Test
+	public void testSerializesAsAList() throws Throwable {
+		client.set("lazy:1", 0, LARGE, client.transcoder);
+		final List<Object> results = (List<Object>) advice.cacheMulti(TargetJoinPoint.create(target, "lazy", keys("1")));
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(results);
+		out.close();
+
+		final Object copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals(ArrayList.class, copy.getClass());
+		assertEquals(Arrays.asList(LARGE), copy);
+	}
+
+	@Test
+	public void testEagerByDefault() throws Throwable {
+		client.set("eager:1", 0, LARGE);
+
+		final List<Object> results = (List<Object>) advice.cacheMulti(TargetJoinPoint.create(target, "eager", keys("1")));
+
+		assertEquals(ArrayList.class, results.getClass());
+		assertEquals(Arrays.asList(LARGE), results);
+	}
+
+	@Test
+	public void testValidation() throws Exception {
+		assertTrue(advice.buildAdvicePlan(Target.class.getMethod("lazy", List.class),
+				ReadThroughMultiCache.class).getAnnotationData().isLazyResults());
+		assertTrue(advice.createAdvicePlan(Target.class.getMethod("soft", List.class),
+				ReadThroughMultiCache.class).isBypassed());
+	}
+
+	private static List<String> keys(final String... keys) {
+		return new ArrayList<String>(Arrays.asList(keys));
+	}
+
+	private static String largeString() {
+		final StringBuilder builder = new StringBuilder();
+		while (builder.length() < CacheBase.LAZY_DECODE_MIN_BYTES) {
+			builder.append("0123456789");
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Stores values encoded, the way memcached does, with a transcoder that counts decodes.
+	 */
+	private static class LazyClient extends InMemoryMemcachedClient {
+		private final CountingTranscoder transcoder = new CountingTranscoder();
+
+		public Transcoder<Object> getTranscoder() {
+			return transcoder;
+		}
+
+		public Future<Boolean> add(final String key, final int exp, final Object value) {
+			return super.add(key, exp, transcoder.encode(value));
+		}
+	}
+
+	private static class CountingTranscoder extends SerializingTranscoder {
+		private int decoded;
+
+		public Object decode(final CachedData data) {
+			decoded++;
+			return super.decode(data);
+		}
+	}
+
+	public static class Target {
+		private final List<Object> calls = new CopyOnWriteArrayList<Object>();
+
+		@ReadThroughMultiCache(namespace = "lazy", lazyResults = true)
+		public List<String> lazy(@ParameterValueKeyProvider final List<String> keys) {
+			return load(keys);
+		}
+
+		@ReadThroughMultiCache(namespace = "eager")
+		public List<String> eager(@ParameterValueKeyProvider final List<String> keys) {
+			return load(keys);
+		}
+
+		@ReadThroughMultiCache(namespace = "soft", expiration = 60, softExpiration = 30, lazyResults = true)
+		public List<String> soft(@ParameterValueKeyProvider final List<String> keys) {
+			return load(keys);
+		}
+
+		private List<String> load(final List<String> keys) {
+			calls.add(new ArrayList<String>(keys));
+			final List<String> results = new ArrayList<String>();
+			for (final String key : keys) {
+				results.add("value-" + key);
+			}
+			return results;
+		}
+	}
+}
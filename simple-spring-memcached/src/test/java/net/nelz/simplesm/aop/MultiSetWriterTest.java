@@ -0,0 +1,225 @@
+package net.nelz.simplesm.aop;
+
+import net.spy.memcached.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class MultiSetWriterTest {
+	private ScriptedClient client;
+	private MultiSetWriter cut;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new ScriptedClient();
+		cut = new MultiSetWriter();
+	}
+
+	@Test
+	public void testAllWritesSucceed() {
+		final MultiSetWriter.Result result = cut.write(client, values("a", "b", "c"), 30);
+
+		assertTrue(result.isComplete());
+		assertEquals(3, result.getSucceeded());
+		assertEquals("a-value", client.get("a"));
+		assertEquals("c-value", client.get("c"));
+		assertEquals(1, cut.getBatches());
+		assertEquals(3, cut.getSucceeded());
+	}
+
+	@Test
+	public void testEmptyBatch() {
+		final MultiSetWriter.Result result = cut.write(client, new HashMap<String, Object>(), 30);
+
+		assertTrue(result.isComplete());
+		assertEquals(0, result.getSucceeded());
+		assertEquals(0, client.sets.size());
+	}
+
+	@Test
+	public void testFailuresAreCountedNotThrown() {
+		client.outcomes.put("rejected", Boolean.FALSE);
+		client.outcomes.put("broken", new IllegalStateException("Queue full"));
+		client.outcomes.put("erroneous", new ExecutionException(new RuntimeException("Failed")));
+
+		final MultiSetWriter.Result result = cut.write(client, values("ok", "rejected", "broken", "erroneous"), 30);
+
+		assertFalse(result.isComplete());
+		assertEquals(1, result.getSucceeded());
+		assertEquals(3, result.getFailed());
+		assertEquals(0, result.getTimedOut());
+		assertEquals(3, cut.getFailed());
+	}
+
+	@Test
+	public void testSlowWritesShareOneDeadline() {
+		cut.setDeadlineMillis(200);
+		client.outcomes.put("slow1", null);
+		client.outcomes.put("slow2", null);
+		client.outcomes.put("slow3", null);
+
+		final long start = System.currentTimeMillis();
+		final MultiSetWriter.Result result = cut.write(client, values("slow1", "fast", "slow2", "slow3"), 30);
+		final long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals(1, result.getSucceeded());
+		assertEquals(3, result.getTimedOut());
+		assertTrue("Took " + elapsed + "ms", elapsed < 600);
+		assertEquals(3, cut.getTimedOut());
+	}
+
+	@Test
+	public void testAllSetsAreIssuedBeforeWaiting() {
+		cut.setDeadlineMillis(100);
+		client.outcomes.put("a", null);
+
+		cut.write(client, values("a", "b", "c"), 30);
+
+		// Had the writer waited for "a" first, "b" and "c" would still have been issued
+		// only after its timeout; all three were queued right away instead.
+		assertEquals(3, client.sets.size());
+		assertTrue(client.lastSetAt - client.firstSetAt < 100);
+	}
+
+	@Test
+	public void testKeysAreGroupedByNode() {
+		final MemcachedNode even = node();
+		final MemcachedNode odd = node();
+		client.locator = new ParityLocator(even, odd);
+
+		final List<List<String>> groups = new ArrayList<List<String>>(
+				MultiSetWriter.groupByNode(client, Arrays.asList("k1", "k2", "k3", "k4", "k5")));
+
+		assertEquals(2, groups.size());
+		assertEquals(Arrays.asList("k1", "k3", "k5"), groups.get(0));
+		assertEquals(Arrays.asList("k2", "k4"), groups.get(1));
+
+		cut.write(client, values("k1", "k2", "k3"), 30);
+		assertEquals(Arrays.asList("k1", "k3", "k2"), client.sets);
+	}
+
+	@Test
+	public void testSingleGroupWithoutLocator() {
+		final Collection<List<String>> groups = MultiSetWriter.groupByNode(client, Arrays.asList("a", "b"));
+
+		assertEquals(1, groups.size());
+		assertEquals(Arrays.asList("a", "b"), groups.iterator().next());
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testInvalidDeadline() {
+		cut.setDeadlineMillis(0);
+	}
+
+	private static Map<String, Object> values(final String... keys) {
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		for (final String key : keys) {
+			values.put(key, key + "-value");
+		}
+		return values;
+	}
+
+	private static MemcachedNode node() {
+		return (MemcachedNode) Proxy.newProxyInstance(MemcachedNode.class.getClassLoader(),
+				new Class[] {MemcachedNode.class},
+				new InvocationHandler() {
+					public Object invoke(final Object proxy, final Method method, final Object[] args) {
+						if ("hashCode".equals(method.getName())) { return System.identityHashCode(proxy); }
+						if ("equals".equals(method.getName())) { return proxy == args[0]; }
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Completes each set according to <code>outcomes</code>: a Boolean is the set's result,
+	 * a RuntimeException is thrown by <code>set</code> itself, an ExecutionException fails the
+	 * future, and null means the set never completes. Keys without an outcome succeed.
+	 */
+	private static class ScriptedClient extends InMemoryMemcachedClient {
+		private final Map<String, Object> outcomes = new HashMap<String, Object>();
+		private final List<String> sets = new ArrayList<String>();
+		private NodeLocator locator;
+		private long firstSetAt;
+		private long lastSetAt;
+
+		public Future<Boolean> set(final String key, final int exp, final Object value) {
+			if (sets.isEmpty()) { firstSetAt = System.currentTimeMillis(); }
+			lastSetAt = System.currentTimeMillis();
+			sets.add(key);
+			if (!outcomes.containsKey(key)) {
+				return super.set(key, exp, value);
+			}
+			final Object outcome = outcomes.get(key);
+			if (outcome instanceof RuntimeException) {
+				throw (RuntimeException) outcome;
+			}
+			final FutureTask<Boolean> future = new FutureTask<Boolean>(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					if (outcome instanceof ExecutionException) {
+						throw (Exception) ((ExecutionException) outcome).getCause();
+					}
+					return (Boolean) outcome;
+				}
+			});
+			if (outcome != null) {
+				future.run();
+			}
+			return future;
+		}
+
+		public NodeLocator getNodeLocator() {
+			return locator;
+		}
+	}
+
+	private static class ParityLocator implements NodeLocator {
+		private final MemcachedNode even;
+		private final MemcachedNode odd;
+
+		ParityLocator(final MemcachedNode even, final MemcachedNode odd) {
+			this.even = even;
+			this.odd = odd;
+		}
+
+		public MemcachedNode getPrimary(final String key) {
+			return (key.charAt(key.length() - 1) - '0') % 2 == 0 ? even : odd;
+		}
+
+		public Iterator<MemcachedNode> getSequence(final String key) {
+			return Collections.<MemcachedNode>emptyList().iterator();
+		}
+
+		public Collection<MemcachedNode> getAll() {
+			return Arrays.asList(even, odd);
+		}
+
+		public NodeLocator getReadonlyCopy() {
+			return this;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import net.nelz.simplesm.transcoders.*;
+import net.spy.memcached.*;
+import net.spy.memcached.transcoders.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class NamespaceTranscoderTest {
+	private InMemoryMemcachedClient client;
+	private CacheBase cut;
+	private AnnotationData data;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new InMemoryMemcachedClient();
+		final CompactTranscoder transcoder = new CompactTranscoder();
+		transcoder.setCodecs(Collections.<Integer, ObjectCodec>singletonMap(1, new AccountCodec()));
+		final TranscoderManager manager = new TranscoderManager();
+		manager.setTranscoders(Collections.<String, Transcoder<Object>>singletonMap("compact", transcoder));
+		cut = new CacheBase();
+		cut.setCache(client);
+		cut.setTranscoderManager(manager);
+		data = new AnnotationData();
+		data.setNamespace("compact");
+	}
+
+	@Test
+	public void testNamespaceValuesAreEncodedWithItsTranscoder() {
+		cut.setInCache("compact:1", data, new Account("alice"));
+
+		final CachedData stored = (CachedData) client.get("compact:1");
+		assertEquals(CompactTranscoder.FLAG, stored.getFlags());
+		assertEquals(new Account("alice"), cut.getFromCache("compact:1", data));
+	}
+
+	@Test
+	public void testOtherNamespacesUseTheClientTranscoder() {
+		data.setNamespace("plain");
+		cut.setInCache("plain:1", data, "value");
+		assertEquals("value", client.get("plain:1"));
+	}
+
+	@Test
+	public void testBulkOperations() {
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("compact:1", new Account("alice"));
+		values.put("compact:2", new Account("bob"));
+		assertEquals(2, cut.setAllInCache(values, data).getSucceeded());
+		assertTrue(client.get("compact:2") instanceof CachedData);
+
+		assertEquals(values, cut.getAllFromCache(values.keySet(), data));
+
+		data.setTombstoneExpiration(10);
+		cut.deleteAllFromCache(Arrays.asList("compact:1"), data);
+		assertEquals(Collections.singletonMap("compact:2", new Account("bob")), cut.getAllFromCache(values.keySet(), data));
+		assertEquals(new Tombstone(), cut.getTranscoder(data).decode((CachedData) client.get("compact:1")));
+	}
+
+	@Test
+	public void testCasUpdates() {
+		data.setCasRetries(2);
+		assertTrue(cut.casInCache("compact:1", data, new Account("alice", 1)));
+		assertTrue(cut.casInCache("compact:1", data, new Account("bob", 2)));
+		assertFalse(cut.casInCache("compact:1", data, new Account("carol", 1)));
+		assertEquals(new Account("bob"), cut.getFromCache("compact:1", data));
+	}
+
+	@Test
+	public void testUnserializableTypesNeedATranscoder() throws Exception {
+		assertFalse(cut.createAdvicePlan(Target.class.getMethod("compact", String.class),
+				ReadThroughSingleCache.class).isBypassed());
+		assertTrue(cut.createAdvicePlan(Target.class.getMethod("plain", String.class),
+				ReadThroughSingleCache.class).isBypassed());
+	}
+
+	public static class Target {
+		@ReadThroughSingleCache(namespace = "compact")
+		public Account compact(@ParameterValueKeyProvider final String id) {
+			return new Account(id);
+		}
+
+		@ReadThroughSingleCache(namespace = "plain")
+		public Account plain(@ParameterValueKeyProvider final String id) {
+			return new Account(id);
+		}
+	}
+
+	/**
+	 * Not Serializable.
+	 */
+	public static class Account {
+		private final String name;
+		private final int version;
+
+		public Account(final String name) {
+			this(name, 0);
+		}
+
+		public Account(final String name, final int version) {
+			this.name = name;
+			this.version = version;
+		}
+
+		@CacheVersionMethod
+		public int getVersion() {
+			return version;
+		}
+
+		public int hashCode() {
+			return name.hashCode();
+		}
+
+		public boolean equals(final Object obj) {
+			return obj instanceof Account && ((Account) obj).name.equals(name);
+		}
+	}
+
+	private static class AccountCodec implements ObjectCodec<Account> {
+		public Class<Account> getType() {
+			return Account.class;
+		}
+
+		public void write(final Account value, final CompactOutput out) {
+			out.writeString(value.name);
+			out.writeInt(value.version);
+		}
+
+		public Account read(final CompactInput in) {
+			return new Account(in.readString(), in.readInt());
+		}
+	}
+}
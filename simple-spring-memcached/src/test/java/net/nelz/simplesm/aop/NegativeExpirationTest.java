@@ -0,0 +1,125 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class NegativeExpirationTest {
+	private RecordingClient client;
+	private CacheBase cut;
+	private AnnotationData data;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new RecordingClient();
+		cut = new CacheBase();
+		cut.setCache(client);
+		data = new AnnotationData();
+		data.setNamespace("user");
+		data.setExpiration(3600);
+		data.setNegativeExpiration(30);
+	}
+
+	@Test
+	public void testNullResultsUseTheNegativeExpiration() {
+		cut.addToCache("user:1", data, "alice");
+		cut.addToCache("user:2", data, PertinentNegativeNull.INSTANCE);
+		cut.setInCache("user:3", data, PertinentNegativeNull.INSTANCE);
+
+		assertEquals(Integer.valueOf(3600), client.expirations.get("user:1"));
+		assertEquals(Integer.valueOf(30), client.expirations.get("user:2"));
+		assertEquals(Integer.valueOf(30), client.expirations.get("user:3"));
+	}
+
+	@Test
+	public void testWrappedNullResultsUseTheNegativeExpiration() {
+		data.setSoftExpiration(60);
+		final Object cacheValue = cut.toCacheValue(PertinentNegativeNull.INSTANCE, data);
+
+		cut.addToCache("user:1", data, cacheValue);
+
+		assertEquals(Integer.valueOf(30), client.expirations.get("user:1"));
+		final TimestampedValue stored = (TimestampedValue) client.get("user:1");
+		assertTrue(stored.getExpiresAt() - stored.getLoadedAt() <= 30000);
+	}
+
+	@Test
+	public void testBatchesMixBothExpirations() {
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("user:1", "alice");
+		values.put("user:2", PertinentNegativeNull.INSTANCE);
+
+		assertTrue(cut.addAllToCache(values, data).isComplete());
+		values.put("user:3", PertinentNegativeNull.INSTANCE);
+		assertTrue(cut.setAllInCache(values, data).isComplete());
+
+		assertEquals(Integer.valueOf(3600), client.expirations.get("user:1"));
+		assertEquals(Integer.valueOf(30), client.expirations.get("user:2"));
+		assertEquals(Integer.valueOf(30), client.expirations.get("user:3"));
+	}
+
+	@Test
+	public void testWithoutNegativeExpiration() {
+		data.setNegativeExpiration(0);
+		cut.addToCache("user:1", data, PertinentNegativeNull.INSTANCE);
+		assertEquals(Integer.valueOf(3600), client.expirations.get("user:1"));
+	}
+
+	@Test
+	public void testValidation() throws Exception {
+		assertEquals(30, cut.buildAdvicePlan(Target.class.getMethod("valid", String.class),
+				ReadThroughSingleCache.class).getAnnotationData().getNegativeExpiration());
+		assertTrue(cut.createAdvicePlan(Target.class.getMethod("negative", String.class),
+				ReadThroughSingleCache.class).isBypassed());
+	}
+
+	private static class RecordingClient extends InMemoryMemcachedClient {
+		private final Map<String, Integer> expirations = new ConcurrentHashMap<String, Integer>();
+
+		public Future<Boolean> set(final String key, final int exp, final Object value) {
+			expirations.put(key, exp);
+			return super.set(key, exp, value);
+		}
+
+		public Future<Boolean> add(final String key, final int exp, final Object value) {
+			expirations.put(key, exp);
+			return super.add(key, exp, value);
+		}
+	}
+
+	public static class Target {
+		@ReadThroughSingleCache(namespace = "user", expiration = 3600, negativeExpiration = 30)
+		public String valid(@ParameterValueKeyProvider final String id) {
+			return id;
+		}
+
+		@ReadThroughSingleCache(namespace = "user", expiration = 3600, negativeExpiration = -1)
+		public String negative(@ParameterValueKeyProvider final String id) {
+			return id;
+		}
+	}
+}
@@ -3,6 +3,8 @@ package net.nelz.simplesm.aop;
 import static org.testng.AssertJUnit.*;
 import org.testng.annotations.*;
 
+import java.io.*;
+
 /**
 Copyright (c) 2008, 2009  Nelson Carpentier
 
@@ -33,4 +35,15 @@ public class PertinentNegativeNullTest {
 		assertTrue(pnn.equals(new PertinentNegativeNull()));
 		assertEquals(pnn.hashCode(), new PertinentNegativeNull().hashCode());
 	}
+
+	@Test
+	public void testDeserializesToTheSharedInstance() throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(new PertinentNegativeNull());
+		out.close();
+
+		final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		assertSame(PertinentNegativeNull.INSTANCE, in.readObject());
+	}
 }
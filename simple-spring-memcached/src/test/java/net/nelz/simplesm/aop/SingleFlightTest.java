@@ -0,0 +1,177 @@
+package net.nelz.simplesm.aop;
+
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class SingleFlightTest {
+	private SingleFlight cut;
+	private ExecutorService executor;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		cut = new SingleFlight();
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConcurrentMissesShareOneLoad() throws Exception {
+		final int threads = 8;
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final SingleFlight.Loader loader = new SingleFlight.Loader() {
+			public Object load() throws Throwable {
+				loads.incrementAndGet();
+				release.await();
+				return "loaded";
+			}
+		};
+
+		final List<Future<Object>> futures = submit(threads, "key", loader);
+		waitForFollowers(threads - 1);
+		release.countDown();
+
+		for (final Future<Object> future : futures) {
+			assertEquals("loaded", future.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(1, loads.get());
+		assertEquals(1, cut.getLeaders());
+		assertEquals(threads - 1, cut.getFollowers());
+		assertEquals(0, cut.getFallbacks());
+		assertEquals(0, cut.getInFlight());
+	}
+
+	@Test
+	public void testFollowersLoadThemselvesWhenTheLeaderFails() throws Exception {
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final SingleFlight.Loader loader = new SingleFlight.Loader() {
+			public Object load() throws Throwable {
+				if (loads.incrementAndGet() == 1) {
+					release.await();
+					throw new IllegalStateException("leader failed");
+				}
+				return "loaded";
+			}
+		};
+
+		final List<Future<Object>> futures = submit(3, "key", loader);
+		waitForFollowers(2);
+		release.countDown();
+
+		int failures = 0;
+		for (final Future<Object> future : futures) {
+			try {
+				assertEquals("loaded", future.get(5, TimeUnit.SECONDS));
+			} catch (ExecutionException ex) {
+				assertTrue(ex.getCause() instanceof IllegalStateException);
+				failures++;
+			}
+		}
+		assertEquals(1, failures);
+		assertEquals(3, loads.get());
+		assertEquals(2, cut.getFallbacks());
+	}
+
+	@Test
+	public void testFollowersStopWaiting() throws Exception {
+		cut.setMaxWaitMillis(20);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Future<Object> leader = executor.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				return load("key", new SingleFlight.Loader() {
+					public Object load() throws Throwable {
+						release.await();
+						return "slow";
+					}
+				});
+			}
+		});
+		while (cut.getInFlight() == 0) {
+			Thread.sleep(1);
+		}
+
+		assertEquals("fast", load("key", new SingleFlight.Loader() {
+			public Object load() throws Throwable {
+				return "fast";
+			}
+		}));
+		assertEquals(1, cut.getFallbacks());
+
+		release.countDown();
+		assertEquals("slow", leader.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testRecursiveLoad() throws Throwable {
+		final Object result = cut.load("key", new SingleFlight.Loader() {
+			public Object load() throws Throwable {
+				return cut.load("key", new SingleFlight.Loader() {
+					public Object load() throws Throwable {
+						return "inner";
+					}
+				});
+			}
+		});
+		assertEquals("inner", result);
+		assertEquals(0, cut.getInFlight());
+	}
+
+	private List<Future<Object>> submit(final int threads, final String key, final SingleFlight.Loader loader) {
+		final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (int ix = 0; ix < threads; ix++) {
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					return load(key, loader);
+				}
+			}));
+		}
+		return futures;
+	}
+
+	private Object load(final String key, final SingleFlight.Loader loader) throws Exception {
+		try {
+			return cut.load(key, loader);
+		} catch (Exception ex) {
+			throw ex;
+		} catch (Throwable ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private void waitForFollowers(final int followers) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (cut.getFollowers() < followers && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class SlidingExpirationTest {
+	private RecordingClient client;
+	private CacheBase cut;
+	private AnnotationData data;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new RecordingClient();
+		cut = new CacheBase();
+		cut.setCache(client);
+		data = new AnnotationData();
+		data.setNamespace("session");
+		data.setExpiration(60);
+		data.setSlidingExpiration(true);
+	}
+
+	@Test
+	public void testHitsAreTouchedOncePerQuarter() {
+		client.set("session:1", 60, "alice");
+
+		assertEquals("alice", cut.getFromCache("session:1", data));
+		assertEquals("alice", cut.getFromCache("session:1", data));
+		assertEquals("alice", cut.getFromCache("session:1", data));
+
+		assertEquals(Arrays.asList("session:1"), client.replaces);
+		assertEquals(1, cut.cacheToucher.getTouches());
+		assertEquals(2, cut.cacheToucher.getSkipped());
+	}
+
+	@Test
+	public void testEntriesInUseStayCached() throws Exception {
+		data.setExpiration(1);
+		client.set("session:1", 1, "alice");
+
+		// Read every 300ms, for longer than the expiration.
+		for (int ix = 0; ix < 5; ix++) {
+			Thread.sleep(300);
+			assertEquals("alice", cut.getFromCache("session:1", data));
+		}
+		assertTrue(client.replaces.size() >= 4);
+	}
+
+	@Test
+	public void testMissesAndOtherAnnotationsAreNotTouched() {
+		assertNull(cut.getFromCache("session:1", data));
+
+		client.set("session:2", 60, "bob");
+		data.setSlidingExpiration(false);
+		assertEquals("bob", cut.getFromCache("session:2", data));
+
+		assertEquals(0, client.replaces.size());
+	}
+
+	@Test
+	public void testTouchDoesNotRecreateDeletedEntries() {
+		final CacheToucher toucher = new CacheToucher();
+		assertTrue(toucher.touch(client, "session:1", "alice", 60));
+		assertNull(client.get("session:1"));
+	}
+
+	@Test
+	public void testBulkReadsTouchEachHit() {
+		client.set("session:1", 60, "alice");
+		client.set("session:2", 10, new Tombstone());
+
+		final Map<String, Object> found = cut.getAllFromCache(Arrays.asList("session:1", "session:2", "session:3"), data);
+
+		assertEquals(Collections.singletonMap("session:1", "alice"), found);
+		assertEquals(Arrays.asList("session:1"), client.replaces);
+	}
+
+	@Test
+	public void testSlidingReadsOfWrittenNamespacesAreRejected() throws Exception {
+		final NamespaceRegistry registry = new NamespaceRegistry();
+		final UpdateSingleCacheAdvice update = new UpdateSingleCacheAdvice();
+		update.setNamespaceRegistry(registry);
+		cut.setNamespaceRegistry(registry);
+
+		assertFalse(update.createAdvicePlan(Target.class.getMethod("rename", String.class, String.class),
+				UpdateSingleCache.class).isBypassed());
+		final AdvicePlan plan = cut.createAdvicePlan(Target.class.getMethod("profile", String.class),
+				ReadThroughSingleCache.class);
+		assertTrue(plan.isBypassed());
+		assertTrue(plan.getBypassReason().getMessage().indexOf("profile") != -1);
+		// Reads without a sliding expiration are fine.
+		assertFalse(cut.createAdvicePlan(Target.class.getMethod("fixed", String.class),
+				ReadThroughSingleCache.class).isBypassed());
+	}
+
+	@Test
+	public void testUpdatesBetweenReadAndTouchAreKept() throws Throwable {
+		final NamespaceRegistry registry = new NamespaceRegistry();
+		final ReadThroughSingleCacheAdvice read = new ReadThroughSingleCacheAdvice();
+		final UpdateSingleCacheAdvice update = new UpdateSingleCacheAdvice();
+		for (final CacheBase advice : new CacheBase[] {read, update}) {
+			advice.setCache(client);
+			advice.setMethodStore(new CacheKeyMethodStoreImpl());
+			advice.setNamespaceRegistry(registry);
+		}
+		final Target target = new Target();
+		client.set("profile:1", 60, "alice");
+		// Without the scanner, the plan of the update is only built on its first call: here,
+		// after the read got its value, before it would touch the entry.
+		client.afterGet = new Runnable() {
+			public void run() {
+				try {
+					update.cacheUpdateSingle(TargetJoinPoint.create(target, "rename", "1", "bob"), null);
+				} catch (Throwable ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		};
+
+		assertEquals("alice", read.cacheGetSingle(TargetJoinPoint.create(target, "profile", "1")));
+
+		assertEquals("bob", client.get("profile:1"));
+		assertEquals(0, client.replaces.size());
+	}
+
+	@Test
+	public void testValidation() throws Exception {
+		assertTrue(cut.buildAdvicePlan(Target.class.getMethod("valid", String.class),
+				ReadThroughSingleCache.class).getAnnotationData().isSlidingExpiration());
+		assertTrue(cut.createAdvicePlan(Target.class.getMethod("forever", String.class),
+				ReadThroughSingleCache.class).isBypassed());
+		assertTrue(cut.createAdvicePlan(Target.class.getMethod("early", String.class),
+				ReadThroughSingleCache.class).isBypassed());
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testInvalidMaxKeys() {
+		new CacheToucher().setMaxKeys(0);
+	}
+
+	private static class RecordingClient extends InMemoryMemcachedClient {
+		private final List<String> replaces = new CopyOnWriteArrayList<String>();
+		private Runnable afterGet;
+
+		public Object get(final String key) {
+			final Object value = super.get(key);
+			final Runnable hook = afterGet;
+			if (hook != null) {
+				afterGet = null;
+				hook.run();
+			}
+			return value;
+		}
+
+		public Future<Boolean> replace(final String key, final int exp, final Object value) {
+			replaces.add(key);
+			return super.replace(key, exp, value);
+		}
+	}
+
+	public static class Target {
+		@ReadThroughSingleCache(namespace = "session", expiration = 1800, slidingExpiration = true)
+		public String valid(@ParameterValueKeyProvider final String id) {
+			return id;
+		}
+
+		@ReadThroughSingleCache(namespace = "profile", expiration = 1800, slidingExpiration = true)
+		public String profile(@ParameterValueKeyProvider final String id) {
+			return id;
+		}
+
+		@ReadThroughSingleCache(namespace = "profile", expiration = 1800)
+		public String fixed(@ParameterValueKeyProvider final String id) {
+			return id;
+		}
+
+		@UpdateSingleCache(namespace = "profile", expiration = 1800)
+		public void rename(@ParameterValueKeyProvider final String id, @ParameterDataUpdateContent final String name) { }
+
+		@ReadThroughSingleCache(namespace = "session", slidingExpiration = true)
+		public String forever(@ParameterValueKeyProvider final String id) {
+			return id;
+		}
+
+		@ReadThroughSingleCache(namespace = "session", expiration = 1800, earlyRecomputeBeta = 1.0, slidingExpiration = true)
+		public String early(@ParameterValueKeyProvider final String id) {
+			return id;
+		}
+	}
+}
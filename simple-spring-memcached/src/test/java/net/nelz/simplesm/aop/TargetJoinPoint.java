@@ -0,0 +1,87 @@
+package net.nelz.simplesm.aop;
+
+import org.aspectj.lang.*;
+import org.aspectj.lang.reflect.*;
+
+import java.lang.reflect.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Builds join points that call a method of a test target directly, for the tests that run
+ * the advices end to end against an <code>InMemoryMemcachedClient</code> rather than mocks.
+ * <code>proceed()</code> calls the method with the join point's arguments, and
+ * <code>proceed(args)</code> with the given ones.
+ */
+public class TargetJoinPoint {
+	private TargetJoinPoint() {
+	}
+
+	/**
+	 * @param methodName the name of a public method of the target taking as many parameters
+	 * as there are arguments; the first one they can be passed to is used.
+	 */
+	public static ProceedingJoinPoint create(final Object target, final String methodName, final Object... args) {
+		final Method method = findMethod(target.getClass(), methodName, args);
+		final MethodSignature sig = (MethodSignature) Proxy.newProxyInstance(TargetJoinPoint.class.getClassLoader(),
+				new Class[] {MethodSignature.class},
+				new InvocationHandler() {
+					public Object invoke(final Object proxy, final Method called, final Object[] params) {
+						if ("getName".equals(called.getName())) { return method.getName(); }
+						if ("getParameterTypes".equals(called.getName())) { return method.getParameterTypes(); }
+						if ("getMethod".equals(called.getName())) { return method; }
+						return null;
+					}
+				});
+		return (ProceedingJoinPoint) Proxy.newProxyInstance(TargetJoinPoint.class.getClassLoader(),
+				new Class[] {ProceedingJoinPoint.class},
+				new InvocationHandler() {
+					public Object invoke(final Object proxy, final Method called, final Object[] params) throws Throwable {
+						final String name = called.getName();
+						if ("getSignature".equals(name)) { return sig; }
+						if ("getTarget".equals(name) || "getThis".equals(name)) { return target; }
+						if ("getArgs".equals(name)) { return args; }
+						if ("toShortString".equals(name) || "toString".equals(name)) { return "execution(" + methodName + ")"; }
+						if ("proceed".equals(name)) {
+							try {
+								return method.invoke(target, params == null ? args : (Object[]) params[0]);
+							} catch (InvocationTargetException ex) {
+								throw ex.getCause();
+							}
+						}
+						return null;
+					}
+				});
+	}
+
+	private static Method findMethod(final Class targetClass, final String methodName, final Object[] args) {
+		for (final Method method : targetClass.getMethods()) {
+			if (!method.getName().equals(methodName) || method.getParameterTypes().length != args.length) { continue; }
+			boolean matches = true;
+			for (int ix = 0; ix < args.length && matches; ix++) {
+				matches = args[ix] == null || method.getParameterTypes()[ix].isInstance(args[ix]);
+			}
+			if (matches) { return method; }
+		}
+		throw new IllegalArgumentException("No method " + methodName + " on " + targetClass.getName() + ".");
+	}
+}
@@ -0,0 +1,222 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import net.nelz.simplesm.impl.*;
+import net.nelz.simplesm.transcoders.*;
+import net.spy.memcached.*;
+import net.spy.memcached.transcoders.*;
+import org.aspectj.lang.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Checks that an invalidation with a <code>tombstoneExpiration</code> cannot be undone by a
+ * read-through that loaded the value before the invalidation and caches it afterwards.
+ */
+public class TombstoneTest {
+	private InMemoryMemcachedClient client;
+	private Target target;
+	private ReadThroughSingleCacheAdvice single;
+	private InvalidateSingleCacheAdvice invalidate;
+	private NamespaceRegistry registry;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new InMemoryMemcachedClient();
+		target = new Target();
+		registry = new NamespaceRegistry();
+		single = new ReadThroughSingleCacheAdvice();
+		single.setCache(client);
+		single.setMethodStore(new CacheKeyMethodStoreImpl());
+		single.setNamespaceRegistry(registry);
+		invalidate = new InvalidateSingleCacheAdvice();
+		invalidate.setCache(client);
+		invalidate.setMethodStore(new CacheKeyMethodStoreImpl());
+		invalidate.setNamespaceRegistry(registry);
+	}
+
+	@Test
+	public void testInvalidationLeavesATombstone() throws Throwable {
+		client.set("single:1", 0, "cached");
+
+		invalidate.cacheInvalidateSingle(TargetJoinPoint.create(target, "invalidate", "1"));
+
+		assertEquals(new Tombstone(), client.get("single:1"));
+		// Reads treat the tombstone as a miss.
+		assertEquals("value-1", single.cacheGetSingle(TargetJoinPoint.create(target, "single", "1")));
+		assertEquals(Arrays.asList("1"), target.calls);
+	}
+
+	@Test
+	public void testLoadStartedBeforeTheInvalidationIsNotCached() throws Throwable {
+		// The invalidation happens while the read-through is loading the old value.
+		target.whileLoading = TargetJoinPoint.create(target, "invalidate", "1");
+
+		assertEquals("value-1", single.cacheGetSingle(TargetJoinPoint.create(target, "single", "1")));
+		assertEquals(new Tombstone(), client.get("single:1"));
+
+		target.whileLoading = null;
+		single.cacheGetSingle(TargetJoinPoint.create(target, "single", "1"));
+		assertEquals(2, target.calls.size());
+	}
+
+	@Test
+	public void testPlainDeleteLosesTheRace() throws Throwable {
+		target.whileLoading = TargetJoinPoint.create(target, "delete", "1");
+
+		single.cacheGetSingle(TargetJoinPoint.create(target, "single", "1"));
+
+		// Without a tombstone, the value loaded before the invalidation ends up cached.
+		assertEquals("value-1", client.get("single:1"));
+	}
+
+	@Test
+	public void testRefreshSkipsTombstonedKeys() {
+		final AnnotationData data = new AnnotationData();
+		data.setNamespace("single");
+		data.setTombstoneExpiration(10);
+		client.set("single:1", 0, "old-1");
+		client.set("single:2", 0, "old-2");
+		single.deleteFromCache("single:1", data);
+
+		assertFalse(single.replaceInCache("single:1", data, "new-1"));
+		assertEquals(new Tombstone(), client.get("single:1"));
+		assertTrue(single.replaceInCache("single:2", data, "new-2"));
+		assertEquals("new-2", client.get("single:2"));
+
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("single:1", "newer-1");
+		values.put("single:2", "newer-2");
+		assertEquals(1, single.replaceAllInCache(values, data).getSucceeded());
+		assertEquals(new Tombstone(), client.get("single:1"));
+		assertEquals("newer-2", client.get("single:2"));
+	}
+
+	@Test
+	public void testMultiTreatsTombstonesAsMisses() throws Throwable {
+		final ReadThroughMultiCacheAdvice multi = new ReadThroughMultiCacheAdvice();
+		multi.setCache(client);
+		multi.setMethodStore(new CacheKeyMethodStoreImpl());
+		multi.setNamespaceRegistry(registry);
+		invalidate.buildAdvicePlan(Target.class.getMethod("invalidateMulti", List.class), InvalidateMultiCache.class);
+		client.set("multi:1", 10, new Tombstone());
+		client.set("multi:2", 0, "cached-2");
+
+		final List<String> keys = new ArrayList<String>(Arrays.asList("1", "2"));
+		assertEquals(Arrays.asList("value-1", "cached-2"), multi.cacheMulti(TargetJoinPoint.create(target, "multi", keys)));
+		assertEquals(Arrays.asList((Object) Arrays.asList("1")), target.calls);
+		// The loaded value was added, which does not overwrite the tombstone.
+		assertEquals(new Tombstone(), client.get("multi:1"));
+		assertEquals(1, multi.multiSetWriter.getSkipped());
+	}
+
+	@Test
+	public void testLoadsOverwriteUnreadableEntries() throws Throwable {
+		useCorruptingTranscoder();
+		client.set("single:1", 0, new CachedData(CompressingTranscoder.FLAG, new byte[] {100, 1, 2}, CachedData.MAX_SIZE));
+
+		assertEquals("value-1", single.cacheGetSingle(TargetJoinPoint.create(target, "single", "1")));
+		assertEquals("value-1", single.cacheGetSingle(TargetJoinPoint.create(target, "single", "1")));
+		assertEquals(1, target.calls.size());
+	}
+
+	@Test
+	public void testUnreadableEntriesAreDeletedWhereLoadsAreAdded() throws Throwable {
+		useCorruptingTranscoder();
+		invalidate.buildAdvicePlan(Target.class.getMethod("invalidate", String.class), InvalidateSingleCache.class);
+		assertTrue(registry.isTombstoned("single"));
+		client.set("single:1", 0, new CachedData(CompressingTranscoder.FLAG, new byte[] {100, 1, 2}, CachedData.MAX_SIZE));
+
+		assertEquals("value-1", single.cacheGetSingle(TargetJoinPoint.create(target, "single", "1")));
+		assertEquals("value-1", single.cacheGetSingle(TargetJoinPoint.create(target, "single", "1")));
+		assertEquals(1, target.calls.size());
+	}
+
+	private void useCorruptingTranscoder() {
+		final TranscoderManager manager = new TranscoderManager();
+		manager.setTranscoders(Collections.<String, Transcoder<Object>>singletonMap("single", new CompressingTranscoder()));
+		single.setTranscoderManager(manager);
+	}
+
+	@Test
+	public void testBulkInvalidationWritesTombstones() {
+		final BulkDeleter deleter = new BulkDeleter();
+		client.set("a", 0, "A");
+
+		final BulkDeleter.Result result = deleter.delete(client, Arrays.asList("a", "b"), 10);
+
+		assertTrue(result.isComplete());
+		assertEquals(2, result.getDeleted());
+		assertEquals(new Tombstone(), client.get("a"));
+		assertEquals(new Tombstone(), client.get("b"));
+	}
+
+	@Test
+	public void testValidation() throws Exception {
+		assertEquals(10, invalidate.buildAdvicePlan(Target.class.getMethod("invalidate", String.class),
+				InvalidateSingleCache.class).getAnnotationData().getTombstoneExpiration());
+		assertEquals(0, invalidate.buildAdvicePlan(Target.class.getMethod("delete", String.class),
+				InvalidateSingleCache.class).getAnnotationData().getTombstoneExpiration());
+		assertTrue(invalidate.createAdvicePlan(Target.class.getMethod("negative", String.class),
+				InvalidateSingleCache.class).isBypassed());
+	}
+
+	public class Target {
+		private final List<Object> calls = new ArrayList<Object>();
+		private ProceedingJoinPoint whileLoading;
+
+		@ReadThroughSingleCache(namespace = "single")
+		public String single(@ParameterValueKeyProvider final String key) throws Throwable {
+			calls.add(key);
+			if (whileLoading != null) {
+				invalidate.cacheInvalidateSingle(whileLoading);
+			}
+			return "value-" + key;
+		}
+
+		@ReadThroughMultiCache(namespace = "multi")
+		public List<String> multi(@ParameterValueKeyProvider final List<String> keys) {
+			calls.add(new ArrayList<String>(keys));
+			final List<String> results = new ArrayList<String>();
+			for (final String key : keys) {
+				results.add("value-" + key);
+			}
+			return results;
+		}
+
+		@InvalidateSingleCache(namespace = "single", tombstoneExpiration = 10)
+		public void invalidate(@ParameterValueKeyProvider final String key) { }
+
+		@InvalidateMultiCache(namespace = "multi", tombstoneExpiration = 10)
+		public void invalidateMulti(@ParameterValueKeyProvider final List<String> keys) { }
+
+		@InvalidateSingleCache(namespace = "single")
+		public void delete(@ParameterValueKeyProvider final String key) { }
+
+		@InvalidateSingleCache(namespace = "single", tombstoneExpiration = -1)
+		public void negative(@ParameterValueKeyProvider final String key) { }
+	}
+}
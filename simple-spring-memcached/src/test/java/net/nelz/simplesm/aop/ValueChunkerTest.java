@@ -0,0 +1,191 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import net.nelz.simplesm.transcoders.*;
+import net.spy.memcached.*;
+import net.spy.memcached.transcoders.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class ValueChunkerTest {
+	private InMemoryMemcachedClient client;
+	private ValueChunker chunker;
+	private CacheBase cut;
+	private AnnotationData data;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new InMemoryMemcachedClient();
+		chunker = new ValueChunker();
+		chunker.setChunkSize(1024);
+		final TranscoderManager manager = new TranscoderManager();
+		manager.setTranscoders(Collections.<String, Transcoder<Object>>singletonMap("big",
+				new SerializingTranscoder(1024 * 1024)));
+		cut = new CacheBase();
+		cut.setCache(client);
+		cut.setTranscoderManager(manager);
+		cut.setValueChunker(chunker);
+		data = new AnnotationData();
+		data.setNamespace("big");
+		data.setExpiration(3600);
+		data.setChunked(true);
+	}
+
+	@Test
+	public void testLargeValuesRoundTripInChunks() {
+		final List<String> value = largeList();
+		cut.addToCache("big:1", data, value);
+
+		assertTrue(client.get("big:1") instanceof CachedData);
+		assertEquals(1, chunker.getChunkedWrites());
+		assertEquals(value, cut.getFromCache("big:1", data));
+		assertEquals(1, chunker.getChunkedReads());
+
+		// Overwriting leaves the old chunks to expire, and reads only the new ones.
+		value.add("one more");
+		cut.setInCache("big:1", data, value);
+		assertEquals(value, cut.getFromCache("big:1", data));
+	}
+
+	@Test
+	public void testSmallValuesAreStoredWhole() {
+		cut.setInCache("big:1", data, "small");
+
+		assertEquals("small", cut.getFromCache("big:1", data));
+		assertEquals(0, chunker.getChunkedWrites());
+		assertEquals(0, chunker.getChunkedReads());
+	}
+
+	@Test
+	public void testMissingChunksReadAsAMiss() {
+		cut.setInCache("big:1", data, largeList());
+		final ChunkManifest manifest = (ChunkManifest) new SerializingTranscoder().decode((CachedData) client.get("big:1"));
+		assertTrue(manifest.getChunks() > 1);
+
+		client.delete(ValueChunker.getChunkKey("big:1", manifest.getGeneration(), manifest.getChunks() - 1));
+
+		assertNull(cut.getFromCache("big:1", data));
+		assertEquals(1, chunker.getIncompleteReads());
+		assertNull(client.get("big:1"));
+	}
+
+	@Test
+	public void testReadThroughsReloadValuesWithEvictedChunks() throws Throwable {
+		assertReloadsOnce(false);
+	}
+
+	@Test
+	public void testReadThroughsReloadValuesWithEvictedChunksWhereLoadsAreAdded() throws Throwable {
+		assertReloadsOnce(true);
+	}
+
+	private void assertReloadsOnce(final boolean tombstoned) throws Throwable {
+		final NamespaceRegistry registry = new NamespaceRegistry();
+		final ReadThroughSingleCacheAdvice advice = new ReadThroughSingleCacheAdvice();
+		advice.setCache(client);
+		advice.setMethodStore(new CacheKeyMethodStoreImpl());
+		advice.setTranscoderManager(cut.transcoderManager);
+		advice.setValueChunker(chunker);
+		advice.setNamespaceRegistry(registry);
+		if (tombstoned) {
+			advice.buildAdvicePlan(Target.class.getMethod("invalidate", String.class), InvalidateSingleCache.class);
+			assertTrue(registry.isTombstoned("big"));
+		}
+		final Target target = new Target();
+
+		assertEquals(largeList(), advice.cacheGetSingle(TargetJoinPoint.create(target, "chunked", "1")));
+		final ChunkManifest manifest = (ChunkManifest) new SerializingTranscoder().decode((CachedData) client.get("big:1"));
+		client.delete(ValueChunker.getChunkKey("big:1", manifest.getGeneration(), 0));
+
+		// A miss, reloaded and stored again, so that the next read is a hit.
+		assertEquals(largeList(), advice.cacheGetSingle(TargetJoinPoint.create(target, "chunked", "1")));
+		assertEquals(largeList(), advice.cacheGetSingle(TargetJoinPoint.create(target, "chunked", "1")));
+		assertEquals(2, target.loads);
+		assertEquals(1, chunker.getIncompleteReads());
+		assertEquals(2, chunker.getChunkedWrites());
+	}
+
+	@Test
+	public void testCorruptChunksReadAsAMiss() {
+		cut.setInCache("big:1", data, largeList());
+		final ChunkManifest manifest = (ChunkManifest) new SerializingTranscoder().decode((CachedData) client.get("big:1"));
+
+		final String chunkKey = ValueChunker.getChunkKey("big:1", manifest.getGeneration(), 0);
+		final byte[] chunk = ((CachedData) client.get(chunkKey)).getData().clone();
+		chunk[chunk.length / 2] ^= 1;
+		client.set(chunkKey, 3600, new CachedData(0, chunk, CachedData.MAX_SIZE));
+
+		assertNull(cut.getFromCache("big:1", data));
+		assertEquals(1, chunker.getIncompleteReads());
+	}
+
+	@Test
+	public void testValidation() throws Exception {
+		assertTrue(cut.buildAdvicePlan(Target.class.getMethod("chunked", String.class),
+				ReadThroughSingleCache.class).getAnnotationData().isChunked());
+		assertTrue(cut.createAdvicePlan(Target.class.getMethod("sliding", String.class),
+				ReadThroughSingleCache.class).isBypassed());
+		assertTrue(cut.createAdvicePlan(Target.class.getMethod("writeBehind"),
+				UpdateSingleCache.class).isBypassed());
+
+		try {
+			chunker.setChunkSize(CachedData.MAX_SIZE + 1);
+			fail("Expected an IllegalArgumentException.");
+		} catch (IllegalArgumentException ex) {
+			// Expected.
+		}
+	}
+
+	private static List<String> largeList() {
+		final Random random = new Random(42);
+		final List<String> list = new ArrayList<String>();
+		for (int ix = 0; ix < 500; ix++) {
+			list.add("item-" + random.nextLong());
+		}
+		return list;
+	}
+
+	public static class Target {
+		private int loads;
+
+		@ReadThroughSingleCache(namespace = "big", expiration = 30, chunked = true)
+		public List<String> chunked(@ParameterValueKeyProvider final String key) {
+			loads++;
+			return largeList();
+		}
+
+		@InvalidateSingleCache(namespace = "big", tombstoneExpiration = 10)
+		public void invalidate(@ParameterValueKeyProvider final String key) { }
+
+		@ReadThroughSingleCache(namespace = "big", expiration = 30, chunked = true, slidingExpiration = true)
+		public String sliding(@ParameterValueKeyProvider final String key) { return key; }
+
+		@UpdateSingleCache(namespace = "big", writeBehind = true, chunked = true)
+		@ReturnValueKeyProvider
+		@ReturnDataUpdateContent
+		public String writeBehind() { return null; }
+	}
+}
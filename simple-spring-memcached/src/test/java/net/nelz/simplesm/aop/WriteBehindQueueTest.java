@@ -0,0 +1,310 @@
+package net.nelz.simplesm.aop;
+
+import net.nelz.simplesm.api.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class WriteBehindQueueTest {
+	private GatedClient client;
+	private WriteBehindQueue cut;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		client = new GatedClient();
+		cut = new WriteBehindQueue();
+		cut.setCache(client);
+		cut.setThreads(1);
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		client.open();
+		cut.shutdown();
+	}
+
+	@Test
+	public void testWritesAreSentInTheBackground() throws Exception {
+		client.close();
+		assertTrue(cut.set("key", 30, "value"));
+
+		// The caller returned, although the writer is still held up.
+		assertTrue(client.entered.await(5, TimeUnit.SECONDS));
+		assertNull(client.get("key"));
+
+		client.open();
+		awaitWritten(1);
+		assertEquals("value", client.get("key"));
+		assertEquals(0, cut.getDepth());
+		assertEquals(1, cut.getQueued());
+		assertTrue(cut.getMaxLagMillis() >= 0);
+	}
+
+	@Test
+	public void testQueuedWritesToOneKeyAreCoalesced() throws Exception {
+		holdWriter();
+		cut.set("key", 30, "first");
+		cut.set("key", 30, "second");
+		cut.set("key", 30, "third");
+		assertEquals(1, cut.getDepth());
+
+		client.open();
+		awaitWritten(2);
+		assertEquals("third", client.get("key"));
+		assertEquals(2, cut.getCoalesced());
+		assertEquals(Arrays.asList("blocker", "key"), client.keys);
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		cut.setCapacity(2);
+		client.set("a", 30, "old");
+		holdWriter();
+		cut.set("a", 30, "a");
+		cut.set("b", 30, "b");
+		assertTrue(cut.set("c", 30, "c"));
+
+		client.open();
+		awaitWritten(3);
+		assertEquals(1, cut.getDropped());
+		// The old value is deleted rather than left in place of the dropped write.
+		assertNull(client.get("a"));
+		assertEquals("c", client.get("c"));
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		cut.setCapacity(1);
+		cut.setOverflowPolicy(WriteBehindQueue.OverflowPolicy.BLOCK);
+		cut.setBlockMillis(100);
+		client.set("b", 30, "old");
+		holdWriter();
+		cut.set("a", 30, "a");
+
+		final long start = System.currentTimeMillis();
+		assertFalse(cut.set("b", 30, "b"));
+		assertTrue(System.currentTimeMillis() - start >= 90);
+		assertEquals(1, cut.getDropped());
+		assertNull(client.get("b"));
+
+		// Room frees up while waiting.
+		cut.setBlockMillis(5000);
+		new Timer(true).schedule(new TimerTask() {
+			public void run() {
+				client.open();
+			}
+		}, 100);
+		assertTrue(cut.set("b", 30, "b"));
+		awaitWritten(3);
+		assertEquals("b", client.get("b"));
+	}
+
+	@Test
+	public void testCallerRuns() throws Exception {
+		cut.setCapacity(1);
+		cut.setOverflowPolicy(WriteBehindQueue.OverflowPolicy.CALLER_RUNS);
+		holdWriter();
+		cut.set("a", 30, "a");
+
+		assertTrue(cut.set("b", 30, "b"));
+		assertEquals(1, cut.getCallerRuns());
+		assertEquals("b", client.get("b"));
+		assertTrue(client.writers.contains(Thread.currentThread()));
+
+		client.open();
+		awaitWritten(3);
+		assertEquals("a", client.get("a"));
+	}
+
+	@Test
+	public void testCancelRemovesTheQueuedWrite() throws Exception {
+		holdWriter();
+		cut.set("key", 30, "value");
+		cut.cancel("key");
+		cut.cancel("other");
+		assertEquals(0, cut.getDepth());
+		assertEquals(1, cut.getCancelled());
+
+		client.open();
+		awaitWritten(1);
+		assertNull(client.get("key"));
+
+		// The room of the cancelled write is free again.
+		cut.setCapacity(1);
+		assertTrue(cut.set("key", 30, "value"));
+	}
+
+	@Test
+	public void testCancelWaitsForTheWriteInProgress() throws Exception {
+		holdWriter();
+		final Thread invalidation = new Thread(new Runnable() {
+			public void run() {
+				cut.cancel("blocker");
+				client.delete("blocker");
+			}
+		});
+		invalidation.start();
+		invalidation.join(200);
+		assertTrue(invalidation.isAlive());
+
+		client.open();
+		invalidation.join(5000);
+		assertFalse(invalidation.isAlive());
+		assertNull(client.get("blocker"));
+	}
+
+	@Test
+	public void testInvalidationsCancelWritesBehind() throws Exception {
+		final CacheBase base = new CacheBase();
+		base.setCache(client);
+		base.setWriteBehindQueue(cut);
+		final AnnotationData behind = base.buildAdvicePlan(
+				Target.class.getMethod("behind", String.class, String.class), UpdateSingleCache.class).getAnnotationData();
+		holdWriter();
+
+		base.setInCache("update:1", behind, "new");
+		base.setInCache("update:2", behind, "new");
+		base.deleteFromCache("update:1", behind);
+		base.deleteAllFromCache(Arrays.asList("update:2"), behind);
+
+		client.open();
+		awaitWritten(1);
+		assertNull(client.get("update:1"));
+		assertNull(client.get("update:2"));
+		assertEquals(2, cut.getCancelled());
+	}
+
+	@Test
+	public void testShutdownSendsQueuedWrites() throws Exception {
+		holdWriter();
+		for (int ix = 0; ix < 10; ix++) {
+			cut.set("key" + ix, 30, "value" + ix);
+		}
+		client.open();
+		cut.shutdown();
+
+		assertEquals(0, cut.getDepth());
+		assertEquals(11, cut.getWritten());
+
+		// Once shut down, writes are sent right away.
+		assertTrue(cut.set("late", 30, "late"));
+		assertEquals("late", client.get("late"));
+	}
+
+	@Test
+	public void testFailedWritesAreCounted() throws Exception {
+		client.failing = true;
+		cut.set("key", 30, "value");
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (cut.getFailed() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, cut.getFailed());
+		assertEquals(0, cut.getWritten());
+	}
+
+	@Test
+	public void testUpdatesAreWrittenBehindWhenAsked() throws Exception {
+		final CacheBase base = new CacheBase();
+		base.setCache(client);
+		base.setWriteBehindQueue(cut);
+		client.close();
+
+		final AdvicePlan inline = base.buildAdvicePlan(
+				Target.class.getMethod("inline", String.class, String.class), UpdateSingleCache.class);
+		assertFalse(inline.getAnnotationData().isWriteBehind());
+		final AdvicePlan behind = base.buildAdvicePlan(
+				Target.class.getMethod("behind", String.class, String.class), UpdateSingleCache.class);
+		assertTrue(behind.getAnnotationData().isWriteBehind());
+
+		base.setInCache("behind", behind.getAnnotationData(), "value");
+		assertEquals(1, cut.getQueued());
+
+		base.setInCache("inline", inline.getAnnotationData(), "value");
+		assertEquals(1, cut.getQueued());
+		assertEquals("value", client.get("inline"));
+		assertTrue(client.writers.contains(Thread.currentThread()));
+	}
+
+	private void holdWriter() throws Exception {
+		client.close();
+		cut.set("blocker", 30, "blocker");
+		assertTrue(client.entered.await(5, TimeUnit.SECONDS));
+	}
+
+	private void awaitWritten(final int count) throws Exception {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (cut.getWritten() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, cut.getWritten());
+	}
+
+	/**
+	 * Holds up the sets of the writer threads while the gate is closed, so that they can be
+	 * kept busy. Sets from other threads go through.
+	 */
+	private static class GatedClient extends InMemoryMemcachedClient {
+		private volatile CountDownLatch gate = new CountDownLatch(0);
+		private final CountDownLatch entered = new CountDownLatch(1);
+		private final List<String> keys = new CopyOnWriteArrayList<String>();
+		private final List<Thread> writers = new CopyOnWriteArrayList<Thread>();
+		private volatile boolean failing;
+
+		void close() {
+			gate = new CountDownLatch(1);
+		}
+
+		void open() {
+			gate.countDown();
+		}
+
+		public Future<Boolean> set(final String key, final int exp, final Object value) {
+			if (Thread.currentThread().getName().startsWith("simplesm-write-behind-")) {
+				entered.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+			if (failing) {
+				throw new IllegalStateException("Queue full");
+			}
+			keys.add(key);
+			writers.add(Thread.currentThread());
+			return super.set(key, exp, value);
+		}
+	}
+
+	public static class Target {
+		@UpdateSingleCache(namespace = "update")
+		public void inline(@ParameterValueKeyProvider final String key, @ParameterDataUpdateContent final String value) { }
+
+		@UpdateSingleCache(namespace = "update", writeBehind = true)
+		public void behind(@ParameterValueKeyProvider final String key, @ParameterDataUpdateContent final String value) { }
+	}
+}
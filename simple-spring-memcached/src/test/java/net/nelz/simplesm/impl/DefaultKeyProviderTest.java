@@ -84,24 +84,22 @@ public class DefaultKeyProviderTest {
 
     @Test
     public void testGenerateCacheKey() throws Exception {
-        final Method method = KeyObject.class.getMethod("toString", null);
-
         try {
-            cut.generateObjectId(method, new KeyObject(null));
+            cut.generateKey(new KeyObject(null));
             fail("Expected Exception.");
         } catch (RuntimeException ex) {
             assertTrue(ex.getMessage().indexOf("empty key value") != -1);
         }
 
         try {
-            cut.generateObjectId(method, new KeyObject(""));
+            cut.generateKey(new KeyObject(""));
             fail("Expected Exception.");
         } catch (RuntimeException ex) {
             assertTrue(ex.getMessage().indexOf("empty key value") != -1);
         }
 
         final String result = "momma";
-        assertEquals(result, cut.generateObjectId(method, new KeyObject(result)));
+        assertEquals(result, cut.generateKey(new KeyObject(result)));
     }
 
     @Test
@@ -0,0 +1,139 @@
+package net.nelz.simplesm.nearcache;
+
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class OffHeapNearCacheTest {
+	private OffHeapNearCache cut;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		cut = new OffHeapNearCache();
+		cut.setCapacityBytes(4096);
+		cut.setSlabBytes(1024);
+		cut.setMaxEntries(1000);
+		cut.setTtlMillis(60000);
+	}
+
+	@Test
+	public void testPutGetRemove() {
+		assertNull(cut.get("a"));
+		assertEquals(0, cut.getReservedBytes());
+
+		final ArrayList<String> value = new ArrayList<String>();
+		value.add("alpha");
+		cut.put("a", value);
+		assertEquals(4096, cut.getReservedBytes());
+
+		final Object result = cut.get("a");
+		assertEquals(value, result);
+		assertNotSame(value, result);
+
+		cut.put("a", "again");
+		assertEquals("again", cut.get("a"));
+		assertEquals(1, cut.size());
+
+		cut.remove("a");
+		assertNull(cut.get("a"));
+		assertEquals(0, cut.size());
+		assertEquals(0, cut.getLiveBytes());
+		assertEquals(1.0, cut.getFragmentation(), 0.0001);
+		assertEquals(2, cut.getHits());
+		assertEquals(2, cut.getMisses());
+	}
+
+	@Test
+	public void testByteBudget() {
+		for (int ix = 0; ix < 500; ix++) {
+			cut.put("key" + ix, "value" + ix);
+			assertTrue(cut.getOccupancy() <= 1.0);
+		}
+		assertTrue(cut.getEvictions() > 0);
+		assertEquals(500 - cut.getEvictions(), cut.size());
+		assertEquals("value499", cut.get("key499"));
+		assertNull(cut.get("key0"));
+		assertEquals(0.0, cut.getFragmentation(), 0.0001);
+
+		// Every surviving entry must still be readable after all of the index shuffling.
+		int found = 0;
+		for (int ix = 0; ix < 500; ix++) {
+			final Object result = cut.get("key" + ix);
+			if (result != null) {
+				assertEquals("value" + ix, result);
+				found++;
+			}
+		}
+		assertEquals(cut.size(), found);
+	}
+
+	@Test
+	public void testEntryLimit() {
+		cut.setMaxEntries(4);
+		for (int ix = 0; ix < 20; ix++) {
+			cut.put("key" + ix, ix);
+			assertTrue(cut.size() <= 4);
+		}
+		assertEquals(19, cut.get("key19"));
+	}
+
+	@Test
+	public void testRejections() {
+		final char[] chars = new char[2048];
+		Arrays.fill(chars, 'x');
+		cut.put("big", new String(chars));
+		cut.put("unserializable", new Object());
+		assertEquals(2, cut.getRejections());
+		assertEquals(0, cut.size());
+		assertNull(cut.get("big"));
+	}
+
+	@Test
+	public void testFragmentation() {
+		for (int ix = 0; ix < 10; ix++) {
+			cut.put("key" + ix, "value" + ix);
+		}
+		for (int ix = 0; ix < 10; ix += 2) {
+			cut.remove("key" + ix);
+		}
+		assertEquals(5, cut.size());
+		assertEquals(0.5, cut.getFragmentation(), 0.05);
+		for (int ix = 1; ix < 10; ix += 2) {
+			assertEquals("value" + ix, cut.get("key" + ix));
+		}
+	}
+
+	@Test
+	public void testExpirationAndClear() throws Exception {
+		cut.setTtlMillis(1);
+		cut.put("a", "alpha");
+		Thread.sleep(5);
+		assertNull(cut.get("a"));
+
+		cut.clear();
+		assertEquals(0, cut.size());
+		assertEquals(0.0, cut.getOccupancy(), 0.0);
+	}
+}
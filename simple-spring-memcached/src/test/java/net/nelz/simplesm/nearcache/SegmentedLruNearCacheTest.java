@@ -0,0 +1,104 @@
+package net.nelz.simplesm.nearcache;
+
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class SegmentedLruNearCacheTest {
+	private SegmentedLruNearCache cut;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		cut = new SegmentedLruNearCache();
+		cut.setMaxEntries(10);
+		cut.setProtectedPercent(50);
+		cut.setTtlMillis(60000);
+	}
+
+	@Test
+	public void testPutGetRemove() {
+		assertNull(cut.get("a"));
+		cut.put("a", "alpha");
+		assertEquals("alpha", cut.get("a"));
+		cut.put("a", "again");
+		assertEquals("again", cut.get("a"));
+		assertEquals(1, cut.size());
+
+		cut.remove("a");
+		assertNull(cut.get("a"));
+		assertEquals(0, cut.size());
+		assertEquals(2, cut.getHits());
+		assertEquals(2, cut.getMisses());
+	}
+
+	@Test
+	public void testBounded() {
+		for (int ix = 0; ix < 100; ix++) {
+			cut.put("key" + ix, ix);
+			assertTrue(cut.size() <= 10);
+		}
+		assertEquals(10, cut.size());
+		assertEquals(90, cut.getEvictions());
+		// With nothing referenced, eviction is in insertion order.
+		assertEquals(99, cut.get("key99"));
+		assertNull(cut.get("key89"));
+	}
+
+	@Test
+	public void testFrequentlyReadEntriesSurviveScans() {
+		for (int ix = 0; ix < 5; ix++) {
+			cut.put("hot" + ix, ix);
+		}
+		for (int round = 0; round < 20; round++) {
+			for (int ix = 0; ix < 5; ix++) {
+				assertEquals(ix, cut.get("hot" + ix));
+			}
+			// A scan of keys that are read only once.
+			for (int ix = 0; ix < 10; ix++) {
+				cut.put("cold" + round + "-" + ix, ix);
+			}
+		}
+		for (int ix = 0; ix < 5; ix++) {
+			assertEquals(ix, cut.get("hot" + ix));
+		}
+	}
+
+	@Test
+	public void testExpiration() throws Exception {
+		cut.setTtlMillis(1);
+		cut.put("a", "alpha");
+		Thread.sleep(5);
+		assertNull(cut.get("a"));
+	}
+
+	@Test
+	public void testClear() {
+		cut.put("a", "alpha");
+		cut.put("b", "bravo");
+		cut.clear();
+		assertEquals(0, cut.size());
+		assertNull(cut.get("a"));
+		cut.put("c", "charlie");
+		assertEquals("charlie", cut.get("c"));
+	}
+}
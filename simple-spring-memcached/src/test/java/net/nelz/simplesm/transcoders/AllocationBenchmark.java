@@ -0,0 +1,117 @@
+package net.nelz.simplesm.transcoders;
+
+import net.spy.memcached.*;
+import net.spy.memcached.transcoders.*;
+
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Counts the bytes allocated per encode and per decode of a few small values, with the
+ * serializing transcoder and with the transcoders of this package. Relies on the HotSpot
+ * extension of <code>ThreadMXBean</code> that reports the bytes a thread allocated. Run the
+ * <code>main</code> method directly; it is not part of the test suite.
+ */
+public class AllocationBenchmark {
+	private static final int ITERATIONS = 100000;
+
+	public static void main(final String[] args) throws Exception {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final Method allocatedBytes;
+		try {
+			allocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+		} catch (ClassNotFoundException ex) {
+			System.out.println("This JVM does not count allocated bytes.");
+			return;
+		} catch (NoSuchMethodException ex) {
+			System.out.println("This JVM does not count allocated bytes.");
+			return;
+		}
+
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("Integer", 123456);
+		values.put("String(40)", "user:123456:profile:display-name:alpha");
+		final Map<String, Object> row = new HashMap<String, Object>();
+		row.put("id", 42L);
+		row.put("name", "alice");
+		row.put("score", 0.75);
+		values.put("Map(3)", row);
+		final List<String> names = new ArrayList<String>();
+		for (int ix = 0; ix < 400; ix++) {
+			names.add("customer-" + (ix % 50) + "@example.com");
+		}
+		values.put("List<String>(400)", names);
+
+		final Map<String, Transcoder<Object>> transcoders = new LinkedHashMap<String, Transcoder<Object>>();
+		transcoders.put("serializing", new SerializingTranscoder());
+		transcoders.put("compact", new CompactTranscoder());
+		final CompressingTranscoder compressing = new CompressingTranscoder();
+		compressing.setTranscoder(new CompactTranscoder());
+		compressing.setThreshold(1024);
+		transcoders.put("compact+lz", compressing);
+
+		for (int pass = 0; pass < 2; pass++) {
+			for (final Map.Entry<String, Object> value : values.entrySet()) {
+				for (final Map.Entry<String, Transcoder<Object>> transcoder : transcoders.entrySet()) {
+					run(threads, allocatedBytes, transcoder.getKey(), transcoder.getValue(), value.getKey(), value.getValue());
+				}
+			}
+			System.out.println();
+		}
+	}
+
+	private static void run(final ThreadMXBean threads,
+	                        final Method allocatedBytes,
+	                        final String label,
+	                        final Transcoder<Object> transcoder,
+	                        final String name,
+	                        final Object value) throws Exception {
+		final long thread = Thread.currentThread().getId();
+		CachedData encoded = transcoder.encode(value);
+
+		final long beforeEncode = (Long) allocatedBytes.invoke(threads, thread);
+		for (int ix = 0; ix < ITERATIONS; ix++) {
+			encoded = transcoder.encode(value);
+		}
+		final long encodeBytes = (Long) allocatedBytes.invoke(threads, thread) - beforeEncode;
+
+		Object decoded = null;
+		final long beforeDecode = (Long) allocatedBytes.invoke(threads, thread);
+		for (int ix = 0; ix < ITERATIONS; ix++) {
+			decoded = transcoder.decode(encoded);
+		}
+		final long decodeBytes = (Long) allocatedBytes.invoke(threads, thread) - beforeDecode;
+
+		if (!value.equals(decoded)) {
+			throw new IllegalStateException(label + " did not round-trip " + name + ".");
+		}
+		System.out.println(String.format("%-12s %-18s %6d bytes stored, %7.0f bytes allocated per encode, %7.0f per decode",
+				label,
+				name,
+				encoded.getData().length,
+				(double) encodeBytes / ITERATIONS,
+				(double) decodeBytes / ITERATIONS));
+	}
+}
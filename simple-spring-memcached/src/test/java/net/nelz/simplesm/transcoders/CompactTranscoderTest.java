@@ -0,0 +1,266 @@
+package net.nelz.simplesm.transcoders;
+
+import net.nelz.simplesm.aop.*;
+import net.spy.memcached.*;
+import net.spy.memcached.transcoders.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class CompactTranscoderTest {
+	private CompactTranscoder cut;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		cut = new CompactTranscoder();
+	}
+
+	@Test
+	public void testScalars() {
+		for (final Object value : new Object[] {null, true, false, (byte) -7, (short) 300, 'x', '€',
+				0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 0L, Long.MIN_VALUE, Long.MAX_VALUE,
+				1.5f, Math.PI, Double.NaN, "", "plain", "grüße €", new Date(1234567890123L)}) {
+			final Object result = roundTrip(value);
+			assertEquals(value, result);
+			if (value != null) {
+				assertEquals(value.getClass(), result.getClass());
+			}
+		}
+	}
+
+	@Test
+	public void testEncodingIsCompact() {
+		assertEquals(2, cut.encode(42).getData().length);
+		assertEquals(2, cut.encode(-1L).getData().length);
+		assertEquals(7, cut.encode("hello").getData().length);
+		assertEquals(CompactTranscoder.FLAG, cut.encode(42).getFlags());
+
+		final List<Integer> list = new ArrayList<Integer>();
+		for (int ix = 0; ix < 100; ix++) {
+			list.add(ix);
+		}
+		assertTrue(cut.encode(list).getData().length * 4 < new SerializingTranscoder().encode(list).getData().length);
+	}
+
+	@Test
+	public void testArrays() {
+		assertTrue(Arrays.equals(new byte[] {1, 2, 3}, (byte[]) roundTrip(new byte[] {1, 2, 3})));
+		assertTrue(Arrays.equals(new int[] {-1, 0, 1 << 30}, (int[]) roundTrip(new int[] {-1, 0, 1 << 30})));
+		assertTrue(Arrays.equals(new long[] {Long.MIN_VALUE, 5}, (long[]) roundTrip(new long[] {Long.MIN_VALUE, 5})));
+		assertTrue(Arrays.equals(new double[] {0.25, -2}, (double[]) roundTrip(new double[] {0.25, -2})));
+		assertTrue(Arrays.equals(new String[] {"a", null}, (String[]) roundTrip(new String[] {"a", null})));
+		assertTrue(Arrays.equals(new Object[] {"a", 1, null}, (Object[]) roundTrip(new Object[] {"a", 1, null})));
+	}
+
+	@Test
+	public void testCollections() {
+		final Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("b", Arrays.asList(1, 2L, "three"));
+		map.put("a", new HashSet<String>(Arrays.asList("x", "y")));
+		map.put(null, null);
+
+		final Object result = roundTrip(map);
+		assertEquals(map, result);
+		assertEquals(LinkedHashMap.class, result.getClass());
+		assertEquals(Arrays.asList("b", "a", null), new ArrayList<Object>(((Map) result).keySet()));
+		assertEquals(ArrayList.class, ((Map) result).get("b").getClass());
+		assertEquals(LinkedHashSet.class, ((Map) result).get("a").getClass());
+
+		// Collections that would come back as a different class are serialized.
+		final TreeMap<String, Integer> sorted = new TreeMap<String, Integer>(Collections.singletonMap("k", 1));
+		assertEquals(TreeMap.class, roundTrip(sorted).getClass());
+		final LinkedList<String> linked = new LinkedList<String>(Arrays.asList("a", "b"));
+		assertEquals(LinkedList.class, roundTrip(linked).getClass());
+	}
+
+	@Test
+	public void testOtherListsAreSerialized() {
+		final Vector<String> vector = new Vector<String>(Arrays.asList("a", "b"));
+		final Object result = roundTrip(vector);
+		assertEquals(Vector.class, result.getClass());
+		assertEquals(vector, result);
+	}
+
+	@Test
+	public void testSubclassesAreSerialized() {
+		final NamedMap map = new NamedMap("name");
+		map.put("k", 1);
+		final Object result = roundTrip(map);
+		assertEquals(NamedMap.class, result.getClass());
+		assertEquals(map, result);
+		assertEquals("name", ((NamedMap) result).name);
+	}
+
+	@Test
+	public void testAdviceWrappers() {
+		final TimestampedValue timestamped = new TimestampedValue(1000L, 20L, 5000L, Arrays.asList("a"));
+		assertEquals(timestamped, roundTrip(timestamped));
+		assertEquals(new PertinentNegativeNull(), roundTrip(new PertinentNegativeNull()));
+		assertSame(PertinentNegativeNull.INSTANCE, roundTrip(PertinentNegativeNull.INSTANCE));
+		assertEquals(1, cut.encode(PertinentNegativeNull.INSTANCE).getData().length);
+		assertEquals(new Tombstone(), roundTrip(new Tombstone()));
+		assertEquals(1, cut.encode(new Tombstone()).getData().length);
+	}
+
+	@Test
+	public void testCodecs() {
+		cut.setCodecs(Collections.<Integer, ObjectCodec>singletonMap(7, new PointCodec()));
+
+		final List<Point> points = Arrays.asList(new Point(1, -2), new Point(300, 4));
+		assertEquals(points, roundTrip(points));
+		// Tag, codec id, and a byte for each coordinate.
+		assertEquals(4, cut.encode(new Point(1, -2)).getData().length);
+	}
+
+	@Test
+	public void testBuffersAreReusedSafely() throws Exception {
+		// A codec that encodes a value of its own, on the same thread, in the middle of the outer one.
+		cut.setCodecs(Collections.<Integer, ObjectCodec>singletonMap(1, new PointCodec() {
+			public void write(final Point value, final CompactOutput out) {
+				out.writeBytes(cut.encode("nested " + value.x).getData());
+				super.write(value, out);
+			}
+
+			public Point read(final CompactInput in) {
+				in.readBytes();
+				return super.read(in);
+			}
+		}));
+		assertEquals(Arrays.asList(new Point(1, 2), "after"), roundTrip(Arrays.asList(new Point(1, 2), "after")));
+
+		// A large value followed by a small one.
+		assertEquals(200000, ((byte[]) roundTrip(new byte[200000])).length);
+		assertEquals("small", roundTrip("small"));
+
+		final List<Thread> threads = new ArrayList<Thread>();
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		for (int ix = 0; ix < 4; ix++) {
+			final int thread = ix;
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						for (int jx = 0; jx < 2000; jx++) {
+							final List<Object> value = Arrays.asList((Object) thread, "value-" + jx, new int[jx % 50].length);
+							assertEquals(value, roundTrip(value));
+						}
+					} catch (Throwable ex) {
+						failures.add(ex);
+					}
+				}
+			});
+		}
+		for (final Thread thread : threads) { thread.start(); }
+		for (final Thread thread : threads) { thread.join(); }
+		assertEquals(Collections.emptyList(), failures);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testUnserializableWithoutCodec() {
+		cut.encode(new Point(1, 2));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testDuplicateCodecs() {
+		final Map<Integer, ObjectCodec> codecs = new HashMap<Integer, ObjectCodec>();
+		codecs.put(1, new PointCodec());
+		codecs.put(2, new PointCodec());
+		cut.setCodecs(codecs);
+	}
+
+	@Test
+	public void testOtherClassesAreSerialized() {
+		final Serializable value = new java.math.BigDecimal("12.50");
+		assertEquals(value, roundTrip(value));
+	}
+
+	@Test
+	public void testReadsValuesOfTheSerializingTranscoder() {
+		final CachedData old = new SerializingTranscoder().encode(Arrays.asList("old"));
+		assertEquals(Arrays.asList("old"), cut.decode(old));
+	}
+
+	@Test
+	public void testCorruptValuesAreMisses() {
+		final byte[] data = cut.encode("hello").getData();
+		final byte[] truncated = new byte[data.length - 1];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		assertNull(cut.decode(new CachedData(CompactTranscoder.FLAG, truncated, CachedData.MAX_SIZE)));
+		assertNull(cut.decode(new CachedData(CompactTranscoder.FLAG, new byte[] {99}, CachedData.MAX_SIZE)));
+		// A list claiming far more elements than there are bytes.
+		assertNull(cut.decode(new CachedData(CompactTranscoder.FLAG, new byte[] {CompactTranscoder.LIST, -1, -1, -1, 7}, CachedData.MAX_SIZE)));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testMaxSize() {
+		cut.setMaxSize(10);
+		cut.encode("more than ten bytes");
+	}
+
+	private Object roundTrip(final Object value) {
+		return cut.decode(cut.encode(value));
+	}
+
+	private static class NamedMap extends HashMap<String, Integer> {
+		private final String name;
+
+		NamedMap(final String name) {
+			this.name = name;
+		}
+	}
+
+	private static class Point {
+		private final int x;
+		private final int y;
+
+		Point(final int x, final int y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		public int hashCode() {
+			return x * 31 + y;
+		}
+
+		public boolean equals(final Object obj) {
+			return obj instanceof Point && ((Point) obj).x == x && ((Point) obj).y == y;
+		}
+	}
+
+	private static class PointCodec implements ObjectCodec<Point> {
+		public Class<Point> getType() {
+			return Point.class;
+		}
+
+		public void write(final Point value, final CompactOutput out) {
+			out.writeInt(value.x);
+			out.writeInt(value.y);
+		}
+
+		public Point read(final CompactInput in) {
+			return new Point(in.readInt(), in.readInt());
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package net.nelz.simplesm.transcoders;
+
+import net.spy.memcached.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class CompressingTranscoderTest {
+	private CompressingTranscoder cut;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		cut = new CompressingTranscoder();
+		cut.setThreshold(1024);
+	}
+
+	@Test
+	public void testCodecRoundTrips() {
+		final Random random = new Random(42);
+		for (final int length : new int[] {0, 1, 4, 9, 10, 15, 16, 300, 4096, 70000, 300000}) {
+			// Random bytes do not compress, runs of a few symbols do, and zeros a lot.
+			final byte[] noise = new byte[length];
+			random.nextBytes(noise);
+			final byte[] text = new byte[length];
+			for (int ix = 0; ix < length; ix++) {
+				text[ix] = (byte) ('a' + random.nextInt(4));
+			}
+			final byte[] zeros = new byte[length];
+			for (final byte[] data : Arrays.asList(noise, text, zeros)) {
+				assertTrue(Arrays.equals(data, LzCodec.decompress(LzCodec.compress(data))));
+			}
+			if (length >= 4096) {
+				assertTrue(LzCodec.compress(zeros).length < length / 100);
+			}
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testCodecRejectsTruncatedData() {
+		final byte[] packed = LzCodec.compress(new byte[1000]);
+		final byte[] truncated = new byte[packed.length - 1];
+		System.arraycopy(packed, 0, truncated, 0, truncated.length);
+		LzCodec.decompress(truncated);
+	}
+
+	@Test
+	public void testLargeValuesAreCompressed() {
+		final List<String> value = repetitiveList(500);
+
+		final CachedData data = cut.encode(value);
+
+		assertEquals(CompressingTranscoder.FLAG, data.getFlags() & CompressingTranscoder.FLAG);
+		assertEquals(value, cut.decode(data));
+		assertEquals(1, cut.getCompressed());
+		assertEquals(1, cut.getDecompressed());
+		assertTrue(cut.getCompressionRatio() < 0.5);
+	}
+
+	@Test
+	public void testSmallValuesAreStoredRaw() {
+		final CachedData data = cut.encode("small");
+		assertEquals(0, data.getFlags() & CompressingTranscoder.FLAG);
+		assertEquals("small", cut.decode(data));
+		assertEquals(0, cut.getCompressed());
+		assertEquals(1.0, cut.getCompressionRatio());
+	}
+
+	@Test
+	public void testIncompressibleValuesAreStoredRaw() {
+		final CachedData data = cut.encode(noise(new Random(1), 4096));
+		assertEquals(0, data.getFlags() & CompressingTranscoder.FLAG);
+		assertEquals(1, cut.getStoredRaw());
+	}
+
+	@Test
+	public void testGivesUpOnIncompressibleNamespaces() {
+		cut.setGiveUpAfter(3);
+		cut.setRetryEvery(10);
+		final Random random = new Random(1);
+		for (int ix = 0; ix < 13; ix++) {
+			cut.encode(noise(random, 2048));
+		}
+		// 3 tries, 9 skipped, and a retry on the tenth after giving up.
+		assertEquals(4, cut.getStoredRaw());
+		assertEquals(9, cut.getSkipped());
+
+		// Compressible values are skipped as well, until the next retry finds out.
+		for (int ix = 0; ix < 10; ix++) {
+			cut.encode(repetitiveList(500));
+		}
+		assertEquals(18, cut.getSkipped());
+		assertEquals(1, cut.getCompressed());
+
+		// From then on, every value is tried again.
+		cut.encode(repetitiveList(500));
+		assertEquals(2, cut.getCompressed());
+	}
+
+	@Test
+	public void testWrapsOtherTranscoders() {
+		final CompactTranscoder compact = new CompactTranscoder();
+		cut.setTranscoder(compact);
+		final List<String> value = repetitiveList(500);
+
+		final CachedData data = cut.encode(value);
+
+		assertEquals(CompressingTranscoder.FLAG | CompactTranscoder.FLAG, data.getFlags());
+		assertEquals(value, cut.decode(data));
+		// Values written before compression was turned on still read.
+		assertEquals(value, cut.decode(compact.encode(value)));
+	}
+
+	@Test
+	public void testCorruptValuesAreMisses() {
+		assertNull(cut.decode(new CachedData(CompressingTranscoder.FLAG, new byte[] {100, 1, 2}, CachedData.MAX_SIZE)));
+	}
+
+	private static List<String> repetitiveList(final int size) {
+		final List<String> list = new ArrayList<String>();
+		for (int ix = 0; ix < size; ix++) {
+			list.add("item-" + (ix % 10));
+		}
+		return list;
+	}
+
+	private static byte[] noise(final Random random, final int length) {
+		final byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,84 @@
+package net.nelz.simplesm.transcoders;
+
+import net.nelz.simplesm.aop.*;
+import net.spy.memcached.*;
+import net.spy.memcached.transcoders.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class NegativeNullTranscoderTest {
+	private NegativeNullTranscoder cut;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		cut = new NegativeNullTranscoder();
+	}
+
+	@Test
+	public void testNegativeResultsAreEmpty() {
+		final CachedData data = cut.encode(PertinentNegativeNull.INSTANCE);
+
+		assertEquals(NegativeNullTranscoder.FLAG, data.getFlags());
+		assertEquals(0, data.getData().length);
+		assertSame(PertinentNegativeNull.INSTANCE, cut.decode(data));
+		assertFalse(cut.asyncDecode(data));
+	}
+
+	@Test
+	public void testOtherValuesGoThroughTheWrappedTranscoder() {
+		final List<String> value = Arrays.asList("a", "b");
+		final CachedData data = cut.encode(value);
+
+		assertEquals(0, data.getFlags() & NegativeNullTranscoder.FLAG);
+		assertEquals(value, cut.decode(data));
+		assertEquals(value, cut.decode(new SerializingTranscoder().encode(value)));
+	}
+
+	@Test
+	public void testSerializedNegativeResultsStillRead() {
+		final CachedData data = new SerializingTranscoder().encode(new PertinentNegativeNull());
+		assertSame(PertinentNegativeNull.INSTANCE, cut.decode(data));
+	}
+
+	@Test
+	public void testCompactTranscoderReadsThem() {
+		final CompactTranscoder compact = new CompactTranscoder();
+		assertSame(PertinentNegativeNull.INSTANCE, compact.decode(cut.encode(PertinentNegativeNull.INSTANCE)));
+		assertEquals("plain", compact.decode(cut.encode("plain")));
+	}
+
+	@Test
+	public void testWrapsOtherTranscoders() {
+		cut.setTranscoder(new CompactTranscoder());
+		assertEquals(CompactTranscoder.FLAG, cut.encode(42).getFlags());
+		assertEquals(42, cut.decode(cut.encode(42)));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testNullTranscoder() {
+		cut.setTranscoder(null);
+	}
+}
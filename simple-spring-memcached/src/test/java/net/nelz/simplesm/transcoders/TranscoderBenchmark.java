@@ -0,0 +1,100 @@
+package net.nelz.simplesm.transcoders;
+
+import net.nelz.simplesm.aop.*;
+import net.spy.memcached.*;
+import net.spy.memcached.transcoders.*;
+
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+/**
+ * Compares the encoded size and the encode and decode times of <code>CompactTranscoder</code>
+ * with those of the client's <code>SerializingTranscoder</code>, for a few typical cached
+ * values, and what <code>CompressingTranscoder</code> adds on top for the larger ones. Run the <code>main</code> method directly; it is not part of the test suite.
+ */
+public class TranscoderBenchmark {
+	private static final int ITERATIONS = 20000;
+
+	public static void main(final String[] args) {
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("Integer", 123456);
+		values.put("String(40)", "user:123456:profile:display-name:alpha");
+		final List<Long> ids = new ArrayList<Long>();
+		for (long ix = 0; ix < 100; ix++) {
+			ids.add(1000000 + ix);
+		}
+		values.put("List<Long>(100)", ids);
+		final Map<String, Object> row = new HashMap<String, Object>();
+		row.put("id", 42L);
+		row.put("name", "alice");
+		row.put("score", 0.75);
+		row.put("tags", Arrays.asList("a", "b", "c"));
+		values.put("Map(4)", row);
+		values.put("Timestamped(List)", new TimestampedValue(System.currentTimeMillis(), 12, 0, ids));
+		final List<String> names = new ArrayList<String>();
+		for (int ix = 0; ix < 2000; ix++) {
+			names.add("customer-" + (ix % 300) + "@example.com");
+		}
+		values.put("List<String>(2000)", names);
+
+		final Transcoder<Object> serializing = new SerializingTranscoder();
+		final Transcoder<Object> compact = new CompactTranscoder();
+		final CompressingTranscoder compressing = new CompressingTranscoder();
+		compressing.setTranscoder(new CompactTranscoder());
+		compressing.setThreshold(1024);
+		for (int pass = 0; pass < 2; pass++) {
+			for (final Map.Entry<String, Object> entry : values.entrySet()) {
+				run("serializing", entry.getKey(), entry.getValue(), serializing);
+				run("compact    ", entry.getKey(), entry.getValue(), compact);
+				run("compact+lz ", entry.getKey(), entry.getValue(), compressing);
+			}
+			System.out.println();
+		}
+	}
+
+	private static void run(final String label, final String name, final Object value, final Transcoder<Object> transcoder) {
+		CachedData encoded = null;
+		final long encodeBegin = System.nanoTime();
+		for (int ix = 0; ix < ITERATIONS; ix++) {
+			encoded = transcoder.encode(value);
+		}
+		final long encodeNanos = System.nanoTime() - encodeBegin;
+
+		Object decoded = null;
+		final long decodeBegin = System.nanoTime();
+		for (int ix = 0; ix < ITERATIONS; ix++) {
+			decoded = transcoder.decode(encoded);
+		}
+		final long decodeNanos = System.nanoTime() - decodeBegin;
+
+		if (!value.equals(decoded)) {
+			throw new IllegalStateException(label + " did not round-trip " + name + ".");
+		}
+		System.out.println(String.format("%s %-18s %6d bytes, encode %7.0fns, decode %7.0fns",
+				label,
+				name,
+				encoded.getData().length,
+				(double) encodeNanos / ITERATIONS,
+				(double) decodeNanos / ITERATIONS));
+	}
+}
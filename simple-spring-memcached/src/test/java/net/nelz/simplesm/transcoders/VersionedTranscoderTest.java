@@ -0,0 +1,174 @@
+package net.nelz.simplesm.transcoders;
+
+import net.nelz.simplesm.aop.*;
+import net.nelz.simplesm.api.*;
+import net.spy.memcached.*;
+import net.spy.memcached.transcoders.*;
+import static org.testng.AssertJUnit.*;
+import org.testng.annotations.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+Copyright (c) 2008, 2009  Nelson Carpentier
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+public class VersionedTranscoderTest {
+	private VersionedTranscoder cut;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		cut = new VersionedTranscoder();
+		cut.setVersion(3);
+	}
+
+	@Test
+	public void testSameVersionRoundTrips() {
+		final List<String> value = Arrays.asList("a", "b");
+		final CachedData data = cut.encode(value);
+
+		assertEquals(VersionedTranscoder.FLAG, data.getFlags() & VersionedTranscoder.FLAG);
+		assertEquals(value, cut.decode(data));
+		assertEquals(1, cut.getMatched());
+	}
+
+	@Test
+	public void testOtherVersionsAreMissesWithoutDecoding() {
+		final CountingTranscoder inner = new CountingTranscoder();
+		cut.setTranscoder(inner);
+		final CachedData data = cut.encode("value");
+
+		cut.setVersion(4);
+
+		assertNull(cut.decode(data));
+		assertEquals(1, cut.getMismatched());
+		assertEquals(0, inner.decoded);
+	}
+
+	@Test
+	public void testTruncatedValuesAreMisses() {
+		assertNull(cut.decode(new CachedData(VersionedTranscoder.FLAG, new byte[] {0, 0}, CachedData.MAX_SIZE)));
+		assertEquals(1, cut.getMismatched());
+	}
+
+	@Test
+	public void testUnversionedValues() {
+		final CachedData legacy = new SerializingTranscoder().encode("legacy");
+
+		assertEquals("legacy", cut.decode(legacy));
+		cut.setAcceptUnversioned(false);
+		assertNull(cut.decode(legacy));
+		assertEquals(2, cut.getUnversioned());
+	}
+
+	@Test
+	public void testWrapsOtherTranscoders() {
+		final CompressingTranscoder compressing = new CompressingTranscoder();
+		compressing.setThreshold(16);
+		compressing.setTranscoder(new CompactTranscoder());
+		cut.setTranscoder(compressing);
+		final List<String> value = new ArrayList<String>(Collections.nCopies(200, "repeated"));
+
+		final CachedData data = cut.encode(value);
+
+		assertEquals(VersionedTranscoder.FLAG | CompressingTranscoder.FLAG | CompactTranscoder.FLAG, data.getFlags());
+		assertEquals(value, cut.decode(data));
+	}
+
+	@Test
+	public void testFingerprints() {
+		cut.setFingerprintOf(Before.class);
+		final int before = cut.getVersion();
+		assertEquals(before, VersionedTranscoder.fingerprint(Before.class));
+		assertFalse(before == VersionedTranscoder.fingerprint(After.class));
+		assertFalse(VersionedTranscoder.fingerprint(Plain.class) == VersionedTranscoder.fingerprint(PlainWithField.class));
+		assertEquals(42, VersionedTranscoder.fingerprint(Declared.class));
+	}
+
+	@Test
+	public void testReadThroughsReloadAcrossAVersionBump() throws Throwable {
+		final InMemoryMemcachedClient client = new InMemoryMemcachedClient();
+		final TranscoderManager manager = new TranscoderManager();
+		manager.setTranscoders(Collections.<String, Transcoder<Object>>singletonMap("versioned", cut));
+		final ReadThroughSingleCacheAdvice advice = new ReadThroughSingleCacheAdvice();
+		advice.setCache(client);
+		advice.setMethodStore(new CacheKeyMethodStoreImpl());
+		advice.setTranscoderManager(manager);
+		final Target target = new Target();
+
+		assertEquals("value-1", advice.cacheGetSingle(TargetJoinPoint.create(target, "read", "1")));
+		assertEquals("value-1", advice.cacheGetSingle(TargetJoinPoint.create(target, "read", "1")));
+		assertEquals(1, target.loads);
+
+		// The next deploy: the entry of the old version is reloaded once, then hit again.
+		cut.setVersion(4);
+		assertEquals("value-1", advice.cacheGetSingle(TargetJoinPoint.create(target, "read", "1")));
+		assertEquals("value-1", advice.cacheGetSingle(TargetJoinPoint.create(target, "read", "1")));
+		assertEquals(2, target.loads);
+		assertEquals(1, cut.getMismatched());
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testNullTranscoder() {
+		cut.setTranscoder(null);
+	}
+
+	private static class CountingTranscoder extends SerializingTranscoder {
+		private int decoded;
+
+		public Object decode(final CachedData data) {
+			decoded++;
+			return super.decode(data);
+		}
+	}
+
+	public static class Target {
+		private int loads;
+
+		@ReadThroughSingleCache(namespace = "versioned", expiration = 3600)
+		public String read(@ParameterValueKeyProvider final String key) {
+			loads++;
+			return "value-" + key;
+		}
+	}
+
+	private static class Before implements Serializable {
+		private String name;
+	}
+
+	private static class After implements Serializable {
+		private String name;
+		private int age;
+	}
+
+	private static class Declared implements Serializable {
+		private static final long serialVersionUID = 42L;
+	}
+
+	private static class Plain {
+		private String name;
+	}
+
+	private static class PlainWithField {
+		private String name;
+		private int age;
+	}
+}